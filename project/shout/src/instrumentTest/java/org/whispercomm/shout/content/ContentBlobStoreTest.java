@@ -0,0 +1,77 @@
+package org.whispercomm.shout.content;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.whispercomm.shout.Hash;
+import org.whispercomm.shout.MimeType;
+import org.whispercomm.shout.content.storage.MemoryObjectStorage;
+import org.whispercomm.shout.test.ShoutTestRunner;
+import org.whispercomm.shout.test.util.TestFactory;
+
+@RunWith(ShoutTestRunner.class)
+public class ContentBlobStoreTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private ContentBlobStore blobs;
+
+	private Hash descriptor;
+
+	private byte[] data;
+
+	@Before
+	public void setup() {
+		blobs = new ContentBlobStore(new File(folder.getRoot(), "blobs"));
+		descriptor = Hash.hashData(new byte[] { 1 });
+		data = TestFactory.genByteArray(5000);
+	}
+
+	@Test
+	public void testStoreAndRetrieve() throws Exception {
+		assertNull(blobs.retrieve(descriptor));
+		assertFalse(blobs.exists(descriptor));
+
+		blobs.store(descriptor, new Content(data, MimeType.PNG));
+		assertTrue(blobs.exists(descriptor));
+		Content content = blobs.retrieve(descriptor);
+		assertArrayEquals(data, content.getData());
+		assertEquals(MimeType.PNG, content.getMimeType());
+	}
+
+	@Test
+	public void testCorruptBlobDiscarded() throws Exception {
+		blobs.store(descriptor, new Content(data, MimeType.PNG));
+		File file = new File(new File(folder.getRoot(), "blobs"), descriptor.toString());
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		raf.seek(file.length() - 10);
+		raf.write(~raf.read());
+		raf.close();
+
+		assertNull(blobs.retrieve(descriptor));
+		assertFalse(blobs.exists(descriptor));
+	}
+
+	@Test
+	public void testManagerServesCompletedContent() throws Exception {
+		MemoryObjectStorage storage = new MemoryObjectStorage();
+		ContentManager manager = new ContentManager(storage);
+		Hash hash = manager.store(data, MimeType.PNG);
+
+		Content content = manager.retrieve(hash);
+		assertArrayEquals(data, content.getData());
+
+		// Changes to returned content do not reach the cache
+		content.getData()[0] ^= 1;
+		assertArrayEquals(data, manager.retrieve(hash).getData());
+	}
+
+}
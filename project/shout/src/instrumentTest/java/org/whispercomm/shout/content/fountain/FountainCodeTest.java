@@ -0,0 +1,118 @@
+package org.whispercomm.shout.content.fountain;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.junit.Test;
+import org.whispercomm.shout.Hash;
+import org.whispercomm.shout.content.merkle.MerkleBuilder;
+import org.whispercomm.shout.network.PacketProtocol;
+
+public class FountainCodeTest {
+
+	private static byte[] data(int length, long seed) {
+		byte[] data = new byte[length];
+		new Random(seed).nextBytes(data);
+		return data;
+	}
+
+	private static Hash root(byte[] data) {
+		return MerkleBuilder.build(data, 0, data.length).getHash();
+	}
+
+	@Test
+	public void testSourceSymbolsDecode() {
+		byte[] data = data(10000, 1);
+		Hash root = root(data);
+		FountainEncoder encoder = new FountainEncoder(root, data);
+		FountainDecoder decoder = new FountainDecoder(root, data.length);
+		int k = encoder.getNumBlocks();
+		for (int i = 0; i < k - 1; ++i)
+			assertFalse(decoder.add(encoder.encode(i)));
+		assertTrue(decoder.add(encoder.encode(k - 1)));
+		assertArrayEquals(data, decoder.getData());
+	}
+
+	@Test
+	public void testDecodesDespiteLoss() {
+		Random random = new Random(2);
+		int total = 0;
+		int blocks = 0;
+		for (int trial = 0; trial < 20; ++trial) {
+			byte[] data = data(MerkleBuilder.MAX_DATA_LEN - trial * 997, trial);
+			Hash root = root(data);
+			FountainEncoder encoder = new FountainEncoder(root, data);
+			FountainDecoder decoder = new FountainDecoder(root, data.length);
+			int id = 0;
+			while (!decoder.isComplete()) {
+				FountainSymbol symbol = encoder.encode(id++);
+				// Lose 30% of symbols
+				if (random.nextDouble() >= 0.3)
+					decoder.add(symbol);
+				assertTrue(id < 10 * encoder.getNumBlocks());
+			}
+			assertArrayEquals(data, decoder.getData());
+			total += decoder.getReceivedCount();
+			blocks += encoder.getNumBlocks();
+		}
+		// Few symbols beyond the number of blocks are needed on average
+		assertTrue(total < 1.15 * blocks);
+	}
+
+	@Test
+	public void testSymbolsAreDeterministic() {
+		byte[] data = data(30000, 3);
+		Hash root = root(data);
+		FountainEncoder a = new FountainEncoder(root, data);
+		FountainEncoder b = new FountainEncoder(root, data);
+		for (int id = 0; id < 100; ++id)
+			assertArrayEquals(a.encode(id).getPayload(), b.encode(id).getPayload());
+	}
+
+	@Test
+	public void testCorruptSymbolFailsVerification() {
+		byte[] data = data(20000, 4);
+		Hash root = root(data);
+		FountainEncoder encoder = new FountainEncoder(root, data);
+		FountainDecoder decoder = new FountainDecoder(root, data.length);
+		for (int id = 0; !decoder.isComplete(); ++id) {
+			FountainSymbol symbol = encoder.encode(id);
+			if (id == 0)
+				symbol.getPayload()[7] ^= 0x01;
+			decoder.add(symbol);
+		}
+		byte[] decoded = decoder.getData();
+		assertFalse(root.equals(root(decoded)));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testRejectsSymbolForOtherObject() {
+		byte[] data = data(20000, 5);
+		Hash root = root(data);
+		new FountainDecoder(root, data.length + 1).add(new FountainEncoder(root, data)
+				.encode(0));
+	}
+
+	@Test
+	public void testSerializeRoundTrip() throws Exception {
+		byte[] data = data(20000, 6);
+		Hash root = root(data);
+		FountainSymbol symbol = new FountainEncoder(root, data).encode(42);
+
+		ByteBuffer buffer = PacketProtocol.createPacket();
+		assertTrue(FountainSymbolSerializer.serialize(buffer, symbol));
+		buffer.flip();
+		buffer.get(); // Packet header
+
+		FountainSymbol copy = FountainSymbolSerializer.deserialize(buffer);
+		assertFalse(buffer.hasRemaining());
+		assertEquals(root, copy.getRoot());
+		assertEquals(data.length, copy.getLength());
+		assertEquals(42, copy.getSymbolId());
+		assertArrayEquals(symbol.getPayload(), copy.getPayload());
+		PacketProtocol.releasePacket(buffer);
+	}
+
+}
@@ -0,0 +1,101 @@
+package org.whispercomm.shout.content.request;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+import org.whispercomm.shout.Hash;
+import org.whispercomm.shout.errors.InvalidFormatException;
+import org.whispercomm.shout.network.PacketProtocol;
+
+public class ContentRequestSerializerTest {
+
+	private static List<Hash> hashes(int count) {
+		List<Hash> hashes = new ArrayList<Hash>();
+		for (int i = 0; i < count; ++i)
+			hashes.add(Hash.hashData(Integer.toString(i).getBytes()));
+		return hashes;
+	}
+
+	private static ContentRequest roundTrip(ContentRequest request, int expectedLength)
+			throws Exception {
+		ByteBuffer buffer = PacketProtocol.createPacket();
+		try {
+			assertTrue(ContentRequestSerializer.serialize(buffer, request));
+			buffer.flip();
+			buffer.get(); // Packet header
+			assertEquals(expectedLength, buffer.remaining());
+			ContentRequest copy = ContentRequestSerializer.deserialize(buffer);
+			assertFalse(buffer.hasRemaining());
+			return copy;
+		} finally {
+			PacketProtocol.releasePacket(buffer);
+		}
+	}
+
+	@Test
+	public void testSingleHashUsesOriginalFormat() throws Exception {
+		Hash hash = hashes(1).get(0);
+		ContentRequest copy = roundTrip(new ContentRequest(hash), 3 + 1 + Hash.LENGTH);
+		assertEquals(hash, copy.getObjectHash());
+		assertEquals(1, copy.getHashes().size());
+		assertNull(copy.getRoot());
+	}
+
+	@Test
+	public void testDeserializesOriginalFormat() throws Exception {
+		Hash hash = hashes(1).get(0);
+		ByteBuffer buffer = ByteBuffer.allocate(3 + 1 + Hash.LENGTH);
+		buffer.put(ContentRequestSerializer.TYPE.getIdAsByte());
+		buffer.putShort((short) (1 + Hash.LENGTH));
+		buffer.put((byte) 0x00);
+		buffer.put(hash.toByteArray());
+		buffer.flip();
+		assertEquals(hash, ContentRequestSerializer.deserialize(buffer).getObjectHash());
+	}
+
+	@Test
+	public void testBatchRoundTrip() throws Exception {
+		List<Hash> hashes = hashes(ContentRequest.MAX_HASHES);
+		ContentRequest copy = roundTrip(new ContentRequest(hashes, null), 3 + 3
+				+ hashes.size() * Hash.LENGTH);
+		assertEquals(hashes, copy.getHashes());
+		assertNull(copy.getRoot());
+	}
+
+	@Test
+	public void testBatchWithRootRoundTrip() throws Exception {
+		List<Hash> hashes = hashes(5);
+		Hash root = Hash.hashData("root".getBytes());
+		ContentRequest copy = roundTrip(new ContentRequest(hashes, root), 3 + 3 + Hash.LENGTH
+				+ hashes.size() * Hash.LENGTH);
+		assertEquals(hashes, copy.getHashes());
+		assertEquals(root, copy.getRoot());
+	}
+
+	@Test
+	public void testFullBatchFitsInPacket() {
+		ByteBuffer buffer = PacketProtocol.createPacket();
+		assertTrue(ContentRequestSerializer.serialize(buffer,
+				new ContentRequest(hashes(ContentRequest.MAX_HASHES), hashes(1).get(0))));
+		PacketProtocol.releasePacket(buffer);
+	}
+
+	@Test(expected = InvalidFormatException.class)
+	public void testRejectsBadCount() throws Exception {
+		ByteBuffer buffer = PacketProtocol.createPacket();
+		try {
+			ContentRequestSerializer.serialize(buffer, new ContentRequest(hashes(3), null));
+			buffer.flip();
+			buffer.get(); // Packet header
+			buffer.put(buffer.position() + 5, (byte) 2);
+			ContentRequestSerializer.deserialize(buffer);
+		} finally {
+			PacketProtocol.releasePacket(buffer);
+		}
+	}
+
+}
@@ -0,0 +1,99 @@
+package org.whispercomm.shout.content.storage;
+
+import java.io.File;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+import org.whispercomm.shout.Hash;
+import org.whispercomm.shout.MimeType;
+import org.whispercomm.shout.content.Content;
+import org.whispercomm.shout.content.ContentBlobStore;
+import org.whispercomm.shout.content.ContentManager;
+import org.whispercomm.shout.content.descriptor.ContentDescriptor;
+import org.whispercomm.shout.content.merkle.MerkleBuilder;
+
+/**
+ * Measures the latency of reading a full avatar by walking its Merkle tree in
+ * a {@link PackObjectStorage} under each {@link IntegrityPolicy}, from its
+ * {@link ContentBlobStore} blob, and from the content cache of the
+ * {@link ContentManager}.
+ * <p>
+ * The avatar is {@link MerkleBuilder#MAX_DATA_LEN} bytes, so each tree walk
+ * retrieves every node of a tree of about 140 objects.
+ * <p>
+ * Run as a plain Java program on the desktop JVM:
+ *
+ * <pre>
+ * java org.whispercomm.shout.content.storage.AvatarReadBenchmark [reads]
+ * </pre>
+ *
+ * @author David R. Bild
+ */
+public class AvatarReadBenchmark {
+
+	private static final int WARMUP_READS = 200;
+
+	public static void main(String[] args) throws Exception {
+		int reads = (args.length > 0) ? Integer.parseInt(args[0]) : 1000;
+
+		File dir = new File(System.getProperty("java.io.tmpdir"), "avatar-read-benchmark");
+		FileUtils.deleteQuietly(dir);
+		PackObjectStorage storage = PackObjectStorage.open(new File(dir, "packs"), null);
+		final ContentManager manager = new ContentManager(storage);
+		final ContentBlobStore blobs = new ContentBlobStore(new File(dir, "blobs"));
+
+		byte[] avatar = new byte[MerkleBuilder.MAX_DATA_LEN];
+		new Random(0).nextBytes(avatar);
+		final Hash hash = manager.store(avatar, MimeType.PNG);
+		blobs.store(hash, new Content(avatar, MimeType.PNG));
+
+		IntegrityPolicy original = PackObjectStorage.INTEGRITY_POLICY;
+		try {
+			for (IntegrityPolicy policy : IntegrityPolicy.values()) {
+				PackObjectStorage.INTEGRITY_POLICY = policy;
+				time("tree, " + policy, reads, new Reader() {
+					@Override
+					public void read() throws Exception {
+						ContentDescriptor descriptor = manager.getDescriptorStore()
+								.retrieve(hash).get();
+						manager.getMerkleStore().getObject(descriptor.getObjectRoot());
+					}
+				});
+			}
+			time("blob", reads, new Reader() {
+				@Override
+				public void read() throws Exception {
+					blobs.retrieve(hash);
+				}
+			});
+			time("cache", reads, new Reader() {
+				@Override
+				public void read() throws Exception {
+					manager.retrieve(hash);
+				}
+			});
+		} finally {
+			PackObjectStorage.INTEGRITY_POLICY = original;
+			storage.close();
+			FileUtils.deleteQuietly(dir);
+		}
+	}
+
+	private interface Reader {
+		void read() throws Exception;
+	}
+
+	private static void time(String name, int reads, Reader reader) throws Exception {
+		for (int i = 0; i < WARMUP_READS; ++i)
+			reader.read();
+
+		long start = System.nanoTime();
+		for (int i = 0; i < reads; ++i)
+			reader.read();
+		long nanos = System.nanoTime() - start;
+
+		System.out.println(String.format("%-20s %6d reads %8.3f ms/read", name, reads, nanos
+				/ 1e6 / reads));
+	}
+
+}
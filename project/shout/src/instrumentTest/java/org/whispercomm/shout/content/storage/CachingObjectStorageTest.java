@@ -0,0 +1,176 @@
+package org.whispercomm.shout.content.storage;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.whispercomm.shout.Hash;
+import org.whispercomm.shout.errors.NotFoundException;
+import org.whispercomm.shout.test.ShoutTestRunner;
+
+import android.content.ComponentCallbacks2;
+
+@RunWith(ShoutTestRunner.class)
+public class CachingObjectStorageTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static final int OBJECT_LEN = 1000;
+
+	private static final long CACHE_BYTES = 20 * 1024;
+
+	private int shards;
+
+	private MemoryObjectStorage backing;
+
+	private CachingObjectStorage cache;
+
+	private Random random;
+
+	@Before
+	public void setup() {
+		shards = CachingObjectStorage.SHARDS;
+		CachingObjectStorage.SHARDS = 1;
+		backing = new MemoryObjectStorage();
+		cache = new CachingObjectStorage(backing, CACHE_BYTES);
+		random = new Random(1);
+	}
+
+	@After
+	public void teardown() {
+		CachingObjectStorage.SHARDS = shards;
+	}
+
+	private List<Hash> storeAll(int count) throws Exception {
+		List<Hash> hashes = new ArrayList<Hash>();
+		for (int i = 0; i < count; ++i) {
+			byte[] data = new byte[OBJECT_LEN];
+			random.nextBytes(data);
+			hashes.add(cache.store(data));
+		}
+		return hashes;
+	}
+
+	private void readAll(List<Hash> hashes) throws Exception {
+		for (Hash hash : hashes)
+			assertEquals(hash, Hash.hashData(cache.retrieve(hash)));
+	}
+
+	@Test
+	public void testRepeatedReadHits() throws Exception {
+		List<Hash> hashes = storeAll(5);
+		readAll(hashes);
+		assertEquals(0, cache.getHitCount());
+		assertEquals(5, cache.getMissCount());
+
+		readAll(hashes);
+		assertEquals(5, cache.getHitCount());
+		assertEquals(0.5, cache.getHitRatio(), 1e-9);
+	}
+
+	@Test
+	public void testReturnsCopies() throws Exception {
+		Hash hash = storeAll(1).get(0);
+		cache.retrieve(hash)[0] ^= 1;
+		assertEquals(hash, Hash.hashData(cache.retrieve(hash)));
+	}
+
+	@Test
+	public void testStaysWithinBudget() throws Exception {
+		readAll(storeAll(100));
+		assertTrue(cache.size() <= CACHE_BYTES);
+		assertTrue(cache.size() > CACHE_BYTES / 2);
+		assertTrue(cache.getEvictionCount() > 0);
+	}
+
+	@Test
+	public void testScanDoesNotFlushPopularObjects() throws Exception {
+		List<Hash> popular = storeAll(5);
+		readAll(popular);
+		readAll(popular);
+
+		// Objects read once, many more than fit
+		readAll(storeAll(100));
+
+		long misses = cache.getMissCount();
+		readAll(popular);
+		assertEquals(misses, cache.getMissCount());
+	}
+
+	@Test
+	public void testTrimMemory() throws Exception {
+		readAll(storeAll(10));
+		long size = cache.size();
+
+		cache.trimMemory(ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN);
+		assertEquals(size, cache.size());
+
+		cache.trimMemory(ComponentCallbacks2.TRIM_MEMORY_BACKGROUND);
+		assertTrue(cache.size() <= CACHE_BYTES / 2);
+
+		cache.trimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+		assertEquals(0, cache.size());
+		assertEquals(10, cache.getEvictionCount());
+	}
+
+	@Test
+	public void testQuarantinedObjectStoredAgain() throws Exception {
+		IntegrityPolicy policy = PackObjectStorage.INTEGRITY_POLICY;
+		PackObjectStorage.INTEGRITY_POLICY = IntegrityPolicy.VerifyOnRead;
+		File dir = new File(folder.getRoot(), "packs");
+		PackObjectStorage pack = PackObjectStorage.open(dir, null);
+		try {
+			cache = new CachingObjectStorage(pack, CACHE_BYTES);
+			byte[] data = new byte[OBJECT_LEN];
+			random.nextBytes(data);
+			Hash hash = cache.store(data);
+			cache.retrieve(hash);
+
+			// Corrupt the record, keeping its CRC32 valid, and let the pack
+			// storage quarantine it
+			byte[] garbage = new byte[OBJECT_LEN];
+			random.nextBytes(garbage);
+			CRC32 crc = new CRC32();
+			crc.update(garbage);
+			RandomAccessFile file = new RandomAccessFile(new File(dir, "00000000.pack"), "rw");
+			file.seek(PackSegment.HEADER_LEN + Hash.LENGTH + 4);
+			file.writeInt((int) crc.getValue());
+			file.write(garbage);
+			file.close();
+			try {
+				pack.retrieve(hash);
+				fail("Corrupt object returned.");
+			} catch (NotFoundException e) {
+				// Expected
+			}
+
+			assertFalse(cache.exists(hash));
+			try {
+				cache.retrieve(hash);
+				fail("Quarantined object returned.");
+			} catch (NotFoundException e) {
+				// Expected
+			}
+
+			cache.store(data);
+			assertTrue(cache.exists(hash));
+			assertArrayEquals(data, cache.retrieve(hash));
+		} finally {
+			pack.close();
+			PackObjectStorage.INTEGRITY_POLICY = policy;
+		}
+	}
+
+}
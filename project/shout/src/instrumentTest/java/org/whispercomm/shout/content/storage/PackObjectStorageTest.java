@@ -0,0 +1,261 @@
+package org.whispercomm.shout.content.storage;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.whispercomm.shout.Hash;
+import org.whispercomm.shout.errors.NotFoundException;
+import org.whispercomm.shout.test.ShoutTestRunner;
+
+@RunWith(ShoutTestRunner.class)
+public class PackObjectStorageTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private int segmentBytes;
+
+	private IntegrityPolicy integrityPolicy;
+
+	private long scrubDelayMs;
+
+	private File dir;
+
+	private PackObjectStorage storage;
+
+	private Random random;
+
+	@Before
+	public void setup() throws Exception {
+		segmentBytes = PackObjectStorage.SEGMENT_BYTES;
+		integrityPolicy = PackObjectStorage.INTEGRITY_POLICY;
+		scrubDelayMs = PackObjectStorage.SCRUB_DELAY_MS;
+		PackObjectStorage.SEGMENT_BYTES = 8 * 1024;
+		dir = new File(folder.getRoot(), "packs");
+		storage = PackObjectStorage.open(dir, null);
+		random = new Random(1);
+	}
+
+	@After
+	public void teardown() {
+		storage.close();
+		PackObjectStorage.SEGMENT_BYTES = segmentBytes;
+		PackObjectStorage.INTEGRITY_POLICY = integrityPolicy;
+		PackObjectStorage.SCRUB_DELAY_MS = scrubDelayMs;
+	}
+
+	private byte[] data(int length) {
+		byte[] data = new byte[length];
+		random.nextBytes(data);
+		return data;
+	}
+
+	private List<byte[]> storeAll(int count, int length) throws Exception {
+		List<byte[]> objects = new ArrayList<byte[]>();
+		for (int i = 0; i < count; ++i) {
+			byte[] data = data(length);
+			storage.store(data);
+			objects.add(data);
+		}
+		return objects;
+	}
+
+	private void reopen() throws Exception {
+		storage.close();
+		storage = PackObjectStorage.open(dir, null);
+	}
+
+	/**
+	 * Overwrites the data of the i-th record of the first segment, all of
+	 * the specified length, and updates its CRC32 to match, as the checksum
+	 * cannot catch.
+	 */
+	private void corruptUndetectably(int i, int length) throws Exception {
+		byte[] data = data(length);
+		CRC32 crc = new CRC32();
+		crc.update(data);
+		RandomAccessFile file = new RandomAccessFile(new File(dir, "00000000.pack"), "rw");
+		long record = PackSegment.HEADER_LEN + i * (PackSegment.RECORD_HEADER_LEN + length);
+		file.seek(record + Hash.LENGTH + 4);
+		file.writeInt((int) crc.getValue());
+		file.write(data);
+		file.close();
+	}
+
+	private void assertStored(List<byte[]> objects) throws Exception {
+		for (byte[] data : objects) {
+			Hash hash = Hash.hashData(data);
+			assertTrue(storage.exists(hash));
+			assertArrayEquals(data, storage.retrieve(hash));
+		}
+	}
+
+	@Test
+	public void testStoreAndRetrieve() throws Exception {
+		List<byte[]> objects = storeAll(5, 1000);
+		assertStored(objects);
+		assertEquals(5, storage.size());
+
+		// Storing again adds nothing
+		storage.store(objects.get(0));
+		assertEquals(5, storage.size());
+		assertFalse(storage.exists(Hash.hashData(data(10))));
+	}
+
+	@Test(expected = NotFoundException.class)
+	public void testRetrieveMissing() throws Exception {
+		storage.retrieve(Hash.hashData(data(10)));
+	}
+
+	@Test
+	public void testIndexRebuiltOnOpen() throws Exception {
+		List<byte[]> objects = storeAll(40, 1000);
+		assertTrue(storage.getSegmentCount() > 1);
+		int segments = storage.getSegmentCount();
+
+		reopen();
+		assertEquals(40, storage.size());
+		assertEquals(segments, storage.getSegmentCount());
+		assertStored(objects);
+	}
+
+	@Test
+	public void testTornAppendTruncated() throws Exception {
+		List<byte[]> objects = storeAll(3, 1000);
+		storage.close();
+
+		// A record cut short by a crash
+		File[] files = dir.listFiles();
+		assertEquals(1, files.length);
+		long length = files[0].length();
+		RandomAccessFile file = new RandomAccessFile(files[0], "rw");
+		file.seek(length);
+		file.write(data(PackSegment.RECORD_HEADER_LEN + 100));
+		file.close();
+
+		storage = PackObjectStorage.open(dir, null);
+		assertEquals(3, storage.size());
+		assertEquals(length, files[0].length());
+		objects.addAll(storeAll(1, 1000));
+		reopen();
+		assertStored(objects);
+	}
+
+	@Test
+	public void testCorruptSegmentCompacted() throws Exception {
+		List<byte[]> objects = storeAll(20, 1000);
+		int segments = storage.getSegmentCount();
+		storage.close();
+
+		// Corrupt the data of the first records of the first segment
+		File first = new File(dir, "00000000.pack");
+		RandomAccessFile file = new RandomAccessFile(first, "rw");
+		for (int i = 0; i < 4; ++i) {
+			file.seek(PackSegment.HEADER_LEN + i * (PackSegment.RECORD_HEADER_LEN + 1000)
+					+ PackSegment.RECORD_HEADER_LEN);
+			file.write(data(1000));
+		}
+		file.close();
+
+		storage = PackObjectStorage.open(dir, null);
+		List<byte[]> intact = new ArrayList<byte[]>();
+		for (int i = 0; i < objects.size(); ++i) {
+			Hash hash = Hash.hashData(objects.get(i));
+			try {
+				assertArrayEquals(objects.get(i), storage.retrieve(hash));
+				intact.add(objects.get(i));
+			} catch (NotFoundException e) {
+				assertTrue(i < 4);
+				assertFalse(storage.exists(hash));
+			}
+		}
+		assertEquals(16, intact.size());
+
+		for (int i = 0; i < 50 && storage.getCompactionCount() == 0; ++i)
+			Thread.sleep(20);
+		assertEquals(1, storage.getCompactionCount());
+		assertFalse(first.exists());
+		assertStored(intact);
+
+		reopen();
+		assertEquals(16, storage.size());
+		assertTrue(storage.getSegmentCount() <= segments);
+		assertStored(intact);
+	}
+
+	@Test
+	public void testScrubQuarantinesCorruptObjects() throws Exception {
+		List<byte[]> objects = storeAll(5, 1000);
+		storage.close();
+		corruptUndetectably(1, 1000);
+		corruptUndetectably(3, 1000);
+
+		PackObjectStorage.INTEGRITY_POLICY = IntegrityPolicy.TrustOnWrite;
+		PackObjectStorage.SCRUB_DELAY_MS = 0;
+		storage = PackObjectStorage.open(dir, null);
+		for (int i = 0; i < 50 && storage.getScrubCount() == 0; ++i)
+			Thread.sleep(20);
+		assertEquals(1, storage.getScrubCount());
+		assertEquals(2, storage.getQuarantinedCount());
+		assertEquals(3, storage.size());
+
+		for (int i = 0; i < objects.size(); ++i) {
+			Hash hash = Hash.hashData(objects.get(i));
+			if (i == 1 || i == 3)
+				assertFalse(storage.exists(hash));
+			else
+				assertArrayEquals(objects.get(i), storage.retrieve(hash));
+		}
+	}
+
+	@Test
+	public void testVerifyOnReadQuarantinesCorruptObject() throws Exception {
+		List<byte[]> objects = storeAll(3, 1000);
+		storage.close();
+		corruptUndetectably(0, 1000);
+
+		PackObjectStorage.INTEGRITY_POLICY = IntegrityPolicy.VerifyOnRead;
+		storage = PackObjectStorage.open(dir, null);
+		Hash hash = Hash.hashData(objects.get(0));
+		try {
+			storage.retrieve(hash);
+			fail("Corrupt object returned.");
+		} catch (NotFoundException e) {
+			// Expected
+		}
+		assertEquals(1, storage.getQuarantinedCount());
+		assertFalse(storage.exists(hash));
+		assertStored(objects.subList(1, 3));
+	}
+
+	@Test
+	public void testMigrateLegacyLayout() throws Exception {
+		File legacy = new File(folder.getRoot(), "objects");
+		List<byte[]> objects = new ArrayList<byte[]>();
+		for (int i = 0; i < 10; ++i) {
+			byte[] data = data(500);
+			String name = Hash.hashData(data).toString();
+			FileUtils.writeByteArrayToFile(new File(new File(legacy, name.substring(0, 2)),
+					name.substring(2)), data);
+			objects.add(data);
+		}
+
+		assertEquals(10, LegacyObjectMigration.migrate(legacy, storage));
+		assertFalse(legacy.exists());
+		assertStored(objects);
+	}
+
+}
@@ -0,0 +1,116 @@
+package org.whispercomm.shout.crypto;
+
+import java.util.Random;
+
+import org.spongycastle.crypto.digests.SHA256Digest;
+import org.spongycastle.crypto.signers.ECDSASigner;
+
+/**
+ * Compares the throughput of {@link EcdsaVerifier} with bouncycastle's
+ * {@link ECDSASigner}, for both cold (first-seen) and warm (repeat) keys.
+ * <p>
+ * Run as a plain Java program on the desktop JVM:
+ *
+ * <pre>
+ * java org.whispercomm.shout.crypto.EcdsaVerifierBenchmark [iterations]
+ * </pre>
+ *
+ * @author David R. Bild
+ */
+public class EcdsaVerifierBenchmark {
+
+	private static final int NUM_KEYS = 8;
+
+	public static void main(String[] args) {
+		int iterations = (args.length > 0) ? Integer.parseInt(args[0]) : 400;
+
+		KeyGenerator generator = new KeyGenerator();
+		Random random = new Random(0);
+
+		ECKeyPair[] pairs = new ECKeyPair[iterations];
+		byte[][] digests = new byte[iterations][];
+		DsaSignature[] sigs = new DsaSignature[iterations];
+
+		ECKeyPair[] warm = new ECKeyPair[NUM_KEYS];
+		for (int i = 0; i < NUM_KEYS; ++i)
+			warm[i] = generator.generateKeyPair();
+
+		for (int i = 0; i < iterations; ++i) {
+			byte[] message = new byte[200];
+			random.nextBytes(message);
+			digests[i] = digest(message);
+			pairs[i] = generator.generateKeyPair();
+			sigs[i] = EcdsaWithSha256.sign(message, pairs[i].getPrivateKey());
+		}
+
+		DsaSignature[] warmSigs = new DsaSignature[iterations];
+		byte[][] warmDigests = new byte[iterations][];
+		for (int i = 0; i < iterations; ++i) {
+			byte[] message = new byte[200];
+			random.nextBytes(message);
+			warmDigests[i] = digest(message);
+			warmSigs[i] = EcdsaWithSha256.sign(message, warm[i % NUM_KEYS].getPrivateKey());
+		}
+
+		// Warm up the JIT
+		for (int round = 0; round < 2; ++round) {
+			runReference(digests, sigs, pairs);
+			runVerifier(new EcdsaVerifier(CryptoParams.DOMAIN_PARAMS, iterations), digests,
+					sigs, pairs);
+		}
+
+		long ref = runReference(digests, sigs, pairs);
+		long cold = runVerifier(new EcdsaVerifier(CryptoParams.DOMAIN_PARAMS, iterations),
+				digests, sigs, pairs);
+
+		ECKeyPair[] warmPairs = new ECKeyPair[iterations];
+		for (int i = 0; i < iterations; ++i)
+			warmPairs[i] = warm[i % NUM_KEYS];
+		EcdsaVerifier verifier = new EcdsaVerifier(CryptoParams.DOMAIN_PARAMS,
+				EcdsaVerifier.DEFAULT_MAX_KEYS);
+		// Promote the warm keys
+		runVerifier(verifier, warmDigests, warmSigs, warmPairs);
+		long refWarm = runReference(warmDigests, warmSigs, warmPairs);
+		long warmTime = runVerifier(verifier, warmDigests, warmSigs, warmPairs);
+
+		report("bouncycastle (distinct keys)", ref, iterations);
+		report("EcdsaVerifier cold (distinct keys)", cold, iterations);
+		report("bouncycastle (repeat keys)", refWarm, iterations);
+		report("EcdsaVerifier warm (repeat keys)", warmTime, iterations);
+	}
+
+	private static long runReference(byte[][] digests, DsaSignature[] sigs, ECKeyPair[] pairs) {
+		long start = System.nanoTime();
+		for (int i = 0; i < digests.length; ++i) {
+			ECDSASigner signer = new ECDSASigner();
+			signer.init(false, pairs[i].getPublicKey().getECPublicKeyParameters());
+			if (!signer.verifySignature(digests[i], sigs[i].getR(), sigs[i].getS()))
+				throw new IllegalStateException("Verification failed.");
+		}
+		return System.nanoTime() - start;
+	}
+
+	private static long runVerifier(EcdsaVerifier verifier, byte[][] digests,
+			DsaSignature[] sigs, ECKeyPair[] pairs) {
+		long start = System.nanoTime();
+		for (int i = 0; i < digests.length; ++i) {
+			if (!verifier.verify(digests[i], sigs[i], pairs[i].getPublicKey()))
+				throw new IllegalStateException("Verification failed.");
+		}
+		return System.nanoTime() - start;
+	}
+
+	private static byte[] digest(byte[] message) {
+		SHA256Digest digest = new SHA256Digest();
+		digest.update(message, 0, message.length);
+		byte[] hash = new byte[digest.getDigestSize()];
+		digest.doFinal(hash, 0);
+		return hash;
+	}
+
+	private static void report(String name, long nanos, int iterations) {
+		System.out.println(String.format("%-40s %8.3f ms/verify %8.1f verifies/s", name,
+				nanos / 1e6 / iterations, iterations * 1e9 / nanos));
+	}
+
+}
@@ -0,0 +1,123 @@
+package org.whispercomm.shout.crypto;
+
+import static org.junit.Assert.*;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.spongycastle.crypto.digests.SHA256Digest;
+import org.spongycastle.crypto.signers.ECDSASigner;
+
+public class EcdsaVerifierTest {
+
+	private static final int ROUNDS = 20;
+
+	private EcdsaVerifier verifier;
+
+	private KeyGenerator generator;
+
+	private Random random;
+
+	@Before
+	public void setup() {
+		verifier = new EcdsaVerifier(CryptoParams.DOMAIN_PARAMS, 4);
+		generator = new KeyGenerator();
+		random = new Random(42);
+	}
+
+	private static byte[] digest(byte[] message) {
+		SHA256Digest digest = new SHA256Digest();
+		digest.update(message, 0, message.length);
+		byte[] hash = new byte[digest.getDigestSize()];
+		digest.doFinal(hash, 0);
+		return hash;
+	}
+
+	private static boolean reference(byte[] digest, DsaSignature sig, ECPublicKey key) {
+		ECDSASigner signer = new ECDSASigner();
+		signer.init(false, key.getECPublicKeyParameters());
+		return signer.verifySignature(digest, sig.getR(), sig.getS());
+	}
+
+	@Test
+	public void testMatchesReferenceColdAndWarm() {
+		ECKeyPair pair = generator.generateKeyPair();
+		for (int i = 0; i < ROUNDS; ++i) {
+			byte[] message = new byte[100];
+			random.nextBytes(message);
+			DsaSignature sig = EcdsaWithSha256.sign(message, pair.getPrivateKey());
+			byte[] hash = digest(message);
+
+			assertTrue(verifier.verify(hash, sig, pair.getPublicKey()));
+
+			// Tampered digest
+			hash[random.nextInt(hash.length)] ^= 1;
+			assertEquals(reference(hash, sig, pair.getPublicKey()),
+					verifier.verify(hash, sig, pair.getPublicKey()));
+			assertFalse(verifier.verify(hash, sig, pair.getPublicKey()));
+		}
+	}
+
+	@Test
+	public void testRejectsWrongKey() {
+		ECKeyPair signerPair = generator.generateKeyPair();
+		ECKeyPair otherPair = generator.generateKeyPair();
+		byte[] message = "This is only a test message. It is 48 bytes long".getBytes();
+		DsaSignature sig = EcdsaWithSha256.sign(message, signerPair.getPrivateKey());
+
+		for (int i = 0; i < 3; ++i)
+			assertFalse(verifier.verify(digest(message), sig, otherPair.getPublicKey()));
+	}
+
+	@Test
+	public void testRejectsOutOfRangeSignature() {
+		ECKeyPair pair = generator.generateKeyPair();
+		byte[] hash = digest(new byte[10]);
+		BigInteger n = CryptoParams.DOMAIN_PARAMS.getN();
+		assertFalse(verifier.verify(hash, new DsaSignature(BigInteger.ZERO, BigInteger.ONE),
+				pair.getPublicKey()));
+		assertFalse(verifier.verify(hash, new DsaSignature(BigInteger.ONE, n),
+				pair.getPublicKey()));
+	}
+
+	@Test
+	public void testVerifyAllReportsEachItem() {
+		ECKeyPair pair = generator.generateKeyPair();
+		List<SignedBlob> blobs = new ArrayList<SignedBlob>();
+		for (int i = 0; i < ROUNDS; ++i) {
+			byte[] message = new byte[100];
+			random.nextBytes(message);
+			DsaSignature sig = EcdsaWithSha256.sign(message, pair.getPrivateKey());
+			if (i % 5 == 3)
+				message[0] ^= 1;
+			blobs.add(new SignedBlob(sig, ByteBuffer.wrap(message), pair.getPublicKey()));
+		}
+
+		boolean[] results = EcdsaWithSha256.verifyAll(blobs);
+		assertEquals(ROUNDS, results.length);
+		for (int i = 0; i < ROUNDS; ++i)
+			assertEquals(i % 5 != 3, results[i]);
+	}
+
+	@Test
+	public void testVerifyAllEmpty() {
+		assertEquals(0, EcdsaWithSha256.verifyAll(new ArrayList<SignedBlob>()).length);
+	}
+
+	@Test
+	public void testTablesEvicted() {
+		byte[] message = "message".getBytes();
+		for (int i = 0; i < 10; ++i) {
+			ECKeyPair pair = generator.generateKeyPair();
+			DsaSignature sig = EcdsaWithSha256.sign(message, pair.getPrivateKey());
+			assertTrue(verifier.verify(digest(message), sig, pair.getPublicKey()));
+		}
+		assertEquals(10, verifier.getMissCount());
+	}
+
+}
@@ -0,0 +1,48 @@
+package org.whispercomm.shout.crypto;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.whispercomm.shout.serialization.SerializeUtility;
+
+public class PublicKeyCacheTest {
+
+	private ECPublicKey publicKey;
+
+	private byte[] point;
+
+	@Before
+	public void setup() {
+		PublicKeyCache.clear();
+		publicKey = new KeyGenerator().generateKeyPair().getPublicKey();
+		ByteBuffer buffer = ByteBuffer.allocate(PublicKeyCache.POINT_SIZE);
+		SerializeUtility.putPublicKey(buffer, publicKey);
+		point = buffer.array();
+	}
+
+	@Test
+	public void testFromPointReturnsSameInstance() {
+		ECPublicKey first = PublicKeyCache.fromPoint(point);
+		ECPublicKey second = PublicKeyCache.fromPoint(point.clone());
+		assertEquals(publicKey, first);
+		assertSame(first, second);
+	}
+
+	@Test
+	public void testEncodingsShareInstance() throws Exception {
+		ECPublicKey fromPoint = PublicKeyCache.fromPoint(point);
+		ECPublicKey fromEncoded = PublicKeyCache.fromEncoded(KeyGenerator
+				.encodePublic(publicKey));
+		assertSame(fromPoint, fromEncoded);
+	}
+
+	@Test
+	public void testInternReturnsFirstInstance() {
+		assertSame(publicKey, PublicKeyCache.intern(publicKey));
+		assertSame(publicKey, PublicKeyCache.fromPoint(point));
+	}
+
+}
@@ -0,0 +1,55 @@
+package org.whispercomm.shout.crypto;
+
+import static org.junit.Assert.*;
+
+import java.math.BigInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.whispercomm.shout.Hash;
+
+public class VerificationCacheTest {
+
+	private static final byte[] MESSAGE = "This is only a test message. It is 48 bytes long"
+			.getBytes();
+
+	private ECKeyPair keyPair;
+
+	private DsaSignature sig;
+
+	private Hash hash;
+
+	@Before
+	public void setup() {
+		VerificationCache.clear();
+		keyPair = new KeyGenerator().generateKeyPair();
+		sig = EcdsaWithSha256.sign(MESSAGE, keyPair.getPrivateKey());
+		hash = Hash.hashData(MESSAGE);
+	}
+
+	@Test
+	public void testValidSignatureVerifiedOnce() {
+		int misses = VerificationCache.getMissCount();
+		int hits = VerificationCache.getHitCount();
+
+		assertTrue(VerificationCache.verify(hash, sig, MESSAGE, keyPair.getPublicKey()));
+		assertTrue(VerificationCache.verify(hash, sig, MESSAGE, keyPair.getPublicKey()));
+
+		assertEquals(misses + 1, VerificationCache.getMissCount());
+		assertEquals(hits + 1, VerificationCache.getHitCount());
+	}
+
+	@Test
+	public void testInvalidSignatureIsCached() {
+		DsaSignature bad = new DsaSignature(BigInteger.valueOf(238423234),
+				BigInteger.valueOf(3483489234L));
+		Hash badHash = Hash.hashData("bad".getBytes());
+		int hits = VerificationCache.getHitCount();
+
+		assertFalse(VerificationCache.verify(badHash, bad, MESSAGE, keyPair.getPublicKey()));
+		assertFalse(VerificationCache.verify(badHash, bad, MESSAGE, keyPair.getPublicKey()));
+
+		assertEquals(hits + 1, VerificationCache.getHitCount());
+	}
+
+}
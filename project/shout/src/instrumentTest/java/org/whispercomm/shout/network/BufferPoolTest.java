@@ -0,0 +1,117 @@
+package org.whispercomm.shout.network;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class BufferPoolTest {
+
+	private static final int ROUNDS = 1000;
+
+	private static final int PAYLOAD_LEN = 36;
+
+	private BufferPool pool;
+
+	private int received;
+
+	@Before
+	public void setup() {
+		pool = new BufferPool(64, 2);
+		received = 0;
+	}
+
+	@Test
+	public void testReusesReleasedBuffers() {
+		ByteBuffer a = pool.acquire();
+		pool.release(a);
+		ByteBuffer b = pool.acquire();
+		assertSame(a, b);
+		assertEquals(0, b.position());
+		assertEquals(64, b.limit());
+		assertEquals(1, pool.getAllocationCount());
+		assertEquals(2, pool.getAcquireCount());
+	}
+
+	@Test
+	public void testBoundedAndIgnoresForeignBuffers() {
+		ByteBuffer[] buffers = new ByteBuffer[3];
+		for (int i = 0; i < buffers.length; ++i)
+			buffers[i] = pool.acquire();
+		for (ByteBuffer buffer : buffers)
+			pool.release(buffer);
+		assertEquals(2, pool.getPooledCount());
+		assertEquals(1, pool.getDiscardCount());
+
+		pool.acquire();
+		pool.release(ByteBuffer.allocate(32));
+		pool.release(ByteBuffer.allocate(64).asReadOnlyBuffer());
+		pool.release(ByteBuffer.allocateDirect(64));
+		assertEquals(1, pool.getPooledCount());
+	}
+
+	@Test
+	public void testSteadyStateSendAllocatesNothing() {
+		// Warm up the pool and the frame scratch array
+		sendOnce();
+		long allocations = PacketProtocol.getBufferPool().getAllocationCount();
+		byte[] frame = sendOnce();
+
+		for (int i = 0; i < ROUNDS; ++i)
+			assertSame(frame, sendOnce());
+		assertEquals(allocations, PacketProtocol.getBufferPool().getAllocationCount());
+	}
+
+	@Test
+	public void testFullPacketSentWithoutCopy() {
+		ByteBuffer packet = PacketProtocol.createPacket();
+		packet.position(packet.limit());
+		assertSame(packet.array(), PacketProtocol.toFrame(packet));
+		PacketProtocol.releasePacket(packet);
+	}
+
+	@Test
+	public void testSteadyStateReceiveAllocatesNoBuffers() {
+		PacketProtocol protocol = new PacketProtocol(null);
+		protocol.register(ObjectType.ContentRequest, new ObjectProtocol() {
+			@Override
+			public void receive(ObjectType type, ByteBuffer data) {
+				received++;
+			}
+		});
+		BufferPool packets = PacketProtocol.getBufferPool();
+
+		receiveOnce(protocol, packets);
+		long allocations = packets.getAllocationCount();
+		for (int i = 0; i < ROUNDS; ++i)
+			receiveOnce(protocol, packets);
+
+		assertEquals(allocations, packets.getAllocationCount());
+		assertEquals(ROUNDS + 1, received);
+	}
+
+	private static byte[] sendOnce() {
+		ByteBuffer packet = PacketProtocol.createPacket();
+		packet.put(ObjectType.ContentRequest.getIdAsByte());
+		packet.putShort((short) PAYLOAD_LEN);
+		packet.put(new byte[PAYLOAD_LEN], 0, PAYLOAD_LEN);
+		byte[] frame = PacketProtocol.toFrame(packet);
+		assertEquals(1 + PacketProtocol.OBJECT_HEADER_LEN + PAYLOAD_LEN, frame.length);
+		PacketProtocol.releasePacket(packet);
+		return frame;
+	}
+
+	private static void receiveOnce(PacketProtocol protocol, BufferPool packets) {
+		ByteBuffer packet = packets.acquire();
+		packet.put((byte) 0);
+		packet.put(ObjectType.ContentRequest.getIdAsByte());
+		packet.putShort((short) PAYLOAD_LEN);
+		packet.position(packet.position() + PAYLOAD_LEN);
+		packet.flip();
+		protocol.receive(packet);
+		PacketProtocol.releasePacket(packet);
+	}
+
+}
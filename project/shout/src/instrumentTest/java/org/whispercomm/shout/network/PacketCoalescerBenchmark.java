@@ -0,0 +1,107 @@
+package org.whispercomm.shout.network;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.whispercomm.shout.Hash;
+import org.whispercomm.shout.content.request.ContentRequest;
+import org.whispercomm.shout.content.request.ContentRequestSerializer;
+
+/**
+ * Measures the packets/sec and bytes/packet of outgoing traffic with and
+ * without {@link PacketCoalescer}, over a loopback link that delivers every
+ * frame to a receiving {@link PacketProtocol}.
+ * <p>
+ * The workload is a bursty mix of content requests and shout-sized objects,
+ * as produced by content retrieval and periodic rebroadcasts.
+ * <p>
+ * Run as a plain Java program on the desktop JVM:
+ *
+ * <pre>
+ * java org.whispercomm.shout.network.PacketCoalescerBenchmark [objects]
+ * </pre>
+ *
+ * @author David R. Bild
+ */
+public class PacketCoalescerBenchmark {
+
+	private static final int SHOUT_LEN = 250;
+
+	private static final int MAX_BURST = 8;
+
+	public static void main(String[] args) throws Exception {
+		int objects = (args.length > 0) ? Integer.parseInt(args[0]) : 5000;
+
+		run("immediate", objects, false);
+		run("coalesced (" + PacketCoalescer.DEFAULT_DEADLINE_MS + " ms)", objects, true);
+	}
+
+	private static void run(String name, int objects, boolean coalesce) throws Exception {
+		final Loopback link = new Loopback();
+		PacketCoalescer coalescer = new PacketCoalescer(link,
+				PacketCoalescer.DEFAULT_DEADLINE_MS);
+		if (coalesce)
+			coalescer.start();
+
+		Random random = new Random(0);
+		long start = System.nanoTime();
+		int sent = 0;
+		while (sent < objects) {
+			int burst = 1 + random.nextInt(MAX_BURST);
+			for (int i = 0; i < burst && sent < objects; ++i, ++sent) {
+				ByteBuffer packet = PacketProtocol.createPacket();
+				if (random.nextBoolean()) {
+					ContentRequestSerializer.serialize(packet, new ContentRequest(
+							Hash.hashData(Integer.toString(sent).getBytes())));
+				} else {
+					packet.put(ObjectType.Shout.getIdAsByte());
+					packet.putShort((short) SHOUT_LEN);
+					packet.position(packet.position() + SHOUT_LEN);
+				}
+				coalescer.enqueue(packet);
+				PacketProtocol.releasePacket(packet);
+			}
+			Thread.sleep(1);
+		}
+		coalescer.stop();
+		long nanos = System.nanoTime() - start;
+
+		if (link.received != objects)
+			throw new IllegalStateException(String.format("Delivered %d of %d objects.",
+					link.received, objects));
+
+		System.out.println(String.format(
+				"%-24s %6d frames %8.1f frames/s %7.1f bytes/frame %5.2f objects/frame", name,
+				link.frames, link.frames * 1e9 / nanos, (double) link.bytes / link.frames,
+				(double) objects / link.frames));
+	}
+
+	private static class Loopback implements PacketCoalescer.FrameSender, ObjectProtocol {
+
+		private final PacketProtocol receiver;
+
+		int frames;
+		long bytes;
+		int received;
+
+		Loopback() {
+			receiver = new PacketProtocol(null);
+			receiver.register(ObjectType.Shout, this);
+			receiver.register(ObjectType.ContentRequest, this);
+		}
+
+		@Override
+		public void sendFrame(ByteBuffer packet) {
+			frames++;
+			bytes += packet.position();
+			receiver.receive(ByteBuffer.wrap(PacketProtocol.toFrame(packet)));
+		}
+
+		@Override
+		public void receive(ObjectType type, ByteBuffer data) {
+			received++;
+		}
+
+	}
+
+}
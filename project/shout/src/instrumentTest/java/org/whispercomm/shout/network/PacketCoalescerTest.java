@@ -0,0 +1,92 @@
+package org.whispercomm.shout.network;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PacketCoalescerTest {
+
+	private static final long DEADLINE_MS = 50;
+
+	private List<byte[]> frames;
+
+	private PacketCoalescer coalescer;
+
+	@Before
+	public void setup() {
+		frames = new ArrayList<byte[]>();
+		coalescer = new PacketCoalescer(new PacketCoalescer.FrameSender() {
+			@Override
+			public void sendFrame(ByteBuffer packet) {
+				synchronized (frames) {
+					frames.add(PacketProtocol.toFrame(packet).clone());
+					frames.notifyAll();
+				}
+			}
+		}, DEADLINE_MS);
+	}
+
+	@After
+	public void takedown() {
+		coalescer.stop();
+	}
+
+	private static ByteBuffer packet(int objectLen, byte fill) {
+		ByteBuffer packet = PacketProtocol.createPacket();
+		packet.put(ObjectType.ContentRequest.getIdAsByte());
+		packet.putShort((short) objectLen);
+		for (int i = 0; i < objectLen; ++i)
+			packet.put(fill);
+		return packet;
+	}
+
+	private int frameCount() {
+		synchronized (frames) {
+			return frames.size();
+		}
+	}
+
+	@Test
+	public void testSendsImmediatelyWhenStopped() throws Exception {
+		coalescer.enqueue(packet(10, (byte) 1));
+		coalescer.enqueue(packet(10, (byte) 2));
+		assertEquals(2, frameCount());
+	}
+
+	@Test
+	public void testCoalescesUntilDeadline() throws Exception {
+		coalescer.start();
+		coalescer.enqueue(packet(10, (byte) 1));
+		coalescer.enqueue(packet(20, (byte) 2));
+		assertEquals(0, frameCount());
+
+		synchronized (frames) {
+			long end = System.currentTimeMillis() + 10 * DEADLINE_MS;
+			while (frames.isEmpty() && System.currentTimeMillis() < end)
+				frames.wait(DEADLINE_MS);
+		}
+		assertEquals(1, frameCount());
+		assertEquals(1 + 2 * PacketProtocol.OBJECT_HEADER_LEN + 30, frames.get(0).length);
+	}
+
+	@Test
+	public void testFlushesWhenNextPacketDoesNotFit() throws Exception {
+		coalescer.start();
+		int big = PacketProtocol.MAX_PACKET_LEN / 2;
+		coalescer.enqueue(packet(big, (byte) 1));
+		coalescer.enqueue(packet(big, (byte) 2));
+		assertEquals(1, frameCount());
+		assertEquals(1 + PacketProtocol.OBJECT_HEADER_LEN + big, frames.get(0).length);
+
+		coalescer.flush();
+		assertEquals(2, frameCount());
+		assertEquals(2, coalescer.getQueuedCount());
+	}
+
+}
@@ -0,0 +1,73 @@
+package org.whispercomm.shout.network;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.whispercomm.shout.test.ShoutTestRunner;
+
+@RunWith(ShoutTestRunner.class)
+public class PipelineStageTest {
+
+	private static final int ITEMS = 20;
+
+	private List<Integer> processed;
+
+	private PipelineStage<Integer> stage;
+
+	@Before
+	public void setup() {
+		processed = new ArrayList<Integer>();
+		stage = new PipelineStage<Integer>("Test", 2, ITEMS, 4,
+				new PipelineStage.Handler<Integer>() {
+					@Override
+					public void process(List<Integer> items) {
+						synchronized (processed) {
+							processed.addAll(items);
+						}
+					}
+				});
+	}
+
+	private void putAll() throws InterruptedException {
+		for (int i = 0; i < ITEMS; ++i)
+			stage.put(i);
+	}
+
+	@Test
+	public void testDrainProcessesQueuedItems() throws Exception {
+		putAll();
+		stage.start();
+		stage.drain();
+
+		assertEquals(ITEMS, processed.size());
+		assertEquals(ITEMS, stage.getProcessedCount());
+		assertEquals(0, stage.getQueueSize());
+		assertEquals(0, stage.getDroppedCount());
+	}
+
+	@Test
+	public void testStopDiscardsQueuedItems() throws Exception {
+		putAll();
+		stage.stop();
+
+		assertEquals(0, processed.size());
+		assertEquals(0, stage.getQueueSize());
+		assertEquals(ITEMS, stage.getDroppedCount());
+	}
+
+	@Test
+	public void testPutDoesNotBlockWhenStopped() throws Exception {
+		stage.start();
+		stage.stop();
+		putAll();
+		stage.put(ITEMS);
+
+		assertEquals(1, stage.getDroppedCount());
+	}
+
+}
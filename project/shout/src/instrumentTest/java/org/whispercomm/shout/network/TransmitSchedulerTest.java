@@ -0,0 +1,181 @@
+package org.whispercomm.shout.network;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.whispercomm.shout.network.TransmitScheduler.DropPolicy;
+
+public class TransmitSchedulerTest {
+
+	/**
+	 * Large enough that two objects never share a frame.
+	 */
+	private static final int BIG = PacketProtocol.MAX_PACKET_LEN / 2;
+
+	private List<byte[]> frames;
+
+	private CountDownLatch gate;
+
+	private TransmitScheduler scheduler;
+
+	@Before
+	public void setup() {
+		frames = new ArrayList<byte[]>();
+		gate = new CountDownLatch(0);
+		scheduler = new TransmitScheduler(new PacketCoalescer.FrameSender() {
+			@Override
+			public void sendFrame(ByteBuffer packet) {
+				try {
+					gate.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				synchronized (frames) {
+					frames.add(PacketProtocol.toFrame(packet).clone());
+					frames.notifyAll();
+				}
+			}
+		}, 0);
+	}
+
+	@After
+	public void takedown() {
+		gate.countDown();
+		scheduler.stop();
+	}
+
+	private static ByteBuffer packet(int objectLen, int tag) {
+		ByteBuffer packet = PacketProtocol.createPacket();
+		packet.put(ObjectType.ContentRequest.getIdAsByte());
+		packet.putShort((short) objectLen);
+		for (int i = 0; i < objectLen; ++i)
+			packet.put((byte) tag);
+		return packet;
+	}
+
+	private void awaitFrames(int count) throws InterruptedException {
+		synchronized (frames) {
+			long end = System.currentTimeMillis() + 5000;
+			while (frames.size() < count && System.currentTimeMillis() < end)
+				frames.wait(100);
+		}
+		assertEquals(count, frames.size());
+	}
+
+	private static int tag(byte[] frame) {
+		return frame[1 + PacketProtocol.OBJECT_HEADER_LEN];
+	}
+
+	@Test
+	public void testSendsDirectlyWhenStopped() throws Exception {
+		scheduler.send(packet(10, 1), TrafficClass.Rebroadcast);
+		assertEquals(1, frames.size());
+	}
+
+	@Test
+	public void testInteractiveFirstThenByClass() throws Exception {
+		gate = new CountDownLatch(1);
+		scheduler.start();
+
+		// Occupies the transmit thread while the queues fill
+		scheduler.send(packet(BIG, 0), TrafficClass.Rebroadcast);
+		Thread.sleep(50);
+
+		scheduler.send(packet(BIG, 4), TrafficClass.Rebroadcast);
+		scheduler.send(packet(BIG, 3), TrafficClass.ContentResponse);
+		scheduler.send(packet(BIG, 2), TrafficClass.ContentRequest);
+		Thread interactive = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					scheduler.send(packet(BIG, 1), TrafficClass.Interactive);
+				} catch (Exception e) {
+					throw new RuntimeException(e);
+				}
+			}
+		});
+		interactive.start();
+		Thread.sleep(50);
+		gate.countDown();
+		interactive.join(5000);
+
+		awaitFrames(5);
+		for (int i = 0; i < 5; ++i)
+			assertEquals(i, tag(frames.get(i)));
+		assertTrue(scheduler.getMeanQueueDelayMs(TrafficClass.Rebroadcast) > 0.0);
+	}
+
+	@Test
+	public void testTopsUpFramesWithSmallerFrames() throws Exception {
+		gate = new CountDownLatch(1);
+		scheduler.start();
+		scheduler.send(packet(BIG, 0), TrafficClass.Rebroadcast);
+		Thread.sleep(50);
+
+		scheduler.send(packet(10, 1), TrafficClass.ContentRequest);
+		scheduler.send(packet(10, 2), TrafficClass.Rebroadcast);
+		gate.countDown();
+
+		awaitFrames(2);
+		assertEquals(1 + 2 * (PacketProtocol.OBJECT_HEADER_LEN + 10), frames.get(1).length);
+		assertEquals(1, scheduler.getSentCount(TrafficClass.ContentRequest));
+		assertEquals(2, scheduler.getSentCount(TrafficClass.Rebroadcast));
+	}
+
+	@Test
+	public void testDropPolicies() throws Exception {
+		gate = new CountDownLatch(1);
+		scheduler.configure(TrafficClass.Rebroadcast, 1, 2, DropPolicy.DropOldest);
+		scheduler.configure(TrafficClass.ContentRequest, 1, 1, DropPolicy.DropNewest);
+		scheduler.start();
+		scheduler.send(packet(BIG, 0), TrafficClass.ContentResponse);
+		Thread.sleep(50);
+
+		for (int i = 1; i <= 4; ++i)
+			scheduler.send(packet(BIG, i), TrafficClass.Rebroadcast);
+		scheduler.send(packet(BIG, 5), TrafficClass.ContentRequest);
+		scheduler.send(packet(BIG, 6), TrafficClass.ContentRequest);
+		assertEquals(2, scheduler.getDroppedCount(TrafficClass.Rebroadcast));
+		assertEquals(1, scheduler.getDroppedCount(TrafficClass.ContentRequest));
+		gate.countDown();
+
+		awaitFrames(4);
+		List<Integer> tags = new ArrayList<Integer>();
+		for (byte[] frame : frames)
+			tags.add(tag(frame));
+		assertTrue(tags.contains(3));
+		assertTrue(tags.contains(4));
+		assertTrue(tags.contains(5));
+		assertFalse(tags.contains(1));
+		assertFalse(tags.contains(6));
+	}
+
+	@Test
+	public void testByteBudget() throws Exception {
+		int rate = 20000;
+		int count = 10;
+		scheduler.setBytesPerSecond(rate);
+		scheduler.start();
+
+		long start = System.nanoTime();
+		for (int i = 0; i < count; ++i)
+			scheduler.send(packet(BIG, i), TrafficClass.ContentResponse);
+		awaitFrames(count);
+		long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+		// The burst allowance is two full packets, and the last frame is
+		// charged after it is sent.
+		int frameLen = 1 + PacketProtocol.OBJECT_HEADER_LEN + BIG;
+		long minMs = 1000L * ((count - 1) * frameLen - 2 * PacketProtocol.MAX_PACKET_LEN) / rate;
+		assertTrue("Sent too fast: " + elapsedMs + " ms", elapsedMs >= minMs * 9 / 10);
+	}
+
+}
@@ -0,0 +1,326 @@
+package org.whispercomm.shout.network.capture;
+
+import java.io.FileInputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.whispercomm.shout.Hash;
+import org.whispercomm.shout.Shout;
+import org.whispercomm.shout.content.ContentManager;
+import org.whispercomm.shout.content.descriptor.ContentDescriptor;
+import org.whispercomm.shout.content.merkle.MerkleNode;
+import org.whispercomm.shout.content.request.ContentRequest;
+import org.whispercomm.shout.content.storage.MemoryObjectStorage;
+import org.whispercomm.shout.network.BatchObjectProtocol;
+import org.whispercomm.shout.network.FrameLink;
+import org.whispercomm.shout.network.NetworkReceiver;
+import org.whispercomm.shout.network.ObjectProtocol;
+import org.whispercomm.shout.network.ObjectType;
+import org.whispercomm.shout.network.PacketProtocol;
+import org.whispercomm.shout.network.capture.CapturedFrame.Direction;
+import org.whispercomm.shout.network.content.ContentProtocol;
+import org.whispercomm.shout.network.content.ContentRequestHandler;
+import org.whispercomm.shout.network.shout.DuplicateFilter;
+import org.whispercomm.shout.network.shout.NetworkProtocol;
+import org.whispercomm.shout.network.shout.PendingAncestorTable;
+import org.whispercomm.shout.network.shout.ShoutProtocol;
+import org.whispercomm.shout.network.sim.MemoryShoutIndex;
+
+/**
+ * Replays a frame capture (see {@link FrameCaptureWriter}) through a fresh
+ * receive stack: {@link NetworkReceiver}, {@link PacketProtocol},
+ * {@link ShoutProtocol} and {@link ContentProtocol}, with in-memory storage.
+ * <p>
+ * Frames are replayed at the captured pace or as fast as possible. The
+ * benchmark reports packets/sec, the latency of each stage (waiting in the
+ * receive queue, the whole packet, and the shout and content protocols), and
+ * the bytes allocated per packet.
+ * <p>
+ * Run as a plain Java program on the desktop JVM:
+ *
+ * <pre>
+ * java org.whispercomm.shout.network.capture.CaptureReplayBenchmark capture-file [fast|realtime] [received|all]
+ * </pre>
+ *
+ * The last option replays the frames the device sent, too, as if received.
+ *
+ * @author David R. Bild
+ */
+public class CaptureReplayBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 1) {
+			System.err.println("usage: CaptureReplayBenchmark capture-file [fast|realtime] [received|all]");
+			System.exit(1);
+		}
+		boolean realtime = (args.length > 1) && "realtime".equals(args[1]);
+		boolean all = (args.length > 2) && "all".equals(args[2]);
+
+		List<CapturedFrame> frames = new ArrayList<CapturedFrame>();
+		int sent = 0;
+		FrameCaptureReader reader = new FrameCaptureReader(new FileInputStream(args[0]));
+		try {
+			CapturedFrame frame;
+			while ((frame = reader.next()) != null) {
+				if (frame.getDirection() == Direction.Sent)
+					sent++;
+				if (all || frame.getDirection() == Direction.Received)
+					frames.add(frame);
+			}
+		} finally {
+			reader.close();
+		}
+		System.out.println(String.format("capture   %d frames replayed, %d sent frames in capture",
+				frames.size(), sent));
+
+		new CaptureReplayBenchmark().replay(frames, realtime);
+	}
+
+	private final Stage queueStage = new Stage("queue");
+	private final Stage packetStage = new Stage("packet");
+	private final Stage shoutStage = new Stage("shout");
+	private final Stage contentStage = new Stage("content");
+
+	private final Map<ByteBuffer, Long> enqueued = Collections
+			.synchronizedMap(new IdentityHashMap<ByteBuffer, Long>());
+
+	private final AtomicLong processed = new AtomicLong();
+
+	private final AtomicLong delivered = new AtomicLong();
+
+	public void replay(List<CapturedFrame> frames, boolean realtime) throws Exception {
+		NetworkReceiver receiver = new NetworkReceiver(new NullLink());
+		PacketProtocol packetProtocol = new TimedPacketProtocol();
+		receiver.register(packetProtocol);
+
+		MemoryShoutIndex index = new MemoryShoutIndex();
+		ShoutProtocol shoutProtocol = new ShoutProtocol(packetProtocol,
+				new DuplicateFilter(index), new PendingAncestorTable(index));
+		shoutProtocol.register(new CountingNetworkProtocol());
+		packetProtocol.register(ObjectType.Shout, new TimedObjectProtocol(shoutProtocol,
+				shoutStage));
+
+		ContentProtocol contentProtocol = new ContentProtocol(packetProtocol, new ContentManager(
+				new MemoryObjectStorage()));
+		contentProtocol.setContentRequestHandler(new IgnoringRequestHandler());
+		ObjectProtocol timedContent = new TimedObjectProtocol(contentProtocol, contentStage);
+		packetProtocol.register(ObjectType.ContentDescriptor, timedContent);
+		packetProtocol.register(ObjectType.MerkleNode, timedContent);
+		packetProtocol.register(ObjectType.ContentRequest, timedContent);
+		packetProtocol.register(ObjectType.FountainSymbol, timedContent);
+
+		packetProtocol.initialize();
+		receiver.getPacketStage().start();
+
+		long allocStart = allocatedBytes();
+		long start = System.nanoTime();
+		long firstMicros = frames.isEmpty() ? 0 : frames.get(0).getTimeMicros();
+		for (CapturedFrame frame : frames) {
+			if (realtime) {
+				long waitNanos = 1000 * (frame.getTimeMicros() - firstMicros)
+						- (System.nanoTime() - start);
+				if (waitNanos > 0)
+					Thread.sleep(waitNanos / 1000000, (int) (waitNanos % 1000000));
+			}
+			ByteBuffer packet = PacketProtocol.getBufferPool().acquire();
+			packet.put(frame.getData());
+			packet.flip();
+			enqueued.put(packet, System.nanoTime());
+			receiver.receive(packet);
+		}
+		while (processed.get() < frames.size())
+			Thread.sleep(1);
+		long nanos = System.nanoTime() - start;
+		long allocated = allocatedBytes() - allocStart;
+
+		receiver.getPacketStage().stop();
+		packetProtocol.cleanup();
+
+		System.out.println(String.format("replay    %.0f packets/s over %.1f s, %d shouts delivered",
+				frames.size() * 1e9 / nanos, nanos / 1e9, delivered.get()));
+		for (Stage stage : new Stage[] { queueStage, packetStage, shoutStage, contentStage })
+			System.out.println(stage);
+		if (allocated >= 0)
+			System.out.println(String.format("alloc     %d bytes, %.0f bytes/packet", allocated,
+					(double) allocated / Math.max(1, frames.size())));
+		else
+			System.out.println("alloc     not supported by this JVM");
+	}
+
+	/**
+	 * @return the bytes allocated by all live threads, or -1 if not supported
+	 */
+	private static long allocatedBytes() {
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if (!(threads instanceof com.sun.management.ThreadMXBean))
+			return -1;
+		com.sun.management.ThreadMXBean sunThreads = (com.sun.management.ThreadMXBean) threads;
+		long total = 0;
+		for (long id : threads.getAllThreadIds()) {
+			long bytes = sunThreads.getThreadAllocatedBytes(id);
+			if (bytes > 0)
+				total += bytes;
+		}
+		return total;
+	}
+
+	/**
+	 * Latency samples of one stage, in nanoseconds.
+	 */
+	private static class Stage {
+		private final String name;
+
+		private final List<Long> samples;
+
+		Stage(String name) {
+			this.name = name;
+			this.samples = new ArrayList<Long>();
+		}
+
+		synchronized void add(long nanos) {
+			samples.add(nanos);
+		}
+
+		@Override
+		public synchronized String toString() {
+			if (samples.isEmpty())
+				return String.format("%-9s no samples", name);
+			List<Long> sorted = new ArrayList<Long>(samples);
+			Collections.sort(sorted);
+			return String.format("%-9s n=%d p50=%d us p90=%d us p99=%d us max=%d us", name,
+					sorted.size(), percentile(sorted, 0.5) / 1000, percentile(sorted, 0.9) / 1000,
+					percentile(sorted, 0.99) / 1000, percentile(sorted, 1.0) / 1000);
+		}
+
+		private static long percentile(List<Long> sorted, double p) {
+			int index = (int) Math.ceil(p * sorted.size()) - 1;
+			return sorted.get(Math.max(0, index));
+		}
+	}
+
+	private class TimedPacketProtocol extends PacketProtocol {
+		TimedPacketProtocol() {
+			super(new NullLink());
+		}
+
+		@Override
+		public void receive(ByteBuffer buffer) {
+			long start = System.nanoTime();
+			Long queued = enqueued.remove(buffer);
+			if (queued != null)
+				queueStage.add(start - queued);
+			try {
+				super.receive(buffer);
+			} finally {
+				packetStage.add(System.nanoTime() - start);
+				processed.incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * Times an object protocol, including the end of packet processing of
+	 * batch protocols.
+	 */
+	private static class TimedObjectProtocol implements BatchObjectProtocol {
+		private final ObjectProtocol protocol;
+
+		private final Stage stage;
+
+		private final ThreadLocal<long[]> packetNanos = new ThreadLocal<long[]>() {
+			@Override
+			protected long[] initialValue() {
+				return new long[1];
+			}
+		};
+
+		TimedObjectProtocol(ObjectProtocol protocol, Stage stage) {
+			this.protocol = protocol;
+			this.stage = stage;
+		}
+
+		@Override
+		public void receive(ObjectType type, ByteBuffer data) {
+			long start = System.nanoTime();
+			try {
+				protocol.receive(type, data);
+			} finally {
+				packetNanos.get()[0] += System.nanoTime() - start;
+			}
+		}
+
+		@Override
+		public void endPacket() {
+			long start = System.nanoTime();
+			try {
+				if (protocol instanceof BatchObjectProtocol)
+					((BatchObjectProtocol) protocol).endPacket();
+			} finally {
+				long[] nanos = packetNanos.get();
+				stage.add(nanos[0] + System.nanoTime() - start);
+				nanos[0] = 0;
+			}
+		}
+	}
+
+	private class CountingNetworkProtocol implements NetworkProtocol {
+		@Override
+		public void initialize() {
+		}
+
+		@Override
+		public void cleanup() {
+		}
+
+		@Override
+		public void sendShout(Shout shout) {
+			throw new IllegalStateException("Cannot send a shout");
+		}
+
+		@Override
+		public void receive(Shout shout) {
+			delivered.incrementAndGet();
+		}
+	}
+
+	private static class IgnoringRequestHandler implements ContentRequestHandler {
+		@Override
+		public void request(Hash hash) {
+		}
+
+		@Override
+		public void receiveRequest(ContentRequest request) {
+		}
+
+		@Override
+		public void receiveContentDescriptor(ContentDescriptor descriptor) {
+		}
+
+		@Override
+		public void receiveMerkleNode(MerkleNode node) {
+		}
+	}
+
+	/**
+	 * Drops sent frames; received frames are pushed by the benchmark.
+	 */
+	private static class NullLink implements FrameLink {
+		@Override
+		public boolean send(byte[] frame) {
+			return true;
+		}
+
+		@Override
+		public byte[] receive(long timeoutMs) {
+			return null;
+		}
+	}
+
+}
@@ -0,0 +1,171 @@
+package org.whispercomm.shout.network.capture;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.util.Arrays;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.whispercomm.shout.errors.InvalidFormatException;
+import org.whispercomm.shout.network.FrameLink;
+import org.whispercomm.shout.network.capture.CapturedFrame.Direction;
+import org.whispercomm.shout.network.sim.ContactGraph;
+import org.whispercomm.shout.network.sim.SimMedium;
+import org.whispercomm.shout.test.ShoutTestRunner;
+
+@RunWith(ShoutTestRunner.class)
+public class FrameCaptureTest {
+
+	private static final byte[] FRAME_1 = new byte[] { 0, 1, 2, 3 };
+	private static final byte[] FRAME_2 = new byte[300];
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testRoundTrip() throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		FrameCaptureWriter writer = new FrameCaptureWriter(out);
+		assertTrue(writer.write(Direction.Received, FRAME_1));
+		assertTrue(writer.write(Direction.Sent, FRAME_2));
+		writer.close();
+
+		FrameCaptureReader reader = new FrameCaptureReader(new ByteArrayInputStream(
+				out.toByteArray()));
+		CapturedFrame first = reader.next();
+		assertEquals(Direction.Received, first.getDirection());
+		assertArrayEquals(FRAME_1, first.getData());
+		CapturedFrame second = reader.next();
+		assertEquals(Direction.Sent, second.getDirection());
+		assertArrayEquals(FRAME_2, second.getData());
+		assertTrue(second.getTimeMicros() >= first.getTimeMicros());
+		assertTrue(Math.abs(first.getTimeMicros() / 1000 - System.currentTimeMillis()) < 60000);
+		assertNull(reader.next());
+	}
+
+	@Test
+	public void testAppendedSessions() throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		FrameCaptureWriter writer = new FrameCaptureWriter(out);
+		writer.write(Direction.Received, FRAME_1);
+		writer.close();
+		writer = new FrameCaptureWriter(out);
+		writer.write(Direction.Received, FRAME_2);
+		writer.close();
+
+		FrameCaptureReader reader = new FrameCaptureReader(new ByteArrayInputStream(
+				out.toByteArray()));
+		assertArrayEquals(FRAME_1, reader.next().getData());
+		assertArrayEquals(FRAME_2, reader.next().getData());
+		assertNull(reader.next());
+	}
+
+	@Test(expected = InvalidFormatException.class)
+	public void testTruncatedThrows() throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		FrameCaptureWriter writer = new FrameCaptureWriter(out);
+		writer.write(Direction.Received, FRAME_2);
+		writer.close();
+
+		byte[] data = out.toByteArray();
+		FrameCaptureReader reader = new FrameCaptureReader(new ByteArrayInputStream(
+				Arrays.copyOf(data, data.length - 10)));
+		reader.next();
+	}
+
+	@Test
+	public void testTruncatedSessionFollowedByAppendedOne() throws Exception {
+		File file = new File(folder.getRoot(), "capture");
+		FrameCaptureWriter writer = FrameCaptureWriter.open(file);
+		writer.write(Direction.Received, FRAME_1);
+		writer.write(Direction.Received, FRAME_2);
+		writer.close();
+
+		// Cut the last frame short, as when the process is killed mid-write
+		byte[] data = FileUtils.readFileToByteArray(file);
+		FileUtils.writeByteArrayToFile(file, Arrays.copyOf(data, data.length - 10));
+
+		writer = FrameCaptureWriter.open(file);
+		writer.write(Direction.Sent, FRAME_1);
+		writer.close();
+
+		FrameCaptureReader reader = new FrameCaptureReader(new FileInputStream(file));
+		assertArrayEquals(FRAME_1, reader.next().getData());
+		CapturedFrame appended = reader.next();
+		assertEquals(Direction.Sent, appended.getDirection());
+		assertArrayEquals(FRAME_1, appended.getData());
+		assertNull(reader.next());
+		reader.close();
+	}
+
+	@Test
+	public void testFullFileMovedAside() throws Exception {
+		long max = FrameCaptureWriter.MAX_CAPTURE_BYTES;
+		FrameCaptureWriter.MAX_CAPTURE_BYTES = 200;
+		try {
+			File file = new File(folder.getRoot(), "capture");
+			FrameCaptureWriter writer = FrameCaptureWriter.open(file);
+			while (writer.write(Direction.Received, FRAME_1))
+				;
+			writer.close();
+			assertTrue(file.length() <= FrameCaptureWriter.MAX_CAPTURE_BYTES);
+
+			// The next session fills the rest of the file only
+			writer = FrameCaptureWriter.open(file);
+			assertFalse(writer.write(Direction.Received, FRAME_1));
+			writer.close();
+
+			writer = FrameCaptureWriter.open(file);
+			assertTrue(writer.write(Direction.Received, FRAME_1));
+			writer.close();
+			assertTrue(new File(file.getPath() + FrameCaptureWriter.OLD_SUFFIX).exists());
+		} finally {
+			FrameCaptureWriter.MAX_CAPTURE_BYTES = max;
+		}
+	}
+
+	@Test
+	public void testSessionLimitDropsFrames() throws Exception {
+		long max = FrameCaptureWriter.MAX_CAPTURE_BYTES;
+		FrameCaptureWriter.MAX_CAPTURE_BYTES = 100;
+		try {
+			FrameCaptureWriter writer = new FrameCaptureWriter(new ByteArrayOutputStream());
+			assertTrue(writer.write(Direction.Received, FRAME_1));
+			assertFalse(writer.write(Direction.Received, FRAME_2));
+		} finally {
+			FrameCaptureWriter.MAX_CAPTURE_BYTES = max;
+		}
+	}
+
+	@Test
+	public void testCapturingLinkRecordsBothDirections() throws Exception {
+		SimMedium medium = new SimMedium(ContactGraph.fullMesh(), 0.0, 1000, 0, 0);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		CapturingFrameLink link = new CapturingFrameLink(medium.attach(),
+				new FrameCaptureWriter(out));
+		FrameLink peer = medium.attach();
+
+		link.send(FRAME_1);
+		peer.send(FRAME_2);
+		assertArrayEquals(FRAME_2, link.receive(100));
+		link.close();
+
+		FrameCaptureReader reader = new FrameCaptureReader(new ByteArrayInputStream(
+				out.toByteArray()));
+		CapturedFrame sent = reader.next();
+		assertEquals(Direction.Sent, sent.getDirection());
+		assertArrayEquals(FRAME_1, sent.getData());
+		CapturedFrame received = reader.next();
+		assertEquals(Direction.Received, received.getDirection());
+		assertArrayEquals(FRAME_2, received.getData());
+		assertNull(reader.next());
+	}
+
+}
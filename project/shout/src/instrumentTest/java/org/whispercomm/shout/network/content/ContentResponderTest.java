@@ -0,0 +1,101 @@
+package org.whispercomm.shout.network.content;
+
+import static org.junit.Assert.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.whispercomm.shout.Hash;
+import org.whispercomm.shout.content.request.ContentRequest;
+import org.whispercomm.shout.network.PacketProtocol;
+import org.whispercomm.shout.network.shout.NetworkProtocol;
+import org.whispercomm.shout.network.shout.ReceivedShoutWriter;
+import org.whispercomm.shout.network.shout.TrickleNetworkProtocol;
+import org.whispercomm.shout.network.sim.ContactGraph;
+import org.whispercomm.shout.network.sim.SimMedium;
+import org.whispercomm.shout.network.sim.SimNode;
+import org.whispercomm.shout.test.ShoutTestRunner;
+import org.whispercomm.shout.test.util.TestFactory;
+
+@RunWith(ShoutTestRunner.class)
+public class ContentResponderTest {
+
+	private static final SimNode.ProtocolFactory FACTORY = new SimNode.ProtocolFactory() {
+		@Override
+		public NetworkProtocol create(SimNode node, ReceivedShoutWriter writer) {
+			return new TrickleNetworkProtocol(node.getShoutProtocol(), writer);
+		}
+	};
+
+	private long responseWindowMs;
+
+	private SimMedium medium;
+
+	private SimNode node;
+
+	private SimMedium.Link sniffer;
+
+	@Before
+	public void setup() {
+		responseWindowMs = ContentResponder.RESPONSE_WINDOW_MS;
+		ContentResponder.RESPONSE_WINDOW_MS = 200;
+		medium = new SimMedium(ContactGraph.fullMesh(), 0.0, PacketProtocol.MAX_PACKET_LEN, 0, 0);
+		node = new SimNode(medium, FACTORY, null);
+		node.start();
+		sniffer = medium.attach();
+	}
+
+	@After
+	public void teardown() {
+		node.stop();
+		ContentResponder.RESPONSE_WINDOW_MS = responseWindowMs;
+	}
+
+	private int frames() {
+		int count = 0;
+		while (sniffer.receive(0) != null)
+			count++;
+		return count;
+	}
+
+	@Test
+	public void testOverheardResponseSuppressed() throws Exception {
+		Hash hash = node.publish(TestFactory.genByteArray(1000));
+		ContentResponder responder = node.getResponder();
+
+		responder.request(new ContentRequest(hash));
+		responder.overheard(hash);
+		Thread.sleep(400);
+
+		assertEquals(0, frames());
+		assertEquals(0, responder.getRespondedCount());
+		assertEquals(1, responder.getSuppressedCount());
+	}
+
+	@Test
+	public void testRepeatedRequestsAnsweredOnce() throws Exception {
+		Hash hash = node.publish(TestFactory.genByteArray(1000));
+		ContentResponder responder = node.getResponder();
+
+		responder.request(new ContentRequest(hash));
+		responder.request(new ContentRequest(hash));
+		Thread.sleep(400);
+
+		assertEquals(1, frames());
+		assertEquals(2, responder.getRequestedCount());
+		assertEquals(1, responder.getRespondedCount());
+	}
+
+	@Test
+	public void testIgnoresMissingContent() throws Exception {
+		ContentResponder responder = node.getResponder();
+
+		responder.request(new ContentRequest(Hash.hashData(new byte[] { 1 })));
+		Thread.sleep(400);
+
+		assertEquals(0, frames());
+		assertEquals(0, responder.getRespondedCount());
+	}
+
+}
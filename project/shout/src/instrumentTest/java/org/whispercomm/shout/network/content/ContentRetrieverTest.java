@@ -0,0 +1,224 @@
+package org.whispercomm.shout.network.content;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.whispercomm.shout.Hash;
+import org.whispercomm.shout.MimeType;
+import org.whispercomm.shout.content.ContentManager;
+import org.whispercomm.shout.content.descriptor.ContentDescriptor;
+import org.whispercomm.shout.content.merkle.MerkleBuilder;
+import org.whispercomm.shout.content.merkle.MerkleNode;
+import org.whispercomm.shout.content.merkle.MerkleNodeReference;
+import org.whispercomm.shout.content.request.ContentRequest;
+import org.whispercomm.shout.content.request.ContentRequestSerializer;
+import org.whispercomm.shout.network.ObjectType;
+import org.whispercomm.shout.network.PacketProtocol;
+import org.whispercomm.shout.network.shout.NetworkProtocol;
+import org.whispercomm.shout.network.shout.ReceivedShoutWriter;
+import org.whispercomm.shout.network.shout.TrickleNetworkProtocol;
+import org.whispercomm.shout.network.sim.ContactGraph;
+import org.whispercomm.shout.network.sim.SimMedium;
+import org.whispercomm.shout.network.sim.SimNode;
+import org.whispercomm.shout.test.ShoutTestRunner;
+import org.whispercomm.shout.test.util.TestFactory;
+
+@RunWith(ShoutTestRunner.class)
+public class ContentRetrieverTest {
+
+	private static final SimNode.ProtocolFactory FACTORY = new SimNode.ProtocolFactory() {
+		@Override
+		public NetworkProtocol create(SimNode node, ReceivedShoutWriter writer) {
+			return new TrickleNetworkProtocol(node.getShoutProtocol(), writer);
+		}
+	};
+
+	private long initialTimeoutMs;
+
+	private List<SimNode> nodes;
+
+	@Before
+	public void setup() {
+		initialTimeoutMs = ContentRetriever.INITIAL_TIMEOUT_MS;
+		nodes = new ArrayList<SimNode>();
+	}
+
+	@After
+	public void teardown() {
+		for (SimNode node : nodes)
+			node.stop();
+		ContentRetriever.INITIAL_TIMEOUT_MS = initialTimeoutMs;
+	}
+
+	private SimNode start(SimMedium medium) {
+		SimNode node = new SimNode(medium, FACTORY, null);
+		node.start();
+		nodes.add(node);
+		return node;
+	}
+
+	private static boolean await(SimNode node, Hash hash, long timeoutMs) throws Exception {
+		long deadline = System.currentTimeMillis() + timeoutMs;
+		while (!node.hasContent(hash) && System.currentTimeMillis() < deadline)
+			Thread.sleep(50);
+		return node.hasContent(hash);
+	}
+
+	/**
+	 * Reads the hashes requested on the link so far.
+	 */
+	private static List<Hash> requests(SimMedium.Link sniffer) throws Exception {
+		List<Hash> hashes = new ArrayList<Hash>();
+		for (ContentRequest request : requestObjects(sniffer))
+			hashes.addAll(request.getHashes());
+		return hashes;
+	}
+
+	/**
+	 * Reads the content requests heard on the link so far.
+	 */
+	private static List<ContentRequest> requestObjects(SimMedium.Link sniffer) throws Exception {
+		List<ContentRequest> requests = new ArrayList<ContentRequest>();
+		byte[] frame;
+		while ((frame = sniffer.receive(0)) != null) {
+			ByteBuffer buffer = ByteBuffer.wrap(frame);
+			buffer.get(); // Packet header
+			while (buffer.hasRemaining()) {
+				int type = 0xFF & buffer.get(buffer.position());
+				int length = PacketProtocol.OBJECT_HEADER_LEN
+						+ buffer.getShort(buffer.position() + 1);
+				if (type == ObjectType.ContentRequest.getId()) {
+					requests.add(ContentRequestSerializer.deserialize(buffer.duplicate()));
+				}
+				buffer.position(buffer.position() + length);
+			}
+		}
+		return requests;
+	}
+
+	private static void leaves(MerkleNodeReference ref, List<MerkleNode> leaves) {
+		MerkleNode node = ref.get();
+		if (node.getChildren().length == 0)
+			leaves.add(node);
+		for (MerkleNodeReference child : node.getChildren())
+			leaves(child, leaves);
+	}
+
+	private static void storeExcept(ContentManager manager, MerkleNodeReference ref,
+			Set<Hash> excluded) throws Exception {
+		if (excluded.contains(ref.getHash()))
+			return;
+		manager.getMerkleStore().putNode(ref);
+		for (MerkleNodeReference child : ref.get().getChildren())
+			storeExcept(manager, child, excluded);
+	}
+
+	@Test
+	public void testRequestsOnlyMissingNodes() throws Exception {
+		SimMedium medium = new SimMedium(ContactGraph.fullMesh(), 0.0,
+				PacketProtocol.MAX_PACKET_LEN, 0, 0);
+		SimNode sender = start(medium);
+		SimNode receiver = start(medium);
+		SimMedium.Link sniffer = medium.attach();
+
+		byte[] data = TestFactory.genByteArray(40000);
+		Hash hash = sender.publish(data);
+
+		// The receiver already holds all but three leaves
+		MerkleNode root = MerkleBuilder.build(data, 0, data.length);
+		List<MerkleNode> leaves = new ArrayList<MerkleNode>();
+		leaves(root.getRef(), leaves);
+		Set<Hash> missing = new HashSet<Hash>();
+		missing.add(leaves.get(1).getHash());
+		missing.add(leaves.get(10).getHash());
+		missing.add(leaves.get(leaves.size() - 1).getHash());
+		ContentManager manager = receiver.getContentManager();
+		storeExcept(manager, root.getRef(), missing);
+		manager.getDescriptorStore().store(new ContentDescriptor(root.getHash(), MimeType.JPEG));
+
+		receiver.fetch(hash);
+		assertTrue(await(receiver, hash, 5000));
+		assertArrayEquals(data, manager.retrieve(hash).getData());
+		assertEquals(missing, new HashSet<Hash>(requests(sniffer)));
+	}
+
+	@Test
+	public void testCompletesDespiteLoss() throws Exception {
+		SimMedium medium = new SimMedium(ContactGraph.fullMesh(), 0.2,
+				PacketProtocol.MAX_PACKET_LEN, 0, 1);
+		SimNode sender = start(medium);
+		SimNode receiver = start(medium);
+
+		byte[] data = TestFactory.genByteArray(60000);
+		Hash hash = sender.publish(data);
+		receiver.fetch(hash);
+		assertTrue(await(receiver, hash, 30000));
+		assertArrayEquals(data, receiver.getContentManager().retrieve(hash).getData());
+
+		// The retrieval ends with the next walk
+		for (int i = 0; i < 50 && receiver.getRetriever().size() > 0; ++i)
+			Thread.sleep(100);
+		assertEquals(0, receiver.getRetriever().size());
+	}
+
+	@Test
+	public void testWindowLimitsAndShrinksOnTimeout() throws Exception {
+		ContentRetriever.INITIAL_TIMEOUT_MS = 200;
+		SimMedium medium = new SimMedium(ContactGraph.fullMesh(), 0.0,
+				PacketProtocol.MAX_PACKET_LEN, 0, 0);
+		SimNode receiver = start(medium);
+		SimMedium.Link sniffer = medium.attach();
+
+		// No node has the leaves
+		byte[] data = TestFactory.genByteArray(40000);
+		MerkleNode root = MerkleBuilder.build(data, 0, data.length);
+		List<MerkleNode> leaves = new ArrayList<MerkleNode>();
+		leaves(root.getRef(), leaves);
+		Set<Hash> missing = new HashSet<Hash>();
+		for (MerkleNode leaf : leaves)
+			missing.add(leaf.getHash());
+		storeExcept(receiver.getContentManager(), root.getRef(), missing);
+
+		receiver.fetch(root.getHash());
+		Thread.sleep(100);
+		assertEquals((int) ContentRetriever.INITIAL_WINDOW, requests(sniffer).size());
+
+		Thread.sleep(500);
+		assertEquals(ContentRetriever.MIN_WINDOW, receiver.getRetriever().getWindow(), 0.0);
+	}
+
+	@Test
+	public void testBatchesRequestsWithRoot() throws Exception {
+		SimMedium medium = new SimMedium(ContactGraph.fullMesh(), 0.0,
+				PacketProtocol.MAX_PACKET_LEN, 0, 0);
+		SimNode receiver = start(medium);
+		SimMedium.Link sniffer = medium.attach();
+
+		// No node has the leaves
+		byte[] data = TestFactory.genByteArray(40000);
+		MerkleNode root = MerkleBuilder.build(data, 0, data.length);
+		List<MerkleNode> leaves = new ArrayList<MerkleNode>();
+		leaves(root.getRef(), leaves);
+		Set<Hash> missing = new HashSet<Hash>();
+		for (MerkleNode leaf : leaves)
+			missing.add(leaf.getHash());
+		storeExcept(receiver.getContentManager(), root.getRef(), missing);
+
+		receiver.fetch(root.getHash());
+		Thread.sleep(100);
+		List<ContentRequest> requests = requestObjects(sniffer);
+		assertEquals(1, requests.size());
+		assertEquals((int) ContentRetriever.INITIAL_WINDOW, requests.get(0).getHashes().size());
+		assertEquals(root.getHash(), requests.get(0).getRoot());
+	}
+
+}
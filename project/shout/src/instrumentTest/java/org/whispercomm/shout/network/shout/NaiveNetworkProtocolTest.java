@@ -0,0 +1,105 @@
+package org.whispercomm.shout.network.shout;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.joda.time.DateTime;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.whispercomm.shout.Shout;
+import org.whispercomm.shout.id.SignatureUtility;
+import org.whispercomm.shout.network.PacketProtocol;
+import org.whispercomm.shout.network.sim.ContactGraph;
+import org.whispercomm.shout.network.sim.ExecutorTaskScheduler;
+import org.whispercomm.shout.network.sim.MemoryRebroadcastStore;
+import org.whispercomm.shout.network.sim.SimMedium;
+import org.whispercomm.shout.network.sim.SimNode;
+import org.whispercomm.shout.test.ShoutTestRunner;
+import org.whispercomm.shout.test.util.TestFactory;
+import org.whispercomm.shout.test.util.TestUnsignedShout;
+
+@RunWith(ShoutTestRunner.class)
+public class NaiveNetworkProtocolTest {
+
+	private static final int PERIOD_MS = 100;
+
+	private static final int RESENDS = 3;
+
+	private int period;
+
+	private int resends;
+
+	private long batchWindowMs;
+
+	private SimNode sender;
+
+	private SimNode receiver;
+
+	private Semaphore stored;
+
+	@Before
+	public void setup() {
+		period = NaiveNetworkProtocol.PERIOD;
+		resends = NaiveNetworkProtocol.RESEND_NUM;
+		batchWindowMs = RebroadcastQueue.BATCH_WINDOW_MS;
+		NaiveNetworkProtocol.PERIOD = PERIOD_MS;
+		NaiveNetworkProtocol.RESEND_NUM = RESENDS;
+		RebroadcastQueue.BATCH_WINDOW_MS = 10;
+
+		SimMedium medium = new SimMedium(ContactGraph.fullMesh(), 0.0,
+				PacketProtocol.MAX_PACKET_LEN, 0, 0);
+		SimNode.ProtocolFactory factory = new SimNode.ProtocolFactory() {
+			@Override
+			public NetworkProtocol create(SimNode node, ReceivedShoutWriter writer) {
+				return new NaiveNetworkProtocol(node.getShoutProtocol(), writer,
+						new RebroadcastQueue(new MemoryRebroadcastStore(node.getShoutIndex()),
+								node.getShoutProtocol(), new ExecutorTaskScheduler(),
+								NaiveNetworkProtocol.PERIOD));
+			}
+		};
+		stored = new Semaphore(0);
+		SimNode.Listener listener = new SimNode.Listener() {
+			@Override
+			public void stored(SimNode node, Shout shout) {
+				stored.release();
+			}
+		};
+		sender = new SimNode(medium, factory, listener);
+		receiver = new SimNode(medium, factory, listener);
+		sender.start();
+		receiver.start();
+	}
+
+	@After
+	public void teardown() {
+		sender.stop();
+		receiver.stop();
+		NaiveNetworkProtocol.PERIOD = period;
+		NaiveNetworkProtocol.RESEND_NUM = resends;
+		RebroadcastQueue.BATCH_WINDOW_MS = batchWindowMs;
+	}
+
+	private static RebroadcastQueue rebroadcasts(SimNode node) {
+		return ((NaiveNetworkProtocol) node.getNetworkProtocol()).getRebroadcastQueue();
+	}
+
+	@Test
+	public void testRebroadcastsUntilDone() throws Exception {
+		Shout shout = SignatureUtility.signShout(new TestUnsignedShout(TestFactory.TEST_ME_1,
+				null, "naive", null, new DateTime()), TestFactory.TEST_ME_1);
+		sender.send(shout);
+		assertTrue(stored.tryAcquire(5, TimeUnit.SECONDS));
+		assertTrue(receiver.getShoutIndex().contains(shout.getHash()));
+
+		for (int i = 0; i < 100 && rebroadcasts(sender).getSentCount() < RESENDS; ++i)
+			Thread.sleep(20);
+		Thread.sleep(3 * PERIOD_MS);
+		assertEquals(RESENDS, rebroadcasts(sender).getSentCount());
+		assertEquals(0, rebroadcasts(receiver).getSentCount());
+	}
+
+}
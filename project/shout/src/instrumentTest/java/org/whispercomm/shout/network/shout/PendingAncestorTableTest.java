@@ -0,0 +1,149 @@
+package org.whispercomm.shout.network.shout;
+
+import static org.junit.Assert.*;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.whispercomm.shout.Hash;
+import org.whispercomm.shout.Shout;
+import org.whispercomm.shout.serialization.SerializeUtility.BuildableShout;
+import org.whispercomm.shout.test.ShoutTestRunner;
+
+@RunWith(ShoutTestRunner.class)
+public class PendingAncestorTableTest {
+
+	private Map<Hash, Shout> store;
+
+	private PendingAncestorTable table;
+
+	private int counter;
+
+	@Before
+	public void setup() {
+		store = new HashMap<Hash, Shout>();
+		table = new PendingAncestorTable(new PendingAncestorTable.AncestorResolver() {
+			@Override
+			public Shout resolve(Hash hash) {
+				return store.get(hash);
+			}
+		});
+	}
+
+	private BuildableShout shout(String message, BuildableShout parent) {
+		BuildableShout shout = new BuildableShout();
+		shout.message = message;
+		shout.hash = Hash.hashData(Integer.toString(counter++).getBytes());
+		shout.parentHash = (parent == null) ? null : parent.hash;
+		return shout;
+	}
+
+	@Test
+	public void testChildBeforeParent() {
+		BuildableShout root = shout("root", null);
+		BuildableShout comment = shout("comment", root);
+
+		assertTrue(table.add(comment).isEmpty());
+		assertEquals(1, table.size());
+		assertTrue(table.isAwaited(root.hash));
+
+		List<Shout> leaves = table.add(root);
+		assertEquals(1, leaves.size());
+		assertSame(comment, leaves.get(0));
+		assertSame(root, comment.getParent());
+		assertEquals(0, table.size());
+	}
+
+	@Test
+	public void testChainInReverseOrder() {
+		BuildableShout root = shout("root", null);
+		BuildableShout comment = shout("comment", root);
+		BuildableShout reshout = shout(null, comment);
+
+		assertTrue(table.add(reshout).isEmpty());
+		assertTrue(table.add(comment).isEmpty());
+		List<Shout> leaves = table.add(root);
+		assertEquals(1, leaves.size());
+		assertSame(reshout, leaves.get(0));
+		assertSame(root, reshout.getParent().getParent());
+	}
+
+	@Test
+	public void testInvalidChainDeliversParent() {
+		BuildableShout root = shout("root", null);
+		BuildableShout comment = shout("comment", root);
+		BuildableShout commentOnComment = shout("comment", comment);
+
+		table.add(commentOnComment);
+		table.add(comment);
+		List<Shout> leaves = table.add(root);
+		assertEquals(1, leaves.size());
+		assertSame(comment, leaves.get(0));
+	}
+
+	@Test
+	public void testResolvesFromStore() {
+		BuildableShout root = shout("root", null);
+		root.parent = null;
+		store.put(root.hash, root);
+
+		BuildableShout comment = shout("comment", root);
+		List<Shout> leaves = table.add(comment);
+		assertEquals(1, leaves.size());
+		assertSame(root, comment.getParent());
+
+		// Delivered shouts are not delivered again
+		assertTrue(table.add(comment).isEmpty());
+	}
+
+	@Test
+	public void testResolvesFromRecent() {
+		BuildableShout root = shout("root", null);
+		assertEquals(1, table.add(root).size());
+
+		BuildableShout comment = shout("comment", root);
+		assertEquals(1, table.add(comment).size());
+		assertSame(root, comment.getParent());
+	}
+
+	@Test
+	public void testExpiresHeldShouts() {
+		table = new PendingAncestorTable(new PendingAncestorTable.AncestorResolver() {
+			@Override
+			public Shout resolve(Hash hash) {
+				return null;
+			}
+		}, 16, 0);
+		BuildableShout root = shout("root", null);
+		BuildableShout comment = shout("comment", root);
+
+		table.add(comment);
+		List<Shout> leaves = table.add(root);
+		assertEquals(1, leaves.size());
+		assertSame(root, leaves.get(0));
+		assertEquals(0, table.size());
+	}
+
+	@Test
+	public void testEvictsOldest() {
+		table = new PendingAncestorTable(new PendingAncestorTable.AncestorResolver() {
+			@Override
+			public Shout resolve(Hash hash) {
+				return null;
+			}
+		}, 2, PendingAncestorTable.DEFAULT_TTL_MS);
+		BuildableShout[] roots = new BuildableShout[3];
+		for (int i = 0; i < roots.length; ++i) {
+			roots[i] = shout("root", null);
+			table.add(shout("comment", roots[i]));
+		}
+		assertEquals(2, table.size());
+		assertFalse(table.isAwaited(roots[0].hash));
+		assertTrue(table.isAwaited(roots[2].hash));
+	}
+
+}
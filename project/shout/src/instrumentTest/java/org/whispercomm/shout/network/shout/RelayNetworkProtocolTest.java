@@ -0,0 +1,167 @@
+package org.whispercomm.shout.network.shout;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+
+import org.joda.time.DateTime;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.whispercomm.manes.client.maclib.ManesNotRegisteredException;
+import org.whispercomm.shout.Hash;
+import org.whispercomm.shout.Shout;
+import org.whispercomm.shout.serialization.SerializeUtility.BuildableShout;
+import org.whispercomm.shout.test.ShoutTestRunner;
+
+@RunWith(ShoutTestRunner.class)
+public class RelayNetworkProtocolTest {
+
+	private static final long MINUTE = 60 * 1000;
+
+	private Map<Hash, Shout> store;
+
+	private List<Shout> relayed;
+
+	private List<Shout> received;
+
+	private RelayNetworkProtocol relay;
+
+	private int counter;
+
+	private int shoutLen;
+
+	@Before
+	public void setup() {
+		store = new HashMap<Hash, Shout>();
+		relayed = new ArrayList<Shout>();
+		received = new ArrayList<Shout>();
+		shoutLen = 100;
+
+		NetworkProtocol delegate = new NetworkProtocol() {
+			@Override
+			public void initialize() {
+			}
+
+			@Override
+			public void cleanup() {
+			}
+
+			@Override
+			public void sendShout(Shout shout) throws ShoutChainTooLongException,
+					ManesNotRegisteredException {
+			}
+
+			@Override
+			public void receive(Shout shout) {
+				received.add(shout);
+				store.put(shout.getHash(), shout);
+			}
+		};
+		relay = new RelayNetworkProtocol(delegate, new PendingAncestorTable.AncestorResolver() {
+			@Override
+			public Shout resolve(Hash hash) {
+				return store.get(hash);
+			}
+		}, new RelayNetworkProtocol.Relay() {
+			@Override
+			public int relay(Shout shout) {
+				relayed.add(shout);
+				return shoutLen;
+			}
+		}, Executors.newSingleThreadScheduledExecutor());
+	}
+
+	private BuildableShout shout(long ageMs) {
+		BuildableShout shout = new BuildableShout();
+		shout.message = "shout";
+		shout.timestamp = new DateTime(System.currentTimeMillis() - ageMs);
+		shout.hash = Hash.hashData(Integer.toString(counter++).getBytes());
+		return shout;
+	}
+
+	@Test
+	public void testPassesToDelegate() {
+		BuildableShout shout = shout(0);
+		relay.receive(shout);
+		assertEquals(1, received.size());
+		assertEquals(1, relay.size());
+	}
+
+	@Test
+	public void testIgnoresOldShouts() {
+		relay.receive(shout(RelayNetworkProtocol.MAX_AGE_MS + MINUTE));
+		assertEquals(1, received.size());
+		assertEquals(0, relay.size());
+	}
+
+	@Test
+	public void testIgnoresFutureShouts() {
+		relay.receive(shout(-RelayNetworkProtocol.MAX_CLOCK_SKEW_MS - MINUTE));
+		assertEquals(1, received.size());
+		assertEquals(0, relay.size());
+	}
+
+	@Test
+	public void testClampsNegativeAge() {
+		BuildableShout skewed = shout(-MINUTE);
+		BuildableShout current = shout(0);
+		assertEquals(RelayNetworkProtocol.score(current, 0),
+				RelayNetworkProtocol.score(skewed, -MINUTE), 0);
+
+		relay.receive(skewed);
+		relay.receive(current);
+		assertEquals(2, relay.size());
+	}
+
+	@Test
+	public void testRelaysNewestFirstWithinBudget() {
+		long budget = RelayNetworkProtocol.AIRTIME_BYTES_PER_SECOND
+				* RelayNetworkProtocol.ROUND_MS / 1000;
+		shoutLen = (int) (budget / 2);
+
+		BuildableShout old = shout(30 * MINUTE);
+		BuildableShout newer = shout(10 * MINUTE);
+		BuildableShout newest = shout(MINUTE);
+		relay.receive(old);
+		relay.receive(newest);
+		relay.receive(newer);
+
+		relay.relayRound(System.currentTimeMillis());
+		assertEquals(2, relayed.size());
+		assertSame(newest, relayed.get(0));
+		assertSame(newer, relayed.get(1));
+	}
+
+	@Test
+	public void testQuotaLimitsRelays() {
+		BuildableShout shout = shout(0);
+		relay.receive(shout);
+		for (int i = 0; i < RelayNetworkProtocol.FORWARD_QUOTA + 2; ++i)
+			relay.relayRound(System.currentTimeMillis());
+		assertEquals(RelayNetworkProtocol.FORWARD_QUOTA, relayed.size());
+		assertEquals(0, relay.size());
+	}
+
+	@Test
+	public void testOverheardRelaysUseQuota() {
+		BuildableShout shout = shout(0);
+		relay.receive(shout);
+		for (int i = 0; i < RelayNetworkProtocol.FORWARD_QUOTA; ++i)
+			relay.heardAgain(shout.hash);
+		relay.relayRound(System.currentTimeMillis());
+		assertTrue(relayed.isEmpty());
+	}
+
+	@Test
+	public void testExpiresCandidates() {
+		relay.receive(shout(0));
+		relay.relayRound(System.currentTimeMillis() + RelayNetworkProtocol.MAX_AGE_MS);
+		assertEquals(0, relay.size());
+	}
+
+}
@@ -0,0 +1,111 @@
+package org.whispercomm.shout.network.shout;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.whispercomm.shout.Hash;
+import org.whispercomm.shout.network.PacketProtocol;
+
+public class SummaryWindowTest {
+
+	private static final long SLOT_MS = 1000;
+
+	private SummaryWindow window;
+
+	private int counter;
+
+	@Before
+	public void setup() {
+		window = new SummaryWindow(512, 4, 3, SLOT_MS);
+	}
+
+	private Hash hash() {
+		return Hash.hashData(Integer.toString(counter++).getBytes());
+	}
+
+	@Test
+	public void testSummaryContainsAdded() {
+		List<Hash> hashes = new ArrayList<Hash>();
+		for (int i = 0; i < 100; ++i) {
+			Hash hash = hash();
+			hashes.add(hash);
+			assertTrue(window.add(hash, 0));
+		}
+		assertFalse(window.add(hashes.get(0), 0));
+
+		HaveSummary summary = window.getSummary(0);
+		for (Hash hash : hashes)
+			assertTrue(summary.mightContain(hash));
+	}
+
+	@Test
+	public void testMissingFromNewestFirst() {
+		Hash shared = hash();
+		Hash older = hash();
+		Hash newer = hash();
+		window.add(shared, 0);
+		window.add(older, 0);
+		window.add(newer, SLOT_MS);
+
+		HaveSummary neighbor = new HaveSummary(512, 4);
+		neighbor.add(shared);
+
+		List<Hash> missing = window.missingFrom(neighbor, SLOT_MS);
+		assertEquals(2, missing.size());
+		assertEquals(newer, missing.get(0));
+		assertEquals(older, missing.get(1));
+	}
+
+	@Test
+	public void testSlidesPastOldSlots() {
+		Hash old = hash();
+		Hash recent = hash();
+		window.add(old, 0);
+		window.add(recent, 2 * SLOT_MS);
+		assertEquals(2, window.size());
+
+		window.add(hash(), 3 * SLOT_MS);
+		assertEquals(2, window.size());
+		HaveSummary summary = window.getSummary(3 * SLOT_MS);
+		assertFalse(summary.mightContain(old));
+		assertTrue(summary.mightContain(recent));
+
+		// Dropped hashes can be added again
+		assertTrue(window.add(old, 3 * SLOT_MS));
+		assertEquals(0, window.getSummary(100 * SLOT_MS).getCount());
+	}
+
+	@Test
+	public void testSerializeRoundTrip() throws Exception {
+		for (int i = 0; i < 50; ++i)
+			window.add(hash(), 0);
+		HaveSummary summary = window.getSummary(0);
+
+		ByteBuffer buffer = PacketProtocol.createPacket();
+		assertTrue(HaveSummarySerializer.serialize(buffer, summary));
+		buffer.flip();
+		buffer.get(); // Packet header
+
+		HaveSummary copy = HaveSummarySerializer.deserialize(buffer);
+		assertFalse(buffer.hasRemaining());
+		assertEquals(summary.getCount(), copy.getCount());
+		assertEquals(summary.getNumHashes(), copy.getNumHashes());
+		assertArrayEquals(summary.getBits(), copy.getBits());
+		PacketProtocol.releasePacket(buffer);
+	}
+
+	@Test
+	public void testSummaryFitsInPacket() {
+		ByteBuffer buffer = PacketProtocol.createPacket();
+		assertTrue(HaveSummarySerializer.serialize(buffer,
+				new HaveSummary(SummaryNetworkProtocol.SUMMARY_BYTES,
+						SummaryNetworkProtocol.SUMMARY_HASHES)));
+		PacketProtocol.releasePacket(buffer);
+	}
+
+}
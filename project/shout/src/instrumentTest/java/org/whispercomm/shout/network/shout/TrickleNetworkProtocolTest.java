@@ -0,0 +1,109 @@
+package org.whispercomm.shout.network.shout;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.joda.time.DateTime;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.whispercomm.shout.Shout;
+import org.whispercomm.shout.id.SignatureUtility;
+import org.whispercomm.shout.network.PacketProtocol;
+import org.whispercomm.shout.network.sim.ContactGraph;
+import org.whispercomm.shout.network.sim.SimMedium;
+import org.whispercomm.shout.network.sim.SimNode;
+import org.whispercomm.shout.test.ShoutTestRunner;
+import org.whispercomm.shout.test.util.TestFactory;
+import org.whispercomm.shout.test.util.TestUnsignedShout;
+
+@RunWith(ShoutTestRunner.class)
+public class TrickleNetworkProtocolTest {
+
+	private static final long IMIN_MS = 50;
+
+	private long iminMs;
+
+	private SimNode first;
+
+	private SimNode second;
+
+	private Semaphore stored;
+
+	@Before
+	public void setup() {
+		iminMs = TrickleNetworkProtocol.IMIN_MS;
+		TrickleNetworkProtocol.IMIN_MS = IMIN_MS;
+
+		SimMedium medium = new SimMedium(ContactGraph.fullMesh(), 0.0,
+				PacketProtocol.MAX_PACKET_LEN, 0, 0);
+		SimNode.ProtocolFactory factory = new SimNode.ProtocolFactory() {
+			@Override
+			public NetworkProtocol create(SimNode node, ReceivedShoutWriter writer) {
+				TrickleNetworkProtocol trickle = new TrickleNetworkProtocol(
+						node.getShoutProtocol(), writer);
+				node.getShoutProtocol().addDuplicateListener(trickle);
+				return trickle;
+			}
+		};
+		stored = new Semaphore(0);
+		SimNode.Listener listener = new SimNode.Listener() {
+			@Override
+			public void stored(SimNode node, Shout shout) {
+				stored.release();
+			}
+		};
+		first = new SimNode(medium, factory, listener);
+		second = new SimNode(medium, factory, listener);
+		first.start();
+		second.start();
+	}
+
+	@After
+	public void teardown() {
+		first.stop();
+		second.stop();
+		TrickleNetworkProtocol.IMIN_MS = iminMs;
+	}
+
+	private static TrickleNetworkProtocol trickle(SimNode node) {
+		return (TrickleNetworkProtocol) node.getNetworkProtocol();
+	}
+
+	private void sendAndAwait(SimNode node, String message) throws Exception {
+		Shout shout = SignatureUtility.signShout(new TestUnsignedShout(TestFactory.TEST_ME_1,
+				null, message, null, new DateTime()), TestFactory.TEST_ME_1);
+		node.send(shout);
+		assertTrue(stored.tryAcquire(5, TimeUnit.SECONDS));
+	}
+
+	/**
+	 * Waits for the node to reset its intervals, which happens just after the
+	 * received shout is queued for storage.
+	 */
+	private static long awaitReset(SimNode node) throws Exception {
+		for (int i = 0; i < 50 && trickle(node).getResetCount() == 0; ++i)
+			Thread.sleep(10);
+		return trickle(node).getResetCount();
+	}
+
+	@Test
+	public void testNodesResetEachOther() throws Exception {
+		sendAndAwait(first, "first");
+		// Let the interval of the first shout grow past the minimum
+		Thread.sleep(8 * IMIN_MS);
+		assertEquals(0, trickle(first).getResetCount());
+
+		sendAndAwait(second, "second");
+		assertEquals(1, awaitReset(first));
+		assertEquals(0, trickle(second).getResetCount());
+
+		Thread.sleep(8 * IMIN_MS);
+		sendAndAwait(first, "third");
+		assertEquals(1, awaitReset(second));
+	}
+
+}
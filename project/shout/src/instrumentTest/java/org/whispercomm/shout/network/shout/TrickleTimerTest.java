@@ -0,0 +1,233 @@
+package org.whispercomm.shout.network.shout;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.whispercomm.shout.Hash;
+import org.whispercomm.shout.test.ShoutTestRunner;
+
+@RunWith(ShoutTestRunner.class)
+public class TrickleTimerTest {
+
+	private static final long IMIN_MS = 40;
+
+	private ManualExecutor executor;
+
+	private List<String> transmitted;
+
+	private TrickleTimer.Transmitter<String> transmitter;
+
+	@Before
+	public void setup() {
+		executor = new ManualExecutor();
+		transmitted = new ArrayList<String>();
+		transmitter = new TrickleTimer.Transmitter<String>() {
+			@Override
+			public void transmit(String item) {
+				synchronized (transmitted) {
+					transmitted.add(item);
+				}
+			}
+		};
+	}
+
+	@After
+	public void takedown() {
+		executor.shutdownNow();
+	}
+
+	private static Hash key(String item) {
+		return Hash.hashData(item.getBytes());
+	}
+
+	private int transmittedCount() {
+		synchronized (transmitted) {
+			return transmitted.size();
+		}
+	}
+
+	private TrickleTimer<String> createTimer(int doublings, long lifetimeMs, int maxItems) {
+		return new TrickleTimer<String>(transmitter, executor, IMIN_MS, doublings, 1,
+				lifetimeMs, maxItems) {
+			@Override
+			long currentTimeMillis() {
+				return executor.now;
+			}
+		};
+	}
+
+	@Test
+	public void testTransmitsOncePerIntervalUntilExpired() {
+		// Intervals of 40 and 80 ms, expiring at the end of the second
+		TrickleTimer<String> timer = createTimer(4, 100, 16);
+		timer.add(key("a"), "a");
+		executor.advance(500);
+
+		assertEquals(2, transmittedCount());
+		assertEquals(2, timer.getTransmittedCount());
+		assertEquals(0, timer.size());
+	}
+
+	@Test
+	public void testSuppressesAfterHearingNeighbors() {
+		TrickleTimer<String> timer = createTimer(1, 200, 16);
+		timer.add(key("a"), "a");
+		for (int i = 0; i < 60; ++i) {
+			timer.heard(key("a"));
+			executor.advance(5);
+		}
+
+		assertEquals(0, transmittedCount());
+		assertTrue(timer.getSuppressedCount() > 0);
+	}
+
+	@Test
+	public void testIntervalDoublesAndResets() {
+		TrickleTimer<String> timer = createTimer(8, TrickleTimer.DEFAULT_LIFETIME_MS, 16);
+		timer.add(key("a"), "a");
+		assertEquals(IMIN_MS, timer.getIntervalMs(key("a")));
+
+		// Intervals end at 40 and 120 ms
+		executor.advance(150);
+		assertEquals(4 * IMIN_MS, timer.getIntervalMs(key("a")));
+		assertEquals(2, transmittedCount());
+
+		timer.resetAll();
+		assertEquals(IMIN_MS, timer.getIntervalMs(key("a")));
+		executor.advance(IMIN_MS);
+		assertEquals(3, transmittedCount());
+		assertEquals(2 * IMIN_MS, timer.getIntervalMs(key("a")));
+	}
+
+	@Test
+	public void testKeysAddedSince() {
+		TrickleTimer<String> timer = createTimer(4, TrickleTimer.DEFAULT_LIFETIME_MS, 16);
+		timer.add(key("a"), "a");
+		executor.advance(10);
+		timer.add(key("b"), "b");
+
+		assertEquals(2, timer.keysAddedSince(0).size());
+		assertEquals(key("b"), timer.keysAddedSince(5).get(0));
+		assertEquals(0, timer.keysAddedSince(11).size());
+	}
+
+	@Test
+	public void testEvictsOldest() {
+		TrickleTimer<String> timer = createTimer(4, TrickleTimer.DEFAULT_LIFETIME_MS, 2);
+		timer.add(key("a"), "a");
+		timer.add(key("b"), "b");
+		timer.add(key("c"), "c");
+		assertEquals(2, timer.size());
+		assertEquals(-1, timer.getIntervalMs(key("a")));
+	}
+
+	/**
+	 * Runs scheduled tasks on the test thread as virtual time is advanced.
+	 */
+	private static class ManualExecutor extends ScheduledThreadPoolExecutor {
+
+		long now;
+
+		private long sequence;
+
+		private final PriorityQueue<Task> tasks = new PriorityQueue<Task>();
+
+		ManualExecutor() {
+			super(1);
+		}
+
+		@Override
+		public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+			Task task = new Task(command, now + unit.toMillis(delay), sequence++);
+			tasks.add(task);
+			return task;
+		}
+
+		/**
+		 * Runs, in order, the tasks due within the specified time.
+		 */
+		void advance(long ms) {
+			long end = now + ms;
+			while (!tasks.isEmpty() && tasks.peek().time <= end) {
+				Task task = tasks.poll();
+				now = task.time;
+				if (!task.cancelled) {
+					task.command.run();
+					task.done = true;
+				}
+			}
+			now = end;
+		}
+
+		private class Task implements ScheduledFuture<Object> {
+			final Runnable command;
+
+			final long time;
+
+			final long sequence;
+
+			boolean cancelled;
+
+			boolean done;
+
+			Task(Runnable command, long time, long sequence) {
+				this.command = command;
+				this.time = time;
+				this.sequence = sequence;
+			}
+
+			@Override
+			public long getDelay(TimeUnit unit) {
+				return unit.convert(time - now, TimeUnit.MILLISECONDS);
+			}
+
+			@Override
+			public int compareTo(Delayed other) {
+				Task task = (Task) other;
+				if (time != task.time)
+					return (time < task.time) ? -1 : 1;
+				return (sequence < task.sequence) ? -1 : (sequence == task.sequence) ? 0 : 1;
+			}
+
+			@Override
+			public boolean cancel(boolean mayInterruptIfRunning) {
+				if (done)
+					return false;
+				cancelled = true;
+				return true;
+			}
+
+			@Override
+			public boolean isCancelled() {
+				return cancelled;
+			}
+
+			@Override
+			public boolean isDone() {
+				return done || cancelled;
+			}
+
+			@Override
+			public Object get() {
+				return null;
+			}
+
+			@Override
+			public Object get(long timeout, TimeUnit unit) {
+				return null;
+			}
+		}
+	}
+
+}
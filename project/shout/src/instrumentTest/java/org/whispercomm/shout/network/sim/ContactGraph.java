@@ -0,0 +1,96 @@
+package org.whispercomm.shout.network.sim;
+
+/**
+ * Decides which pairs of simulated nodes are in radio range of each other,
+ * possibly varying over time.
+ *
+ * @author David R. Bild
+ */
+public abstract class ContactGraph {
+
+	/**
+	 * @param a the index of the first node
+	 * @param b the index of the second node
+	 * @param elapsedMs the time since the start of the simulation, in
+	 *            milliseconds
+	 * @return {@code true} if a frame sent by either node reaches the other
+	 */
+	public abstract boolean connected(int a, int b, long elapsedMs);
+
+	/**
+	 * @return a graph in which every node always reaches every other
+	 */
+	public static ContactGraph fullMesh() {
+		return new ContactGraph() {
+			@Override
+			public boolean connected(int a, int b, long elapsedMs) {
+				return true;
+			}
+
+			@Override
+			public String toString() {
+				return "mesh";
+			}
+		};
+	}
+
+	/**
+	 * @return a graph in which each node reaches only the nodes with adjacent
+	 *         indices, so shouts must be relayed to cross it
+	 */
+	public static ContactGraph line() {
+		return new ContactGraph() {
+			@Override
+			public boolean connected(int a, int b, long elapsedMs) {
+				return Math.abs(a - b) == 1;
+			}
+
+			@Override
+			public String toString() {
+				return "line";
+			}
+		};
+	}
+
+	/**
+	 * Creates a graph of intermittent contacts. Time is divided into epochs
+	 * and each pair of nodes is in contact for a whole epoch with the given
+	 * probability, independently of other pairs and epochs.
+	 *
+	 * @param probability the probability that a pair is in contact
+	 * @param epochMs the length of an epoch, in milliseconds
+	 * @param seed the seed from which contacts are derived
+	 * @return the graph
+	 */
+	public static ContactGraph randomContacts(final double probability, final long epochMs,
+			final long seed) {
+		return new ContactGraph() {
+			@Override
+			public boolean connected(int a, int b, long elapsedMs) {
+				long epoch = elapsedMs / epochMs;
+				long x = seed;
+				x = mix(x ^ Math.min(a, b));
+				x = mix(x ^ Math.max(a, b));
+				x = mix(x ^ epoch);
+				return (x >>> 11) * 0x1.0p-53 < probability;
+			}
+
+			@Override
+			public String toString() {
+				return String.format("contacts(p=%.2f, epoch=%dms)", probability, epochMs);
+			}
+		};
+	}
+
+	/**
+	 * SplitMix64 finalizer, so contacts are a pure function of the pair and
+	 * epoch and every node sees the same graph.
+	 */
+	private static long mix(long z) {
+		z += 0x9E3779B97F4A7C15L;
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+
+}
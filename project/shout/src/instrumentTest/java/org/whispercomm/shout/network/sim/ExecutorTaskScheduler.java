@@ -0,0 +1,46 @@
+package org.whispercomm.shout.network.sim;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.whispercomm.shout.util.TaskScheduler;
+
+/**
+ * A {@link TaskScheduler} on a single thread of a plain
+ * {@link ScheduledExecutorService}, standing in for the
+ * {@code AlarmExecutorService} of a simulated node.
+ *
+ * @author David R. Bild
+ */
+public class ExecutorTaskScheduler implements TaskScheduler {
+
+	private final ScheduledExecutorService executor;
+
+	public ExecutorTaskScheduler() {
+		this.executor = Executors.newSingleThreadScheduledExecutor();
+	}
+
+	@Override
+	public void execute(Runnable command) {
+		executor.execute(command);
+	}
+
+	@Override
+	public Task schedule(Runnable command, long delay, TimeUnit unit) {
+		final ScheduledFuture<?> future = executor.schedule(command, delay, unit);
+		return new Task() {
+			@Override
+			public void cancel() {
+				future.cancel(false);
+			}
+		};
+	}
+
+	@Override
+	public void shutdown() {
+		executor.shutdownNow();
+	}
+
+}
@@ -0,0 +1,76 @@
+package org.whispercomm.shout.network.sim;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.whispercomm.shout.Hash;
+import org.whispercomm.shout.Shout;
+import org.whispercomm.shout.network.shout.RebroadcastQueue;
+
+/**
+ * The rebroadcast schedule of a simulated node, standing in for the outbound
+ * table of the content provider.
+ *
+ * @author David R. Bild
+ */
+public class MemoryRebroadcastStore implements RebroadcastQueue.Store {
+
+	private final MemoryShoutIndex shouts;
+
+	private final Map<Hash, long[]> schedule;
+
+	/**
+	 * @param shouts the stored shouts of the node
+	 */
+	public MemoryRebroadcastStore(MemoryShoutIndex shouts) {
+		this.shouts = shouts;
+		this.schedule = new HashMap<Hash, long[]>();
+	}
+
+	@Override
+	public synchronized void scheduleRebroadcasts(Hash hash, long nextSend, int count) {
+		schedule.put(hash, new long[] {
+				nextSend, count
+		});
+	}
+
+	@Override
+	public synchronized List<Hash> claimDueRebroadcasts(long dueBy, long period) {
+		List<Hash> hashes = new ArrayList<Hash>();
+		long now = System.currentTimeMillis();
+		Iterator<Map.Entry<Hash, long[]>> it = schedule.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<Hash, long[]> entry = it.next();
+			long[] next = entry.getValue();
+			if (next[0] > dueBy)
+				continue;
+			hashes.add(entry.getKey());
+			if (next[1] <= 1) {
+				it.remove();
+			} else {
+				next[0] = Math.max(next[0] + period, now + period / 2);
+				next[1]--;
+			}
+		}
+		return hashes;
+	}
+
+	@Override
+	public synchronized long retrieveNextRebroadcastTime() {
+		long min = -1;
+		for (long[] next : schedule.values()) {
+			if (min < 0 || next[0] < min)
+				min = next[0];
+		}
+		return min;
+	}
+
+	@Override
+	public Shout retrieveShout(Hash hash) {
+		return shouts.resolve(hash);
+	}
+
+}
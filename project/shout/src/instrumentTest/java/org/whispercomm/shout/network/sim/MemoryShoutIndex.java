@@ -0,0 +1,52 @@
+package org.whispercomm.shout.network.sim;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.whispercomm.shout.Hash;
+import org.whispercomm.shout.Shout;
+import org.whispercomm.shout.network.shout.DuplicateFilter.ShoutIndex;
+import org.whispercomm.shout.network.shout.PendingAncestorTable.AncestorResolver;
+
+/**
+ * The shouts stored by a simulated node, standing in for the content
+ * provider.
+ *
+ * @author David R. Bild
+ */
+public class MemoryShoutIndex implements ShoutIndex, AncestorResolver {
+
+	private final ConcurrentMap<Hash, Shout> shouts;
+
+	public MemoryShoutIndex() {
+		this.shouts = new ConcurrentHashMap<Hash, Shout>();
+	}
+
+	/**
+	 * Stores a shout and its ancestors.
+	 *
+	 * @param shout the shout to store
+	 * @return {@code true} if the shout itself was not already stored
+	 */
+	public boolean put(Shout shout) {
+		boolean added = (shouts.putIfAbsent(shout.getHash(), shout) == null);
+		for (Shout s = shout.getParent(); s != null; s = s.getParent())
+			shouts.putIfAbsent(s.getHash(), s);
+		return added;
+	}
+
+	@Override
+	public boolean contains(Hash hash) {
+		return shouts.containsKey(hash);
+	}
+
+	@Override
+	public Shout resolve(Hash hash) {
+		return shouts.get(hash);
+	}
+
+	public int size() {
+		return shouts.size();
+	}
+
+}
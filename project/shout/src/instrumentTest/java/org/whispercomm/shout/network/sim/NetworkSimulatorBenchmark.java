@@ -0,0 +1,411 @@
+package org.whispercomm.shout.network.sim;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.joda.time.DateTime;
+import org.whispercomm.shout.Hash;
+import org.whispercomm.shout.Me;
+import org.whispercomm.shout.Shout;
+import org.whispercomm.shout.crypto.KeyGenerator;
+import org.whispercomm.shout.id.SignatureUtility;
+import org.whispercomm.shout.network.ObjectType;
+import org.whispercomm.shout.network.PacketProtocol;
+import org.whispercomm.shout.network.capture.FrameCaptureWriter;
+import org.whispercomm.shout.network.content.ContentResponder;
+import org.whispercomm.shout.network.shout.NaiveNetworkProtocol;
+import org.whispercomm.shout.network.shout.NetworkProtocol;
+import org.whispercomm.shout.network.shout.RebroadcastQueue;
+import org.whispercomm.shout.network.shout.ReceivedShoutWriter;
+import org.whispercomm.shout.network.shout.RelayNetworkProtocol;
+import org.whispercomm.shout.network.shout.SummaryNetworkProtocol;
+import org.whispercomm.shout.network.shout.TrickleNetworkProtocol;
+import org.whispercomm.shout.test.util.TestFactory;
+import org.whispercomm.shout.test.util.TestMe;
+import org.whispercomm.shout.test.util.TestUnsignedShout;
+
+/**
+ * Measures end-to-end dissemination by running several nodes, each with the
+ * full network stack, over a {@link SimMedium} in one process.
+ * <p>
+ * Random nodes originate shouts during the first half of the run and publish
+ * content that all other nodes request until they have it. At the end, the
+ * benchmark reports the fraction of shouts and content delivered to the other
+ * nodes, the latency of shout delivery, the bytes sent on the medium, and the
+ * CPU time of all threads per delivered shout. The bytes of shout objects are
+ * reported apart from those of summaries, content requests, and content
+ * responses (descriptors, Merkle nodes, and fountain symbols).
+ * <p>
+ * The protocol timers are shortened (see {@link #compressTime()}) so a run
+ * takes about a minute rather than hours.
+ * <p>
+ * Run as a plain Java program on the desktop JVM, with options given as
+ * {@code key=value}:
+ *
+ * <pre>
+ * java org.whispercomm.shout.network.sim.NetworkSimulatorBenchmark \
+ *     protocol=naive|trickle|summary relay=false nodes=8 shouts=40 contents=2 \
+ *     contentBytes=8192 \
+ *     seconds=60 topology=mesh|line|contacts loss=0.1 bandwidth=20000 seed=0 \
+ *     fountain=false responseWindow=100 [capture=file]
+ * </pre>
+ *
+ * With {@code fountain}, content is sent as fountain symbols instead of
+ * Merkle nodes (see {@code ContentProtocol#setFountainCoding(boolean)}).
+ * {@code responseWindow} sets {@link ContentResponder#RESPONSE_WINDOW_MS};
+ * with {@code 0}, every holder answers each content request at once.
+ *
+ * With {@code capture}, the frames of the first node are appended to the file,
+ * for replay with {@code CaptureReplayBenchmark}.
+ *
+ * @author David R. Bild
+ */
+public class NetworkSimulatorBenchmark {
+
+	private static final long CONTENT_RETRY_MS = 2000;
+
+	private static final long CONTENT_CHECK_MS = 100;
+
+	private final Map<String, String> options;
+
+	private final Random random;
+
+	private final List<SimNode> nodes;
+
+	private final List<Me> users;
+
+	private final ConcurrentMap<Hash, Long> sentNanos;
+
+	private final List<Long> latenciesMs;
+
+	private final List<Long> contentLatenciesMs;
+
+	private SimMedium medium;
+
+	public static void main(String[] args) throws Exception {
+		Map<String, String> options = new HashMap<String, String>();
+		for (String arg : args) {
+			String[] kv = arg.split("=", 2);
+			if (kv.length != 2)
+				throw new IllegalArgumentException("Options must be key=value: " + arg);
+			options.put(kv[0], kv[1]);
+		}
+		new NetworkSimulatorBenchmark(options).run();
+	}
+
+	public NetworkSimulatorBenchmark(Map<String, String> options) {
+		this.options = options;
+		this.random = new Random(getLong("seed", 0));
+		this.nodes = new ArrayList<SimNode>();
+		this.users = new ArrayList<Me>();
+		this.sentNanos = new ConcurrentHashMap<Hash, Long>();
+		this.latenciesMs = Collections.synchronizedList(new ArrayList<Long>());
+		this.contentLatenciesMs = new ArrayList<Long>();
+	}
+
+	/**
+	 * Shortens the protocol timers by about a factor of thirty.
+	 */
+	public static void compressTime() {
+		TrickleNetworkProtocol.IMIN_MS = 1000;
+		TrickleNetworkProtocol.DOUBLINGS = 5;
+		SummaryNetworkProtocol.SUMMARY_PERIOD_MS = 2000;
+		SummaryNetworkProtocol.WINDOW_SLOT_MS = 10 * 1000;
+		SummaryNetworkProtocol.PUSH_HOLDOFF_MS = 1000;
+		RelayNetworkProtocol.ROUND_MS = 1000;
+		RelayNetworkProtocol.AGE_HALF_LIFE_MS = 2 * 60 * 1000;
+		NaiveNetworkProtocol.PERIOD = 60 * 1000;
+		RebroadcastQueue.BATCH_WINDOW_MS = 2000;
+	}
+
+	public void run() throws Exception {
+		compressTime();
+
+		final String protocol = getString("protocol", "naive");
+		final boolean relay = Boolean.parseBoolean(getString("relay", "false"));
+		boolean fountain = Boolean.parseBoolean(getString("fountain", "false"));
+		int numNodes = (int) getLong("nodes", 8);
+		int numShouts = (int) getLong("shouts", 40);
+		int numContents = (int) getLong("contents", 2);
+		int contentLen = (int) getLong("contentBytes", 8 * 1024);
+		ContentResponder.RESPONSE_WINDOW_MS = getLong("responseWindow",
+				ContentResponder.RESPONSE_WINDOW_MS);
+		long durationMs = 1000 * getLong("seconds", 60);
+
+		medium = new SimMedium(createGraph(getString("topology", "mesh"), numNodes),
+				Double.parseDouble(getString("loss", "0.1")), PacketProtocol.MAX_PACKET_LEN,
+				(int) getLong("bandwidth", 20000), random.nextLong());
+
+		SimNode.Listener listener = new SimNode.Listener() {
+			@Override
+			public void stored(SimNode node, Shout shout) {
+				Long sent = sentNanos.get(shout.getHash());
+				if (sent != null)
+					latenciesMs.add((System.nanoTime() - sent) / 1000000);
+			}
+		};
+		SimNode.ProtocolFactory factory = new SimNode.ProtocolFactory() {
+			@Override
+			public NetworkProtocol create(SimNode node, ReceivedShoutWriter writer) {
+				return createProtocol(protocol, relay, node, writer);
+			}
+		};
+		String capture = options.get("capture");
+		KeyGenerator keyGenerator = new KeyGenerator();
+		for (int i = 0; i < numNodes; ++i) {
+			FrameCaptureWriter writer = (i == 0 && capture != null) ? FrameCaptureWriter
+					.open(new File(capture)) : null;
+			SimNode node = new SimNode(medium, factory, listener, writer);
+			node.getContentProtocol().setFountainCoding(fountain);
+			nodes.add(node);
+			users.add(new TestMe("Node " + i, keyGenerator.generateKeyPair(),
+					TestFactory.TEST_AVATAR_1));
+		}
+
+		// Create the workload up front, so signing is not measured
+		List<Event> events = new ArrayList<Event>();
+		for (int i = 0; i < numShouts; ++i) {
+			int origin = random.nextInt(numNodes);
+			events.add(new Event((long) (random.nextDouble() * durationMs / 2), origin,
+					createShout(users.get(origin), "Shout " + i), null));
+		}
+		for (int i = 0; i < numContents; ++i) {
+			byte[] data = new byte[contentLen];
+			random.nextBytes(data);
+			int origin = random.nextInt(numNodes);
+			events.add(new Event((long) (random.nextDouble() * durationMs / 2), origin, null,
+					nodes.get(origin).publish(data)));
+		}
+		Collections.sort(events);
+
+		for (SimNode node : nodes)
+			node.start();
+		long cpuStart = totalCpuNanos();
+		long start = System.currentTimeMillis();
+
+		List<Event> published = new ArrayList<Event>();
+		Map<Event, Integer> contentDelivered = new HashMap<Event, Integer>();
+		long nextRetry = start;
+		long nextCheck = start;
+		int next = 0;
+		while (true) {
+			long now = System.currentTimeMillis();
+			if (now - start >= durationMs)
+				break;
+			while (next < events.size() && events.get(next).timeMs <= now - start) {
+				Event event = events.get(next++);
+				if (event.shout != null) {
+					sentNanos.put(event.shout.getHash(), System.nanoTime());
+					nodes.get(event.origin).send(event.shout);
+				} else {
+					event.publishedMs = now;
+					published.add(event);
+					contentDelivered.put(event, 0);
+				}
+			}
+			if (now >= nextRetry) {
+				for (Event event : published)
+					contentDelivered.put(event, requestContent(event, true));
+				nextRetry = now + CONTENT_RETRY_MS;
+				nextCheck = now + CONTENT_CHECK_MS;
+			} else if (now >= nextCheck) {
+				for (Event event : published)
+					contentDelivered.put(event, requestContent(event, false));
+				nextCheck = now + CONTENT_CHECK_MS;
+			}
+			Thread.sleep(10);
+		}
+
+		long cpuNanos = totalCpuNanos() - cpuStart;
+		for (Event event : published)
+			contentDelivered.put(event, requestContent(event, false));
+		for (SimNode node : nodes)
+			node.stop();
+
+		report(protocol + (relay ? "+relay" : "") + (fountain ? "+fountain" : ""), numNodes, numShouts, numContents,
+				contentDelivered, cpuNanos);
+	}
+
+	private NetworkProtocol createProtocol(String name, boolean relay, SimNode node,
+			ReceivedShoutWriter writer) {
+		NetworkProtocol protocol;
+		if ("naive".equals(name)) {
+			protocol = new NaiveNetworkProtocol(node.getShoutProtocol(), writer,
+					new RebroadcastQueue(new MemoryRebroadcastStore(node.getShoutIndex()),
+							node.getShoutProtocol(), new ExecutorTaskScheduler(),
+							NaiveNetworkProtocol.PERIOD));
+		} else if ("summary".equals(name)) {
+			SummaryNetworkProtocol summary = new SummaryNetworkProtocol(node.getShoutProtocol(),
+					node.getPacketProtocol(), node.getShoutIndex(), writer);
+			node.getShoutProtocol().addDuplicateListener(summary);
+			node.getPacketProtocol().register(ObjectType.HaveSummary, summary);
+			protocol = summary;
+		} else if ("trickle".equals(name)) {
+			TrickleNetworkProtocol trickle = new TrickleNetworkProtocol(node.getShoutProtocol(),
+					writer);
+			node.getShoutProtocol().addDuplicateListener(trickle);
+			node.getPacketProtocol().register(ObjectType.HaveSummary, trickle);
+			protocol = trickle;
+		} else {
+			throw new IllegalArgumentException("Unknown protocol: " + name);
+		}
+
+		if (relay) {
+			RelayNetworkProtocol relayProtocol = new RelayNetworkProtocol(protocol,
+					node.getShoutProtocol(), node.getShoutIndex());
+			node.getShoutProtocol().addDuplicateListener(relayProtocol);
+			protocol = relayProtocol;
+		}
+		return protocol;
+	}
+
+	private ContactGraph createGraph(String name, int numNodes) {
+		if ("mesh".equals(name))
+			return ContactGraph.fullMesh();
+		else if ("line".equals(name))
+			return ContactGraph.line();
+		else if ("contacts".equals(name))
+			return ContactGraph.randomContacts(Math.min(1.0, 3.0 / numNodes), 5000,
+					random.nextLong());
+		throw new IllegalArgumentException("Unknown topology: " + name);
+	}
+
+	/**
+	 * Records which nodes have completed content and, optionally, requests it
+	 * from those that still lack it.
+	 *
+	 * @param request whether to request the content
+	 * @return the number of other nodes that have the content
+	 */
+	private int requestContent(Event event, boolean request) {
+		long now = System.currentTimeMillis();
+		for (SimNode node : nodes) {
+			if (node.getId() == event.origin || event.completed.contains(node.getId()))
+				continue;
+			if (node.hasContent(event.content)) {
+				event.completed.add(node.getId());
+				contentLatenciesMs.add(now - event.publishedMs);
+			} else if (request) {
+				node.fetch(event.content);
+			}
+		}
+		return event.completed.size();
+	}
+
+	private void report(String protocol, int numNodes, int numShouts, int numContents,
+			Map<Event, Integer> contentDelivered, long cpuNanos) {
+		List<Long> latencies = new ArrayList<Long>(latenciesMs);
+		Collections.sort(latencies);
+		int delivered = latencies.size();
+		int expected = numShouts * (numNodes - 1);
+		int contents = 0;
+		for (int count : contentDelivered.values())
+			contents += count;
+
+		System.out.println(String.format("protocol=%s nodes=%d %s", protocol, numNodes, medium));
+		System.out.println(String.format("shouts    %d/%d delivered (%.1f%%)", delivered,
+				expected, 100.0 * delivered / expected));
+		System.out.println(String.format("latency   p50=%d ms p90=%d ms p99=%d ms max=%d ms",
+				percentile(latencies, 0.5), percentile(latencies, 0.9),
+				percentile(latencies, 0.99), percentile(latencies, 1.0)));
+		List<Long> contentLatencies = new ArrayList<Long>(contentLatenciesMs);
+		Collections.sort(contentLatencies);
+		System.out.println(String.format("content   %d/%d delivered, p50=%d ms max=%d ms",
+				contents, numContents * (numNodes - 1), percentile(contentLatencies, 0.5),
+				percentile(contentLatencies, 1.0)));
+		System.out.println(String.format("retrieval %s", nodes.get(nodes.size() - 1)
+				.getRetriever()));
+		long requested = 0;
+		long responded = 0;
+		long suppressed = 0;
+		for (SimNode node : nodes) {
+			requested += node.getRetriever().getRequestCount();
+			responded += node.getResponder().getRespondedCount();
+			suppressed += node.getResponder().getSuppressedCount();
+		}
+		System.out.println(String.format(
+				"responses %d for %d requested hashes (%.2f per request), %d suppressed",
+				responded, requested, (double) responded / Math.max(1, requested), suppressed));
+		System.out.println(String.format("on air    %d frames, %d bytes, %.0f bytes/delivered shout",
+				medium.getFramesSent(), medium.getBytesSent(), (double) medium.getBytesSent()
+						/ Math.max(1, delivered)));
+		System.out.println(String.format(
+				"by type   shouts %d bytes, summaries %d bytes, requests %d bytes, responses %d bytes",
+				medium.getBytesSent(ObjectType.Shout), medium.getBytesSent(ObjectType.HaveSummary),
+				medium.getBytesSent(ObjectType.ContentRequest),
+				medium.getBytesSent(ObjectType.ContentDescriptor)
+						+ medium.getBytesSent(ObjectType.MerkleNode)
+						+ medium.getBytesSent(ObjectType.FountainSymbol)));
+		System.out.println(String.format("          %d shout objects, %.0f shout bytes/delivered shout",
+				medium.getObjectsSent(ObjectType.Shout), (double) medium.getBytesSent(ObjectType.Shout)
+						/ Math.max(1, delivered)));
+		System.out.println(String.format("cpu       %.0f ms, %.2f ms/delivered shout",
+				cpuNanos / 1e6, cpuNanos / 1e6 / Math.max(1, delivered)));
+	}
+
+	private static long percentile(List<Long> sorted, double p) {
+		if (sorted.isEmpty())
+			return -1;
+		int index = (int) Math.ceil(p * sorted.size()) - 1;
+		return sorted.get(Math.max(0, index));
+	}
+
+	private static long totalCpuNanos() {
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		long total = 0;
+		for (long id : threads.getAllThreadIds()) {
+			long nanos = threads.getThreadCpuTime(id);
+			if (nanos > 0)
+				total += nanos;
+		}
+		return total;
+	}
+
+	private static Shout createShout(Me me, String message) {
+		return SignatureUtility.signShout(new TestUnsignedShout(me, null, message, null,
+				new DateTime()), me);
+	}
+
+	private String getString(String key, String defaultValue) {
+		String value = options.get(key);
+		return (value == null) ? defaultValue : value;
+	}
+
+	private long getLong(String key, long defaultValue) {
+		String value = options.get(key);
+		return (value == null) ? defaultValue : Long.parseLong(value);
+	}
+
+	private static class Event implements Comparable<Event> {
+		final long timeMs;
+		final int origin;
+		final Shout shout;
+		final Hash content;
+		final Set<Integer> completed = new HashSet<Integer>();
+		long publishedMs;
+
+		Event(long timeMs, int origin, Shout shout, Hash content) {
+			this.timeMs = timeMs;
+			this.origin = origin;
+			this.shout = shout;
+			this.content = content;
+		}
+
+		@Override
+		public int compareTo(Event other) {
+			return (timeMs < other.timeMs) ? -1 : ((timeMs == other.timeMs) ? 0 : 1);
+		}
+	}
+
+}
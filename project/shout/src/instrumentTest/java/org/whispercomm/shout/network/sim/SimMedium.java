@@ -0,0 +1,270 @@
+package org.whispercomm.shout.network.sim;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.whispercomm.manes.client.maclib.ManesFrameTooLargeException;
+import org.whispercomm.manes.client.maclib.ManesNotRegisteredException;
+import org.whispercomm.shout.network.FrameLink;
+import org.whispercomm.shout.network.ObjectType;
+import org.whispercomm.shout.network.PacketProtocol;
+
+/**
+ * An in-process broadcast medium connecting simulated nodes, standing in for
+ * MANES.
+ * <p>
+ * Each node attaches a {@link Link}. A frame sent on a link is delivered to
+ * every other link that the {@link ContactGraph} connects to the sender at
+ * the time of sending, except that each delivery is independently lost with
+ * the configured probability. The medium is shared: a frame occupies it for
+ * its length divided by the bandwidth, and the sender blocks until its frame
+ * has been transmitted, as on a radio. Frames arriving at a link whose
+ * receive queue is full are dropped.
+ * <p>
+ * Sent frames are parsed as Shout packets, to count the bytes sent of each
+ * {@link ObjectType}.
+ * <p>
+ * This class is thread-safe.
+ *
+ * @author David R. Bild
+ */
+public class SimMedium {
+
+	/**
+	 * Number of received frames each link buffers
+	 */
+	public static final int RECEIVE_QUEUE_DEPTH = 64;
+
+	private final ContactGraph graph;
+
+	private final double lossRate;
+
+	private final int mtu;
+
+	private final int bytesPerSecond;
+
+	private final Random random;
+
+	private final List<Link> links;
+
+	private final long startNanos;
+
+	/**
+	 * Time at which the medium is next idle, in nanoseconds
+	 */
+	private long idleAtNanos;
+
+	private long framesSent;
+	private long bytesSent;
+	private long framesDelivered;
+	private long framesLost;
+	private long framesOverflowed;
+
+	/**
+	 * Bytes and counts of sent objects, including their headers, indexed by
+	 * type id
+	 */
+	private final long[] objectBytesSent = new long[ObjectType.MAX_TYPE_ID + 1];
+	private final long[] objectsSent = new long[ObjectType.MAX_TYPE_ID + 1];
+
+	/**
+	 * @param graph the graph deciding which nodes are in range
+	 * @param lossRate the probability that a frame is lost on the way to
+	 *            each receiver
+	 * @param mtu the largest frame that can be sent, in bytes
+	 * @param bytesPerSecond the bandwidth of the medium, or zero for
+	 *            unlimited
+	 * @param seed the seed for frame losses
+	 */
+	public SimMedium(ContactGraph graph, double lossRate, int mtu, int bytesPerSecond, long seed) {
+		this.graph = graph;
+		this.lossRate = lossRate;
+		this.mtu = mtu;
+		this.bytesPerSecond = bytesPerSecond;
+		this.random = new Random(seed);
+		this.links = new CopyOnWriteArrayList<Link>();
+		this.startNanos = System.nanoTime();
+		this.idleAtNanos = startNanos;
+	}
+
+	/**
+	 * Attaches a new node to the medium.
+	 *
+	 * @return the link of the node
+	 */
+	public synchronized Link attach() {
+		Link link = new Link(links.size());
+		links.add(link);
+		return link;
+	}
+
+	/**
+	 * @return the time since the medium was created, in milliseconds
+	 */
+	public long elapsedMs() {
+		return (System.nanoTime() - startNanos) / 1000000;
+	}
+
+	public synchronized long getFramesSent() {
+		return framesSent;
+	}
+
+	/**
+	 * @return the bytes sent, each frame counted once however many nodes
+	 *         received it
+	 */
+	public synchronized long getBytesSent() {
+		return bytesSent;
+	}
+
+	/**
+	 * @param type the object type
+	 * @return the bytes of sent objects of the type, including their object
+	 *         headers
+	 */
+	public synchronized long getBytesSent(ObjectType type) {
+		return objectBytesSent[type.getId()];
+	}
+
+	/**
+	 * @param type the object type
+	 * @return the number of sent objects of the type
+	 */
+	public synchronized long getObjectsSent(ObjectType type) {
+		return objectsSent[type.getId()];
+	}
+
+	public synchronized long getFramesDelivered() {
+		return framesDelivered;
+	}
+
+	public synchronized long getFramesLost() {
+		return framesLost;
+	}
+
+	public synchronized long getFramesOverflowed() {
+		return framesOverflowed;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format(
+				"SimMedium[graph=%s, loss=%.2f, framesSent=%d, bytesSent=%d, framesDelivered=%d, framesLost=%d, framesOverflowed=%d]",
+				graph, lossRate, framesSent, bytesSent, framesDelivered, framesLost,
+				framesOverflowed);
+	}
+
+	private void transmit(Link sender, byte[] frame) throws InterruptedException {
+		long doneNanos;
+		synchronized (this) {
+			long now = System.nanoTime();
+			long start = Math.max(now, idleAtNanos);
+			doneNanos = start;
+			if (bytesPerSecond > 0)
+				doneNanos += frame.length * 1000000000L / bytesPerSecond;
+			idleAtNanos = doneNanos;
+			framesSent++;
+			bytesSent += frame.length;
+			countObjects(frame);
+		}
+
+		// Hold the sender until its frame is off the air
+		long waitNanos = doneNanos - System.nanoTime();
+		if (waitNanos > 0)
+			TimeUnit.NANOSECONDS.sleep(waitNanos);
+
+		long elapsedMs = elapsedMs();
+		for (Link receiver : links) {
+			if (receiver == sender || !graph.connected(sender.id, receiver.id, elapsedMs))
+				continue;
+			synchronized (this) {
+				if (random.nextDouble() < lossRate) {
+					framesLost++;
+					continue;
+				}
+			}
+			boolean queued = receiver.queue.offer(frame.clone());
+			synchronized (this) {
+				if (queued)
+					framesDelivered++;
+				else
+					framesOverflowed++;
+			}
+		}
+	}
+
+	/**
+	 * Adds the objects of a packet to the per-type counts, stopping at the
+	 * first malformed object.
+	 */
+	private void countObjects(byte[] frame) {
+		if (frame.length == 0)
+			return;
+		ByteBuffer buffer = ByteBuffer.wrap(frame);
+		buffer.position(1); // Packet flags
+		while (buffer.remaining() >= PacketProtocol.OBJECT_HEADER_LEN) {
+			int id = 0xFF & buffer.get(buffer.position());
+			int length = PacketProtocol.OBJECT_HEADER_LEN
+					+ (0xFFFF & buffer.getShort(buffer.position() + 1));
+			if (id > ObjectType.MAX_TYPE_ID || length > buffer.remaining())
+				return;
+			objectBytesSent[id] += length;
+			objectsSent[id]++;
+			buffer.position(buffer.position() + length);
+		}
+	}
+
+	/**
+	 * The attachment of one node to the medium.
+	 */
+	public class Link implements FrameLink {
+
+		private final int id;
+
+		private final BlockingQueue<byte[]> queue;
+
+		private Link(int id) {
+			this.id = id;
+			this.queue = new ArrayBlockingQueue<byte[]>(RECEIVE_QUEUE_DEPTH);
+		}
+
+		/**
+		 * @return the index of the node in the contact graph
+		 */
+		public int getId() {
+			return id;
+		}
+
+		@Override
+		public boolean send(byte[] frame) throws ManesNotRegisteredException,
+				ManesFrameTooLargeException {
+			if (frame.length > mtu)
+				throw new ManesFrameTooLargeException(String.format(
+						"Frame of %d bytes exceeds MTU of %d bytes.", frame.length, mtu));
+			try {
+				transmit(this, frame);
+				return true;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+
+		@Override
+		public byte[] receive(long timeoutMs) {
+			try {
+				return queue.poll(timeoutMs, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return null;
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,98 @@
+package org.whispercomm.shout.network.sim;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+import org.whispercomm.manes.client.maclib.ManesFrameTooLargeException;
+import org.whispercomm.shout.network.FrameLink;
+import org.whispercomm.shout.network.ObjectType;
+
+public class SimMediumTest {
+
+	private static final byte[] FRAME = new byte[] { 1, 2, 3 };
+
+	@Test
+	public void testBroadcastReachesNeighbors() throws Exception {
+		SimMedium medium = new SimMedium(ContactGraph.fullMesh(), 0.0, 100, 0, 0);
+		FrameLink a = medium.attach();
+		FrameLink b = medium.attach();
+		FrameLink c = medium.attach();
+
+		assertTrue(a.send(FRAME));
+		assertArrayEquals(FRAME, b.receive(100));
+		assertArrayEquals(FRAME, c.receive(100));
+		assertNull(a.receive(10));
+		assertEquals(1, medium.getFramesSent());
+		assertEquals(FRAME.length, medium.getBytesSent());
+		assertEquals(2, medium.getFramesDelivered());
+	}
+
+	@Test
+	public void testCountsBytesByObjectType() throws Exception {
+		SimMedium medium = new SimMedium(ContactGraph.fullMesh(), 0.0, 100, 0, 0);
+		FrameLink a = medium.attach();
+
+		// Flags, then a shout of two bytes and a summary of one
+		a.send(new byte[] { 0, 0x00, 0, 2, 7, 7, 0x04, 0, 1, 7 });
+		assertEquals(5, medium.getBytesSent(ObjectType.Shout));
+		assertEquals(1, medium.getObjectsSent(ObjectType.Shout));
+		assertEquals(4, medium.getBytesSent(ObjectType.HaveSummary));
+		assertEquals(0, medium.getBytesSent(ObjectType.ContentRequest));
+	}
+
+	@Test
+	public void testLineReachesOnlyAdjacent() throws Exception {
+		SimMedium medium = new SimMedium(ContactGraph.line(), 0.0, 100, 0, 0);
+		FrameLink a = medium.attach();
+		FrameLink b = medium.attach();
+		FrameLink c = medium.attach();
+
+		a.send(FRAME);
+		assertNotNull(b.receive(100));
+		assertNull(c.receive(10));
+	}
+
+	@Test
+	public void testLossDropsFrames() throws Exception {
+		SimMedium medium = new SimMedium(ContactGraph.fullMesh(), 1.0, 100, 0, 0);
+		FrameLink a = medium.attach();
+		FrameLink b = medium.attach();
+
+		a.send(FRAME);
+		assertNull(b.receive(10));
+		assertEquals(1, medium.getFramesLost());
+	}
+
+	@Test
+	public void testBandwidthDelaysSender() throws Exception {
+		SimMedium medium = new SimMedium(ContactGraph.fullMesh(), 0.0, 1000, 10000, 0);
+		FrameLink a = medium.attach();
+		medium.attach();
+
+		long start = System.nanoTime();
+		a.send(new byte[500]);
+		a.send(new byte[500]);
+		assertTrue(System.nanoTime() - start >= 90 * 1000000L);
+	}
+
+	@Test(expected = ManesFrameTooLargeException.class)
+	public void testFrameLargerThanMtuThrows() throws Exception {
+		SimMedium medium = new SimMedium(ContactGraph.fullMesh(), 0.0, 2, 0, 0);
+		medium.attach().send(FRAME);
+	}
+
+	@Test
+	public void testRandomContactsSymmetricAndStable() {
+		ContactGraph graph = ContactGraph.randomContacts(0.5, 1000, 42);
+		int connected = 0;
+		for (int a = 0; a < 10; ++a) {
+			for (int b = 0; b < 10; ++b) {
+				assertEquals(graph.connected(a, b, 0), graph.connected(b, a, 999));
+				if (graph.connected(a, b, 0))
+					connected++;
+			}
+		}
+		assertTrue(connected > 20 && connected < 80);
+	}
+
+}
@@ -0,0 +1,296 @@
+package org.whispercomm.shout.network.sim;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import org.whispercomm.manes.client.maclib.ManesNotRegisteredException;
+import org.whispercomm.shout.Hash;
+import org.whispercomm.shout.MimeType;
+import org.whispercomm.shout.Shout;
+import org.whispercomm.shout.content.ContentManager;
+import org.whispercomm.shout.content.descriptor.ContentDescriptor;
+import org.whispercomm.shout.content.merkle.MerkleNode;
+import org.whispercomm.shout.content.request.ContentRequest;
+import org.whispercomm.shout.content.request.ContentRequestSerializer;
+import org.whispercomm.shout.content.storage.MemoryObjectStorage;
+import org.whispercomm.shout.errors.NotFoundException;
+import org.whispercomm.shout.network.FrameLink;
+import org.whispercomm.shout.network.NetworkReceiver;
+import org.whispercomm.shout.network.ObjectType;
+import org.whispercomm.shout.network.PacketProtocol;
+import org.whispercomm.shout.network.PipelineStage;
+import org.whispercomm.shout.network.TrafficClass;
+import org.whispercomm.shout.network.capture.CapturingFrameLink;
+import org.whispercomm.shout.network.capture.FrameCaptureWriter;
+import org.whispercomm.shout.network.content.ContentProtocol;
+import org.whispercomm.shout.network.content.ContentRequestHandler;
+import org.whispercomm.shout.network.content.ContentResponder;
+import org.whispercomm.shout.network.content.ContentRetriever;
+import org.whispercomm.shout.network.shout.DuplicateFilter;
+import org.whispercomm.shout.network.shout.NetworkProtocol;
+import org.whispercomm.shout.network.shout.PendingAncestorTable;
+import org.whispercomm.shout.network.shout.ReceivedShoutWriter;
+import org.whispercomm.shout.network.shout.ShoutChainTooLongException;
+import org.whispercomm.shout.network.shout.ShoutProtocol;
+
+/**
+ * A simulated device running the real Shout network stack (as assembled by
+ * {@code NetworkService}) over a {@link SimMedium}, with in-memory shout and
+ * content storage in place of the content provider and file system.
+ *
+ * @author David R. Bild
+ */
+public class SimNode {
+
+	/**
+	 * Creates the network protocol of a node, such as
+	 * {@code TrickleNetworkProtocol}.
+	 */
+	public interface ProtocolFactory {
+		/**
+		 * @param node the node, whose lower protocols are already created
+		 * @param writer the writer that stores received shouts on the node
+		 * @return the network protocol
+		 */
+		public NetworkProtocol create(SimNode node, ReceivedShoutWriter writer);
+	}
+
+	/**
+	 * Notified as each node stores received shouts it did not have.
+	 */
+	public interface Listener {
+		public void stored(SimNode node, Shout shout);
+	}
+
+	private final SimMedium.Link link;
+
+	private final CapturingFrameLink captureLink;
+
+	private final NetworkReceiver networkReceiver;
+
+	private final PacketProtocol packetProtocol;
+
+	private final ShoutProtocol shoutProtocol;
+
+	private final ContentManager contentManager;
+
+	private final ContentProtocol contentProtocol;
+
+	private final MemoryShoutIndex shoutIndex;
+
+	private final NetworkProtocol networkProtocol;
+
+	private final ScheduledExecutorService contentExecutor;
+
+	private final ScheduledExecutorService retrieverExecutor;
+
+	private final ContentResponder responder;
+
+	private final ContentRetriever retriever;
+
+	private final Listener listener;
+
+	public SimNode(SimMedium medium, ProtocolFactory factory, Listener listener) {
+		this(medium, factory, listener, null);
+	}
+
+	/**
+	 * @param medium the medium to which to attach
+	 * @param factory creates the network protocol
+	 * @param listener notified of stored shouts
+	 * @param capture records the frames of the node, or {@code null}
+	 */
+	public SimNode(SimMedium medium, ProtocolFactory factory, Listener listener,
+			FrameCaptureWriter capture) {
+		this.link = medium.attach();
+		this.captureLink = (capture == null) ? null : new CapturingFrameLink(link, capture);
+		this.listener = listener;
+
+		FrameLink stackLink = (captureLink == null) ? link : captureLink;
+		this.networkReceiver = new NetworkReceiver(stackLink);
+		this.packetProtocol = new PacketProtocol(stackLink);
+		networkReceiver.register(packetProtocol);
+
+		this.shoutIndex = new MemoryShoutIndex();
+		this.shoutProtocol = new ShoutProtocol(packetProtocol, new DuplicateFilter(shoutIndex),
+				new PendingAncestorTable(shoutIndex));
+		packetProtocol.register(ObjectType.Shout, shoutProtocol);
+
+		this.contentManager = new ContentManager(new MemoryObjectStorage());
+		this.contentProtocol = new ContentProtocol(packetProtocol, contentManager);
+		this.contentExecutor = Executors.newSingleThreadScheduledExecutor();
+		this.retrieverExecutor = Executors.newSingleThreadScheduledExecutor();
+		this.responder = new ContentResponder(contentProtocol, packetProtocol,
+				contentManager.getObjectStorage(), contentExecutor);
+		this.retriever = new ContentRetriever(packetProtocol, contentManager, retrieverExecutor);
+		contentProtocol.setContentRequestHandler(new RequestHandler());
+		packetProtocol.register(ObjectType.ContentDescriptor, contentProtocol);
+		packetProtocol.register(ObjectType.MerkleNode, contentProtocol);
+		packetProtocol.register(ObjectType.ContentRequest, contentProtocol);
+		packetProtocol.register(ObjectType.FountainSymbol, contentProtocol);
+
+		this.networkProtocol = factory.create(this, new ReceivedShoutWriter(
+				new PipelineStage.Handler<Shout>() {
+					@Override
+					public void process(List<Shout> shouts) {
+						for (Shout shout : shouts) {
+							if (shoutIndex.put(shout))
+								SimNode.this.listener.stored(SimNode.this, shout);
+						}
+					}
+				}));
+		shoutProtocol.register(networkProtocol);
+	}
+
+	public void start() {
+		packetProtocol.initialize();
+		networkReceiver.initialize();
+		networkProtocol.initialize();
+	}
+
+	public void stop() {
+		networkReceiver.cleanup();
+		networkProtocol.cleanup();
+		retriever.clear();
+		retrieverExecutor.shutdownNow();
+		responder.clear();
+		contentExecutor.shutdownNow();
+		packetProtocol.cleanup();
+		if (captureLink != null)
+			captureLink.close();
+	}
+
+	/**
+	 * Stores and sends a shout originated by this node.
+	 *
+	 * @param shout the shout to send
+	 */
+	public void send(Shout shout) throws ShoutChainTooLongException,
+			ManesNotRegisteredException {
+		shoutIndex.put(shout);
+		networkProtocol.sendShout(shout);
+	}
+
+	/**
+	 * Stores content, such as an avatar, originated by this node.
+	 *
+	 * @param data the content
+	 * @return the hash of the content descriptor, by which others request it
+	 */
+	public Hash publish(byte[] data) throws IOException {
+		return contentManager.store(data, MimeType.JPEG);
+	}
+
+	/**
+	 * Broadcasts a request for content.
+	 *
+	 * @param hash the hash of the content descriptor
+	 */
+	public void request(Hash hash) {
+		ByteBuffer buffer = PacketProtocol.createPacket();
+		ContentRequestSerializer.serialize(buffer, new ContentRequest(hash));
+		packetProtocol.sendCoalesced(buffer, TrafficClass.ContentRequest);
+		PacketProtocol.releasePacket(buffer);
+	}
+
+	/**
+	 * Retrieves the missing parts of content, as the app does when displaying
+	 * it. See {@link ContentRetriever}.
+	 *
+	 * @param hash the hash of the content descriptor
+	 */
+	public void fetch(Hash hash) {
+		retriever.fetch(hash);
+	}
+
+	/**
+	 * @param hash the hash of the content descriptor
+	 * @return {@code true} if the content is stored completely
+	 */
+	public boolean hasContent(Hash hash) {
+		try {
+			contentManager.retrieve(hash);
+			return true;
+		} catch (NotFoundException e) {
+			return false;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * @return the index of the node in the contact graph
+	 */
+	public int getId() {
+		return link.getId();
+	}
+
+	public PacketProtocol getPacketProtocol() {
+		return packetProtocol;
+	}
+
+	public ShoutProtocol getShoutProtocol() {
+		return shoutProtocol;
+	}
+
+	public MemoryShoutIndex getShoutIndex() {
+		return shoutIndex;
+	}
+
+	public ContentManager getContentManager() {
+		return contentManager;
+	}
+
+	public ContentRetriever getRetriever() {
+		return retriever;
+	}
+
+	public ContentResponder getResponder() {
+		return responder;
+	}
+
+	public ContentProtocol getContentProtocol() {
+		return contentProtocol;
+	}
+
+	public NetworkProtocol getNetworkProtocol() {
+		return networkProtocol;
+	}
+
+	/**
+	 * Passes content requests to the responder and received objects to the
+	 * responder and retriever, as {@code SimpleContentRequestHandler} does.
+	 */
+	private class RequestHandler implements ContentRequestHandler {
+
+		@Override
+		public void request(Hash hash) {
+			SimNode.this.request(hash);
+		}
+
+		@Override
+		public void receiveRequest(ContentRequest request) {
+			responder.request(request);
+		}
+
+		@Override
+		public void receiveContentDescriptor(ContentDescriptor descriptor) {
+			received(descriptor.getHash());
+		}
+
+		@Override
+		public void receiveMerkleNode(MerkleNode node) {
+			received(node.getHash());
+		}
+
+		private void received(Hash hash) {
+			responder.overheard(hash);
+			retriever.received(hash);
+		}
+
+	}
+
+}
@@ -0,0 +1,100 @@
+package org.whispercomm.shout.network.sim;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.joda.time.DateTime;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.whispercomm.shout.Hash;
+import org.whispercomm.shout.Shout;
+import org.whispercomm.shout.id.SignatureUtility;
+import org.whispercomm.shout.network.PacketProtocol;
+import org.whispercomm.shout.network.shout.NetworkProtocol;
+import org.whispercomm.shout.network.shout.ReceivedShoutWriter;
+import org.whispercomm.shout.network.shout.TrickleNetworkProtocol;
+import org.whispercomm.shout.test.ShoutTestRunner;
+import org.whispercomm.shout.test.util.TestFactory;
+import org.whispercomm.shout.test.util.TestUnsignedShout;
+
+@RunWith(ShoutTestRunner.class)
+public class SimNodeTest {
+
+	private SimNode sender;
+
+	private SimNode receiver;
+
+	private CountDownLatch received;
+
+	private Shout shout;
+
+	@Before
+	public void setup() {
+		SimMedium medium = new SimMedium(ContactGraph.fullMesh(), 0.0,
+				PacketProtocol.MAX_PACKET_LEN, 0, 0);
+		SimNode.ProtocolFactory factory = new SimNode.ProtocolFactory() {
+			@Override
+			public NetworkProtocol create(SimNode node, ReceivedShoutWriter writer) {
+				return new TrickleNetworkProtocol(node.getShoutProtocol(), writer);
+			}
+		};
+		shout = SignatureUtility.signShout(new TestUnsignedShout(TestFactory.TEST_ME_1, null,
+				"Simulated", null, new DateTime()), TestFactory.TEST_ME_1);
+		received = new CountDownLatch(1);
+		SimNode.Listener listener = new SimNode.Listener() {
+			@Override
+			public void stored(SimNode node, Shout s) {
+				if (node == receiver && s.getHash().equals(shout.getHash()))
+					received.countDown();
+			}
+		};
+		sender = new SimNode(medium, factory, listener);
+		receiver = new SimNode(medium, factory, listener);
+		sender.start();
+		receiver.start();
+	}
+
+	@After
+	public void teardown() {
+		sender.stop();
+		receiver.stop();
+	}
+
+	@Test
+	public void testShoutDelivered() throws Exception {
+		sender.send(shout);
+		assertTrue(received.await(5, TimeUnit.SECONDS));
+		assertTrue(receiver.getShoutIndex().contains(shout.getHash()));
+	}
+
+	@Test
+	public void testContentDelivered() throws Exception {
+		byte[] data = TestFactory.genByteArray(4096);
+		Hash hash = sender.publish(data);
+		receiver.request(hash);
+		for (int i = 0; i < 50 && !receiver.hasContent(hash); ++i)
+			Thread.sleep(100);
+		assertTrue(receiver.hasContent(hash));
+		assertArrayEquals(data, receiver.getContentManager().retrieve(hash).getData());
+	}
+
+	@Test
+	public void testFountainContentDelivered() throws Exception {
+		sender.getContentProtocol().setFountainCoding(true);
+		byte[] data = TestFactory.genByteArray(20000);
+		Hash hash = sender.publish(data);
+		receiver.fetch(hash);
+		for (int i = 0; i < 50 && !receiver.hasContent(hash); ++i) {
+			Thread.sleep(100);
+			if (i % 10 == 9)
+				receiver.fetch(hash);
+		}
+		assertTrue(receiver.hasContent(hash));
+		assertArrayEquals(data, receiver.getContentManager().retrieve(hash).getData());
+	}
+
+}
@@ -1,12 +1,17 @@
 
 package org.whispercomm.shout.provider;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
 
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.whispercomm.shout.Hash;
 import org.whispercomm.shout.LocalShout;
 import org.whispercomm.shout.LocalUser;
 import org.whispercomm.shout.Shout;
@@ -117,4 +122,25 @@ public class ShoutProviderContractTest {
 		LocalShout search = ShoutProviderContract.retrieveShoutByHash(context, testShout.getHash());
 		TestUtility.testEqualShoutFields(testShout, search);
 	}
+
+	@Test
+	public void testClaimDueRebroadcasts() {
+		ShoutProviderContract.saveShout(context, testShout);
+		long now = System.currentTimeMillis();
+		ShoutProviderContract.scheduleRebroadcasts(context, testShout.getHash(), now, 2);
+		assertEquals(now, ShoutProviderContract.retrieveNextRebroadcastTime(context));
+
+		List<Hash> due = ShoutProviderContract.claimDueRebroadcasts(context, now, 1000);
+		assertEquals(1, due.size());
+		assertEquals(testShout.getHash(), due.get(0));
+		assertTrue(ShoutProviderContract.retrieveNextRebroadcastTime(context) > now);
+
+		// Not due again until a period later
+		assertTrue(ShoutProviderContract.claimDueRebroadcasts(context, now, 1000).isEmpty());
+
+		// The last rebroadcast removes the shout from the schedule
+		due = ShoutProviderContract.claimDueRebroadcasts(context, now + 2000, 1000);
+		assertEquals(1, due.size());
+		assertEquals(-1, ShoutProviderContract.retrieveNextRebroadcastTime(context));
+	}
 }
@@ -6,8 +6,8 @@ import java.nio.ByteBuffer;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
-import org.whispercomm.manes.client.maclib.ManesInterface;
 import org.whispercomm.shout.Shout;
+import org.whispercomm.shout.network.FrameLink;
 import org.whispercomm.shout.network.ObjectProtocol;
 import org.whispercomm.shout.network.ObjectType;
 import org.whispercomm.shout.network.PacketProtocol;
@@ -23,14 +23,14 @@ public class ShoutPacketTest implements ObjectProtocol {
 
 	private PacketProtocol packetProtocol;
 
-	private ManesInterface manesInterface;
+	private FrameLink link;
 
 	private Shout received;
 
 	@Before
 	public void setup() {
-		manesInterface = null; // not used
-		packetProtocol = new PacketProtocol(manesInterface);
+		link = null; // not used
+		packetProtocol = new PacketProtocol(link);
 		packetProtocol.register(ObjectType.Shout, this);
 	}
 
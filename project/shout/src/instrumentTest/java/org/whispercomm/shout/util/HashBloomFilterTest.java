@@ -0,0 +1,55 @@
+package org.whispercomm.shout.util;
+
+import static org.junit.Assert.*;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.whispercomm.shout.Hash;
+
+public class HashBloomFilterTest {
+
+	private static final int NUM_KEYS = 1000;
+
+	private HashBloomFilter filter;
+
+	@Before
+	public void setup() {
+		filter = new HashBloomFilter(NUM_KEYS, 0.01);
+	}
+
+	private static Hash key(int i) {
+		return Hash.hashData(Integer.toString(i).getBytes());
+	}
+
+	@Test
+	public void testNoFalseNegatives() {
+		for (int i = 0; i < NUM_KEYS; ++i)
+			filter.add(key(i));
+		for (int i = 0; i < NUM_KEYS; ++i)
+			assertTrue(filter.mightContain(key(i)));
+		assertEquals(NUM_KEYS, filter.count());
+	}
+
+	@Test
+	public void testFalsePositiveRate() {
+		for (int i = 0; i < NUM_KEYS; ++i)
+			filter.add(key(i));
+		int probes = 10 * NUM_KEYS;
+		int falsePositives = 0;
+		for (int i = NUM_KEYS; i < NUM_KEYS + probes; ++i) {
+			if (filter.mightContain(key(i)))
+				falsePositives++;
+		}
+		// Target is 1%; allow generous slack
+		assertTrue(falsePositives < probes / 50);
+	}
+
+	@Test
+	public void testClear() {
+		filter.add(key(0));
+		filter.clear();
+		assertFalse(filter.mightContain(key(0)));
+		assertEquals(0, filter.count());
+	}
+
+}
@@ -0,0 +1,137 @@
+package org.whispercomm.shout.util;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+import org.whispercomm.shout.Hash;
+
+/**
+ * Measures the time per membership check of {@link HashIndex}, a
+ * {@code HashMap<Hash, Long>} and a {@code File.exists} call on the
+ * file-per-object layout, along with the memory retained by each map, for
+ * an equal mix of present and absent keys.
+ * <p>
+ * Run as a plain Java program on the desktop JVM:
+ *
+ * <pre>
+ * java org.whispercomm.shout.util.HashIndexBenchmark [keys]
+ * </pre>
+ *
+ * @author David R. Bild
+ */
+public class HashIndexBenchmark {
+
+	private static final int ROUNDS = 5;
+
+	private static final int FILE_KEYS = 2000;
+
+	public static void main(String[] args) throws Exception {
+		int keys = (args.length > 0) ? Integer.parseInt(args[0]) : 100000;
+
+		Hash[] present = new Hash[keys];
+		Hash[] absent = new Hash[keys];
+		for (int i = 0; i < keys; ++i) {
+			present[i] = Hash.hashData(Integer.toString(i).getBytes());
+			absent[i] = Hash.hashData(Integer.toString(-1 - i).getBytes());
+		}
+
+		long before = usedMemory();
+		HashIndex index = new HashIndex();
+		for (int i = 0; i < keys; ++i)
+			index.put(present[i], i);
+		long indexBytes = usedMemory() - before;
+
+		before = usedMemory();
+		Map<Hash, Long> map = new HashMap<Hash, Long>();
+		// Copies, as the map retains its keys while the index does not
+		for (int i = 0; i < keys; ++i)
+			map.put(new Hash(present[i].toByteArray().clone()), (long) i);
+		long mapBytes = usedMemory() - before;
+
+		double indexNs = 0;
+		double mapNs = 0;
+		for (int round = 0; round < ROUNDS; ++round) {
+			indexNs = timeIndex(index, present, absent);
+			mapNs = timeMap(map, present, absent);
+		}
+		report("HashIndex", indexNs, indexBytes, keys);
+		report("HashMap<Hash, Long>", mapNs, mapBytes, keys);
+
+		File root = new File(System.getProperty("java.io.tmpdir"), "hash-index-benchmark");
+		FileUtils.deleteQuietly(root);
+		int fileKeys = Math.min(keys, FILE_KEYS);
+		for (int i = 0; i < fileKeys; ++i)
+			FileUtils.touch(file(root, present[i]));
+		double fileNs = 0;
+		for (int round = 0; round < ROUNDS; ++round)
+			fileNs = timeFiles(root, present, absent, fileKeys);
+		report("File.exists", fileNs, 0, fileKeys);
+		FileUtils.deleteQuietly(root);
+	}
+
+	private static double timeIndex(HashIndex index, Hash[] present, Hash[] absent) {
+		int found = 0;
+		long start = System.nanoTime();
+		for (int i = 0; i < present.length; ++i) {
+			if (index.contains(present[i]))
+				found++;
+			if (index.contains(absent[i]))
+				found++;
+		}
+		return check(start, found, present.length);
+	}
+
+	private static double timeMap(Map<Hash, Long> map, Hash[] present, Hash[] absent) {
+		int found = 0;
+		long start = System.nanoTime();
+		for (int i = 0; i < present.length; ++i) {
+			if (map.containsKey(present[i]))
+				found++;
+			if (map.containsKey(absent[i]))
+				found++;
+		}
+		return check(start, found, present.length);
+	}
+
+	private static double timeFiles(File root, Hash[] present, Hash[] absent, int count) {
+		int found = 0;
+		long start = System.nanoTime();
+		for (int i = 0; i < count; ++i) {
+			if (file(root, present[i]).exists())
+				found++;
+			if (file(root, absent[i]).exists())
+				found++;
+		}
+		return check(start, found, count);
+	}
+
+	/**
+	 * @return the nanoseconds per check
+	 */
+	private static double check(long start, int found, int count) {
+		long nanos = System.nanoTime() - start;
+		if (found != count)
+			throw new IllegalStateException(String.format("Found %d of %d keys.", found, count));
+		return (double) nanos / (2 * count);
+	}
+
+	private static File file(File root, Hash hash) {
+		String name = hash.toString();
+		return new File(new File(root, name.substring(0, 2)), name.substring(2));
+	}
+
+	private static long usedMemory() {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 3; ++i)
+			System.gc();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	private static void report(String name, double ns, long bytes, int keys) {
+		System.out.println(String.format("%-20s %8d keys %8.1f ns/check %8.1f bytes/key", name,
+				keys, ns, (double) bytes / keys));
+	}
+
+}
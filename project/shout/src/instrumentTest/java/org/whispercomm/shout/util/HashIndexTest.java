@@ -0,0 +1,117 @@
+package org.whispercomm.shout.util;
+
+import static org.junit.Assert.*;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.whispercomm.shout.Hash;
+
+public class HashIndexTest {
+
+	private static final int NUM_KEYS = 1000;
+
+	private HashIndex index;
+
+	@Before
+	public void setup() {
+		index = new HashIndex();
+	}
+
+	private static Hash key(int i) {
+		return Hash.hashData(Integer.toString(i).getBytes());
+	}
+
+	/**
+	 * Returns a key whose leading bytes, and thus home slot, are the same for
+	 * every i.
+	 */
+	private static Hash collidingKey(int i) {
+		byte[] key = new byte[Hash.LENGTH];
+		key[Hash.LENGTH - 1] = (byte) i;
+		return new Hash(key);
+	}
+
+	@Test
+	public void testPutGetGrow() {
+		for (int i = 0; i < NUM_KEYS; ++i)
+			assertTrue(index.put(key(i), i));
+		assertEquals(NUM_KEYS, index.size());
+		assertTrue(index.capacity() >= NUM_KEYS);
+
+		for (int i = 0; i < NUM_KEYS; ++i) {
+			assertTrue(index.contains(key(i)));
+			assertEquals(i, index.get(key(i), -1));
+		}
+		assertFalse(index.contains(key(NUM_KEYS)));
+		assertEquals(-1, index.get(key(NUM_KEYS), -1));
+
+		assertFalse(index.put(key(0), 42));
+		assertEquals(42, index.get(key(0), -1));
+		assertEquals(NUM_KEYS, index.size());
+	}
+
+	@Test
+	public void testZeroKey() {
+		assertFalse(index.contains(Hash.ZERO));
+		assertTrue(index.add(Hash.ZERO));
+		assertFalse(index.add(Hash.ZERO));
+		assertTrue(index.contains(Hash.ZERO));
+		assertEquals(0, index.get(Hash.ZERO, -1));
+	}
+
+	@Test
+	public void testRemoveShiftsCollidingKeys() {
+		for (int i = 0; i < 10; ++i)
+			index.put(collidingKey(i), i);
+
+		assertTrue(index.remove(collidingKey(3)));
+		assertFalse(index.remove(collidingKey(3)));
+		assertTrue(index.remove(collidingKey(0)));
+		assertEquals(8, index.size());
+		for (int i = 0; i < 10; ++i) {
+			if (i == 0 || i == 3)
+				assertFalse(index.contains(collidingKey(i)));
+			else
+				assertEquals(i, index.get(collidingKey(i), -1));
+		}
+	}
+
+	@Test
+	public void testRemoveInterleaved() {
+		for (int i = 0; i < NUM_KEYS; ++i)
+			index.put(key(i), i);
+		for (int i = 0; i < NUM_KEYS; i += 2)
+			assertTrue(index.remove(key(i)));
+
+		assertEquals(NUM_KEYS / 2, index.size());
+		for (int i = 0; i < NUM_KEYS; ++i)
+			assertEquals(i % 2 != 0, index.contains(key(i)));
+
+		index.clear();
+		assertEquals(0, index.size());
+		assertFalse(index.contains(key(1)));
+	}
+
+	@Test
+	public void testIterateSlots() {
+		Set<Hash> expected = new HashSet<Hash>();
+		for (int i = 0; i < 100; ++i) {
+			index.put(key(i), i);
+			expected.add(key(i));
+		}
+
+		Set<Hash> actual = new HashSet<Hash>();
+		for (int slot = 0; slot < index.capacity(); ++slot) {
+			if (!index.isOccupied(slot))
+				continue;
+			Hash hash = index.keyAt(slot);
+			assertEquals(index.get(hash, -1), index.valueAt(slot));
+			actual.add(hash);
+		}
+		assertEquals(expected, actual);
+	}
+
+}
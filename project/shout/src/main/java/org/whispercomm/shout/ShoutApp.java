@@ -5,6 +5,7 @@ import org.whispercomm.shout.content.ContentManager;
 import org.whispercomm.shout.tracker.ShoutTracker;
 
 import android.app.Application;
+import android.content.ComponentCallbacks2;
 
 public class ShoutApp extends Application {
 
@@ -17,6 +18,18 @@ public class ShoutApp extends Application {
 		configureAnalytics();
 	}
 
+	@Override
+	public void onTrimMemory(int level) {
+		super.onTrimMemory(level);
+		mContentManager.trimMemory(level);
+	}
+
+	@Override
+	public void onLowMemory() {
+		super.onLowMemory();
+		mContentManager.trimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+	}
+
 	@Override
 	public Object getSystemService(String name) {
 		if (ContentManager.SHOUT_CONTENT_SERVICE.equals(name)) {
@@ -0,0 +1,148 @@
+package org.whispercomm.shout.content;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+import org.apache.commons.io.FileUtils;
+import org.whispercomm.shout.Hash;
+import org.whispercomm.shout.MimeType;
+
+import android.util.Log;
+
+/**
+ * Stores the assembled payload of complete content as one contiguous file per
+ * content descriptor, so reading it is a single sequential read instead of a
+ * walk of its Merkle tree.
+ * <p>
+ * Each blob is named by the hex encoding of the descriptor hash and holds a
+ * header of a magic number, the mime type, the data length and a CRC32 of the
+ * data, followed by the data. Like the pack storage under
+ * {@code IntegrityPolicy.TrustOnWrite}, the data is checked against the
+ * Merkle tree once, when assembled, and only against the CRC32 on reads. A
+ * blob failing the check is deleted, so the content is assembled from the
+ * tree again.
+ * <p>
+ * Blobs are written to a temporary file and renamed into place, so a reader
+ * never sees a partial blob. This class is thread-safe.
+ *
+ * @author David R. Bild
+ */
+public class ContentBlobStore {
+	private static final String TAG = ContentBlobStore.class.getSimpleName();
+
+	private static final int MAGIC = 0x5348424C;
+
+	private static final String TEMP_SUFFIX = ".tmp";
+
+	private final File dir;
+
+	/**
+	 * @param dir the directory holding the blobs, created if needed
+	 */
+	public ContentBlobStore(File dir) {
+		this.dir = dir;
+	}
+
+	/**
+	 * Checks if a blob exists for the descriptor, without verifying it.
+	 *
+	 * @param descriptor the hash of the content descriptor
+	 * @return {@code true} if the blob exists
+	 */
+	public boolean exists(Hash descriptor) {
+		return getFile(descriptor).exists();
+	}
+
+	/**
+	 * Reads the blob for the descriptor.
+	 *
+	 * @param descriptor the hash of the content descriptor
+	 * @return the content, or {@code null} if no intact blob exists
+	 */
+	public Content retrieve(Hash descriptor) {
+		File file = getFile(descriptor);
+		if (!file.exists())
+			return null;
+
+		try {
+			ByteBuffer blob = ByteBuffer.wrap(FileUtils.readFileToByteArray(file));
+			if (blob.remaining() < 4 + 2 || blob.getInt() != MAGIC)
+				return discard(file, "bad header");
+			int mimeLen = blob.getShort() & 0xFFFF;
+			if (blob.remaining() < mimeLen + 4 + 4)
+				return discard(file, "truncated header");
+			byte[] mime = new byte[mimeLen];
+			blob.get(mime);
+			int length = blob.getInt();
+			int checksum = blob.getInt();
+			if (length != blob.remaining())
+				return discard(file, "bad length");
+
+			CRC32 crc = new CRC32();
+			crc.update(blob.array(), blob.position(), length);
+			if ((int) crc.getValue() != checksum)
+				return discard(file, "bad checksum");
+
+			byte[] data = new byte[length];
+			blob.get(data);
+			return new Content(data, MimeType.get(new String(mime, "US-ASCII")));
+		} catch (IllegalArgumentException e) {
+			return discard(file, "bad mime type");
+		} catch (IOException e) {
+			Log.w(TAG, "Failed to read blob " + file, e);
+			return null;
+		}
+	}
+
+	/**
+	 * Writes the blob for the descriptor, replacing any existing one.
+	 *
+	 * @param descriptor the hash of the content descriptor
+	 * @param content the assembled content
+	 */
+	public void store(Hash descriptor, Content content) throws IOException {
+		byte[] mime = content.getMimeType().toString().getBytes("US-ASCII");
+		byte[] data = content.getData();
+		CRC32 crc = new CRC32();
+		crc.update(data);
+
+		ByteBuffer blob = ByteBuffer.allocate(4 + 2 + mime.length + 4 + 4 + data.length);
+		blob.putInt(MAGIC);
+		blob.putShort((short) mime.length);
+		blob.put(mime);
+		blob.putInt(data.length);
+		blob.putInt((int) crc.getValue());
+		blob.put(data);
+
+		File file = getFile(descriptor);
+		File temp = new File(dir, file.getName() + "." + Thread.currentThread().getId()
+				+ TEMP_SUFFIX);
+		FileUtils.writeByteArrayToFile(temp, blob.array());
+		if (!temp.renameTo(file)) {
+			temp.delete();
+			throw new IOException("Unable to rename blob into place: " + file);
+		}
+	}
+
+	/**
+	 * Deletes the blob for the descriptor, if any.
+	 *
+	 * @param descriptor the hash of the content descriptor
+	 */
+	public void delete(Hash descriptor) {
+		getFile(descriptor).delete();
+	}
+
+	private Content discard(File file, String reason) {
+		Log.w(TAG, "Deleting corrupt blob " + file + ": " + reason);
+		file.delete();
+		return null;
+	}
+
+	private File getFile(Hash descriptor) {
+		return new File(dir, descriptor.toString());
+	}
+
+}
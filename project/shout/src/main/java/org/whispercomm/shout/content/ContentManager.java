@@ -10,17 +10,29 @@ import org.whispercomm.shout.content.descriptor.ContentDescriptor;
 import org.whispercomm.shout.content.descriptor.ContentDescriptorReference;
 import org.whispercomm.shout.content.descriptor.ContentDescriptorStore;
 import org.whispercomm.shout.content.merkle.MerkleStore;
+import org.whispercomm.shout.content.storage.CachingObjectStorage;
 import org.whispercomm.shout.content.storage.FileObjectStorage;
+import org.whispercomm.shout.content.storage.MemoryObjectStorage;
 import org.whispercomm.shout.content.storage.ObjectStorage;
+import org.whispercomm.shout.content.storage.PackObjectStorage;
 import org.whispercomm.shout.errors.NotFoundException;
 
 import android.app.Application;
+import android.content.ComponentCallbacks2;
 import android.content.ContentProvider;
 import android.content.Context;
+import android.support.v4.util.LruCache;
+import android.util.Log;
 
 /**
  * This class functions as a local content provider. Eventually, it should be
  * replaced with a true {@link ContentProvider} implementation.
+ * <p>
+ * Content is stored as a descriptor and the Merkle tree of its data. When a
+ * tree is first complete, either because the content was stored locally or
+ * because its retrieval finished, the assembled content is written to a
+ * {@link ContentBlobStore} and kept in a cache of up to
+ * {@link #CONTENT_CACHE_BYTES}, so later reads skip the tree walk.
  * 
  * @author David R. Bild
  */
@@ -37,28 +49,108 @@ public class ContentManager {
 	 */
 	public static final String SHOUT_CONTENT_SERVICE = "org.whispercomm.shout.content.ContentManager";
 
+	private static final String TAG = ContentManager.class.getSimpleName();
+
+	/**
+	 * Directory of the previous file-per-object layout
+	 */
 	private static final String OBJECT_ROOT_DIR = "objects";
 
+	private static final String PACK_ROOT_DIR = "packs";
+
+	private static final String BLOB_ROOT_DIR = "blobs";
+
+	/**
+	 * bytes of objects kept in memory by the object cache
+	 */
+	public static long OBJECT_CACHE_BYTES = 2 * 1024 * 1024;
+
+	/**
+	 * Cache of the pack storage, shared by all managers in the process
+	 */
+	private static CachingObjectStorage sObjectCache;
+
+	private static synchronized CachingObjectStorage getObjectCache(ObjectStorage storage) {
+		if (sObjectCache == null || sObjectCache.getBacking() != storage)
+			sObjectCache = new CachingObjectStorage(storage, OBJECT_CACHE_BYTES);
+		return sObjectCache;
+	}
+
+	/**
+	 * bytes of assembled content kept in memory
+	 */
+	public static int CONTENT_CACHE_BYTES = 1024 * 1024;
+
+	/**
+	 * Cache of assembled content, shared by all managers over the file system
+	 */
+	private static LruCache<Hash, Content> sContentCache;
+
+	private static synchronized LruCache<Hash, Content> getSharedContentCache() {
+		if (sContentCache == null)
+			sContentCache = newContentCache();
+		return sContentCache;
+	}
+
+	private static LruCache<Hash, Content> newContentCache() {
+		return new LruCache<Hash, Content>(CONTENT_CACHE_BYTES) {
+			@Override
+			protected int sizeOf(Hash key, Content value) {
+				return value.getData().length;
+			}
+		};
+	}
+
 	private File mObjectDir;
 	private ObjectStorage mObjectStorage;
 	private MerkleStore mMerkleStore;
 	private ContentDescriptorStore mContentDescriptorStore;
+	private ContentBlobStore mBlobStore;
+	private LruCache<Hash, Content> mContentCache;
 
 	public ContentManager(Context context) {
-		mObjectDir = new File(context.getExternalFilesDir(null), OBJECT_ROOT_DIR);
-		if (!mObjectDir.exists())
-			mObjectDir.mkdir();
+		File filesDir = context.getExternalFilesDir(null);
+		mObjectDir = new File(filesDir, OBJECT_ROOT_DIR);
+		try {
+			PackObjectStorage packStorage = PackObjectStorage.open(new File(filesDir,
+					PACK_ROOT_DIR), context);
+			if (mObjectDir.exists())
+				packStorage.migrateFrom(mObjectDir, new FileObjectStorage(mObjectDir, context));
+			mObjectStorage = getObjectCache(packStorage);
+		} catch (IOException e) {
+			Log.e(TAG, "Unable to open pack storage. Using file-per-object storage.", e);
+			if (!mObjectDir.exists())
+				mObjectDir.mkdir();
+			mObjectStorage = new FileObjectStorage(mObjectDir, context);
+		}
 
-		mObjectStorage = new FileObjectStorage(mObjectDir, context);
+		mMerkleStore = new MerkleStore(mObjectStorage);
+		mContentDescriptorStore = new ContentDescriptorStore(mObjectStorage);
+		mBlobStore = new ContentBlobStore(new File(filesDir, BLOB_ROOT_DIR));
+		mContentCache = getSharedContentCache();
+	}
+
+	/**
+	 * Creates a manager over the specified object storage, such as a
+	 * {@link MemoryObjectStorage} when no file system is available.
+	 * Assembled content is cached, but not written as blobs.
+	 * 
+	 * @param objectStorage the storage for content objects
+	 */
+	public ContentManager(ObjectStorage objectStorage) {
+		mObjectStorage = objectStorage;
 
 		mMerkleStore = new MerkleStore(mObjectStorage);
 		mContentDescriptorStore = new ContentDescriptorStore(mObjectStorage);
+		mContentCache = newContentCache();
 	}
 
 	public Hash store(byte[] data, MimeType mimetype) throws IOException {
-		return mContentDescriptorStore.store(new ContentDescriptor(mMerkleStore.putObject(data)
+		Hash hash = mContentDescriptorStore.store(new ContentDescriptor(mMerkleStore.putObject(data)
 				.getHash(),
 				mimetype)).getHash();
+		completed(hash, new Content(data.clone(), mimetype));
+		return hash;
 	}
 
 	public Hash store(Content content) throws IOException {
@@ -66,6 +158,18 @@ public class ContentManager {
 	}
 
 	public Content retrieve(Hash hash) throws NotFoundException, IOException {
+		Content content = mContentCache.get(hash);
+		if (content != null)
+			return copy(content);
+
+		if (mBlobStore != null) {
+			content = mBlobStore.retrieve(hash);
+			if (content != null) {
+				mContentCache.put(hash, content);
+				return copy(content);
+			}
+		}
+
 		ContentDescriptorReference descriptorRef = mContentDescriptorStore.retrieve(hash);
 		if (!descriptorRef.isAvailable())
 			throw new NotFoundException();
@@ -73,7 +177,47 @@ public class ContentManager {
 		ContentDescriptor descriptor = descriptorRef.get();
 		byte[] data = mMerkleStore.getObject(descriptor.getObjectRoot());
 
-		return new Content(data, descriptor.getMimeType());
+		content = new Content(data, descriptor.getMimeType());
+		completed(hash, content);
+		return copy(content);
+	}
+
+	/**
+	 * Records newly complete content in the blob store and cache.
+	 */
+	private void completed(Hash hash, Content content) {
+		mContentCache.put(hash, content);
+		if (mBlobStore == null || mBlobStore.exists(hash))
+			return;
+		try {
+			mBlobStore.store(hash, content);
+		} catch (IOException e) {
+			Log.w(TAG, "Failed to write blob for " + hash, e);
+		}
+	}
+
+	/**
+	 * Returns a copy of cached content, so callers cannot modify the cache.
+	 */
+	private static Content copy(Content content) {
+		return new Content(content.getData().clone(), content.getMimeType());
+	}
+
+	/**
+	 * Releases cached objects in response to memory pressure. Call from
+	 * {@link Application#onTrimMemory(int)}.
+	 * 
+	 * @param level the trim level
+	 */
+	public void trimMemory(int level) {
+		if (mObjectStorage instanceof CachingObjectStorage)
+			((CachingObjectStorage) mObjectStorage).trimMemory(level);
+
+		// Cheap to refill from the blobs
+		if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND
+				|| level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW
+				|| level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL)
+			mContentCache.evictAll();
 	}
 
 	public ObjectStorage getObjectStorage() {
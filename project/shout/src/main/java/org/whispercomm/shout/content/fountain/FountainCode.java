@@ -0,0 +1,97 @@
+package org.whispercomm.shout.content.fountain;
+
+import org.whispercomm.shout.Hash;
+import org.whispercomm.shout.content.merkle.DataBlockNode;
+
+/**
+ * The rateless code shared by {@link FountainEncoder} and
+ * {@link FountainDecoder}: a systematic fountain code over the leaf blocks of
+ * a Merkle tree.
+ * <p>
+ * An object is split into blocks of {@link #BLOCK_LEN} bytes, exactly as
+ * {@code MerkleBuilder} splits it into leaves, and the last block is padded
+ * with zeros. Symbol {@code i < k} is block {@code i} itself. Each later
+ * symbol is the XOR of a random subset of the blocks, each block included with
+ * probability one half. The subset is derived from the root hash and symbol id
+ * with a fixed generator, so the sender and all receivers agree on the blocks
+ * of each symbol without sending them.
+ * <p>
+ * Objects have at most a few dozen blocks, so the decoder can afford Gaussian
+ * elimination, with which these dense symbols decode after only one or two
+ * symbols beyond the number of blocks. The sparse degree distributions of LT
+ * codes, needed for peeling decoders on large objects, cost a fifth to a half
+ * more symbols at this size.
+ *
+ * @author David R. Bild
+ */
+public class FountainCode {
+
+	/**
+	 * Length of each block and of each encoded symbol, in bytes
+	 */
+	public static final int BLOCK_LEN = DataBlockNode.MAX_LEN;
+
+	/**
+	 * @param length the object length, in bytes
+	 * @return the number of blocks of the object
+	 */
+	public static int numBlocks(int length) {
+		return Math.max(1, (length + BLOCK_LEN - 1) / BLOCK_LEN);
+	}
+
+	/**
+	 * Computes the blocks combined in a symbol.
+	 *
+	 * @param root the root hash of the object
+	 * @param k the number of blocks
+	 * @param symbolId the symbol id
+	 * @return the indices of the blocks, in increasing order
+	 */
+	public static int[] blocks(Hash root, int k, int symbolId) {
+		if (symbolId < k)
+			return new int[] { symbolId };
+
+		long state = seed(root) ^ (0x9E3779B97F4A7C15L * symbolId);
+		int[] blocks = new int[k];
+		int n = 0;
+		while (n == 0) {
+			long bits = 0;
+			for (int i = 0; i < k; ++i) {
+				if ((i & 63) == 0) {
+					state = mix(state);
+					bits = state;
+				}
+				if ((bits & 1) != 0)
+					blocks[n++] = i;
+				bits >>>= 1;
+			}
+		}
+
+		int[] result = new int[n];
+		System.arraycopy(blocks, 0, result, 0, n);
+		return result;
+	}
+
+	private static long seed(Hash root) {
+		byte[] h = root.toByteArray();
+		long seed = 0;
+		for (int i = 0; i < 8; ++i)
+			seed = (seed << 8) | (h[i] & 0xFF);
+		return seed;
+	}
+
+	/**
+	 * SplitMix64 step, defined here rather than taken from
+	 * {@link java.util.Random} so all platforms generate the same symbols.
+	 */
+	private static long mix(long z) {
+		z += 0x9E3779B97F4A7C15L;
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+
+	private FountainCode() {
+	}
+
+}
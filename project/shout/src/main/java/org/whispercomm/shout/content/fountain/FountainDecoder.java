@@ -0,0 +1,175 @@
+package org.whispercomm.shout.content.fountain;
+
+import org.whispercomm.shout.Hash;
+
+/**
+ * Decodes an object from {@link FountainSymbol}s received in any order. See
+ * {@link FountainCode}.
+ * <p>
+ * Symbols are reduced against those already received as they arrive
+ * (incremental Gaussian elimination over GF(2)), so the object is decoded as
+ * soon as the received symbols determine it, usually after a few more symbols
+ * than it has blocks. Symbols that add nothing are discarded immediately.
+ * <p>
+ * The decoded object is not verified; callers must check it against the root
+ * hash.
+ * <p>
+ * This class is not thread-safe.
+ *
+ * @author David R. Bild
+ */
+public class FountainDecoder {
+
+	private final Hash root;
+
+	private final int length;
+
+	private final int k;
+
+	/**
+	 * The received symbols, reduced so the lowest block of each is unique.
+	 * Row {@code i} has lowest block {@code i}, or is {@code null}.
+	 */
+	private long[][] coefficients;
+
+	private byte[][] payloads;
+
+	private int rank;
+
+	private int received;
+
+	private boolean complete;
+
+	/**
+	 * @param root the root hash of the Merkle tree of the object
+	 * @param length the object length, in bytes
+	 */
+	public FountainDecoder(Hash root, int length) {
+		this.root = root;
+		this.length = length;
+		this.k = FountainCode.numBlocks(length);
+		this.coefficients = new long[k][];
+		this.payloads = new byte[k][];
+		this.rank = 0;
+		this.received = 0;
+		this.complete = false;
+	}
+
+	/**
+	 * Adds a received symbol.
+	 *
+	 * @param symbol the symbol, which must be for this object
+	 * @return {@code true} if the object was decoded by this symbol
+	 */
+	public boolean add(FountainSymbol symbol) {
+		if (complete)
+			return false;
+		if (!root.equals(symbol.getRoot()) || length != symbol.getLength())
+			throw new IllegalArgumentException("Symbol is for a different object.");
+		received++;
+
+		long[] row = new long[(k + 63) / 64];
+		for (int block : FountainCode.blocks(root, k, symbol.getSymbolId()))
+			row[block >>> 6] |= 1L << (block & 63);
+		byte[] payload = symbol.getPayload().clone();
+
+		int lowest;
+		while ((lowest = lowestBit(row)) >= 0) {
+			if (coefficients[lowest] == null) {
+				coefficients[lowest] = row;
+				payloads[lowest] = payload;
+				rank++;
+				break;
+			}
+			xor(row, coefficients[lowest]);
+			xor(payload, payloads[lowest]);
+		}
+
+		if (rank < k)
+			return false;
+		backSubstitute();
+		complete = true;
+		return true;
+	}
+
+	public boolean isComplete() {
+		return complete;
+	}
+
+	/**
+	 * @return the number of symbols received, including redundant ones
+	 */
+	public int getReceivedCount() {
+		return received;
+	}
+
+	/**
+	 * @return the number of independent symbols received
+	 */
+	public int getRank() {
+		return rank;
+	}
+
+	public int getNumBlocks() {
+		return k;
+	}
+
+	/**
+	 * @return the decoded object
+	 * @throws IllegalStateException if the object is not decoded yet
+	 */
+	public byte[] getData() {
+		if (!complete)
+			throw new IllegalStateException("Object is not decoded yet.");
+		byte[] data = new byte[length];
+		for (int i = 0; i < k; ++i) {
+			int offset = i * FountainCode.BLOCK_LEN;
+			System.arraycopy(payloads[i], 0, data, offset,
+					Math.min(FountainCode.BLOCK_LEN, length - offset));
+		}
+		return data;
+	}
+
+	/**
+	 * Discards the decoding state. Only {@link #isComplete()} remains
+	 * meaningful.
+	 */
+	public void release() {
+		coefficients = null;
+		payloads = null;
+	}
+
+	/**
+	 * Reduces each row to a single block, from the last to the first.
+	 */
+	private void backSubstitute() {
+		for (int i = k - 1; i >= 0; --i) {
+			long[] row = coefficients[i];
+			for (int j = i + 1; j < k; ++j) {
+				if ((row[j >>> 6] & (1L << (j & 63))) != 0) {
+					xor(row, coefficients[j]);
+					xor(payloads[i], payloads[j]);
+				}
+			}
+		}
+	}
+
+	private static int lowestBit(long[] row) {
+		for (int i = 0; i < row.length; ++i) {
+			if (row[i] != 0)
+				return 64 * i + Long.numberOfTrailingZeros(row[i]);
+		}
+		return -1;
+	}
+
+	private static void xor(long[] a, long[] b) {
+		for (int i = 0; i < a.length; ++i)
+			a[i] ^= b[i];
+	}
+
+	private static void xor(byte[] a, byte[] b) {
+		for (int i = 0; i < a.length; ++i)
+			a[i] ^= b[i];
+	}
+
+}
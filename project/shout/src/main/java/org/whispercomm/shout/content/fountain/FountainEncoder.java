@@ -0,0 +1,56 @@
+package org.whispercomm.shout.content.fountain;
+
+import org.whispercomm.shout.Hash;
+
+/**
+ * Encodes an object into any number of {@link FountainSymbol}s. See
+ * {@link FountainCode}.
+ *
+ * @author David R. Bild
+ */
+public class FountainEncoder {
+
+	private final Hash root;
+
+	private final int length;
+
+	private final byte[][] blocks;
+
+	/**
+	 * @param root the root hash of the Merkle tree of the object
+	 * @param data the object
+	 */
+	public FountainEncoder(Hash root, byte[] data) {
+		this.root = root;
+		this.length = data.length;
+		this.blocks = new byte[FountainCode.numBlocks(data.length)][FountainCode.BLOCK_LEN];
+		for (int i = 0; i < blocks.length; ++i) {
+			int offset = i * FountainCode.BLOCK_LEN;
+			System.arraycopy(data, offset, blocks[i], 0,
+					Math.min(FountainCode.BLOCK_LEN, data.length - offset));
+		}
+	}
+
+	/**
+	 * @return the number of blocks, which is the minimum number of symbols
+	 *         needed to decode the object
+	 */
+	public int getNumBlocks() {
+		return blocks.length;
+	}
+
+	/**
+	 * @param symbolId the id of the symbol
+	 * @return the symbol
+	 */
+	public FountainSymbol encode(int symbolId) {
+		byte[] payload = new byte[FountainCode.BLOCK_LEN];
+		for (int block : FountainCode.blocks(root, blocks.length, symbolId)) {
+			byte[] b = blocks[block];
+			for (int i = 0; i < payload.length; ++i)
+				payload[i] ^= b[i];
+		}
+		return new FountainSymbol(root, length, symbolId, payload);
+	}
+
+}
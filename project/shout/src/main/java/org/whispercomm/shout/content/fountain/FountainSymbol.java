@@ -0,0 +1,50 @@
+package org.whispercomm.shout.content.fountain;
+
+import org.whispercomm.shout.Hash;
+
+/**
+ * An encoded symbol of an object sent with the fountain code. See
+ * {@link FountainCode}.
+ *
+ * @author David R. Bild
+ */
+public class FountainSymbol {
+
+	private final Hash root;
+
+	private final int length;
+
+	private final int symbolId;
+
+	private final byte[] payload;
+
+	/**
+	 * @param root the root hash of the Merkle tree of the object
+	 * @param length the object length, in bytes
+	 * @param symbolId the symbol id
+	 * @param payload the encoded symbol, {@link FountainCode#BLOCK_LEN} bytes
+	 */
+	public FountainSymbol(Hash root, int length, int symbolId, byte[] payload) {
+		this.root = root;
+		this.length = length;
+		this.symbolId = symbolId;
+		this.payload = payload;
+	}
+
+	public Hash getRoot() {
+		return root;
+	}
+
+	public int getLength() {
+		return length;
+	}
+
+	public int getSymbolId() {
+		return symbolId;
+	}
+
+	public byte[] getPayload() {
+		return payload;
+	}
+
+}
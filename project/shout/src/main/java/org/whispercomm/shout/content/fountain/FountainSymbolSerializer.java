@@ -0,0 +1,85 @@
+package org.whispercomm.shout.content.fountain;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+import org.whispercomm.shout.Hash;
+import org.whispercomm.shout.errors.InvalidFormatException;
+import org.whispercomm.shout.network.ObjectType;
+import org.whispercomm.shout.network.PacketProtocol;
+import org.whispercomm.shout.network.UnsupportedVersionException;
+
+/**
+ * Serializes {@link FountainSymbol} objects.
+ * <p>
+ * Format: the object header, then a version byte, the root hash, the object
+ * length (four bytes), the symbol id (four bytes), and the payload.
+ *
+ * @author David R. Bild
+ */
+public class FountainSymbolSerializer {
+
+	public static final ObjectType TYPE = ObjectType.FountainSymbol;
+
+	static final byte VERSION = 0x00;
+
+	private static final int FIELDS_LEN = 1 + Hash.LENGTH + 4 + 4;
+
+	public static boolean serialize(ByteBuffer buffer, FountainSymbol symbol) {
+		int contentLength = FIELDS_LEN + symbol.getPayload().length;
+		if (buffer.remaining() < PacketProtocol.OBJECT_HEADER_LEN + contentLength)
+			return false;
+
+		buffer.put(TYPE.getIdAsByte());
+		buffer.putShort((short) contentLength);
+		buffer.put(VERSION);
+		buffer.put(symbol.getRoot().toByteArray());
+		buffer.putInt(symbol.getLength());
+		buffer.putInt(symbol.getSymbolId());
+		buffer.put(symbol.getPayload());
+		return true;
+	}
+
+	public static FountainSymbol deserialize(ByteBuffer buffer)
+			throws UnsupportedVersionException, InvalidFormatException {
+		try {
+			int typeId = 0xFF & buffer.get();
+			if (typeId != TYPE.getId())
+				throw new InvalidFormatException(String.format(
+						"Incorrect object type for fountain symbol.  Got %d. Expected %d.",
+						typeId, TYPE.getId()));
+
+			int contentLength = 0xFFFF & buffer.getShort();
+			if (contentLength != FIELDS_LEN + FountainCode.BLOCK_LEN)
+				throw new InvalidFormatException(String.format(
+						"Invalid content length for fountain symbol. Got %d. Expected %d.",
+						contentLength, FIELDS_LEN + FountainCode.BLOCK_LEN));
+			int end = buffer.position() + contentLength;
+			if (end > buffer.limit())
+				throw new InvalidFormatException("Data too short.");
+
+			byte version = buffer.get();
+			if (version != VERSION) {
+				buffer.position(end);
+				throw new UnsupportedVersionException(String.format(
+						"Unrecognized fountain symbol version: %02X", version));
+			}
+
+			byte[] root = new byte[Hash.LENGTH];
+			buffer.get(root);
+			int length = buffer.getInt();
+			int symbolId = buffer.getInt();
+			if (length <= 0 || symbolId < 0)
+				throw new InvalidFormatException("Invalid fountain symbol length or id.");
+			byte[] payload = new byte[FountainCode.BLOCK_LEN];
+			buffer.get(payload);
+			return new FountainSymbol(new Hash(root), length, symbolId, payload);
+		} catch (BufferUnderflowException e) {
+			throw new InvalidFormatException("Data too short.");
+		}
+	}
+
+	private FountainSymbolSerializer() {
+	}
+
+}
@@ -16,7 +16,7 @@ public class DataBlockNode extends AbstractMerkleNode {
 	/**
 	 * Maximum size of the data block in bytes.
 	 */
-	static final short MAX_LEN = 1450;
+	public static final short MAX_LEN = 1450;
 
 	private final byte[] data;
 
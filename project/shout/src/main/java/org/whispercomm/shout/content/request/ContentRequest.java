@@ -1,19 +1,80 @@
-
 package org.whispercomm.shout.content.request;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
 import org.whispercomm.shout.Hash;
 
+/**
+ * A request for one or more content objects.
+ * <p>
+ * A request for a single hash without a root hint is sent in the original
+ * single-hash format, which all versions understand. Other requests use the
+ * batched format, which carries up to {@link #MAX_HASHES} hashes and,
+ * optionally, the root of the Merkle tree containing them.
+ *
+ * @author David R. Bild
+ */
 public class ContentRequest {
 	static final byte TYPE = 0x00;
 
-	private final Hash objectHash;
+	static final byte TYPE_BATCH = 0x01;
+
+	/**
+	 * Maximum number of hashes in one request, so a full request fits in a
+	 * packet with room to share it
+	 */
+	public static final int MAX_HASHES = 40;
+
+	private final List<Hash> hashes;
+
+	private final Hash root;
 
 	public ContentRequest(Hash objectHash) {
-		this.objectHash = objectHash;
+		this(Collections.singletonList(objectHash), null);
+	}
+
+	/**
+	 * @param hashes the requested hashes, at least one and at most
+	 *            {@link #MAX_HASHES}
+	 * @param root the root of the Merkle tree containing the requested nodes,
+	 *            or {@code null} if unknown or not shared by all of them
+	 */
+	public ContentRequest(List<Hash> hashes, Hash root) {
+		if (hashes.isEmpty() || hashes.size() > MAX_HASHES)
+			throw new IllegalArgumentException("Invalid number of hashes: " + hashes.size());
+		this.hashes = Collections.unmodifiableList(new ArrayList<Hash>(hashes));
+		this.root = root;
 	}
 
+	/**
+	 * @return the first requested hash
+	 */
 	public Hash getObjectHash() {
-		return objectHash;
+		return hashes.get(0);
+	}
+
+	/**
+	 * @return the requested hashes
+	 */
+	public List<Hash> getHashes() {
+		return hashes;
+	}
+
+	/**
+	 * @return the root of the Merkle tree containing the requested nodes, or
+	 *         {@code null} if not given
+	 */
+	public Hash getRoot() {
+		return root;
+	}
+
+	/**
+	 * @return {@code true} if the request must be sent in the batched format
+	 */
+	boolean isBatch() {
+		return hashes.size() > 1 || root != null;
 	}
 
 }
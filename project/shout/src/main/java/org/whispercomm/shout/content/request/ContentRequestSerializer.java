@@ -1,22 +1,58 @@
-
 package org.whispercomm.shout.content.request;
 
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.whispercomm.shout.Hash;
 import org.whispercomm.shout.errors.InvalidFormatException;
 import org.whispercomm.shout.network.ObjectType;
 import org.whispercomm.shout.network.UnsupportedVersionException;
 
+/**
+ * Serializes content requests.
+ * <p>
+ * The single-hash format is the type byte {@code 0x00} followed by the hash.
+ * The batched format is the type byte {@code 0x01}, a flags byte, the root
+ * hash if flag bit 0 is set, a count byte, and that many hashes.
+ *
+ * @author David R. Bild
+ */
 public class ContentRequestSerializer {
 
 	public static final ObjectType TYPE = ObjectType.ContentRequest;
 
+	private static final int FLAG_ROOT = 0x01;
+
 	public static boolean serialize(ByteBuffer buffer, ContentRequest request) {
+		if (!request.isBatch())
+			return serializeSingle(buffer, request);
+
+		List<Hash> hashes = request.getHashes();
+		Hash root = request.getRoot();
+		int contentLength = 1 + 1 + (root == null ? 0 : Hash.LENGTH) + 1 + hashes.size()
+				* Hash.LENGTH;
+
+		if (buffer.remaining() < 1 + 2 + contentLength)
+			return false;
+
+		buffer.put(TYPE.getIdAsByte());
+		buffer.putShort((short) contentLength);
+		buffer.put(ContentRequest.TYPE_BATCH);
+		buffer.put((byte) (root == null ? 0 : FLAG_ROOT));
+		if (root != null)
+			buffer.put(root.toByteArray());
+		buffer.put((byte) hashes.size());
+		for (Hash hash : hashes)
+			buffer.put(hash.toByteArray());
+		return true;
+	}
+
+	private static boolean serializeSingle(ByteBuffer buffer, ContentRequest request) {
 		byte[] hash = request.getObjectHash().toByteArray();
 
-		if (buffer.remaining() < 1 + 2 + 32)
+		if (buffer.remaining() < 1 + 2 + 1 + Hash.LENGTH)
 			return false;
 
 		buffer.put(TYPE.getIdAsByte());
@@ -33,23 +69,26 @@ public class ContentRequestSerializer {
 			int typeId = 0xFF & buffer.get();
 			if (typeId != TYPE.getId())
 				throw new InvalidFormatException(String.format(
-						"Incorrect object type for content descriptor.  Got %d. Expected %d.",
+						"Incorrect object type for content request.  Got %d. Expected %d.",
 						typeId,
 						TYPE.getId()));
 
 			int contentLength = buffer.getShort();
-			if (contentLength != 1 + Hash.LENGTH)
-				throw new InvalidFormatException(
-						String.format(
-								"Invalid content length for content request. Got %d. Expected %d.",
-								contentLength, 1 + Hash.LENGTH));
+			if (contentLength < 1)
+				throw new InvalidFormatException("Invalid content length for content request: "
+						+ contentLength);
 
 			byte type = buffer.get();
 			switch (type) {
 				case ContentRequest.TYPE:
-					byte[] hash = new byte[Hash.LENGTH];
-					buffer.get(hash);
-					return new ContentRequest(new Hash(hash));
+					if (contentLength != 1 + Hash.LENGTH)
+						throw new InvalidFormatException(
+								String.format(
+										"Invalid content length for content request. Got %d. Expected %d.",
+										contentLength, 1 + Hash.LENGTH));
+					return new ContentRequest(readHash(buffer));
+				case ContentRequest.TYPE_BATCH:
+					return deserializeBatch(buffer, contentLength);
 				default:
 					throw new UnsupportedVersionException(String.format(
 							"Unrecognized content request version: %02X", type));
@@ -59,6 +98,32 @@ public class ContentRequestSerializer {
 		}
 	}
 
+	private static ContentRequest deserializeBatch(ByteBuffer buffer, int contentLength)
+			throws InvalidFormatException {
+		int flags = 0xFF & buffer.get();
+		Hash root = ((flags & FLAG_ROOT) != 0) ? readHash(buffer) : null;
+		int count = 0xFF & buffer.get();
+		if (count < 1 || count > ContentRequest.MAX_HASHES)
+			throw new InvalidFormatException("Invalid hash count for content request: " + count);
+
+		int expected = 1 + 1 + (root == null ? 0 : Hash.LENGTH) + 1 + count * Hash.LENGTH;
+		if (contentLength != expected)
+			throw new InvalidFormatException(String.format(
+					"Invalid content length for content request. Got %d. Expected %d.",
+					contentLength, expected));
+
+		List<Hash> hashes = new ArrayList<Hash>(count);
+		for (int i = 0; i < count; ++i)
+			hashes.add(readHash(buffer));
+		return new ContentRequest(hashes, root);
+	}
+
+	private static Hash readHash(ByteBuffer buffer) {
+		byte[] hash = new byte[Hash.LENGTH];
+		buffer.get(hash);
+		return new Hash(hash);
+	}
+
 	private ContentRequestSerializer() {
 	}
 
@@ -0,0 +1,342 @@
+package org.whispercomm.shout.content.storage;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.whispercomm.shout.Hash;
+import org.whispercomm.shout.errors.NotFoundException;
+
+import android.content.ComponentCallbacks2;
+import android.util.Log;
+
+/**
+ * An {@link ObjectStorage} that keeps recently read objects of another
+ * storage in memory, up to a budget of bytes.
+ * <p>
+ * Eviction follows a segmented LRU policy, which suits the skewed popularity
+ * of objects such as avatars. Objects enter a probationary segment when first
+ * read and move to a protected segment, holding {@link #PROTECTED_PERCENT}
+ * percent of the budget, when read again. Objects leaving the protected
+ * segment return to the probationary segment, and objects leaving that are
+ * evicted. Thus a scan of objects read once, such as a content transfer,
+ * cannot flush the objects read repeatedly.
+ * <p>
+ * To keep reads from contending, the cache is split into {@link #SHARDS}
+ * independently locked shards, each with an equal share of the budget,
+ * selected by the leading bits of the hash. Stores go straight to the backing
+ * storage, so received objects are cached only once read.
+ * <p>
+ * The backing storage may drop objects, as {@link PackObjectStorage}
+ * quarantines corrupt ones. So {@link #exists(Hash)} asks only the backing
+ * storage, letting the object be stored again, and a cached object is
+ * returned only while the backing storage still has it. Both checks must
+ * therefore be cheap in the backing storage.
+ * <p>
+ * This class is thread-safe.
+ *
+ * @author David R. Bild
+ */
+public class CachingObjectStorage implements ObjectStorage {
+	private static final String TAG = CachingObjectStorage.class.getSimpleName();
+
+	/**
+	 * number of independently locked shards; a power of two, at most 256
+	 */
+	public static int SHARDS = 8;
+
+	/**
+	 * percentage of the budget held by the protected segment
+	 */
+	public static int PROTECTED_PERCENT = 80;
+
+	/**
+	 * Approximate bytes used by a cache entry in addition to the object data
+	 */
+	private static final int ENTRY_OVERHEAD = 96;
+
+	private final ObjectStorage backing;
+
+	private final long maxBytes;
+
+	private final Shard[] shards;
+
+	/**
+	 * Creates a cache in front of the specified storage.
+	 *
+	 * @param backing the storage holding the objects
+	 * @param maxBytes the maximum bytes of objects to keep in memory
+	 */
+	public CachingObjectStorage(ObjectStorage backing, long maxBytes) {
+		if (maxBytes < 0)
+			throw new IllegalArgumentException("maxBytes must not be negative.");
+		this.backing = backing;
+		this.maxBytes = maxBytes;
+		int count = Integer.highestOneBit(Math.max(1, SHARDS));
+		this.shards = new Shard[count];
+		for (int i = 0; i < count; ++i)
+			shards[i] = new Shard(maxBytes / count);
+	}
+
+	/**
+	 * @return the storage behind this cache
+	 */
+	public ObjectStorage getBacking() {
+		return backing;
+	}
+
+	@Override
+	public boolean exists(Hash hash) {
+		return backing.exists(hash);
+	}
+
+	@Override
+	public byte[] retrieve(Hash hash) throws NotFoundException, IOException {
+		Shard shard = shard(hash);
+		byte[] data = shard.get(hash);
+		if (data != null && !backing.exists(hash)) {
+			// Dropped by the backing storage, e.g., quarantined
+			shard.remove(hash);
+			data = null;
+		}
+		if (data == null) {
+			data = backing.retrieve(hash);
+			shard.put(hash, data.clone());
+		}
+		return data.clone();
+	}
+
+	@Override
+	public Hash store(byte[] data) throws IOException {
+		return backing.store(data);
+	}
+
+	@Override
+	public Hash store(byte[] data, int offset, int len) throws IOException {
+		return backing.store(data, offset, len);
+	}
+
+	@Override
+	public void registerListener(ObjectListener listener, Hash hash) {
+		backing.registerListener(listener, hash);
+	}
+
+	@Override
+	public void unregisterListener(ObjectListener listener, Hash hash) {
+		backing.unregisterListener(listener, hash);
+	}
+
+	/**
+	 * Evicts objects in response to memory pressure, as reported to
+	 * {@link ComponentCallbacks2#onTrimMemory(int)}. All objects are evicted
+	 * when the process is likely to be killed or the system is critically low
+	 * on memory, and half when moderately low.
+	 *
+	 * @param level the trim level
+	 */
+	public void trimMemory(int level) {
+		if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE
+				|| level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+			trimTo(0);
+		} else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND
+				|| level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+			trimTo(50);
+		} else {
+			return;
+		}
+		Log.i(TAG, "Trimmed for level " + level + ": " + this);
+	}
+
+	/**
+	 * Evicts all objects.
+	 */
+	public void clear() {
+		trimTo(0);
+	}
+
+	private void trimTo(int percent) {
+		for (Shard shard : shards)
+			shard.trimTo(shard.maxBytes * percent / 100);
+	}
+
+	/**
+	 * @return the bytes of objects in memory, including entry overhead
+	 */
+	public long size() {
+		long size = 0;
+		for (Shard shard : shards) {
+			synchronized (shard) {
+				size += shard.probationBytes + shard.protectedBytes;
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * @return the number of reads served from memory
+	 */
+	public long getHitCount() {
+		long hits = 0;
+		for (Shard shard : shards) {
+			synchronized (shard) {
+				hits += shard.hits;
+			}
+		}
+		return hits;
+	}
+
+	/**
+	 * @return the number of reads passed to the backing storage
+	 */
+	public long getMissCount() {
+		long misses = 0;
+		for (Shard shard : shards) {
+			synchronized (shard) {
+				misses += shard.misses;
+			}
+		}
+		return misses;
+	}
+
+	/**
+	 * @return the fraction of reads served from memory, or zero if none
+	 */
+	public double getHitRatio() {
+		long hits = getHitCount();
+		long reads = hits + getMissCount();
+		return (reads == 0) ? 0 : (double) hits / reads;
+	}
+
+	/**
+	 * @return the number of objects evicted, including by trimming
+	 */
+	public long getEvictionCount() {
+		long evictions = 0;
+		for (Shard shard : shards) {
+			synchronized (shard) {
+				evictions += shard.evictions;
+			}
+		}
+		return evictions;
+	}
+
+	@Override
+	public String toString() {
+		return String.format(
+				"CachingObjectStorage[bytes=%d/%d, hits=%d, misses=%d, hitRatio=%.3f, evictions=%d]",
+				size(), maxBytes, getHitCount(), getMissCount(), getHitRatio(),
+				getEvictionCount());
+	}
+
+	private Shard shard(Hash hash) {
+		return shards[(hash.toByteArray()[0] & 0xFF) & (shards.length - 1)];
+	}
+
+	private static long cost(byte[] data) {
+		return data.length + ENTRY_OVERHEAD;
+	}
+
+	/**
+	 * One segmented LRU cache. The maps are in access order, so iteration
+	 * starts at the least recently used object.
+	 */
+	private static class Shard {
+		final long maxBytes;
+
+		final long maxProtectedBytes;
+
+		final LinkedHashMap<Hash, byte[]> probation;
+
+		final LinkedHashMap<Hash, byte[]> protect;
+
+		long probationBytes;
+		long protectedBytes;
+
+		long hits;
+		long misses;
+		long evictions;
+
+		Shard(long maxBytes) {
+			this.maxBytes = maxBytes;
+			this.maxProtectedBytes = maxBytes * PROTECTED_PERCENT / 100;
+			this.probation = new LinkedHashMap<Hash, byte[]>(16, 0.75f, true);
+			this.protect = new LinkedHashMap<Hash, byte[]>(16, 0.75f, true);
+		}
+
+		synchronized boolean contains(Hash hash) {
+			return protect.containsKey(hash) || probation.containsKey(hash);
+		}
+
+		synchronized void remove(Hash hash) {
+			byte[] data = protect.remove(hash);
+			if (data != null) {
+				protectedBytes -= cost(data);
+				evictions++;
+			}
+			data = probation.remove(hash);
+			if (data != null) {
+				probationBytes -= cost(data);
+				evictions++;
+			}
+		}
+
+		synchronized byte[] get(Hash hash) {
+			byte[] data = protect.get(hash);
+			if (data != null) {
+				hits++;
+				return data;
+			}
+
+			data = probation.remove(hash);
+			if (data == null) {
+				misses++;
+				return null;
+			}
+			hits++;
+			probationBytes -= cost(data);
+
+			// Promote, demoting the least recently used protected objects
+			protect.put(hash, data);
+			protectedBytes += cost(data);
+			Iterator<Map.Entry<Hash, byte[]>> it = protect.entrySet().iterator();
+			while (protectedBytes > maxProtectedBytes && it.hasNext()) {
+				Map.Entry<Hash, byte[]> eldest = it.next();
+				it.remove();
+				protectedBytes -= cost(eldest.getValue());
+				probation.put(eldest.getKey(), eldest.getValue());
+				probationBytes += cost(eldest.getValue());
+			}
+			trimTo(maxBytes);
+			return data;
+		}
+
+		synchronized void put(Hash hash, byte[] data) {
+			if (cost(data) > maxBytes - maxProtectedBytes || contains(hash))
+				return;
+			probation.put(hash, data);
+			probationBytes += cost(data);
+			trimTo(maxBytes);
+		}
+
+		/**
+		 * Evicts objects, probationary ones first, until at most the specified
+		 * bytes remain.
+		 */
+		synchronized void trimTo(long bytes) {
+			Iterator<Map.Entry<Hash, byte[]>> it = probation.entrySet().iterator();
+			while (probationBytes + protectedBytes > bytes && it.hasNext()) {
+				probationBytes -= cost(it.next().getValue());
+				it.remove();
+				evictions++;
+			}
+			it = protect.entrySet().iterator();
+			while (probationBytes + protectedBytes > bytes && it.hasNext()) {
+				protectedBytes -= cost(it.next().getValue());
+				it.remove();
+				evictions++;
+			}
+		}
+	}
+
+}
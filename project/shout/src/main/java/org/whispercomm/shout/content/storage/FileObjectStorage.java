@@ -15,12 +15,74 @@ import org.apache.commons.io.FileUtils;
 import org.whispercomm.shout.Hash;
 import org.whispercomm.shout.errors.NotFoundException;
 import org.whispercomm.shout.network.service.NetworkService;
+import org.whispercomm.shout.util.HashIndex;
 
 import android.content.Context;
 import android.content.Intent;
 import android.support.v4.content.LocalBroadcastManager;
-
+import android.util.Log;
+
+/**
+ * An {@link ObjectStorage} that writes each object to its own file, named by
+ * the hex encoding of its hash and placed in a directory named by the first
+ * two characters.
+ * <p>
+ * The hashes of the stored objects are kept in a {@link HashIndex}, shared by
+ * all instances over the same root and populated by a single scan of the
+ * directory on first use, so {@link #exists(Hash)} does not touch the file
+ * system.
+ *
+ * @author David R. Bild
+ */
 public class FileObjectStorage implements ObjectStorage {
+	private static final String TAG = FileObjectStorage.class.getSimpleName();
+
+	private static final Map<File, HashIndex> INDEXES = new HashMap<File, HashIndex>();
+
+	/**
+	 * Returns the index of the objects under the root, scanning the directory
+	 * if not yet indexed.
+	 */
+	private static HashIndex getIndex(File root) {
+		File key = root.getAbsoluteFile();
+		synchronized (INDEXES) {
+			HashIndex index = INDEXES.get(key);
+			if (index == null) {
+				index = scan(key);
+				INDEXES.put(key, index);
+			}
+			return index;
+		}
+	}
+
+	private static HashIndex scan(File root) {
+		HashIndex index = new HashIndex();
+		File[] dirs = root.listFiles();
+		if (dirs == null)
+			return index;
+
+		for (File dir : dirs) {
+			if (dir.getName().length() != 2)
+				continue;
+			String[] names = dir.list();
+			if (names == null)
+				continue;
+			for (String name : names) {
+				String hex = dir.getName() + name;
+				try {
+					Hash hash = new Hash(hex);
+					if (hash.toString().equals(hex)) {
+						index.add(hash);
+						continue;
+					}
+				} catch (RuntimeException e) {
+					// Not a hex-encoded hash
+				}
+				Log.w(TAG, "Ignoring unexpected file " + new File(dir, name));
+			}
+		}
+		return index;
+	}
 	/*
 	 * This broadcast manager stuff will be removed when avatar access is moved
 	 * into the content provider.
@@ -51,7 +113,10 @@ public class FileObjectStorage implements ObjectStorage {
 
 	@Override
 	public boolean exists(Hash hash) {
-		return getFile(hash).exists();
+		HashIndex index = getIndex(root);
+		synchronized (index) {
+			return index.contains(hash);
+		}
 	}
 
 	@Override
@@ -64,6 +129,11 @@ public class FileObjectStorage implements ObjectStorage {
 				throw new NotFoundException("The file contents do not match the hash.");
 			}
 		} catch (FileNotFoundException e) {
+			// Deleted behind our back, e.g., by a migration
+			HashIndex index = getIndex(root);
+			synchronized (index) {
+				index.remove(hash);
+			}
 			request(hash);
 			throw new NotFoundException(String.format("File '%s' not found.", hash));
 		}
@@ -78,6 +148,10 @@ public class FileObjectStorage implements ObjectStorage {
 	public Hash store(byte[] data, int offset, int len) throws IOException {
 		Hash hash = Hash.hashData(data, offset, len);
 		FileUtils.writeByteArrayToFile(getFile(hash), data, offset, len);
+		HashIndex index = getIndex(root);
+		synchronized (index) {
+			index.add(hash);
+		}
 		notifyListeners(hash);
 		return hash;
 	}
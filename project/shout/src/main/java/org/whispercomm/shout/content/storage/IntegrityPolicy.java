@@ -0,0 +1,22 @@
+package org.whispercomm.shout.content.storage;
+
+/**
+ * When an {@link ObjectStorage} checks that stored objects match their hash.
+ *
+ * @author David R. Bild
+ */
+public enum IntegrityPolicy {
+	/**
+	 * Objects are hashed on every read. Reads never return a corrupted
+	 * object, at the cost of a full SHA-256 pass per read.
+	 */
+	VerifyOnRead,
+
+	/**
+	 * Objects are hashed once when stored, which happens anyway to name them.
+	 * Reads check only a cheap checksum recorded with the object, and a
+	 * rate-limited background scrub re-hashes the stored objects to catch
+	 * corruption the checksum misses.
+	 */
+	TrustOnWrite;
+}
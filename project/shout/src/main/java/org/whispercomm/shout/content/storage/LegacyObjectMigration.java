@@ -0,0 +1,70 @@
+package org.whispercomm.shout.content.storage;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.commons.io.FileUtils;
+import org.whispercomm.shout.Hash;
+
+import android.util.Log;
+
+/**
+ * Moves objects from the file-per-object layout of {@link FileObjectStorage}
+ * into another {@link ObjectStorage}.
+ * <p>
+ * Each object file is stored in the target and then deleted, so an
+ * interrupted migration resumes where it stopped. Files whose contents do not
+ * match their name are deleted without being moved. Emptied directories are
+ * removed.
+ *
+ * @author David R. Bild
+ */
+public class LegacyObjectMigration {
+	private static final String TAG = LegacyObjectMigration.class.getSimpleName();
+
+	/**
+	 * Moves all objects under the root directory to the target.
+	 *
+	 * @param root the root directory of the file-per-object layout
+	 * @param target the storage receiving the objects
+	 * @return the number of objects moved
+	 * @throws IOException if an object cannot be read or stored
+	 */
+	public static int migrate(File root, ObjectStorage target) throws IOException {
+		File[] dirs = root.listFiles();
+		if (dirs == null)
+			return 0;
+
+		int count = 0;
+		for (File dir : dirs) {
+			if (!dir.isDirectory() || dir.getName().length() != 2)
+				continue;
+			File[] files = dir.listFiles();
+			if (files == null)
+				continue;
+
+			for (File file : files) {
+				String name = dir.getName() + file.getName();
+				if (!file.isFile() || name.length() != 2 * Hash.LENGTH)
+					continue;
+
+				byte[] data = FileUtils.readFileToByteArray(file);
+				if (name.equals(Hash.hashData(data).toString())) {
+					target.store(data);
+					count++;
+				} else {
+					Log.w(TAG, "Discarding object not matching its name: " + file);
+				}
+				if (!file.delete())
+					throw new IOException("Unable to delete migrated object " + file);
+			}
+			dir.delete();
+		}
+		root.delete();
+		return count;
+	}
+
+	private LegacyObjectMigration() {
+	}
+
+}
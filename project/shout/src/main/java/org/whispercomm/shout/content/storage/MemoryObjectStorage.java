@@ -0,0 +1,103 @@
+package org.whispercomm.shout.content.storage;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.whispercomm.shout.Hash;
+import org.whispercomm.shout.errors.NotFoundException;
+
+/**
+ * An {@link ObjectStorage} that keeps objects in memory. Nothing is
+ * persisted; used where no file system is available, such as in the network
+ * simulator.
+ * 
+ * @author David R. Bild
+ */
+public class MemoryObjectStorage implements ObjectStorage {
+
+	private final ConcurrentMap<Hash, byte[]> objects;
+
+	private final Map<Hash, List<ObjectListener>> listeners;
+
+	public MemoryObjectStorage() {
+		this.objects = new ConcurrentHashMap<Hash, byte[]>();
+		this.listeners = new HashMap<Hash, List<ObjectListener>>();
+	}
+
+	@Override
+	public boolean exists(Hash hash) {
+		return objects.containsKey(hash);
+	}
+
+	@Override
+	public byte[] retrieve(Hash hash) throws NotFoundException {
+		byte[] data = objects.get(hash);
+		if (data == null)
+			throw new NotFoundException(String.format("Object '%s' not found.", hash));
+		return data.clone();
+	}
+
+	@Override
+	public Hash store(byte[] data) {
+		return store(data, 0, data.length);
+	}
+
+	@Override
+	public Hash store(byte[] data, int offset, int len) {
+		Hash hash = Hash.hashData(data, offset, len);
+		byte[] copy = new byte[len];
+		System.arraycopy(data, offset, copy, 0, len);
+		objects.put(hash, copy);
+		notifyListeners(hash);
+		return hash;
+	}
+
+	/**
+	 * @return the number of objects stored
+	 */
+	public int size() {
+		return objects.size();
+	}
+
+	@Override
+	public void registerListener(ObjectListener listener, Hash hash) {
+		synchronized (listeners) {
+			List<ObjectListener> l = listeners.get(hash);
+			if (l == null) {
+				l = new ArrayList<ObjectListener>();
+				listeners.put(hash, l);
+			}
+			l.add(listener);
+		}
+	}
+
+	@Override
+	public void unregisterListener(ObjectListener listener, Hash hash) {
+		synchronized (listeners) {
+			List<ObjectListener> l = listeners.get(hash);
+			if (l == null)
+				return;
+
+			l.remove(listener);
+			if (l.isEmpty())
+				listeners.remove(hash);
+		}
+	}
+
+	private void notifyListeners(Hash hash) {
+		synchronized (listeners) {
+			List<ObjectListener> l = listeners.get(hash);
+			if (l == null)
+				return;
+
+			for (ObjectListener listener : l) {
+				listener.stored(hash);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,708 @@
+package org.whispercomm.shout.content.storage;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.whispercomm.shout.Hash;
+import org.whispercomm.shout.errors.NotFoundException;
+import org.whispercomm.shout.network.service.NetworkService;
+import org.whispercomm.shout.util.HashIndex;
+import org.whispercomm.shout.util.Threads;
+
+import android.content.Context;
+import android.content.Intent;
+import android.support.v4.content.LocalBroadcastManager;
+import android.util.Log;
+
+/**
+ * An {@link ObjectStorage} that appends objects to a few large segment files
+ * (see {@link PackSegment}) instead of writing each object to its own file.
+ * <p>
+ * An in-memory {@link HashIndex} maps each hash to the segment id, offset and
+ * length of its record, packed into a single {@code long}, so membership
+ * checks never touch the file system. It is rebuilt at startup from the
+ * footers of the sealed segments and a scan of the one segment still being
+ * appended to. Once the active segment exceeds {@link #SEGMENT_BYTES}, it is
+ * sealed and a new one started.
+ * <p>
+ * Under {@link IntegrityPolicy#TrustOnWrite}, reads check only the CRC32 of
+ * the record instead of hashing the data. A background scrub re-hashes every
+ * object at {@link #SCRUB_BYTES_PER_SECOND}, starting
+ * {@link #SCRUB_DELAY_MS} after opening and repeating every
+ * {@link #SCRUB_INTERVAL_MS}. Under {@link IntegrityPolicy#VerifyOnRead},
+ * every read hashes the data.
+ * <p>
+ * Objects failing either check are quarantined: they are removed from the
+ * index, so they are never returned again, and requested from the network
+ * anew. Their records become dead. Records also become dead when a later
+ * segment holds the same object, as after an interrupted compaction. Sealed
+ * segments with at least {@link #COMPACT_DEAD_PERCENT} percent dead bytes are
+ * compacted in the background by copying their live records to the active
+ * segment and deleting them.
+ * <p>
+ * Objects in the previous file-per-object layout are moved over in the
+ * background by {@link #migrateFrom(File, ObjectStorage)}, reading from the
+ * old storage until they are.
+ * <p>
+ * There is one instance per directory in a process, obtained with
+ * {@link #open(File, Context)}. This class is thread-safe.
+ *
+ * @author David R. Bild
+ */
+public class PackObjectStorage implements ObjectStorage {
+	private static final String TAG = PackObjectStorage.class.getSimpleName();
+
+	/**
+	 * size of a segment, in bytes, after which it is sealed and a new segment
+	 * started; at most 16 MB
+	 */
+	public static int SEGMENT_BYTES = 4 * 1024 * 1024;
+
+	/**
+	 * percentage of the record bytes of a sealed segment that must be dead for
+	 * the segment to be compacted
+	 */
+	public static int COMPACT_DEAD_PERCENT = 50;
+
+	/**
+	 * when stored objects are checked against their hash
+	 */
+	public static IntegrityPolicy INTEGRITY_POLICY = IntegrityPolicy.TrustOnWrite;
+
+	/**
+	 * rate at which the scrub re-hashes stored objects, in bytes per second
+	 */
+	public static int SCRUB_BYTES_PER_SECOND = 64 * 1024;
+
+	/**
+	 * delay from opening the storage to the first scrub, in milliseconds
+	 */
+	public static long SCRUB_DELAY_MS = 60 * 1000;
+
+	/**
+	 * delay from the end of one scrub to the start of the next, in
+	 * milliseconds
+	 */
+	public static long SCRUB_INTERVAL_MS = 24 * 60 * 60 * 1000;
+
+	/**
+	 * Maximum objects re-hashed per step of the scrub
+	 */
+	private static final int SCRUB_BATCH = 32;
+
+	private static final String SEGMENT_SUFFIX = ".pack";
+
+	/*
+	 * Index values pack the segment id, data offset and data length.
+	 */
+	private static final int ID_BITS = 20;
+	private static final int OFFSET_BITS = 24;
+	private static final int LENGTH_BITS = 20;
+
+	private static final int MAX_SEGMENT_ID = (1 << ID_BITS) - 2;
+
+	private static final int MAX_OFFSET = (1 << OFFSET_BITS) - 1;
+
+	/**
+	 * largest object that can be stored, in bytes
+	 */
+	public static final int MAX_OBJECT_LEN = (1 << LENGTH_BITS) - 1;
+
+	/**
+	 * Index value of a missing key. No record packs to it, as its segment id
+	 * exceeds {@link #MAX_SEGMENT_ID}.
+	 */
+	private static final long MISSING = -1L;
+
+	private static final Map<File, PackObjectStorage> OPEN = new HashMap<File, PackObjectStorage>();
+
+	/**
+	 * Opens the storage in the given directory, creating it if needed, or
+	 * returns the instance already open in this process.
+	 *
+	 * @param dir the directory holding the segment files
+	 * @param context the context used to request missing objects, or
+	 *            {@code null} to not request them
+	 * @return the storage
+	 * @throws IOException if the directory cannot be read
+	 */
+	public static PackObjectStorage open(File dir, Context context) throws IOException {
+		File key = dir.getCanonicalFile();
+		synchronized (OPEN) {
+			PackObjectStorage storage = OPEN.get(key);
+			if (storage == null) {
+				storage = new PackObjectStorage(key, context);
+				OPEN.put(key, storage);
+			}
+			return storage;
+		}
+	}
+
+	private final File dir;
+
+	private final LocalBroadcastManager broadcastManager;
+
+	private final HashIndex index;
+
+	private final SortedMap<Integer, PackSegment> segments;
+
+	private PackSegment active;
+
+	/**
+	 * Runs compaction, migration and scrubbing
+	 */
+	private final ScheduledExecutorService executor;
+
+	private final Set<PackSegment> compacting;
+
+	/**
+	 * Storage in the previous layout, read while its objects are migrated
+	 */
+	private volatile ObjectStorage legacy;
+
+	private boolean migrating;
+
+	private final Map<Hash, List<ObjectListener>> listeners;
+
+	private long compactions;
+	private long reclaimedBytes;
+
+	/**
+	 * Index slot at which the next scrub step starts
+	 */
+	private int scrubSlot;
+
+	private long scrubbedBytes;
+	private long scrubs;
+	private long quarantined;
+
+	private PackObjectStorage(File dir, Context context) throws IOException {
+		this.dir = dir;
+		this.broadcastManager = (context == null) ? null : LocalBroadcastManager
+				.getInstance(context.getApplicationContext());
+		this.index = new HashIndex();
+		this.segments = new TreeMap<Integer, PackSegment>();
+		this.executor = Executors
+				.newSingleThreadScheduledExecutor(new Threads.BackgroundThreadFactory());
+		this.compacting = new HashSet<PackSegment>();
+		this.listeners = new HashMap<Hash, List<ObjectListener>>();
+		load();
+		if (INTEGRITY_POLICY == IntegrityPolicy.TrustOnWrite)
+			scheduleScrub(SCRUB_DELAY_MS);
+	}
+
+	@Override
+	public boolean exists(Hash hash) {
+		synchronized (this) {
+			if (index.contains(hash))
+				return true;
+		}
+		ObjectStorage l = legacy;
+		return l != null && l.exists(hash);
+	}
+
+	@Override
+	public byte[] retrieve(Hash hash) throws NotFoundException, IOException {
+		for (int attempt = 0;; ++attempt) {
+			long location;
+			PackSegment segment;
+			synchronized (this) {
+				location = index.get(hash, MISSING);
+				segment = (location == MISSING) ? null : segments.get(segmentId(location));
+				// A record whose segment could not be opened
+				if (segment == null)
+					index.remove(hash);
+			}
+			if (segment == null)
+				return retrieveMissing(hash);
+
+			byte[] data;
+			try {
+				if (INTEGRITY_POLICY == IntegrityPolicy.TrustOnWrite) {
+					data = segment.readChecked(hash, offset(location), length(location));
+				} else {
+					data = segment.read(offset(location), length(location));
+					if (!hash.equals(Hash.hashData(data)))
+						data = null;
+				}
+			} catch (ClosedChannelException e) {
+				// Compacted since looked up
+				if (attempt == 0 && segment.isRetired())
+					continue;
+				throw e;
+			}
+
+			if (data != null)
+				return data;
+			quarantine(hash, location);
+			return retrieveMissing(hash);
+		}
+	}
+
+	@Override
+	public Hash store(byte[] data) throws IOException {
+		return store(data, 0, data.length);
+	}
+
+	@Override
+	public Hash store(byte[] data, int offset, int len) throws IOException {
+		Hash hash = Hash.hashData(data, offset, len);
+		synchronized (this) {
+			if (!index.contains(hash))
+				append(hash, data, offset, len);
+		}
+		notifyListeners(hash);
+		return hash;
+	}
+
+	/**
+	 * Moves the objects of the file-per-object layout into this storage in
+	 * the background (see {@link LegacyObjectMigration}). Until done, objects
+	 * not yet moved are read from the given storage over the same directory.
+	 *
+	 * @param legacyRoot the root directory of the previous layout
+	 * @param legacyStorage the storage reading the previous layout
+	 */
+	public synchronized void migrateFrom(final File legacyRoot, ObjectStorage legacyStorage) {
+		if (migrating || !legacyRoot.exists())
+			return;
+		migrating = true;
+		legacy = legacyStorage;
+		try {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						int count = LegacyObjectMigration.migrate(legacyRoot,
+								PackObjectStorage.this);
+						Log.i(TAG, "Migrated " + count + " objects from " + legacyRoot);
+						legacy = null;
+					} catch (IOException e) {
+						Log.w(TAG, "Failed to migrate objects from " + legacyRoot, e);
+					} finally {
+						synchronized (PackObjectStorage.this) {
+							migrating = false;
+						}
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			migrating = false;
+		}
+	}
+
+	/**
+	 * Flushes and closes the segments. The storage cannot be used afterwards,
+	 * but the directory may be opened again.
+	 */
+	public void close() {
+		synchronized (OPEN) {
+			OPEN.remove(dir);
+		}
+		executor.shutdownNow();
+		synchronized (this) {
+			try {
+				active.force();
+			} catch (IOException e) {
+				Log.w(TAG, "Failed to flush segment " + active.file, e);
+			}
+			for (PackSegment segment : segments.values())
+				segment.retire();
+		}
+	}
+
+	/**
+	 * @return the number of objects stored
+	 */
+	public synchronized int size() {
+		return index.size();
+	}
+
+	/**
+	 * @return the number of segment files
+	 */
+	public synchronized int getSegmentCount() {
+		return segments.size();
+	}
+
+	/**
+	 * @return the number of segments compacted
+	 */
+	public synchronized long getCompactionCount() {
+		return compactions;
+	}
+
+	/**
+	 * @return the number of complete scrubs of the stored objects
+	 */
+	public synchronized long getScrubCount() {
+		return scrubs;
+	}
+
+	/**
+	 * @return the number of objects quarantined for not matching their hash
+	 */
+	public synchronized long getQuarantinedCount() {
+		return quarantined;
+	}
+
+	@Override
+	public synchronized String toString() {
+		long recordBytes = 0;
+		long deadBytes = 0;
+		for (PackSegment segment : segments.values()) {
+			recordBytes += segment.getRecordBytes();
+			deadBytes += segment.deadBytes;
+		}
+		return String
+				.format("PackObjectStorage[objects=%d, segments=%d, recordBytes=%d, deadBytes=%d, compactions=%d, reclaimedBytes=%d, scrubs=%d, scrubbedBytes=%d, quarantined=%d]",
+						index.size(), segments.size(), recordBytes, deadBytes, compactions,
+						reclaimedBytes, scrubs, scrubbedBytes, quarantined);
+	}
+
+	private void load() throws IOException {
+		if (!dir.exists() && !dir.mkdirs())
+			throw new IOException("Unable to create directory " + dir);
+		String[] names = dir.list(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String filename) {
+				return filename.endsWith(SEGMENT_SUFFIX);
+			}
+		});
+		if (names == null)
+			throw new IOException("Unable to list directory " + dir);
+
+		SortedMap<Integer, File> files = new TreeMap<Integer, File>();
+		for (String name : names) {
+			try {
+				int id = Integer.parseInt(name.substring(0, name.length()
+						- SEGMENT_SUFFIX.length()));
+				files.put(id, new File(dir, name));
+			} catch (NumberFormatException e) {
+				Log.w(TAG, "Ignoring unexpected file " + name);
+			}
+		}
+
+		PackSegment.Visitor visitor = new PackSegment.Visitor() {
+			@Override
+			public void record(PackSegment segment, Hash hash, int offset, int length) {
+				if (segment.id > MAX_SEGMENT_ID || offset > MAX_OFFSET || length > MAX_OBJECT_LEN) {
+					Log.w(TAG, "Ignoring unaddressable record in " + segment.file);
+					return;
+				}
+				long previous = index.get(hash, MISSING);
+				index.put(hash, location(segment.id, offset, length));
+				// Later segments hold the newer copy
+				if (previous != MISSING) {
+					PackSegment old = (segmentId(previous) == segment.id) ? segment : segments
+							.get(segmentId(previous));
+					if (old != null)
+						old.deadBytes += PackSegment.RECORD_HEADER_LEN + length(previous);
+				}
+			}
+		};
+		for (Map.Entry<Integer, File> file : files.entrySet()) {
+			try {
+				segments.put(file.getKey(),
+						PackSegment.open(file.getValue(), file.getKey(), visitor));
+			} catch (IOException e) {
+				Log.w(TAG, "Ignoring unreadable segment " + file.getValue(), e);
+			}
+		}
+
+		// Only the newest segment continues to take records
+		for (PackSegment segment : segments.values()) {
+			if (segments.lastKey() == segment.id && !segment.isSealed())
+				active = segment;
+			else
+				segment.seal();
+		}
+		if (active == null)
+			roll();
+
+		for (PackSegment segment : segments.values())
+			scheduleCompaction(segment);
+	}
+
+	private void append(Hash hash, byte[] data, int offset, int length) throws IOException {
+		if (length > MAX_OBJECT_LEN)
+			throw new IOException(String.format("Object of %d bytes exceeds the limit of %d.",
+					length, MAX_OBJECT_LEN));
+		long segmentBytes = Math.min(SEGMENT_BYTES, MAX_OFFSET);
+		if (active.size() + PackSegment.RECORD_HEADER_LEN + length > segmentBytes
+				&& active.getRecordBytes() > 0)
+			roll();
+		int dataOffset = active.append(hash, data, offset, length);
+		index.put(hash, location(active.id, dataOffset, length));
+	}
+
+	/**
+	 * Seals the active segment and starts a new one.
+	 */
+	private void roll() throws IOException {
+		if (active != null)
+			active.seal();
+		int id = segments.isEmpty() ? 0 : segments.lastKey() + 1;
+		if (id > MAX_SEGMENT_ID)
+			throw new IOException("Out of segment ids in " + dir);
+		active = PackSegment.create(new File(dir, String.format("%08d%s", id, SEGMENT_SUFFIX)),
+				id);
+		segments.put(id, active);
+	}
+
+	private synchronized void drop(Hash hash, long location) {
+		if (index.get(hash, MISSING) != location)
+			return;
+		index.remove(hash);
+		PackSegment segment = segments.get(segmentId(location));
+		if (segment == null)
+			return;
+		segment.deadBytes += PackSegment.RECORD_HEADER_LEN + length(location);
+		scheduleCompaction(segment);
+	}
+
+	private void scheduleCompaction(final PackSegment segment) {
+		if (!segment.isSealed() || compacting.contains(segment))
+			return;
+		if (segment.deadBytes * 100 < COMPACT_DEAD_PERCENT * segment.getRecordBytes())
+			return;
+		compacting.add(segment);
+		try {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					compact(segment);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			compacting.remove(segment);
+		}
+	}
+
+	/**
+	 * Copies the live records of the segment to the active segment and
+	 * deletes it. Records are read without holding the lock, so each is
+	 * copied only if still indexed at the location read.
+	 */
+	private void compact(PackSegment segment) {
+		List<Hash> live = new ArrayList<Hash>();
+		synchronized (this) {
+			for (int slot = 0; slot < index.capacity(); ++slot) {
+				if (index.isOccupied(slot) && segmentId(index.valueAt(slot)) == segment.id)
+					live.add(index.keyAt(slot));
+			}
+		}
+
+		try {
+			for (Hash hash : live) {
+				long location;
+				synchronized (this) {
+					location = index.get(hash, MISSING);
+				}
+				if (location == MISSING || segmentId(location) != segment.id)
+					continue;
+
+				byte[] data = segment.read(offset(location), length(location));
+				if (!hash.equals(Hash.hashData(data))) {
+					quarantine(hash, location);
+					request(hash);
+					continue;
+				}
+				synchronized (this) {
+					if (index.get(hash, MISSING) == location)
+						append(hash, data, 0, data.length);
+				}
+			}
+			active.force();
+		} catch (IOException e) {
+			Log.w(TAG, "Failed to compact segment " + segment.file, e);
+			synchronized (this) {
+				compacting.remove(segment);
+			}
+			return;
+		}
+
+		synchronized (this) {
+			segments.remove(segment.id);
+			compacting.remove(segment);
+			compactions++;
+			reclaimedBytes += segment.deadBytes;
+		}
+		segment.retire();
+		if (!segment.file.delete())
+			Log.w(TAG, "Failed to delete compacted segment " + segment.file);
+	}
+
+	/**
+	 * Removes an object not matching its hash from the index, leaving its
+	 * record dead.
+	 */
+	private void quarantine(Hash hash, long location) {
+		Log.w(TAG, "Quarantining stored object not matching its hash: " + hash);
+		synchronized (this) {
+			if (index.get(hash, MISSING) == location)
+				quarantined++;
+			drop(hash, location);
+		}
+	}
+
+	private void scheduleScrub(long delayMs) {
+		try {
+			executor.schedule(new Runnable() {
+				@Override
+				public void run() {
+					scrub();
+				}
+			}, delayMs, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			// Closed
+		}
+	}
+
+	/**
+	 * Re-hashes the objects in the next few index slots and schedules the next
+	 * step after the time those bytes are allotted at
+	 * {@link #SCRUB_BYTES_PER_SECOND}. Objects stored or moved by a growing
+	 * index during a scrub may be skipped until the next one.
+	 */
+	private void scrub() {
+		List<Hash> hashes = new ArrayList<Hash>(SCRUB_BATCH);
+		long[] locations = new long[SCRUB_BATCH];
+		boolean done;
+		synchronized (this) {
+			while (scrubSlot < index.capacity() && hashes.size() < SCRUB_BATCH) {
+				if (index.isOccupied(scrubSlot)) {
+					locations[hashes.size()] = index.valueAt(scrubSlot);
+					hashes.add(index.keyAt(scrubSlot));
+				}
+				scrubSlot++;
+			}
+			done = scrubSlot >= index.capacity();
+		}
+
+		long bytes = 0;
+		for (int i = 0; i < hashes.size(); ++i) {
+			Hash hash = hashes.get(i);
+			long location = locations[i];
+			PackSegment segment;
+			synchronized (this) {
+				segment = segments.get(segmentId(location));
+			}
+			if (segment == null)
+				continue;
+
+			try {
+				byte[] data = segment.read(offset(location), length(location));
+				bytes += data.length;
+				if (!hash.equals(Hash.hashData(data))) {
+					quarantine(hash, location);
+					request(hash);
+				}
+			} catch (ClosedChannelException e) {
+				// Compacted since looked up, or closed
+				if (Thread.currentThread().isInterrupted())
+					return;
+			} catch (IOException e) {
+				Log.w(TAG, "Failed to scrub object " + hash, e);
+			}
+		}
+
+		synchronized (this) {
+			scrubbedBytes += bytes;
+			if (done) {
+				scrubSlot = 0;
+				scrubs++;
+			}
+		}
+		if (done)
+			scheduleScrub(SCRUB_INTERVAL_MS);
+		else
+			scheduleScrub(bytes * 1000 / Math.max(1, SCRUB_BYTES_PER_SECOND));
+	}
+
+	private byte[] retrieveMissing(Hash hash) throws NotFoundException, IOException {
+		ObjectStorage l = legacy;
+		if (l != null)
+			return l.retrieve(hash);
+		request(hash);
+		throw new NotFoundException(String.format("Object '%s' not found.", hash));
+	}
+
+	@Override
+	public void registerListener(ObjectListener listener, Hash hash) {
+		synchronized (listeners) {
+			List<ObjectListener> l = listeners.get(hash);
+			if (l == null) {
+				l = new ArrayList<ObjectListener>();
+				listeners.put(hash, l);
+			}
+			l.add(listener);
+		}
+	}
+
+	@Override
+	public void unregisterListener(ObjectListener listener, Hash hash) {
+		synchronized (listeners) {
+			List<ObjectListener> l = listeners.get(hash);
+			if (l == null)
+				return;
+
+			l.remove(listener);
+			if (l.isEmpty())
+				listeners.remove(hash);
+		}
+	}
+
+	private void notifyListeners(Hash hash) {
+		synchronized (listeners) {
+			List<ObjectListener> l = listeners.get(hash);
+			if (l == null)
+				return;
+
+			for (ObjectListener listener : l) {
+				listener.stored(hash);
+			}
+		}
+	}
+
+	/* Removed when avatar access is put into ContentProvider */
+	private void request(Hash hash) {
+		if (broadcastManager == null)
+			return;
+		Intent i = new Intent(NetworkService.ACTION_REQUEST_CONTENT);
+		i.putExtra(NetworkService.EXTRA_HASH, hash.toByteArray());
+		broadcastManager.sendBroadcast(i);
+	}
+
+	private static long location(int segmentId, int offset, int length) {
+		return ((long) segmentId << (OFFSET_BITS + LENGTH_BITS))
+				| ((long) offset << LENGTH_BITS) | length;
+	}
+
+	private static int segmentId(long location) {
+		return (int) (location >>> (OFFSET_BITS + LENGTH_BITS));
+	}
+
+	private static int offset(long location) {
+		return (int) (location >>> LENGTH_BITS) & MAX_OFFSET;
+	}
+
+	private static int length(long location) {
+		return (int) location & MAX_OBJECT_LEN;
+	}
+
+}
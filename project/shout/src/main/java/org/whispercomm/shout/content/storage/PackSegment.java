@@ -0,0 +1,428 @@
+package org.whispercomm.shout.content.storage;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import org.whispercomm.shout.Hash;
+
+/**
+ * One append-only segment file of a {@link PackObjectStorage}.
+ * <p>
+ * A segment starts with a header of a magic number and version, followed by
+ * records. Each record is the object hash, the data length, a CRC32 of the
+ * data, and the data. A full segment is sealed by appending a footer that
+ * lists the hash, data offset and length of each record, then a trailer of
+ * the entry count, the footer offset, a CRC32 of the entries and a second
+ * magic number.
+ * <p>
+ * The records of a sealed segment are read from its footer. A segment that
+ * was still being appended to when the process stopped has no footer, so it
+ * is scanned record by record and truncated after the last intact record.
+ * <p>
+ * Reads are positional, so any number of threads may read at once. Appends
+ * and sealing must be serialized by the caller.
+ *
+ * @author David R. Bild
+ */
+class PackSegment {
+
+	static final int MAGIC = 0x5348504B;
+
+	static final int FOOTER_MAGIC = 0x53485046;
+
+	static final int VERSION = 1;
+
+	static final int HEADER_LEN = 8;
+
+	static final int RECORD_HEADER_LEN = Hash.LENGTH + 4 + 4;
+
+	static final int ENTRY_LEN = Hash.LENGTH + 4 + 4;
+
+	static final int TRAILER_LEN = 16;
+
+	/**
+	 * Receives the records of a segment as it is opened.
+	 */
+	interface Visitor {
+		/**
+		 * @param segment the segment holding the record
+		 * @param hash the object hash
+		 * @param offset the offset of the data in the segment
+		 * @param length the length of the data
+		 */
+		void record(PackSegment segment, Hash hash, int offset, int length);
+	}
+
+	/**
+	 * Creates an empty segment, replacing any existing file.
+	 *
+	 * @param file the segment file
+	 * @param id the segment id
+	 * @return the segment, open for appending
+	 */
+	static PackSegment create(File file, int id) throws IOException {
+		PackSegment segment = new PackSegment(file, id);
+		ByteBuffer header = ByteBuffer.allocate(HEADER_LEN);
+		header.putInt(MAGIC);
+		header.putInt(VERSION);
+		header.flip();
+		segment.channel.truncate(0);
+		segment.writeFully(header, 0);
+		segment.end = HEADER_LEN;
+		segment.entries = new ArrayList<Entry>();
+		return segment;
+	}
+
+	/**
+	 * Opens an existing segment, passing each record to the visitor.
+	 *
+	 * @param file the segment file
+	 * @param id the segment id
+	 * @param visitor receives the records
+	 * @return the segment
+	 * @throws IOException if the file is not a segment or cannot be read
+	 */
+	static PackSegment open(File file, int id, Visitor visitor) throws IOException {
+		PackSegment segment = new PackSegment(file, id);
+		try {
+			segment.load(visitor);
+		} catch (IOException e) {
+			segment.retire();
+			throw e;
+		}
+		return segment;
+	}
+
+	final int id;
+
+	final File file;
+
+	private FileChannel channel;
+
+	private boolean retired;
+
+	/**
+	 * End of the records, where the next record or the footer is written
+	 */
+	private long end;
+
+	/**
+	 * Bytes of all records, including dead ones
+	 */
+	private long recordBytes;
+
+	/**
+	 * Bytes of records no longer indexed, maintained by the storage
+	 */
+	long deadBytes;
+
+	/**
+	 * Records of an unsealed segment, written to the footer when sealed, or
+	 * {@code null} once sealed
+	 */
+	private List<Entry> entries;
+
+	private PackSegment(File file, int id) throws IOException {
+		this.file = file;
+		this.id = id;
+		this.channel = new RandomAccessFile(file, "rw").getChannel();
+	}
+
+	/**
+	 * Appends a record.
+	 *
+	 * @return the offset of the data in the segment
+	 */
+	int append(Hash hash, byte[] data, int offset, int length) throws IOException {
+		if (entries == null)
+			throw new IllegalStateException("Segment is sealed.");
+
+		CRC32 crc = new CRC32();
+		crc.update(data, offset, length);
+		ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_LEN);
+		header.put(hash.toByteArray());
+		header.putInt(length);
+		header.putInt((int) crc.getValue());
+		header.flip();
+		writeFully(header, end);
+		writeFully(ByteBuffer.wrap(data, offset, length), end + RECORD_HEADER_LEN);
+
+		int dataOffset = (int) end + RECORD_HEADER_LEN;
+		end += RECORD_HEADER_LEN + length;
+		recordBytes += RECORD_HEADER_LEN + length;
+		entries.add(new Entry(hash, dataOffset, length));
+		return dataOffset;
+	}
+
+	/**
+	 * Reads the data of a record.
+	 *
+	 * @throws ClosedChannelException if the segment was retired
+	 */
+	byte[] read(int offset, int length) throws IOException {
+		return readAt(offset, length).array();
+	}
+
+	/**
+	 * Reads the data of a record along with its header, checking that the
+	 * header matches and the data matches the CRC32 in the header. This is
+	 * much cheaper than hashing the data, but only detects accidental
+	 * corruption.
+	 *
+	 * @return the data, or {@code null} if the check failed
+	 * @throws ClosedChannelException if the segment was retired
+	 */
+	byte[] readChecked(Hash hash, int offset, int length) throws IOException {
+		if (offset < HEADER_LEN + RECORD_HEADER_LEN)
+			return null;
+		ByteBuffer record = readAt(offset - RECORD_HEADER_LEN, RECORD_HEADER_LEN + length);
+		byte[] data = record.array();
+		byte[] expected = hash.toByteArray();
+		for (int i = 0; i < Hash.LENGTH; ++i) {
+			if (data[i] != expected[i])
+				return null;
+		}
+		record.position(Hash.LENGTH);
+		if (record.getInt() != length)
+			return null;
+		int checksum = record.getInt();
+		CRC32 crc = new CRC32();
+		crc.update(data, RECORD_HEADER_LEN, length);
+		if ((int) crc.getValue() != checksum)
+			return null;
+		return Arrays.copyOfRange(data, RECORD_HEADER_LEN, RECORD_HEADER_LEN + length);
+	}
+
+	private ByteBuffer readAt(long position, int length) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		for (int attempt = 0;; ++attempt) {
+			try {
+				readFully(channel(), buffer, position);
+				return buffer;
+			} catch (ClosedByInterruptException e) {
+				// This thread was interrupted. The next call reopens.
+				throw e;
+			} catch (ClosedChannelException e) {
+				// Closed by an interrupt of another thread
+				if (attempt > 0 || isRetired())
+					throw e;
+				buffer.clear();
+			}
+		}
+	}
+
+	/**
+	 * Writes the footer, after which no more records can be appended.
+	 */
+	void seal() throws IOException {
+		if (entries == null)
+			return;
+
+		ByteBuffer footer = ByteBuffer.allocate(entries.size() * ENTRY_LEN + TRAILER_LEN);
+		for (Entry entry : entries) {
+			footer.put(entry.hash.toByteArray());
+			footer.putInt(entry.offset);
+			footer.putInt(entry.length);
+		}
+		CRC32 crc = new CRC32();
+		crc.update(footer.array(), 0, footer.position());
+		footer.putInt(entries.size());
+		footer.putInt((int) end);
+		footer.putInt((int) crc.getValue());
+		footer.putInt(FOOTER_MAGIC);
+		footer.flip();
+		writeFully(footer, end);
+		channel().force(false);
+		entries = null;
+	}
+
+	boolean isSealed() {
+		return entries == null;
+	}
+
+	/**
+	 * @return the size of the header and records, in bytes
+	 */
+	long size() {
+		return end;
+	}
+
+	/**
+	 * @return the bytes of all records, including dead ones
+	 */
+	long getRecordBytes() {
+		return recordBytes;
+	}
+
+	/**
+	 * Flushes appended records to the storage device.
+	 */
+	void force() throws IOException {
+		channel().force(false);
+	}
+
+	/**
+	 * Closes the segment. Later reads throw {@link ClosedChannelException}.
+	 */
+	synchronized void retire() {
+		retired = true;
+		try {
+			channel.close();
+		} catch (IOException e) {
+			// Nothing more to do
+		}
+	}
+
+	synchronized boolean isRetired() {
+		return retired;
+	}
+
+	/**
+	 * Returns the channel, reopening it if an interrupted thread closed it.
+	 */
+	private synchronized FileChannel channel() throws IOException {
+		if (retired)
+			throw new ClosedChannelException();
+		if (!channel.isOpen())
+			channel = new RandomAccessFile(file, "rw").getChannel();
+		return channel;
+	}
+
+	private void load(Visitor visitor) throws IOException {
+		long size = channel.size();
+		ByteBuffer header = ByteBuffer.allocate(HEADER_LEN);
+		if (size < HEADER_LEN)
+			throw new IOException("Segment too short: " + file);
+		readFully(channel, header, 0);
+		header.flip();
+		if (header.getInt() != MAGIC)
+			throw new IOException("Not a pack segment: " + file);
+		int version = header.getInt();
+		if (version != VERSION)
+			throw new IOException("Unsupported pack segment version " + version + ": " + file);
+
+		if (!loadFooter(size, visitor))
+			scan(size, visitor);
+	}
+
+	/**
+	 * Reads the records from the footer.
+	 *
+	 * @return {@code false} if the segment has no intact footer
+	 */
+	private boolean loadFooter(long size, Visitor visitor) throws IOException {
+		if (size < HEADER_LEN + TRAILER_LEN)
+			return false;
+		ByteBuffer trailer = ByteBuffer.allocate(TRAILER_LEN);
+		readFully(channel, trailer, size - TRAILER_LEN);
+		trailer.flip();
+		int count = trailer.getInt();
+		long footerOffset = 0xFFFFFFFFL & trailer.getInt();
+		int checksum = trailer.getInt();
+		if (trailer.getInt() != FOOTER_MAGIC)
+			return false;
+		if (count < 0 || footerOffset < HEADER_LEN
+				|| footerOffset + (long) count * ENTRY_LEN + TRAILER_LEN != size)
+			return false;
+
+		ByteBuffer footer = ByteBuffer.allocate(count * ENTRY_LEN);
+		readFully(channel, footer, footerOffset);
+		CRC32 crc = new CRC32();
+		crc.update(footer.array(), 0, footer.capacity());
+		if ((int) crc.getValue() != checksum)
+			return false;
+
+		footer.flip();
+		byte[] hash = new byte[Hash.LENGTH];
+		for (int i = 0; i < count; ++i) {
+			footer.get(hash);
+			int offset = footer.getInt();
+			int length = footer.getInt();
+			if (offset < HEADER_LEN + RECORD_HEADER_LEN || length < 0
+					|| offset + (long) length > footerOffset)
+				return false;
+			recordBytes += RECORD_HEADER_LEN + length;
+			visitor.record(this, new Hash(hash.clone()), offset, length);
+		}
+		end = footerOffset;
+		entries = null;
+		return true;
+	}
+
+	/**
+	 * Reads the records one by one, truncating the file after the last intact
+	 * one.
+	 */
+	private void scan(long size, Visitor visitor) throws IOException {
+		entries = new ArrayList<Entry>();
+		long position = HEADER_LEN;
+		ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_LEN);
+		byte[] hash = new byte[Hash.LENGTH];
+		while (position + RECORD_HEADER_LEN <= size) {
+			header.clear();
+			readFully(channel, header, position);
+			header.flip();
+			header.get(hash);
+			int length = header.getInt();
+			int checksum = header.getInt();
+			if (length < 0 || position + RECORD_HEADER_LEN + length > size)
+				break;
+
+			ByteBuffer data = ByteBuffer.allocate(length);
+			readFully(channel, data, position + RECORD_HEADER_LEN);
+			CRC32 crc = new CRC32();
+			crc.update(data.array(), 0, length);
+			if ((int) crc.getValue() != checksum)
+				break;
+
+			int offset = (int) position + RECORD_HEADER_LEN;
+			Hash h = new Hash(hash.clone());
+			entries.add(new Entry(h, offset, length));
+			recordBytes += RECORD_HEADER_LEN + length;
+			visitor.record(this, h, offset, length);
+			position += RECORD_HEADER_LEN + length;
+		}
+		end = position;
+		if (position < size)
+			channel.truncate(position);
+	}
+
+	private void writeFully(ByteBuffer buffer, long position) throws IOException {
+		FileChannel ch = channel();
+		while (buffer.hasRemaining())
+			position += ch.write(buffer, position);
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position)
+			throws IOException {
+		while (buffer.hasRemaining()) {
+			int n = channel.read(buffer, position);
+			if (n < 0)
+				throw new EOFException("Unexpected end of segment.");
+			position += n;
+		}
+	}
+
+	private static class Entry {
+		final Hash hash;
+		final int offset;
+		final int length;
+
+		Entry(Hash hash, int offset, int length) {
+			this.hash = hash;
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+
+}
@@ -0,0 +1,254 @@
+package org.whispercomm.shout.crypto;
+
+import java.math.BigInteger;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.spongycastle.crypto.params.ECDomainParameters;
+import org.whispercomm.shout.crypto.JacobianCurve.Affine;
+import org.whispercomm.shout.crypto.JacobianCurve.Jacobian;
+import org.whispercomm.shout.crypto.JacobianCurve.Table;
+
+import android.support.v4.util.LruCache;
+
+/**
+ * ECDSA signature verifier that keeps precomputed multiplication tables for
+ * the generator and for frequently seen public keys.
+ * <p>
+ * Verification is dominated by the computation of u1*G + u2*Q. This class
+ * computes it in Jacobian coordinates with interleaved wNAF multiplication
+ * (see {@link JacobianCurve}), using a large fixed-base table for the
+ * generator G. Public keys get a small table on first use. Once a key has
+ * been used {@link #PROMOTE_THRESHOLD} times, its table is rebuilt with the
+ * scalar split into {@link #WARM_SPLITS} pieces, which cuts the number of
+ * doublings by the same factor. The tables are held in an LRU cache bounded
+ * by the number of keys.
+ * <p>
+ * Results are identical to bouncycastle's {@code ECDSASigner}.
+ * <p>
+ * This class is thread-safe.
+ *
+ * @author David R. Bild
+ */
+public class EcdsaVerifier {
+
+	/**
+	 * Default number of public keys for which tables are cached.
+	 */
+	public static final int DEFAULT_MAX_KEYS = 32;
+
+	/**
+	 * Number of uses after which a key gets the larger, split table.
+	 */
+	public static final int PROMOTE_THRESHOLD = 2;
+
+	/**
+	 * wNAF window width for generator tables.
+	 */
+	private static final int G_WIDTH = 7;
+
+	/**
+	 * wNAF window width for public key tables.
+	 */
+	private static final int KEY_WIDTH = 5;
+
+	/**
+	 * Number of scalar splits for the generator and warm public keys.
+	 */
+	private static final int WARM_SPLITS = 4;
+
+	private static EcdsaVerifier instance;
+
+	/**
+	 * @return the shared verifier for the default domain parameters
+	 */
+	public static synchronized EcdsaVerifier getInstance() {
+		if (instance == null)
+			instance = new EcdsaVerifier(CryptoParams.DOMAIN_PARAMS, DEFAULT_MAX_KEYS);
+		return instance;
+	}
+
+	private final JacobianCurve curve;
+
+	private final BigInteger n;
+
+	private final Table gTable;
+
+	private final LruCache<ECPublicKey, KeyEntry> keys;
+
+	/**
+	 * @param params the domain parameters. The curve must be over a prime field
+	 *            and have {@code a = -3}.
+	 * @param maxKeys the maximum number of public keys for which to cache
+	 *            tables
+	 */
+	public EcdsaVerifier(ECDomainParameters params, int maxKeys) {
+		this.curve = new JacobianCurve(params);
+		this.n = params.getN();
+		this.gTable = curve.buildTable(curve.getG(), G_WIDTH, WARM_SPLITS);
+		this.keys = new LruCache<ECPublicKey, KeyEntry>(maxKeys);
+	}
+
+	/**
+	 * Verifies the signature of the message digest.
+	 *
+	 * @param digest the message digest
+	 * @param sig the signature
+	 * @param publicKey the public key of the signer
+	 * @return {@code true} if the signature is valid, {@code false} otherwise
+	 */
+	public boolean verify(byte[] digest, DsaSignature sig, ECPublicKey publicKey) {
+		BigInteger r = sig.getR();
+		BigInteger s = sig.getS();
+		if (!inRange(r) || !inRange(s))
+			return false;
+
+		Table qTable = getTable(publicKey);
+		if (qTable == null)
+			return false;
+
+		BigInteger e = calculateE(digest);
+		BigInteger w = s.modInverse(n);
+		return verify(e, r, w, qTable);
+	}
+
+	/**
+	 * Verifies a batch of signatures. The inverses of the s values are
+	 * computed with a single modular inversion (Montgomery's simultaneous
+	 * inversion), instead of one inversion per signature.
+	 *
+	 * @param digests the message digests
+	 * @param sigs the signatures
+	 * @param publicKeys the public keys of the signers
+	 * @return the result for each signature, in the same order
+	 */
+	public boolean[] verifyAll(byte[][] digests, DsaSignature[] sigs, ECPublicKey[] publicKeys) {
+		int len = digests.length;
+		boolean[] results = new boolean[len];
+
+		int[] idx = new int[len];
+		Table[] tables = new Table[len];
+		BigInteger[] s = new BigInteger[len];
+		int count = 0;
+		for (int i = 0; i < len; ++i) {
+			if (!inRange(sigs[i].getR()) || !inRange(sigs[i].getS()))
+				continue;
+			Table qTable = getTable(publicKeys[i]);
+			if (qTable == null)
+				continue;
+			idx[count] = i;
+			tables[count] = qTable;
+			s[count] = sigs[i].getS();
+			count++;
+		}
+
+		BigInteger[] sInv = new BigInteger[count];
+		System.arraycopy(s, 0, sInv, 0, count);
+		sInv = JacobianCurve.invertAll(sInv, n);
+
+		for (int j = 0; j < count; ++j) {
+			int i = idx[j];
+			results[i] = verify(calculateE(digests[i]), sigs[i].getR(), sInv[j], tables[j]);
+		}
+		return results;
+	}
+
+	/**
+	 * Completes verification given the inverse of s.
+	 */
+	boolean verify(BigInteger e, BigInteger r, BigInteger sInv, Table qTable) {
+		BigInteger u1 = e.multiply(sInv).mod(n);
+		BigInteger u2 = r.multiply(sInv).mod(n);
+
+		Jacobian point = curve.sumOfMultiplies(new BigInteger[] {
+				u1, u2
+		}, new Table[] {
+				gTable, qTable
+		});
+
+		return curve.xModNEquals(point, r);
+	}
+
+	/**
+	 * Returns the table for the key, building or promoting it as needed.
+	 *
+	 * @return the table or {@code null} if the key is not a valid curve point
+	 */
+	Table getTable(ECPublicKey publicKey) {
+		KeyEntry entry = keys.get(publicKey);
+		if (entry == null) {
+			Affine q;
+			try {
+				q = curve.toAffine(publicKey.getECPublicKeyParameters().getQ());
+			} catch (IllegalArgumentException e) {
+				return null;
+			}
+			if (!curve.isOnCurve(q))
+				return null;
+			entry = new KeyEntry(q, curve.buildTable(q, KEY_WIDTH, 1));
+			keys.put(publicKey, entry);
+			return entry.table;
+		}
+
+		if (entry.uses.incrementAndGet() == PROMOTE_THRESHOLD) {
+			entry.table = curve.buildTable(entry.point, KEY_WIDTH, WARM_SPLITS);
+		}
+		return entry.table;
+	}
+
+	JacobianCurve getCurve() {
+		return curve;
+	}
+
+	boolean inRange(BigInteger v) {
+		return v.signum() > 0 && v.compareTo(n) < 0;
+	}
+
+	/**
+	 * Converts the digest to an integer, truncating it to the bit length of
+	 * n.
+	 */
+	BigInteger calculateE(byte[] digest) {
+		int log2n = n.bitLength();
+		int digestBits = digest.length * 8;
+		BigInteger e = new BigInteger(1, digest);
+		if (log2n < digestBits)
+			e = e.shiftRight(digestBits - log2n);
+		return e;
+	}
+
+	/**
+	 * @return the number of table lookups for cached keys
+	 */
+	public int getHitCount() {
+		return keys.hitCount();
+	}
+
+	/**
+	 * @return the number of table lookups that required building a table
+	 */
+	public int getMissCount() {
+		return keys.missCount();
+	}
+
+	/**
+	 * Removes all cached public key tables.
+	 */
+	public void clear() {
+		keys.evictAll();
+	}
+
+	private static class KeyEntry {
+		final Affine point;
+
+		final AtomicInteger uses;
+
+		volatile Table table;
+
+		KeyEntry(Affine point, Table table) {
+			this.point = point;
+			this.table = table;
+			this.uses = new AtomicInteger(1);
+		}
+	}
+
+}
@@ -3,6 +3,7 @@ package org.whispercomm.shout.crypto;
 
 import java.math.BigInteger;
 import java.nio.ByteBuffer;
+import java.util.List;
 
 import org.spongycastle.crypto.digests.SHA256Digest;
 import org.spongycastle.crypto.signers.ECDSASigner;
@@ -13,6 +14,8 @@ public class EcdsaWithSha256 {
 
 	private final SHA256Digest digest;
 
+	private ECPublicKey publicKey;
+
 	public static DsaSignature sign(ByteBuffer buffer, ECPrivateKey privateKey) {
 		if (buffer.hasArray()) {
 			return sign(buffer.array(), buffer.arrayOffset() + buffer.position(),
@@ -58,17 +61,53 @@ public class EcdsaWithSha256 {
 		return signer.verify(sig);
 	}
 
+	/**
+	 * Verifies a batch of signatures, sharing work between them. Each item is
+	 * verified independently, so an invalid signature does not affect the
+	 * results for the others.
+	 * 
+	 * @param blobs the signatures to verify
+	 * @return the result for each signature, in the same order
+	 */
+	public static boolean[] verifyAll(List<SignedBlob> blobs) {
+		int len = blobs.size();
+		byte[][] digests = new byte[len][];
+		DsaSignature[] sigs = new DsaSignature[len];
+		ECPublicKey[] keys = new ECPublicKey[len];
+
+		SHA256Digest digest = new SHA256Digest();
+		for (int i = 0; i < len; ++i) {
+			SignedBlob blob = blobs.get(i);
+			ByteBuffer data = blob.getData();
+			if (data.hasArray()) {
+				digest.update(data.array(), data.arrayOffset() + data.position(),
+						data.remaining());
+			} else {
+				byte[] tmp = new byte[data.remaining()];
+				data.get(tmp);
+				digest.update(tmp, 0, tmp.length);
+			}
+			digests[i] = new byte[digest.getDigestSize()];
+			digest.doFinal(digests[i], 0);
+			sigs[i] = blob.getSignature();
+			keys[i] = blob.getPublicKey();
+		}
+
+		return EcdsaVerifier.getInstance().verifyAll(digests, sigs, keys);
+	}
+
 	public EcdsaWithSha256() {
 		signer = new ECDSASigner();
 		digest = new SHA256Digest();
 	}
 
 	public void initVerify(ECPublicKey publicKey) {
-		signer.init(false, publicKey.getECPublicKeyParameters());
+		this.publicKey = publicKey;
 		digest.reset();
 	}
 
 	public void initSign(ECPrivateKey privateKey) {
+		this.publicKey = null;
 		signer.init(true, privateKey.getECPrivateKeyParameters());
 		digest.reset();
 	}
@@ -106,6 +145,6 @@ public class EcdsaWithSha256 {
 	public boolean verify(DsaSignature sig) {
 		byte[] hash = new byte[digest.getDigestSize()];
 		digest.doFinal(hash, 0);
-		return signer.verifySignature(hash, sig.getR(), sig.getS());
+		return EcdsaVerifier.getInstance().verify(hash, sig, publicKey);
 	}
 }
@@ -0,0 +1,477 @@
+package org.whispercomm.shout.crypto;
+
+import java.math.BigInteger;
+
+import org.spongycastle.crypto.params.ECDomainParameters;
+import org.spongycastle.math.ec.ECCurve;
+import org.spongycastle.math.ec.ECPoint;
+
+/**
+ * Point arithmetic in Jacobian projective coordinates for prime-field curves
+ * with {@code a = -3} (e.g., secp256r1).
+ * <p>
+ * The bouncycastle {@link ECPoint.Fp} implementation works in affine
+ * coordinates and thus computes a field inversion for every point addition and
+ * doubling. This class instead represents intermediate points as (X, Y, Z),
+ * with affine x = X/Z<sup>2</sup> and y = Y/Z<sup>3</sup>, so inversions are
+ * only needed when converting back to affine form. Multiple conversions can
+ * share a single inversion via {@link #toAffine(Jacobian[])}.
+ * <p>
+ * Scalar multiplication uses precomputed {@link Table tables} of odd multiples
+ * in affine form and width-w non-adjacent form (wNAF) recodings of the
+ * scalars. Multiple scalar multiplications are interleaved, so they share the
+ * doublings.
+ * <p>
+ * Instances are immutable and thread-safe.
+ *
+ * @author David R. Bild
+ */
+class JacobianCurve {
+
+	private final BigInteger p;
+
+	private final BigInteger b;
+
+	private final BigInteger n;
+
+	private final Affine g;
+
+	/**
+	 * @param params the domain parameters. The curve must be over a prime field
+	 *            and have {@code a = -3}.
+	 */
+	public JacobianCurve(ECDomainParameters params) {
+		if (!(params.getCurve() instanceof ECCurve.Fp))
+			throw new IllegalArgumentException("Curve must be over a prime field.");
+		ECCurve.Fp curve = (ECCurve.Fp) params.getCurve();
+		this.p = curve.getQ();
+		this.b = curve.getB().toBigInteger();
+		this.n = params.getN();
+		if (!curve.getA().toBigInteger().equals(p.subtract(BigInteger.valueOf(3))))
+			throw new IllegalArgumentException("Curve must have a = -3.");
+		this.g = toAffine(params.getG());
+	}
+
+	/**
+	 * @return the prime modulus of the underlying field
+	 */
+	public BigInteger getP() {
+		return p;
+	}
+
+	/**
+	 * @return the order of the generator
+	 */
+	public BigInteger getN() {
+		return n;
+	}
+
+	/**
+	 * @return the generator
+	 */
+	public Affine getG() {
+		return g;
+	}
+
+	/**
+	 * Converts a bouncycastle point to affine form.
+	 *
+	 * @param point the point, which must not be infinity
+	 * @return the affine point
+	 */
+	public Affine toAffine(ECPoint point) {
+		if (point.isInfinity())
+			throw new IllegalArgumentException("Point at infinity has no affine form.");
+		return new Affine(point.getX().toBigInteger(), point.getY().toBigInteger());
+	}
+
+	/**
+	 * Checks that the point satisfies the curve equation y^2 = x^3 - 3x + b.
+	 *
+	 * @param point the point to check
+	 * @return {@code true} if the point is on the curve, {@code false}
+	 *         otherwise
+	 */
+	public boolean isOnCurve(Affine point) {
+		BigInteger x = point.x;
+		BigInteger y = point.y;
+		if (x.signum() < 0 || x.compareTo(p) >= 0 || y.signum() < 0 || y.compareTo(p) >= 0)
+			return false;
+		BigInteger lhs = y.multiply(y).mod(p);
+		BigInteger rhs = x.multiply(x).subtract(BigInteger.valueOf(3)).multiply(x).add(b).mod(p);
+		return lhs.equals(rhs);
+	}
+
+	/**
+	 * Doubles the point in place.
+	 *
+	 * @param r the point to double
+	 */
+	public void twice(Jacobian r) {
+		if (r.isInfinity())
+			return;
+		if (r.y.signum() == 0) {
+			r.setInfinity();
+			return;
+		}
+
+		// dbl-2001-b
+		BigInteger delta = r.z.multiply(r.z).mod(p);
+		BigInteger gamma = r.y.multiply(r.y).mod(p);
+		BigInteger beta = r.x.multiply(gamma).mod(p);
+		BigInteger alpha = r.x.subtract(delta).multiply(r.x.add(delta)).multiply(THREE).mod(p);
+		BigInteger beta4 = beta.shiftLeft(2);
+
+		BigInteger x3 = alpha.multiply(alpha).subtract(beta4.shiftLeft(1)).mod(p);
+		BigInteger z3 = r.y.add(r.z);
+		z3 = z3.multiply(z3).subtract(gamma).subtract(delta).mod(p);
+		BigInteger y3 = alpha.multiply(beta4.subtract(x3))
+				.subtract(gamma.multiply(gamma).shiftLeft(3)).mod(p);
+
+		r.x = x3;
+		r.y = y3;
+		r.z = z3;
+	}
+
+	/**
+	 * Adds an affine point to the Jacobian point in place.
+	 *
+	 * @param r the Jacobian point, which receives the sum
+	 * @param x the affine x-coordinate of the point to add
+	 * @param y the affine y-coordinate of the point to add
+	 */
+	public void addAffine(Jacobian r, BigInteger x, BigInteger y) {
+		if (r.isInfinity()) {
+			r.x = x;
+			r.y = y;
+			r.z = BigInteger.ONE;
+			return;
+		}
+
+		// madd-2007-bl
+		BigInteger z1z1 = r.z.multiply(r.z).mod(p);
+		BigInteger u2 = x.multiply(z1z1).mod(p);
+		BigInteger s2 = y.multiply(r.z).multiply(z1z1).mod(p);
+		BigInteger h = u2.subtract(r.x).mod(p);
+		BigInteger rr = s2.subtract(r.y).shiftLeft(1).mod(p);
+
+		if (h.signum() == 0) {
+			if (rr.signum() == 0) {
+				r.x = x;
+				r.y = y;
+				r.z = BigInteger.ONE;
+				twice(r);
+			} else {
+				r.setInfinity();
+			}
+			return;
+		}
+
+		BigInteger hh = h.multiply(h).mod(p);
+		BigInteger i = hh.shiftLeft(2);
+		BigInteger j = h.multiply(i).mod(p);
+		BigInteger v = r.x.multiply(i).mod(p);
+
+		BigInteger x3 = rr.multiply(rr).subtract(j).subtract(v.shiftLeft(1)).mod(p);
+		BigInteger y3 = rr.multiply(v.subtract(x3)).subtract(r.y.multiply(j).shiftLeft(1))
+				.mod(p);
+		BigInteger z3 = r.z.add(h);
+		z3 = z3.multiply(z3).subtract(z1z1).subtract(hh).mod(p);
+
+		r.x = x3;
+		r.y = y3;
+		r.z = z3;
+	}
+
+	/**
+	 * Converts the Jacobian point to affine form.
+	 *
+	 * @param point the point, which must not be infinity
+	 * @return the affine point
+	 */
+	public Affine toAffine(Jacobian point) {
+		return toAffine(new Jacobian[] {
+				point
+		})[0];
+	}
+
+	/**
+	 * Converts the Jacobian points to affine form using a single field
+	 * inversion (Montgomery's simultaneous inversion).
+	 *
+	 * @param points the points, none of which may be infinity
+	 * @return the affine points, in the same order
+	 */
+	public Affine[] toAffine(Jacobian[] points) {
+		BigInteger[] z = new BigInteger[points.length];
+		for (int i = 0; i < points.length; ++i) {
+			if (points[i].isInfinity())
+				throw new IllegalArgumentException("Point at infinity has no affine form.");
+			z[i] = points[i].z;
+		}
+
+		BigInteger[] zInv = invertAll(z, p);
+
+		Affine[] ret = new Affine[points.length];
+		for (int i = 0; i < points.length; ++i) {
+			BigInteger zInv2 = zInv[i].multiply(zInv[i]).mod(p);
+			BigInteger zInv3 = zInv2.multiply(zInv[i]).mod(p);
+			ret[i] = new Affine(points[i].x.multiply(zInv2).mod(p), points[i].y.multiply(zInv3)
+					.mod(p));
+		}
+		return ret;
+	}
+
+	/**
+	 * Computes the modular inverses of all the values using a single modular
+	 * inversion (Montgomery's simultaneous inversion).
+	 *
+	 * @param values the values to invert, all of which must be invertible
+	 * @param modulus the modulus
+	 * @return the inverses, in the same order
+	 */
+	public static BigInteger[] invertAll(BigInteger[] values, BigInteger modulus) {
+		int len = values.length;
+		BigInteger[] ret = new BigInteger[len];
+		if (len == 0)
+			return ret;
+
+		// ret[i] = values[0] * ... * values[i]
+		ret[0] = values[0];
+		for (int i = 1; i < len; ++i) {
+			ret[i] = ret[i - 1].multiply(values[i]).mod(modulus);
+		}
+
+		BigInteger inv = ret[len - 1].modInverse(modulus);
+		for (int i = len - 1; i > 0; --i) {
+			BigInteger tmp = inv.multiply(ret[i - 1]).mod(modulus);
+			inv = inv.multiply(values[i]).mod(modulus);
+			ret[i] = tmp;
+		}
+		ret[0] = inv;
+		return ret;
+	}
+
+	/**
+	 * Computes the sum of the products of each scalar and the point of its
+	 * table, sharing the doublings between all products.
+	 *
+	 * @param scalars the scalars, each in [0, n)
+	 * @param tables the tables of the points by which to multiply
+	 * @return the sum, in Jacobian form
+	 */
+	public Jacobian sumOfMultiplies(BigInteger[] scalars, Table[] tables) {
+		int count = 0;
+		for (Table t : tables)
+			count += t.splits;
+
+		int[][] digits = new int[count][];
+		Affine[][] points = new Affine[count][];
+		int len = 0;
+		int k = 0;
+		for (int i = 0; i < scalars.length; ++i) {
+			Table t = tables[i];
+			BigInteger s = scalars[i];
+			for (int j = 0; j < t.splits; ++j) {
+				BigInteger chunk = (j == t.splits - 1) ? s.shiftRight(j * t.chunkBits) : s
+						.shiftRight(j * t.chunkBits).and(t.chunkMask);
+				digits[k] = wnaf(chunk, t.width);
+				points[k] = t.points[j];
+				len = Math.max(len, digits[k].length);
+				k++;
+			}
+		}
+
+		Jacobian r = new Jacobian();
+		for (int bit = len - 1; bit >= 0; --bit) {
+			twice(r);
+			for (int i = 0; i < count; ++i) {
+				if (bit >= digits[i].length)
+					continue;
+				int d = digits[i][bit];
+				if (d > 0) {
+					Affine a = points[i][d >>> 1];
+					addAffine(r, a.x, a.y);
+				} else if (d < 0) {
+					Affine a = points[i][(-d) >>> 1];
+					addAffine(r, a.x, p.subtract(a.y));
+				}
+			}
+		}
+		return r;
+	}
+
+	/**
+	 * Checks if the x-coordinate of the Jacobian point, reduced modulo n,
+	 * equals the specified value, without converting the point to affine form.
+	 *
+	 * @param point the point
+	 * @param r the value, in [1, n)
+	 * @return {@code true} if (X/Z^2 mod p) mod n equals r
+	 */
+	public boolean xModNEquals(Jacobian point, BigInteger r) {
+		if (point.isInfinity())
+			return false;
+		BigInteger z2 = point.z.multiply(point.z).mod(p);
+		for (BigInteger c = r; c.compareTo(p) < 0; c = c.add(n)) {
+			if (c.multiply(z2).subtract(point.x).mod(p).signum() == 0)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Builds the table of odd multiples for the point.
+	 *
+	 * @param point the point
+	 * @param width the wNAF window width. The table holds 2^(width-2) odd
+	 *            multiples per split.
+	 * @param splits the number of pieces into which each scalar is split. Each
+	 *            split requires its own table, but reduces the number of
+	 *            doublings.
+	 * @return the table
+	 */
+	public Table buildTable(Affine point, int width, int splits) {
+		int bits = n.bitLength();
+		int chunkBits = (bits + splits - 1) / splits;
+
+		Affine[] bases = new Affine[splits];
+		bases[0] = point;
+		for (int j = 1; j < splits; ++j) {
+			Jacobian r = new Jacobian(bases[j - 1]);
+			for (int i = 0; i < chunkBits; ++i)
+				twice(r);
+			bases[j] = toAffine(r);
+		}
+
+		int size = 1 << (width - 2);
+		Jacobian[] multiples = new Jacobian[splits * size];
+		for (int j = 0; j < splits; ++j) {
+			Jacobian dbl = new Jacobian(bases[j]);
+			twice(dbl);
+			Affine twoP = toAffine(dbl);
+
+			Jacobian r = new Jacobian(bases[j]);
+			multiples[j * size] = r.copy();
+			for (int i = 1; i < size; ++i) {
+				addAffine(r, twoP.x, twoP.y);
+				multiples[j * size + i] = r.copy();
+			}
+		}
+
+		Affine[] flat = toAffine(multiples);
+		Affine[][] points = new Affine[splits][size];
+		for (int j = 0; j < splits; ++j)
+			System.arraycopy(flat, j * size, points[j], 0, size);
+
+		return new Table(width, splits, chunkBits, points);
+	}
+
+	/**
+	 * Computes the width-w non-adjacent form of the scalar.
+	 *
+	 * @param k the non-negative scalar
+	 * @param width the window width
+	 * @return the digits, least significant first. Each digit is zero or odd
+	 *         and in (-2^(width-1), 2^(width-1)).
+	 */
+	static int[] wnaf(BigInteger k, int width) {
+		int[] digits = new int[k.bitLength() + 1];
+		int mod = 1 << width;
+		int half = mod >>> 1;
+		int mask = mod - 1;
+		int len = 0;
+		int pos = 0;
+		while (k.signum() > 0) {
+			if (k.testBit(0)) {
+				int d = k.intValue() & mask;
+				if (d >= half)
+					d -= mod;
+				digits[pos] = d;
+				k = k.subtract(BigInteger.valueOf(d));
+				len = pos + 1;
+			}
+			k = k.shiftRight(1);
+			pos++;
+		}
+		if (len == digits.length)
+			return digits;
+		int[] ret = new int[len];
+		System.arraycopy(digits, 0, ret, 0, len);
+		return ret;
+	}
+
+	private static final BigInteger THREE = BigInteger.valueOf(3);
+
+	/**
+	 * A point in affine coordinates.
+	 */
+	static final class Affine {
+		final BigInteger x;
+		final BigInteger y;
+
+		Affine(BigInteger x, BigInteger y) {
+			this.x = x;
+			this.y = y;
+		}
+	}
+
+	/**
+	 * A mutable point in Jacobian coordinates. The point at infinity has
+	 * {@code z == 0}.
+	 */
+	static final class Jacobian {
+		BigInteger x;
+		BigInteger y;
+		BigInteger z;
+
+		Jacobian() {
+			setInfinity();
+		}
+
+		Jacobian(Affine a) {
+			this(a.x, a.y, BigInteger.ONE);
+		}
+
+		Jacobian(BigInteger x, BigInteger y, BigInteger z) {
+			this.x = x;
+			this.y = y;
+			this.z = z;
+		}
+
+		boolean isInfinity() {
+			return z.signum() == 0;
+		}
+
+		void setInfinity() {
+			x = BigInteger.ONE;
+			y = BigInteger.ONE;
+			z = BigInteger.ZERO;
+		}
+
+		Jacobian copy() {
+			return new Jacobian(x, y, z);
+		}
+	}
+
+	/**
+	 * Precomputed odd multiples (P, 3P, 5P, ...) of a point and of the points
+	 * 2^(c*j)P, where c is the chunk size and j = 1 ... splits-1.
+	 */
+	static final class Table {
+		final int width;
+		final int splits;
+		final int chunkBits;
+		final BigInteger chunkMask;
+		final Affine[][] points;
+
+		Table(int width, int splits, int chunkBits, Affine[][] points) {
+			this.width = width;
+			this.splits = splits;
+			this.chunkBits = chunkBits;
+			this.chunkMask = BigInteger.ONE.shiftLeft(chunkBits).subtract(BigInteger.ONE);
+			this.points = points;
+		}
+	}
+
+}
@@ -0,0 +1,188 @@
+package org.whispercomm.shout.crypto;
+
+import java.math.BigInteger;
+import java.security.spec.InvalidKeySpecException;
+import java.util.Arrays;
+
+import org.spongycastle.math.ec.ECPoint;
+
+import android.support.v4.util.LruCache;
+
+/**
+ * Interning cache for decoded public keys.
+ * <p>
+ * Decoding a public key (constructing and validating the curve point) is
+ * expensive, and the same few keys are decoded over and over, once for every
+ * received shout and every provider cursor row. This cache maps both the raw
+ * point encoding (the affine x and y coordinates, as used in serialized
+ * shouts) and the DER encoding (as stored by the provider and key storage) to
+ * a single canonical {@link ECPublicKey} instance per key. Repeat lookups cost
+ * a hash table probe and equality checks between interned keys reduce to
+ * reference comparisons.
+ * <p>
+ * This class is thread-safe.
+ *
+ * @author David R. Bild
+ */
+public class PublicKeyCache {
+
+	/**
+	 * Length of each affine coordinate in the raw point encoding.
+	 */
+	public static final int AFFINE_SIZE = 256 / 8;
+
+	/**
+	 * Length of the raw point encoding.
+	 */
+	public static final int POINT_SIZE = 2 * AFFINE_SIZE;
+
+	/**
+	 * Maximum number of keys held in each index.
+	 */
+	public static final int MAX_ENTRIES = 512;
+
+	private static final KeyGenerator KEY_GENERATOR = new KeyGenerator();
+
+	private static final LruCache<BytesKey, ECPublicKey> byPoint = new LruCache<BytesKey, ECPublicKey>(
+			MAX_ENTRIES);
+
+	private static final LruCache<BytesKey, ECPublicKey> byEncoded = new LruCache<BytesKey, ECPublicKey>(
+			MAX_ENTRIES);
+
+	/**
+	 * Returns the canonical key for the specified raw point encoding.
+	 *
+	 * @param point the big-endian x coordinate followed by the big-endian y
+	 *            coordinate, each {@link #AFFINE_SIZE} bytes long
+	 * @return the canonical key
+	 */
+	public static ECPublicKey fromPoint(byte[] point) {
+		if (point.length != POINT_SIZE)
+			throw new IllegalArgumentException(String.format(
+					"Point encoding must be %d bytes. Got %d.", POINT_SIZE, point.length));
+
+		BytesKey k = new BytesKey(point);
+		ECPublicKey key = byPoint.get(k);
+		if (key != null)
+			return key;
+
+		BigInteger x = new BigInteger(1, Arrays.copyOfRange(point, 0, AFFINE_SIZE));
+		BigInteger y = new BigInteger(1, Arrays.copyOfRange(point, AFFINE_SIZE, POINT_SIZE));
+		return canonicalize(new BytesKey(point.clone()), KEY_GENERATOR.generatePublic(x, y));
+	}
+
+	/**
+	 * Returns the canonical key for the specified DER-encoded X.509
+	 * SubjectPublicKeyInfo representation.
+	 *
+	 * @param encoded the encoded key
+	 * @return the canonical key
+	 * @throws InvalidKeySpecException if the encoding is invalid
+	 * @see KeyGenerator#encodePublic(ECPublicKey)
+	 */
+	public static ECPublicKey fromEncoded(byte[] encoded) throws InvalidKeySpecException {
+		ECPublicKey key = byEncoded.get(new BytesKey(encoded));
+		if (key != null)
+			return key;
+
+		key = intern(KeyGenerator.generatePublic(encoded));
+		byEncoded.put(new BytesKey(encoded.clone()), key);
+		return key;
+	}
+
+	/**
+	 * Returns the canonical instance of the specified key, which becomes the
+	 * canonical instance if none exists yet.
+	 *
+	 * @param key the key to intern
+	 * @return the canonical key
+	 */
+	public static ECPublicKey intern(ECPublicKey key) {
+		BytesKey k = new BytesKey(encodePoint(key));
+		ECPublicKey existing = byPoint.get(k);
+		if (existing != null)
+			return existing;
+		return canonicalize(k, key);
+	}
+
+	/**
+	 * @return the number of lookups answered from the cache
+	 */
+	public static int getHitCount() {
+		return byPoint.hitCount() + byEncoded.hitCount();
+	}
+
+	/**
+	 * @return the number of lookups that required decoding a key
+	 */
+	public static int getMissCount() {
+		return byPoint.missCount() + byEncoded.missCount();
+	}
+
+	/**
+	 * Removes all interned keys.
+	 */
+	public static void clear() {
+		byPoint.evictAll();
+		byEncoded.evictAll();
+	}
+
+	/**
+	 * Inserts the key for the point, unless another thread has already done
+	 * so.
+	 */
+	private static synchronized ECPublicKey canonicalize(BytesKey point, ECPublicKey key) {
+		ECPublicKey existing = byPoint.get(point);
+		if (existing != null)
+			return existing;
+		byPoint.put(point, key);
+		return key;
+	}
+
+	private static byte[] encodePoint(ECPublicKey key) {
+		ECPoint q = key.getECPublicKeyParameters().getQ();
+		byte[] point = new byte[POINT_SIZE];
+		putUnsigned(point, 0, q.getX().toBigInteger());
+		putUnsigned(point, AFFINE_SIZE, q.getY().toBigInteger());
+		return point;
+	}
+
+	private static void putUnsigned(byte[] dst, int offset, BigInteger value) {
+		byte[] bytes = value.toByteArray();
+		int len = Math.min(bytes.length, AFFINE_SIZE);
+		System.arraycopy(bytes, bytes.length - len, dst, offset + AFFINE_SIZE - len, len);
+	}
+
+	/**
+	 * Wrapper giving byte arrays value semantics for use as map keys.
+	 */
+	private static final class BytesKey {
+		private final byte[] bytes;
+
+		private final int hashCode;
+
+		BytesKey(byte[] bytes) {
+			this.bytes = bytes;
+			this.hashCode = Arrays.hashCode(bytes);
+		}
+
+		@Override
+		public int hashCode() {
+			return hashCode;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj)
+				return true;
+			if (!(obj instanceof BytesKey))
+				return false;
+			return Arrays.equals(bytes, ((BytesKey) obj).bytes);
+		}
+	}
+
+	private PublicKeyCache() {
+		throw new IllegalStateException("Cannot instantiate PublicKeyCache.");
+	}
+
+}
@@ -0,0 +1,48 @@
+package org.whispercomm.shout.crypto;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A signature, the data it covers, and the public key with which to verify
+ * it. Used for batch verification with
+ * {@link EcdsaWithSha256#verifyAll(java.util.List)}.
+ *
+ * @author David R. Bild
+ */
+public class SignedBlob {
+
+	private final DsaSignature signature;
+
+	private final ByteBuffer data;
+
+	private final ECPublicKey publicKey;
+
+	/**
+	 * @param signature the signature
+	 * @param data the signed data, from its position to its limit. The buffer
+	 *            is not modified.
+	 * @param publicKey the key with which to verify the signature
+	 */
+	public SignedBlob(DsaSignature signature, ByteBuffer data, ECPublicKey publicKey) {
+		this.signature = signature;
+		this.data = data;
+		this.publicKey = publicKey;
+	}
+
+	public DsaSignature getSignature() {
+		return signature;
+	}
+
+	/**
+	 * @return a new view of the signed data, with independent position and
+	 *         limit
+	 */
+	public ByteBuffer getData() {
+		return data.duplicate();
+	}
+
+	public ECPublicKey getPublicKey() {
+		return publicKey;
+	}
+
+}
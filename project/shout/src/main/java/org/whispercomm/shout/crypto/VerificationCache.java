@@ -0,0 +1,144 @@
+package org.whispercomm.shout.crypto;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.whispercomm.shout.Hash;
+
+import android.support.v4.util.LruCache;
+
+/**
+ * Process-wide cache of signature verification results, keyed by the hash of
+ * the signed object.
+ * <p>
+ * The key must be the hash of the complete serialized object, covering the
+ * signed data, the public key, and the signature itself. Two objects with the
+ * same hash thus carry the same signature over the same data by the same key,
+ * so the verification result can be reused. Both valid and invalid results
+ * are cached.
+ * <p>
+ * This class is thread-safe.
+ *
+ * @author David R. Bild
+ */
+public class VerificationCache {
+
+	/**
+	 * Maximum number of verification results held in the cache.
+	 */
+	public static final int MAX_ENTRIES = 1024;
+
+	private static final LruCache<Hash, Boolean> cache = new LruCache<Hash, Boolean>(
+			MAX_ENTRIES);
+
+	/**
+	 * Verifies the signature, consulting the cache first.
+	 *
+	 * @param objectHash the hash of the complete serialized object
+	 * @param sig the signature to verify
+	 * @param data the signed data
+	 * @param publicKey the key with which to verify the signature
+	 * @return {@code true} if the signature is valid, {@code false} otherwise
+	 */
+	public static boolean verify(Hash objectHash, DsaSignature sig, ByteBuffer data,
+			ECPublicKey publicKey) {
+		Boolean cached = cache.get(objectHash);
+		if (cached != null)
+			return cached;
+
+		boolean valid = EcdsaWithSha256.verify(sig, data, publicKey);
+		cache.put(objectHash, valid);
+		return valid;
+	}
+
+	/**
+	 * Verifies the signature, consulting the cache first.
+	 *
+	 * @param objectHash the hash of the complete serialized object
+	 * @param sig the signature to verify
+	 * @param data the signed data
+	 * @param publicKey the key with which to verify the signature
+	 * @return {@code true} if the signature is valid, {@code false} otherwise
+	 */
+	public static boolean verify(Hash objectHash, DsaSignature sig, byte[] data,
+			ECPublicKey publicKey) {
+		return verify(objectHash, sig, ByteBuffer.wrap(data), publicKey);
+	}
+
+	/**
+	 * Verifies a batch of signatures, consulting the cache first. Signatures
+	 * not in the cache are verified together with
+	 * {@link EcdsaWithSha256#verifyAll(List)}.
+	 *
+	 * @param objectHashes the hashes of the complete serialized objects
+	 * @param blobs the signatures to verify, in the same order as the hashes
+	 * @return the result for each signature, in the same order
+	 */
+	public static boolean[] verifyAll(List<Hash> objectHashes, List<SignedBlob> blobs) {
+		int len = blobs.size();
+		boolean[] results = new boolean[len];
+
+		List<Integer> missIdx = new ArrayList<Integer>();
+		List<SignedBlob> misses = new ArrayList<SignedBlob>();
+		for (int i = 0; i < len; ++i) {
+			Boolean cached = cache.get(objectHashes.get(i));
+			if (cached != null) {
+				results[i] = cached;
+			} else {
+				missIdx.add(i);
+				misses.add(blobs.get(i));
+			}
+		}
+
+		if (!misses.isEmpty()) {
+			boolean[] verified = EcdsaWithSha256.verifyAll(misses);
+			for (int j = 0; j < verified.length; ++j) {
+				int i = missIdx.get(j);
+				results[i] = verified[j];
+				cache.put(objectHashes.get(i), verified[j]);
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * @return the number of verifications answered from the cache
+	 */
+	public static int getHitCount() {
+		return cache.hitCount();
+	}
+
+	/**
+	 * @return the number of verifications that required a signature check
+	 */
+	public static int getMissCount() {
+		return cache.missCount();
+	}
+
+	/**
+	 * @return the number of cached results
+	 */
+	public static int size() {
+		return cache.size();
+	}
+
+	/**
+	 * Removes all cached results.
+	 */
+	public static void clear() {
+		cache.evictAll();
+	}
+
+	/**
+	 * @return a summary of the cache statistics
+	 */
+	public static String getStats() {
+		return cache.toString();
+	}
+
+	private VerificationCache() {
+		throw new IllegalStateException("Cannot instantiate VerificationCache.");
+	}
+
+}
@@ -8,6 +8,7 @@ import org.whispercomm.shout.crypto.ECKeyPair;
 import org.whispercomm.shout.crypto.ECPrivateKey;
 import org.whispercomm.shout.crypto.ECPublicKey;
 import org.whispercomm.shout.crypto.KeyGenerator;
+import org.whispercomm.shout.crypto.PublicKeyCache;
 
 import android.content.Context;
 import android.content.SharedPreferences;
@@ -73,7 +74,7 @@ public class KeyStorageSharedPrefs implements KeyStorage {
 		try {
 			byte[] encodedPublicKey = Base64.decode(sharedPrefs.getString(KEY_PUBLIC, ""),
 					Base64.DEFAULT);
-			publicKey = KeyGenerator.generatePublic(encodedPublicKey);
+			publicKey = PublicKeyCache.fromEncoded(encodedPublicKey);
 		} catch (IllegalArgumentException e) {
 			// TODO: Figure out what to do about this
 			throw new RuntimeException("Could not decode the stored public key.", e);
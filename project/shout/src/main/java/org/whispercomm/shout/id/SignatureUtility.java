@@ -7,6 +7,7 @@ import org.whispercomm.shout.SimpleShout;
 import org.whispercomm.shout.UnsignedShout;
 import org.whispercomm.shout.crypto.DsaSignature;
 import org.whispercomm.shout.crypto.EcdsaWithSha256;
+import org.whispercomm.shout.crypto.VerificationCache;
 import org.whispercomm.shout.serialization.SerializeUtility;
 
 public class SignatureUtility {
@@ -22,9 +23,18 @@ public class SignatureUtility {
 				shout.getParent(), sig);
 	}
 
+	/**
+	 * Verifies the signature of the shout. The result is cached by the hash of
+	 * the re-serialized shout (not by {@link Shout#getHash()}, which is not
+	 * trusted), so each signature is checked at most once.
+	 * 
+	 * @param shout the shout to verify
+	 * @return {@code true} if the signature is valid, {@code false} otherwise
+	 */
 	public static boolean verifyShout(Shout shout) {
-		return EcdsaWithSha256.verify(shout.getSignature(),
-				SerializeUtility.serializeShoutData(shout), shout.getSender().getPublicKey());
+		return VerificationCache.verify(SerializeUtility.generateHash(shout),
+				shout.getSignature(), SerializeUtility.serializeShoutData(shout), shout
+						.getSender().getPublicKey());
 	}
 
 	private SignatureUtility() {
@@ -0,0 +1,18 @@
+package org.whispercomm.shout.network;
+
+/**
+ * Interface for object protocol handlers that process the objects of a packet
+ * together, e.g., to verify their signatures in a batch.
+ * 
+ * @author David R. Bild
+ */
+public interface BatchObjectProtocol extends ObjectProtocol {
+
+	/**
+	 * Callback invoked after all objects in a received packet have been passed
+	 * to {@link #receive(ObjectType, java.nio.ByteBuffer)}. The handler should
+	 * finish processing any objects it deferred.
+	 */
+	public void endPacket();
+
+}
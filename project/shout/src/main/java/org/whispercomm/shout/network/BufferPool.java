@@ -0,0 +1,125 @@
+package org.whispercomm.shout.network;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded pool of fixed-size, heap-backed {@link ByteBuffer}s.
+ * <p>
+ * Buffers are taken with {@link #acquire()} and returned with
+ * {@link #release(ByteBuffer)}. A buffer must not be used after it is released.
+ * If the pool is empty, {@code acquire()} allocates a new buffer. If the pool is
+ * full, {@code release()} drops the buffer for the garbage collector. The pool
+ * thus never blocks and holds at most {@code maxPooled} idle buffers.
+ * <p>
+ * The allocation count lets callers check that a steady-state loop is served
+ * entirely from the pool.
+ * <p>
+ * This class is thread-safe.
+ *
+ * @author David R. Bild
+ */
+public class BufferPool {
+
+	private final int bufferSize;
+
+	private final BlockingQueue<ByteBuffer> pool;
+
+	private final AtomicLong acquired;
+	private final AtomicLong allocated;
+	private final AtomicLong discarded;
+
+	/**
+	 * @param bufferSize the capacity of each buffer in bytes
+	 * @param maxPooled the maximum number of idle buffers held by the pool
+	 */
+	public BufferPool(int bufferSize, int maxPooled) {
+		if (bufferSize < 1)
+			throw new IllegalArgumentException("bufferSize must be positive.");
+		if (maxPooled < 1)
+			throw new IllegalArgumentException("maxPooled must be positive.");
+		this.bufferSize = bufferSize;
+		this.pool = new ArrayBlockingQueue<ByteBuffer>(maxPooled);
+		this.acquired = new AtomicLong();
+		this.allocated = new AtomicLong();
+		this.discarded = new AtomicLong();
+	}
+
+	/**
+	 * Takes a buffer from the pool, allocating one if the pool is empty. The
+	 * returned buffer is cleared and in big-endian (network) order.
+	 *
+	 * @return the buffer
+	 */
+	public ByteBuffer acquire() {
+		acquired.incrementAndGet();
+		ByteBuffer buffer = pool.poll();
+		if (buffer == null) {
+			allocated.incrementAndGet();
+			buffer = ByteBuffer.allocate(bufferSize);
+		}
+		buffer.clear();
+		buffer.order(ByteOrder.BIG_ENDIAN);
+		return buffer;
+	}
+
+	/**
+	 * Returns a buffer to the pool. Buffers that could not have come from this
+	 * pool (wrong capacity, read-only, or not backed by an accessible array)
+	 * are ignored.
+	 *
+	 * @param buffer the buffer to return. It must not be used afterwards.
+	 */
+	public void release(ByteBuffer buffer) {
+		if (buffer == null || buffer.capacity() != bufferSize || !buffer.hasArray()
+				|| buffer.arrayOffset() != 0)
+			return;
+		if (!pool.offer(buffer))
+			discarded.incrementAndGet();
+	}
+
+	/**
+	 * @return the capacity of each buffer in bytes
+	 */
+	public int getBufferSize() {
+		return bufferSize;
+	}
+
+	/**
+	 * @return the number of idle buffers in the pool
+	 */
+	public int getPooledCount() {
+		return pool.size();
+	}
+
+	/**
+	 * @return the number of calls to {@link #acquire()}
+	 */
+	public long getAcquireCount() {
+		return acquired.get();
+	}
+
+	/**
+	 * @return the number of buffers allocated because the pool was empty
+	 */
+	public long getAllocationCount() {
+		return allocated.get();
+	}
+
+	/**
+	 * @return the number of released buffers dropped because the pool was full
+	 */
+	public long getDiscardCount() {
+		return discarded.get();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("BufferPool[size=%d, pooled=%d, acquired=%d, allocated=%d, discarded=%d]",
+				bufferSize, pool.size(), acquired.get(), allocated.get(), discarded.get());
+	}
+
+}
@@ -0,0 +1,37 @@
+package org.whispercomm.shout.network;
+
+import org.whispercomm.manes.client.maclib.ManesFrameTooLargeException;
+import org.whispercomm.manes.client.maclib.ManesNotRegisteredException;
+
+/**
+ * A link over which Shout packets are sent and received as whole frames.
+ * <p>
+ * On a device, this is MANES (see {@link ManesFrameLink}). The stack depends
+ * only on this interface, so it can also run over other links, such as the
+ * in-process medium used by the network simulator.
+ * 
+ * @author David R. Bild
+ */
+public interface FrameLink {
+
+	/**
+	 * Sends a frame to all neighbors.
+	 * 
+	 * @param frame the frame to send. It may be reused by the caller once the
+	 *            method returns.
+	 * @return {@code true} if the frame was queued for sending
+	 * @throws ManesNotRegisteredException if the link is not connected
+	 * @throws ManesFrameTooLargeException if the frame exceeds the link MTU
+	 */
+	public boolean send(byte[] frame) throws ManesNotRegisteredException,
+			ManesFrameTooLargeException;
+
+	/**
+	 * Receives a frame, blocking until one arrives or the timeout expires.
+	 * 
+	 * @param timeoutMs the maximum time to wait, in milliseconds
+	 * @return the received frame or {@code null} if none arrived in time
+	 */
+	public byte[] receive(long timeoutMs);
+
+}
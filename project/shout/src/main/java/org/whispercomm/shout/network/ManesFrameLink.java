@@ -0,0 +1,31 @@
+package org.whispercomm.shout.network;
+
+import org.whispercomm.manes.client.maclib.ManesFrameTooLargeException;
+import org.whispercomm.manes.client.maclib.ManesInterface;
+import org.whispercomm.manes.client.maclib.ManesNotRegisteredException;
+
+/**
+ * A {@link FrameLink} over a {@link ManesInterface}.
+ * 
+ * @author David R. Bild
+ */
+public class ManesFrameLink implements FrameLink {
+
+	private final ManesInterface manes;
+
+	public ManesFrameLink(ManesInterface manes) {
+		this.manes = manes;
+	}
+
+	@Override
+	public boolean send(byte[] frame) throws ManesNotRegisteredException,
+			ManesFrameTooLargeException {
+		return manes.send(frame);
+	}
+
+	@Override
+	public byte[] receive(long timeoutMs) {
+		return manes.receive(timeoutMs);
+	}
+
+}
@@ -5,18 +5,25 @@ import java.nio.ByteBuffer;
 import java.util.List;
 import java.util.concurrent.CopyOnWriteArrayList;
 
-import org.whispercomm.manes.client.maclib.ManesInterface;
 import org.whispercomm.shout.network.shout.NetworkProtocol;
 
+import android.util.Log;
+
 /**
  * Listens for incoming Shout packets, passing them to the
  * {@link NetworkProtocol} as received.
+ * <p>
+ * Receiving is split into two stages, so a slow consumer does not stall the
+ * radio. A dedicated thread reads packets from the {@link FrameLink} into a bounded queue. A
+ * pool of worker threads takes packets from the queue and passes them to the
+ * registered {@link PacketProtocol}s, which split them into objects, and
+ * parse and verify them. If the workers fall behind, the queue fills and the
+ * receive thread blocks until space is available.
  * 
  * @author Yue Liu
  * @author David R. Bild
  */
 public class NetworkReceiver {
-	@SuppressWarnings("unused")
 	private static final String TAG = NetworkReceiver.class.getSimpleName();
 
 	/**
@@ -24,16 +31,48 @@ public class NetworkReceiver {
 	 */
 	private static final int BLOCK_INTERVAL_MS = 1 * 60 * 1000;
 
-	private final ManesInterface manes;
+	/**
+	 * Default number of received packets that may wait for processing.
+	 */
+	public static final int DEFAULT_QUEUE_DEPTH = 32;
+
+	/**
+	 * Default number of threads that process received packets.
+	 */
+	public static final int DEFAULT_WORKER_THREADS = Math.max(1,
+			Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+	private final FrameLink link;
 	private final List<PacketProtocol> protocols;
 
+	private final PipelineStage<ByteBuffer> packetStage;
+
 	private Thread thread;
 	private volatile boolean running;
 
-	public NetworkReceiver(ManesInterface manes) {
-		this.manes = manes;
+	public NetworkReceiver(FrameLink link) {
+		this(link, DEFAULT_WORKER_THREADS, DEFAULT_QUEUE_DEPTH);
+	}
+
+	/**
+	 * @param link the link from which to receive
+	 * @param workerThreads the number of threads that process received packets
+	 * @param queueDepth the number of received packets that may wait for
+	 *            processing
+	 */
+	public NetworkReceiver(FrameLink link, int workerThreads, int queueDepth) {
+		this.link = link;
 		this.protocols = new CopyOnWriteArrayList<PacketProtocol>();
 		this.running = false;
+		this.packetStage = new PipelineStage<ByteBuffer>("ShoutPacketWorker", workerThreads,
+				queueDepth, 1, new PipelineStage.Handler<ByteBuffer>() {
+					@Override
+					public void process(List<ByteBuffer> packets) {
+						for (ByteBuffer packet : packets) {
+							processPacket(packet);
+						}
+					}
+				});
 	}
 
 	public void register(PacketProtocol receiver) {
@@ -45,6 +84,8 @@ public class NetworkReceiver {
 	}
 
 	public void initialize() {
+		packetStage.start();
+
 		thread = new Thread(new Runnable() {
 			@Override
 			public void run() {
@@ -59,6 +100,31 @@ public class NetworkReceiver {
 	public void cleanup() {
 		running = false;
 		thread.interrupt();
+		packetStage.stop();
+		Log.i(TAG, packetStage.toString());
+	}
+
+	/**
+	 * @return the stage that processes received packets, for statistics
+	 */
+	public PipelineStage<ByteBuffer> getPacketStage() {
+		return packetStage;
+	}
+
+	/**
+	 * Queues a received packet for processing, waiting for space if the queue
+	 * is full. The packet is read from the buffer's position to its limit.
+	 * <p>
+	 * The buffer is handed off to the receiver and must not be used
+	 * afterwards. Once processed, it is released to the packet pool (see
+	 * {@link PacketProtocol#getBufferPool()}), so a receive loop that fills
+	 * buffers acquired from that pool runs without allocating new ones.
+	 * 
+	 * @param packet the packet to process
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public void receive(ByteBuffer packet) throws InterruptedException {
+		packetStage.put(packet);
 	}
 
 	private void run() {
@@ -78,16 +144,29 @@ public class NetworkReceiver {
 		}
 	}
 
-	private void receivePacket() {
-		byte[] data = manes.receive(BLOCK_INTERVAL_MS);
+	private void receivePacket() throws InterruptedException {
+		byte[] data = link.receive(BLOCK_INTERVAL_MS);
 		if (data != null) {
+			receive(ByteBuffer.wrap(data));
+		}
+	}
+
+	private void processPacket(ByteBuffer packet) {
+		int position = packet.position();
+		int limit = packet.limit();
+		try {
 			for (PacketProtocol receiver : protocols) {
 				try {
-					receiver.receive(ByteBuffer.wrap(data));
+					receiver.receive(packet);
 				} catch (RuntimeException e) {
 					// Ignore bad receiver;
 				}
+				// Rewind for the next receiver
+				packet.limit(limit);
+				packet.position(position);
 			}
+		} finally {
+			PacketProtocol.releasePacket(packet);
 		}
 	}
 }
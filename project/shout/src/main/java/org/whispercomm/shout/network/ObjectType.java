@@ -2,7 +2,8 @@
 package org.whispercomm.shout.network;
 
 public enum ObjectType {
-	Shout(0x00), ContentDescriptor(0x01), MerkleNode(0x02), ContentRequest(0x03);
+	Shout(0x00), ContentDescriptor(0x01), MerkleNode(0x02), ContentRequest(0x03), HaveSummary(0x04),
+	FountainSymbol(0x05);
 
 	/**
 	 * Maximum value of the object type identifier.
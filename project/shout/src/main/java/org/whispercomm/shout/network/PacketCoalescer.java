@@ -0,0 +1,243 @@
+package org.whispercomm.shout.network;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.whispercomm.manes.client.maclib.ManesFrameTooLargeException;
+import org.whispercomm.manes.client.maclib.ManesNotRegisteredException;
+
+import android.util.Log;
+
+/**
+ * Packs the objects of several outgoing packets of one {@link TrafficClass}
+ * into shared frames, so that small objects (e.g., content requests and shout
+ * rebroadcasts) do not each cost a radio wakeup and a MANES frame header.
+ * <p>
+ * The coalescer sits above the {@link TransmitScheduler}: {@link PacketProtocol}
+ * keeps one per traffic class, and its {@link FrameSender} hands each finished
+ * frame to the scheduler in that class. Latency-sensitive packets bypass the
+ * coalescer and go straight to the scheduler, which tops up their frames with
+ * whatever is queued behind them.
+ * <p>
+ * Packets queued with {@link #enqueue(ByteBuffer)} are appended to a pending
+ * frame. The pending frame is sent when the next packet does not fit, when it
+ * is nearly full, or when the deadline expires, whichever comes first. The
+ * objects of a single queued packet are never split across frames, so a shout
+ * chain still arrives in one packet.
+ * <p>
+ * Until {@link #start()} is called, queued packets are sent immediately.
+ * <p>
+ * This class is thread-safe.
+ *
+ * @author David R. Bild
+ */
+public class PacketCoalescer {
+	private static final String TAG = PacketCoalescer.class.getSimpleName();
+
+	/**
+	 * Default time, in milliseconds, that a queued object may wait for others
+	 * to share its frame.
+	 */
+	public static final long DEFAULT_DEADLINE_MS = 5;
+
+	/**
+	 * Length of the packet header that precedes the objects of a packet.
+	 */
+	private static final int PACKET_HEADER_LEN = 1;
+
+	/**
+	 * Sends a finished frame on the network.
+	 */
+	public interface FrameSender {
+		/**
+		 * Sends the packet in the buffer, from the start of the buffer to its
+		 * position. The buffer remains owned by the caller.
+		 */
+		public void sendFrame(ByteBuffer packet) throws ManesFrameTooLargeException,
+				ManesNotRegisteredException;
+	}
+
+	private final FrameSender sender;
+
+	private final long deadlineMs;
+
+	private ScheduledExecutorService timer;
+
+	private ScheduledFuture<?> deadline;
+
+	private ByteBuffer pending;
+
+	private int pendingPackets;
+
+	private long packetsQueued;
+	private long packetsSent;
+	private long framesSent;
+	private long bytesSent;
+	private long deadlineFlushes;
+
+	/**
+	 * @param sender the sender for finished frames
+	 * @param deadlineMs the maximum time, in milliseconds, that a queued
+	 *            packet waits before its frame is sent
+	 */
+	public PacketCoalescer(FrameSender sender, long deadlineMs) {
+		this.sender = sender;
+		this.deadlineMs = deadlineMs;
+	}
+
+	/**
+	 * Starts coalescing queued packets.
+	 */
+	public synchronized void start() {
+		if (timer == null)
+			timer = Executors.newSingleThreadScheduledExecutor();
+	}
+
+	/**
+	 * Sends any pending frame and stops coalescing. Packets queued afterwards
+	 * are sent immediately.
+	 */
+	public synchronized void stop() {
+		flushQuietly();
+		if (timer != null) {
+			timer.shutdownNow();
+			timer = null;
+		}
+	}
+
+	/**
+	 * Queues the objects of the packet for sending in a shared frame. The
+	 * objects are copied, so the buffer remains owned by the caller.
+	 * <p>
+	 * Errors sending the frame are logged, not reported to the caller.
+	 *
+	 * @param packet the packet, from the start of the buffer to its position
+	 */
+	public synchronized void enqueue(ByteBuffer packet) {
+		int len = packet.position() - PACKET_HEADER_LEN;
+		if (len <= 0)
+			return;
+		packetsQueued++;
+
+		if (pending != null && pending.remaining() < len)
+			flushQuietly();
+		if (pending == null) {
+			if (len > PacketProtocol.MAX_PACKET_LEN - PACKET_HEADER_LEN) {
+				Log.w(TAG, "Dropping queued packet larger than a frame.");
+				return;
+			}
+			pending = PacketProtocol.createPacket();
+		}
+		append(pending, packet);
+		pendingPackets++;
+
+		if (timer == null || pending.remaining() <= PacketProtocol.OBJECT_HEADER_LEN) {
+			flushQuietly();
+		} else if (deadline == null) {
+			deadline = timer.schedule(new Runnable() {
+				@Override
+				public void run() {
+					onDeadline();
+				}
+			}, deadlineMs, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Sends the pending frame, if any.
+	 */
+	public synchronized void flush() throws ManesFrameTooLargeException,
+			ManesNotRegisteredException {
+		if (deadline != null) {
+			deadline.cancel(false);
+			deadline = null;
+		}
+		if (pending == null)
+			return;
+
+		ByteBuffer frame = pending;
+		int packets = pendingPackets;
+		pending = null;
+		pendingPackets = 0;
+		try {
+			sendFrame(frame, packets);
+		} finally {
+			PacketProtocol.releasePacket(frame);
+		}
+	}
+
+	/**
+	 * @return the number of packets queued with {@link #enqueue(ByteBuffer)}
+	 */
+	public synchronized long getQueuedCount() {
+		return packetsQueued;
+	}
+
+	/**
+	 * @return the number of frames sent
+	 */
+	public synchronized long getFrameCount() {
+		return framesSent;
+	}
+
+	/**
+	 * @return the mean number of bytes per frame sent
+	 */
+	public synchronized double getMeanFrameBytes() {
+		return (framesSent == 0) ? 0.0 : (double) bytesSent / framesSent;
+	}
+
+	/**
+	 * @return the mean number of queued packets per frame sent
+	 */
+	public synchronized double getMeanPacketsPerFrame() {
+		return (framesSent == 0) ? 0.0 : (double) packetsSent / framesSent;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String
+				.format("PacketCoalescer[queued=%d, frames=%d, bytes/frame=%.1f, packets/frame=%.2f, deadlineFlushes=%d]",
+						packetsQueued, framesSent, getMeanFrameBytes(), getMeanPacketsPerFrame(),
+						deadlineFlushes);
+	}
+
+	private synchronized void onDeadline() {
+		if (deadline == null)
+			return;
+		deadlineFlushes++;
+		flushQuietly();
+	}
+
+	private void flushQuietly() {
+		try {
+			flush();
+		} catch (ManesFrameTooLargeException e) {
+			Log.w(TAG, "Dropping coalesced frame.", e);
+		} catch (ManesNotRegisteredException e) {
+			Log.w(TAG, "Dropping coalesced frame.", e);
+		}
+	}
+
+	private void sendFrame(ByteBuffer frame, int packets) throws ManesFrameTooLargeException,
+			ManesNotRegisteredException {
+		sender.sendFrame(frame);
+		framesSent++;
+		packetsSent += packets;
+		bytesSent += frame.position();
+	}
+
+	/**
+	 * Appends the objects of the packet, skipping its header.
+	 */
+	private static void append(ByteBuffer frame, ByteBuffer packet) {
+		ByteBuffer objects = packet.duplicate();
+		objects.flip();
+		objects.position(PACKET_HEADER_LEN);
+		frame.put(objects);
+	}
+
+}
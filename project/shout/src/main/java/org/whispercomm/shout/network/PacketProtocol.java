@@ -4,6 +4,7 @@ package org.whispercomm.shout.network;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.CopyOnWriteArrayList;
 
@@ -28,20 +29,81 @@ public class PacketProtocol {
 
 	public static int OBJECT_HEADER_LEN = 3;
 
-	private final ManesInterface manes;
+	/**
+	 * Maximum number of idle packet buffers held for reuse.
+	 */
+	public static int MAX_POOLED_PACKETS = 32;
+
+	private static final BufferPool BUFFER_POOL = new BufferPool(MAX_PACKET_LEN,
+			MAX_POOLED_PACKETS);
+
+	/**
+	 * Per-thread array reused for frames shorter than a full packet.
+	 */
+	private static final ThreadLocal<byte[]> FRAME_SCRATCH = new ThreadLocal<byte[]>();
+
+	private final FrameLink link;
+
+	private final TransmitScheduler scheduler;
+
+	private final PacketCoalescer[] coalescers;
 
 	/*
 	 * ------------------------- Public Methods -------------------------------
 	 */
+	/**
+	 * @param link the link on which to send packets
+	 */
 	@SuppressWarnings("unchecked")
-	public PacketProtocol(ManesInterface manes) {
-		this.manes = manes;
+	public PacketProtocol(FrameLink link) {
+		this.link = link;
+		this.scheduler = new TransmitScheduler(new PacketCoalescer.FrameSender() {
+			@Override
+			public void sendFrame(ByteBuffer packet) throws ManesFrameTooLargeException,
+					ManesNotRegisteredException {
+				sendNow(packet);
+			}
+		}, TransmitScheduler.DEFAULT_BYTES_PER_SECOND);
+		this.coalescers = new PacketCoalescer[TrafficClass.values().length];
+		for (final TrafficClass trafficClass : TrafficClass.values()) {
+			coalescers[trafficClass.ordinal()] = new PacketCoalescer(
+					new PacketCoalescer.FrameSender() {
+						@Override
+						public void sendFrame(ByteBuffer packet)
+								throws ManesFrameTooLargeException,
+								ManesNotRegisteredException {
+							scheduler.send(packet, trafficClass);
+						}
+					}, PacketCoalescer.DEFAULT_DEADLINE_MS);
+		}
 		protocols = new List[ObjectType.MAX_TYPE_ID + 1];
 		for (int i = 0; i <= ObjectType.MAX_TYPE_ID; ++i) {
 			protocols[i] = new CopyOnWriteArrayList<ObjectProtocol>();
 		}
 	}
 
+	/**
+	 * Starts the transmit scheduler and coalescing of packets queued with
+	 * {@link #sendCoalesced(ByteBuffer, TrafficClass)}.
+	 */
+	public void initialize() {
+		scheduler.start();
+		for (PacketCoalescer coalescer : coalescers) {
+			coalescer.start();
+		}
+	}
+
+	/**
+	 * Stops coalescing and the transmit scheduler. Packets still queued are
+	 * dropped.
+	 */
+	public void cleanup() {
+		for (PacketCoalescer coalescer : coalescers) {
+			coalescer.stop();
+		}
+		scheduler.stop();
+	}
+
 	/**
 	 * Registers a new object protocol handler to receive serialized incoming
 	 * objects.
@@ -80,33 +142,137 @@ public class PacketProtocol {
 		}
 	}
 
+	/**
+	 * Sends the packet built in the buffer, from the start of the buffer to
+	 * its position, as {@link TrafficClass#Interactive} traffic. The call
+	 * returns once the packet is sent. The buffer is not modified and remains
+	 * owned by the caller.
+	 * 
+	 * @param buffer the packet to send
+	 */
 	public void send(ByteBuffer buffer) throws ManesFrameTooLargeException,
 			ManesNotRegisteredException {
-		buffer = buffer.duplicate();
-		buffer.flip();
+		scheduler.send(buffer, TrafficClass.Interactive);
+	}
+
+	/**
+	 * Schedules the packet built in the buffer, from the start of the buffer
+	 * to its position, for sending in the given traffic class. See
+	 * {@link TransmitScheduler#send(ByteBuffer, TrafficClass)}. The buffer is
+	 * not modified and remains owned by the caller.
+	 * 
+	 * @param buffer the packet to send
+	 * @param trafficClass the class of the packet
+	 */
+	public void send(ByteBuffer buffer, TrafficClass trafficClass)
+			throws ManesFrameTooLargeException, ManesNotRegisteredException {
+		scheduler.send(buffer, trafficClass);
+	}
+
+	/**
+	 * Queues the objects of the packet built in the buffer to share a frame
+	 * with other queued objects of the same traffic class. The frame is
+	 * scheduled within a few milliseconds or as soon as it is full. Use for
+	 * traffic that is not latency sensitive. The objects are copied, so the
+	 * buffer remains owned by the caller.
+	 * 
+	 * @param buffer the packet to send
+	 * @param trafficClass the class of the packet
+	 */
+	public void sendCoalesced(ByteBuffer buffer, TrafficClass trafficClass) {
+		coalescers[trafficClass.ordinal()].enqueue(buffer);
+	}
 
-		if (buffer.remaining() > 0) {
-			byte[] data = new byte[buffer.remaining()];
-			buffer.get(data);
-			manes.send(data);
+	/**
+	 * @return the transmit scheduler, for configuration and statistics
+	 */
+	public TransmitScheduler getScheduler() {
+		return scheduler;
+	}
+
+	/**
+	 * @param trafficClass the traffic class
+	 * @return the coalescer for the class, for statistics
+	 */
+	public PacketCoalescer getCoalescer(TrafficClass trafficClass) {
+		return coalescers[trafficClass.ordinal()];
+	}
+
+	private void sendNow(ByteBuffer buffer) throws ManesFrameTooLargeException,
+			ManesNotRegisteredException {
+		if (buffer.position() > 0) {
+			link.send(toFrame(buffer));
 		}
 	}
 
 	/**
-	 * Creates a new {@link ByteBuffer} for building packet and sets the
+	 * Creates a {@link ByteBuffer} for building packet and sets the
 	 * {@code PacketProtocol} header. Objects can be added with the
 	 * {@link #reserveObjectHeader(ByteBuffer)} and
 	 * {@link #setObjectHeader(ByteBuffer, ObjectType, short)} methods.
+	 * <p>
+	 * The buffer is taken from a shared pool. Once sent, it should be returned
+	 * with {@link #releasePacket(ByteBuffer)}.
 	 * 
 	 * @return the created buffer
 	 */
 	public static ByteBuffer createPacket() {
-		ByteBuffer buffer = ByteBuffer.allocate(MAX_PACKET_LEN);
-		buffer.order(ByteOrder.BIG_ENDIAN);
+		ByteBuffer buffer = BUFFER_POOL.acquire();
 		buffer.put((byte) (VERSION_MASK & VERSION));
 		return buffer;
 	}
 
+	/**
+	 * Returns a packet buffer to the shared pool. The buffer must not be used
+	 * afterwards.
+	 * 
+	 * @param buffer the buffer to release
+	 */
+	public static void releasePacket(ByteBuffer buffer) {
+		BUFFER_POOL.release(buffer);
+	}
+
+	/**
+	 * @return the shared pool of packet buffers. Received packets may be
+	 *         read into buffers from this pool and passed to
+	 *         {@link NetworkReceiver#receive(ByteBuffer)}.
+	 */
+	public static BufferPool getBufferPool() {
+		return BUFFER_POOL;
+	}
+
+	/**
+	 * Returns an array holding exactly the packet built in the buffer, for
+	 * passing to {@link FrameLink#send(byte[])}, which takes neither an
+	 * offset nor a length. A full packet is returned as the backing array
+	 * itself. Shorter packets are copied into a per-thread array that is
+	 * reused while the packet length repeats.
+	 * <p>
+	 * The returned array is only valid until the next call on this thread.
+	 * 
+	 * @param buffer the packet, from the start of the buffer to its position
+	 * @return the frame array
+	 */
+	static byte[] toFrame(ByteBuffer buffer) {
+		int len = buffer.position();
+		if (buffer.hasArray() && buffer.arrayOffset() == 0 && buffer.array().length == len)
+			return buffer.array();
+
+		byte[] frame = FRAME_SCRATCH.get();
+		if (frame == null || frame.length != len) {
+			frame = new byte[len];
+			FRAME_SCRATCH.set(frame);
+		}
+		if (buffer.hasArray()) {
+			System.arraycopy(buffer.array(), buffer.arrayOffset(), frame, 0, len);
+		} else {
+			ByteBuffer src = buffer.duplicate();
+			src.flip();
+			src.get(frame);
+		}
+		return frame;
+	}
+
 	/*
 	 * ---------------------------- Implementation ----------------------------
 	 */
@@ -130,6 +296,22 @@ public class PacketProtocol {
 	private List<ObjectProtocol>[] protocols;
 
 	private void receiveVersion0(ByteBuffer buffer) {
+		List<BatchObjectProtocol> batchReceivers = new ArrayList<BatchObjectProtocol>();
+		try {
+			receiveVersion0Objects(buffer, batchReceivers);
+		} finally {
+			for (BatchObjectProtocol receiver : batchReceivers) {
+				try {
+					receiver.endPacket();
+				} catch (RuntimeException e) {
+					Log.w(TAG, "Ignoring exception thrown by " + receiver, e);
+				}
+			}
+		}
+	}
+
+	private void receiveVersion0Objects(ByteBuffer buffer,
+			List<BatchObjectProtocol> batchReceivers) {
 		buffer.order(ByteOrder.BIG_ENDIAN); // Network-byte order
 
 		// Header fields
@@ -167,6 +349,10 @@ public class PacketProtocol {
 			}
 
 			for (ObjectProtocol receiver : protocols[id]) {
+				if (receiver instanceof BatchObjectProtocol
+						&& !batchReceivers.contains(receiver)) {
+					batchReceivers.add((BatchObjectProtocol) receiver);
+				}
 				try {
 					receiver.receive(type, objBuffer);
 				} catch (RuntimeException e) {
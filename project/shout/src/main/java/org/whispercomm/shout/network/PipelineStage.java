@@ -0,0 +1,324 @@
+package org.whispercomm.shout.network;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.util.Log;
+
+/**
+ * A stage in a processing pipeline, consisting of a bounded input queue and a
+ * fixed pool of worker threads that pass batches of queued items to a
+ * {@link Handler}.
+ * <p>
+ * The queue bound provides back-pressure: {@link #put(Object)} blocks while
+ * the queue is full, so a slow stage throttles the stages that feed it instead
+ * of buffering without limit. Each stage records the time items spend waiting
+ * in its queue and the time spent processing them.
+ * <p>
+ * A stage is stopped either by {@link #stop()}, which discards the queued
+ * items, or by {@link #drain()}, which processes them first. Both wait for the
+ * worker threads to exit.
+ * <p>
+ * This class is thread-safe.
+ *
+ * @author David R. Bild
+ * @param <T> the type of item processed by the stage
+ */
+public class PipelineStage<T> {
+	private static final String TAG = PipelineStage.class.getSimpleName();
+
+	/**
+	 * Callback that processes the items of a stage.
+	 *
+	 * @param <T> the type of item processed by the stage
+	 */
+	public interface Handler<T> {
+		/**
+		 * Processes a batch of items. Called concurrently from each worker
+		 * thread of the stage.
+		 *
+		 * @param items the items, in queue order
+		 */
+		public void process(List<T> items);
+	}
+
+	/**
+	 * Time, in milliseconds, between checks that the stage is still running
+	 * while waiting for space in the queue
+	 */
+	private static final long PUT_POLL_MS = 100;
+
+	private final String name;
+
+	private final int numThreads;
+
+	private final int maxBatch;
+
+	private final Handler<T> handler;
+
+	private final BlockingQueue<Entry<T>> queue;
+
+	private final List<Thread> threads;
+
+	private volatile boolean running;
+
+	private volatile boolean draining;
+
+	private final AtomicLong items;
+	private final AtomicLong batches;
+	private final AtomicLong dropped;
+	private final AtomicLong waitNanos;
+	private final AtomicLong processNanos;
+	private final AtomicLong maxWaitNanos;
+
+	/**
+	 * @param name the name of the stage, used for thread names and logging
+	 * @param numThreads the number of worker threads
+	 * @param queueDepth the maximum number of queued items
+	 * @param maxBatch the maximum number of items passed to each call of
+	 *            {@link Handler#process(List)}
+	 * @param handler the handler that processes the items
+	 */
+	public PipelineStage(String name, int numThreads, int queueDepth, int maxBatch,
+			Handler<T> handler) {
+		if (numThreads < 1)
+			throw new IllegalArgumentException("numThreads must be positive.");
+		if (maxBatch < 1)
+			throw new IllegalArgumentException("maxBatch must be positive.");
+		this.name = name;
+		this.numThreads = numThreads;
+		this.maxBatch = maxBatch;
+		this.handler = handler;
+		this.queue = new ArrayBlockingQueue<Entry<T>>(queueDepth);
+		this.threads = new ArrayList<Thread>(numThreads);
+		this.running = false;
+
+		this.items = new AtomicLong();
+		this.batches = new AtomicLong();
+		this.dropped = new AtomicLong();
+		this.waitNanos = new AtomicLong();
+		this.processNanos = new AtomicLong();
+		this.maxWaitNanos = new AtomicLong();
+	}
+
+	/**
+	 * Starts the worker threads.
+	 */
+	public synchronized void start() {
+		if (running)
+			return;
+		running = true;
+		draining = false;
+		for (int i = 0; i < numThreads; ++i) {
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					PipelineStage.this.run();
+				}
+			}, name + "-" + i);
+			threads.add(thread);
+			thread.start();
+		}
+	}
+
+	/**
+	 * Stops the worker threads. Queued items that have not been processed are
+	 * discarded.
+	 */
+	public void stop() {
+		stop(false);
+	}
+
+	/**
+	 * Stops the worker threads once they have processed the queued items.
+	 */
+	public void drain() {
+		stop(true);
+	}
+
+	private void stop(boolean drain) {
+		List<Thread> stopping;
+		synchronized (this) {
+			draining = drain;
+			running = false;
+			stopping = new ArrayList<Thread>(threads);
+			threads.clear();
+		}
+		for (Thread thread : stopping) {
+			thread.interrupt();
+		}
+		for (Thread thread : stopping) {
+			if (thread == Thread.currentThread())
+				continue;
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				Log.w(TAG, "Interrupted while stopping " + name, e);
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+		dropped.addAndGet(clearQueue());
+	}
+
+	/**
+	 * Adds an item to the queue, waiting for space if it is full. Once the
+	 * stage is stopped, an item that does not fit is dropped instead.
+	 *
+	 * @param item the item to add
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public void put(T item) throws InterruptedException {
+		Entry<T> entry = new Entry<T>(item);
+		while (!queue.offer(entry, PUT_POLL_MS, TimeUnit.MILLISECONDS)) {
+			if (!running) {
+				dropped.incrementAndGet();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Adds an item to the queue, if space is available.
+	 *
+	 * @param item the item to add
+	 * @return {@code true} if the item was added or {@code false} if it was
+	 *         dropped because the queue is full
+	 */
+	public boolean offer(T item) {
+		if (queue.offer(new Entry<T>(item)))
+			return true;
+		dropped.incrementAndGet();
+		return false;
+	}
+
+	/**
+	 * @return the number of queued items
+	 */
+	public int getQueueSize() {
+		return queue.size();
+	}
+
+	/**
+	 * @return the number of items processed
+	 */
+	public long getProcessedCount() {
+		return items.get();
+	}
+
+	/**
+	 * @return the number of items dropped because the queue was full or the
+	 *         stage was stopped
+	 */
+	public long getDroppedCount() {
+		return dropped.get();
+	}
+
+	/**
+	 * @return the mean time, in milliseconds, that items waited in the queue
+	 */
+	public double getMeanQueueLatencyMs() {
+		long n = items.get();
+		return (n == 0) ? 0.0 : waitNanos.get() / 1e6 / n;
+	}
+
+	/**
+	 * @return the maximum time, in milliseconds, that an item waited in the
+	 *         queue
+	 */
+	public double getMaxQueueLatencyMs() {
+		return maxWaitNanos.get() / 1e6;
+	}
+
+	/**
+	 * @return the mean time, in milliseconds, spent processing each item
+	 */
+	public double getMeanProcessingLatencyMs() {
+		long n = items.get();
+		return (n == 0) ? 0.0 : processNanos.get() / 1e6 / n;
+	}
+
+	@Override
+	public String toString() {
+		return String
+				.format("PipelineStage[%s: threads=%d, queued=%d, processed=%d, batches=%d, dropped=%d, queueMs(mean/max)=%.2f/%.2f, processMs=%.2f]",
+						name, numThreads, queue.size(), items.get(), batches.get(),
+						dropped.get(), getMeanQueueLatencyMs(), getMaxQueueLatencyMs(),
+						getMeanProcessingLatencyMs());
+	}
+
+	private void run() {
+		List<Entry<T>> entries = new ArrayList<Entry<T>>(maxBatch);
+		List<T> batch = new ArrayList<T>(maxBatch);
+		while (running) {
+			try {
+				entries.add(queue.take());
+			} catch (InterruptedException e) {
+				// Running will be false if we should be quitting.
+				continue;
+			}
+			queue.drainTo(entries, maxBatch - 1);
+			process(entries, batch);
+		}
+
+		if (draining) {
+			// Clear the interrupt that stopped us, so the handler is not
+			// disturbed by it
+			Thread.interrupted();
+			while (queue.drainTo(entries, maxBatch) > 0)
+				process(entries, batch);
+		}
+	}
+
+	private void process(List<Entry<T>> entries, List<T> batch) {
+		long start = System.nanoTime();
+		for (Entry<T> entry : entries) {
+			long wait = start - entry.enqueued;
+			waitNanos.addAndGet(wait);
+			updateMax(maxWaitNanos, wait);
+			batch.add(entry.item);
+		}
+
+		try {
+			handler.process(batch);
+		} catch (RuntimeException e) {
+			Log.w(TAG, "Ignoring exception thrown by handler of " + name, e);
+		}
+
+		processNanos.addAndGet(System.nanoTime() - start);
+		items.addAndGet(batch.size());
+		batches.incrementAndGet();
+
+		entries.clear();
+		batch.clear();
+	}
+
+	private int clearQueue() {
+		List<Entry<T>> discarded = new ArrayList<Entry<T>>();
+		queue.drainTo(discarded);
+		return discarded.size();
+	}
+
+	private static void updateMax(AtomicLong max, long value) {
+		long cur;
+		while (value > (cur = max.get())) {
+			if (max.compareAndSet(cur, value))
+				return;
+		}
+	}
+
+	private static class Entry<T> {
+		final T item;
+		final long enqueued;
+
+		Entry(T item) {
+			this.item = item;
+			this.enqueued = System.nanoTime();
+		}
+	}
+
+}
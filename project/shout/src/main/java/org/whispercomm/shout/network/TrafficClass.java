@@ -0,0 +1,69 @@
+package org.whispercomm.shout.network;
+
+import org.whispercomm.shout.network.TransmitScheduler.DropPolicy;
+
+/**
+ * Classes of outgoing traffic, in decreasing order of priority. Each class has
+ * its own queue in the {@link TransmitScheduler}.
+ *
+ * @author David R. Bild
+ */
+public enum TrafficClass {
+	/**
+	 * Shouts sent by the local user. Always sent first, and the sender waits
+	 * for transmission.
+	 */
+	Interactive(0, 16, DropPolicy.Block),
+
+	/**
+	 * Requests for content objects.
+	 */
+	ContentRequest(4, 32, DropPolicy.DropOldest),
+
+	/**
+	 * Content objects sent in response to requests.
+	 */
+	ContentResponse(2, 64, DropPolicy.Block),
+
+	/**
+	 * Periodic rebroadcasts of shouts.
+	 */
+	Rebroadcast(1, 32, DropPolicy.DropOldest);
+
+	private final int defaultWeight;
+
+	private final int defaultMaxQueued;
+
+	private final DropPolicy defaultDropPolicy;
+
+	private TrafficClass(int defaultWeight, int defaultMaxQueued, DropPolicy defaultDropPolicy) {
+		this.defaultWeight = defaultWeight;
+		this.defaultMaxQueued = defaultMaxQueued;
+		this.defaultDropPolicy = defaultDropPolicy;
+	}
+
+	/**
+	 * Returns the default share of the link given to this class, relative to
+	 * the other classes. The {@link #Interactive} class has strict priority, so
+	 * its weight is unused.
+	 *
+	 * @return the default weight
+	 */
+	public int getDefaultWeight() {
+		return defaultWeight;
+	}
+
+	/**
+	 * @return the default maximum number of frames queued for this class
+	 */
+	public int getDefaultMaxQueued() {
+		return defaultMaxQueued;
+	}
+
+	/**
+	 * @return the default policy when the queue for this class is full
+	 */
+	public DropPolicy getDefaultDropPolicy() {
+		return defaultDropPolicy;
+	}
+}
@@ -0,0 +1,576 @@
+package org.whispercomm.shout.network;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.whispercomm.manes.client.maclib.ManesFrameTooLargeException;
+import org.whispercomm.manes.client.maclib.ManesNotRegisteredException;
+
+import android.util.Log;
+
+/**
+ * Single transmit queue for all outgoing frames, so that a large content
+ * response cannot delay a fresh shout.
+ * <p>
+ * Each {@link TrafficClass} has its own bounded queue. {@link TrafficClass#Interactive}
+ * frames have strict priority. The remaining classes share the link by
+ * deficit round robin, in proportion to their weights. When a frame has room
+ * left, it is topped up with whole frames queued behind it, highest priority
+ * first.
+ * <p>
+ * The total rate is limited by a token bucket of {@code bytesPerSecond}. When a
+ * class's queue is full, its {@link DropPolicy} decides whether the new frame
+ * or the oldest queued frame is dropped, or whether the sender waits for space.
+ * <p>
+ * A single thread transmits the frames. Until {@link #start()} is called, frames
+ * are sent directly on the caller's thread.
+ * <p>
+ * This class is thread-safe.
+ *
+ * @author David R. Bild
+ */
+public class TransmitScheduler {
+	private static final String TAG = TransmitScheduler.class.getSimpleName();
+
+	/**
+	 * Default transmit budget in bytes per second.
+	 */
+	public static final int DEFAULT_BYTES_PER_SECOND = 64 * 1024;
+
+	/**
+	 * Length of the packet header that precedes the objects of a frame.
+	 */
+	private static final int PACKET_HEADER_LEN = 1;
+
+	private static final int INTERACTIVE = TrafficClass.Interactive.ordinal();
+
+	/**
+	 * What to do when a frame arrives for a full queue.
+	 */
+	public enum DropPolicy {
+		/**
+		 * Drop the arriving frame.
+		 */
+		DropNewest,
+		/**
+		 * Drop the oldest queued frame to make room.
+		 */
+		DropOldest,
+		/**
+		 * Wait for room in the queue.
+		 */
+		Block;
+	}
+
+	private final PacketCoalescer.FrameSender sender;
+
+	private final ReentrantLock lock;
+
+	private final Condition notEmpty;
+
+	private final Condition notFull;
+
+	private final ClassQueue[] queues;
+
+	private int queued;
+
+	private int current;
+
+	private boolean fresh;
+
+	private volatile int bytesPerSecond;
+
+	private long tokens;
+
+	private long lastRefill;
+
+	private Thread thread;
+
+	private volatile boolean running;
+
+	/**
+	 * @param sender the sender for scheduled frames
+	 * @param bytesPerSecond the transmit budget, or a non-positive value for no
+	 *            limit
+	 */
+	public TransmitScheduler(PacketCoalescer.FrameSender sender, int bytesPerSecond) {
+		this.sender = sender;
+		this.lock = new ReentrantLock();
+		this.notEmpty = lock.newCondition();
+		this.notFull = lock.newCondition();
+		this.bytesPerSecond = bytesPerSecond;
+
+		TrafficClass[] classes = TrafficClass.values();
+		this.queues = new ClassQueue[classes.length];
+		for (TrafficClass c : classes) {
+			queues[c.ordinal()] = new ClassQueue(c);
+		}
+		this.current = (INTERACTIVE + 1) % queues.length;
+	}
+
+	/**
+	 * Configures the queue for a class.
+	 *
+	 * @param trafficClass the class to configure
+	 * @param weight the share of the link relative to the other classes
+	 * @param maxQueued the maximum number of queued frames
+	 * @param policy the policy when the queue is full
+	 */
+	public void configure(TrafficClass trafficClass, int weight, int maxQueued,
+			DropPolicy policy) {
+		if (weight < 1 && trafficClass != TrafficClass.Interactive)
+			throw new IllegalArgumentException("weight must be positive.");
+		if (maxQueued < 1)
+			throw new IllegalArgumentException("maxQueued must be positive.");
+		lock.lock();
+		try {
+			ClassQueue q = queues[trafficClass.ordinal()];
+			q.weight = weight;
+			q.maxQueued = maxQueued;
+			q.policy = policy;
+			notFull.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Sets the transmit budget.
+	 *
+	 * @param bytesPerSecond the budget, or a non-positive value for no limit
+	 */
+	public void setBytesPerSecond(int bytesPerSecond) {
+		this.bytesPerSecond = bytesPerSecond;
+	}
+
+	/**
+	 * Starts the transmit thread.
+	 */
+	public synchronized void start() {
+		if (running)
+			return;
+		running = true;
+		lastRefill = System.nanoTime();
+		tokens = burst();
+		thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				TransmitScheduler.this.run();
+			}
+		}, "ShoutTransmit");
+		thread.start();
+	}
+
+	/**
+	 * Stops the transmit thread. Queued frames are dropped.
+	 */
+	public synchronized void stop() {
+		if (!running)
+			return;
+		running = false;
+		thread.interrupt();
+		thread = null;
+
+		lock.lock();
+		try {
+			for (ClassQueue q : queues) {
+				while (!q.frames.isEmpty()) {
+					drop(q, q.frames.poll());
+				}
+			}
+			queued = 0;
+			notFull.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Schedules the frame for transmission. The frame is copied, so the buffer
+	 * remains owned by the caller.
+	 * <p>
+	 * {@link TrafficClass#Interactive} frames are waited for, so that errors
+	 * can be reported. Frames of other classes are queued and errors sending
+	 * them are logged.
+	 *
+	 * @param packet the frame, from the start of the buffer to its position
+	 * @param trafficClass the class of the frame
+	 */
+	public void send(ByteBuffer packet, TrafficClass trafficClass)
+			throws ManesFrameTooLargeException, ManesNotRegisteredException {
+		if (packet.position() <= PACKET_HEADER_LEN)
+			return;
+		if (!running) {
+			sender.sendFrame(packet);
+			return;
+		}
+
+		ByteBuffer frame = PacketProtocol.createPacket();
+		ByteBuffer objects = packet.duplicate();
+		objects.flip();
+		objects.position(PACKET_HEADER_LEN);
+		frame.put(objects);
+
+		Entry entry = new Entry(frame, trafficClass == TrafficClass.Interactive);
+		try {
+			if (!enqueue(queues[trafficClass.ordinal()], entry))
+				return;
+		} catch (InterruptedException e) {
+			PacketProtocol.releasePacket(frame);
+			Thread.currentThread().interrupt();
+			return;
+		}
+
+		if (entry.done != null) {
+			try {
+				entry.done.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+			if (entry.tooLarge != null)
+				throw entry.tooLarge;
+			if (entry.notRegistered != null)
+				throw entry.notRegistered;
+		}
+	}
+
+	/**
+	 * @param trafficClass the class
+	 * @return the number of frames queued for the class
+	 */
+	public int getQueuedCount(TrafficClass trafficClass) {
+		lock.lock();
+		try {
+			return queues[trafficClass.ordinal()].frames.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @param trafficClass the class
+	 * @return the number of frames of the class that were sent
+	 */
+	public long getSentCount(TrafficClass trafficClass) {
+		lock.lock();
+		try {
+			return queues[trafficClass.ordinal()].sent;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @param trafficClass the class
+	 * @return the number of frames of the class that were dropped
+	 */
+	public long getDroppedCount(TrafficClass trafficClass) {
+		lock.lock();
+		try {
+			return queues[trafficClass.ordinal()].dropped;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @param trafficClass the class
+	 * @return the mean time, in milliseconds, that frames of the class waited
+	 *         in the queue
+	 */
+	public double getMeanQueueDelayMs(TrafficClass trafficClass) {
+		lock.lock();
+		try {
+			ClassQueue q = queues[trafficClass.ordinal()];
+			return (q.sent == 0) ? 0.0 : q.delayNanos / 1e6 / q.sent;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @param trafficClass the class
+	 * @return the maximum time, in milliseconds, that a frame of the class
+	 *         waited in the queue
+	 */
+	public double getMaxQueueDelayMs(TrafficClass trafficClass) {
+		lock.lock();
+		try {
+			return queues[trafficClass.ordinal()].maxDelayNanos / 1e6;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder("TransmitScheduler[");
+		lock.lock();
+		try {
+			for (ClassQueue q : queues) {
+				if (q != queues[INTERACTIVE])
+					sb.append(", ");
+				sb.append(String.format("%s: queued=%d, sent=%d, dropped=%d, delayMs(mean/max)=%.1f/%.1f",
+						q.trafficClass, q.frames.size(), q.sent, q.dropped,
+						(q.sent == 0) ? 0.0 : q.delayNanos / 1e6 / q.sent, q.maxDelayNanos / 1e6));
+			}
+		} finally {
+			lock.unlock();
+		}
+		return sb.append("]").toString();
+	}
+
+	/**
+	 * Adds the entry to the queue, applying the drop policy if it is full.
+	 *
+	 * @return {@code true} if the entry was queued, {@code false} if dropped
+	 */
+	private boolean enqueue(ClassQueue q, Entry entry) throws InterruptedException {
+		lock.lockInterruptibly();
+		try {
+			if (!running) {
+				drop(q, entry);
+				return false;
+			}
+			while (q.frames.size() >= q.maxQueued) {
+				switch (q.policy) {
+					case DropNewest:
+						drop(q, entry);
+						return false;
+					case DropOldest:
+						drop(q, q.frames.poll());
+						queued--;
+						break;
+					case Block:
+						notFull.await();
+						if (!running) {
+							drop(q, entry);
+							return false;
+						}
+						break;
+				}
+			}
+			entry.enqueued = System.nanoTime();
+			q.frames.add(entry);
+			queued++;
+			notEmpty.signal();
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void run() {
+		while (running) {
+			List<Entry> batch;
+			try {
+				awaitTokens();
+				batch = takeFrame();
+			} catch (InterruptedException e) {
+				// Running will be false if we should be quitting.
+				continue;
+			}
+
+			Entry first = batch.get(0);
+			ManesFrameTooLargeException tooLarge = null;
+			ManesNotRegisteredException notRegistered = null;
+			try {
+				sender.sendFrame(first.frame);
+			} catch (ManesFrameTooLargeException e) {
+				tooLarge = e;
+			} catch (ManesNotRegisteredException e) {
+				notRegistered = e;
+			} catch (RuntimeException e) {
+				Log.w(TAG, "Ignoring exception thrown while sending frame", e);
+			}
+			if (tooLarge != null || notRegistered != null)
+				Log.w(TAG, "Failed to send frame.", (tooLarge != null) ? tooLarge : notRegistered);
+
+			synchronized (this) {
+				tokens -= first.frame.position();
+			}
+			for (Entry entry : batch) {
+				entry.complete(tooLarge, notRegistered);
+			}
+			PacketProtocol.releasePacket(first.frame);
+		}
+	}
+
+	/**
+	 * Waits until the token bucket is not in debt. Frames are charged after
+	 * they are sent, so a frame never waits for tokens it does not need.
+	 */
+	private void awaitTokens() throws InterruptedException {
+		while (true) {
+			long waitNanos;
+			synchronized (this) {
+				int rate = bytesPerSecond;
+				if (rate <= 0)
+					return;
+				long now = System.nanoTime();
+				tokens = Math.min(burst(), tokens + (now - lastRefill) * rate / 1000000000L);
+				lastRefill = now;
+				if (tokens >= 0)
+					return;
+				waitNanos = -tokens * 1000000000L / rate;
+			}
+			TimeUnit.NANOSECONDS.sleep(Math.max(waitNanos, 100000L));
+		}
+	}
+
+	private long burst() {
+		return 2L * PacketProtocol.MAX_PACKET_LEN;
+	}
+
+	/**
+	 * Takes the next frame to send, topping it up with other queued frames
+	 * that fit.
+	 */
+	private List<Entry> takeFrame() throws InterruptedException {
+		lock.lockInterruptibly();
+		try {
+			while (queued == 0)
+				notEmpty.await();
+
+			List<Entry> batch = new ArrayList<Entry>(4);
+			ClassQueue first = select();
+			Entry entry = first.frames.poll();
+			dequeued(first, entry);
+			batch.add(entry);
+
+			ByteBuffer frame = entry.frame;
+			for (ClassQueue q : queues) {
+				Entry next;
+				while ((next = q.frames.peek()) != null
+						&& next.objectLength() <= frame.remaining()) {
+					q.frames.poll();
+					dequeued(q, next);
+					if (q != queues[INTERACTIVE])
+						q.deficit -= next.frame.position();
+					ByteBuffer objects = next.frame.duplicate();
+					objects.flip();
+					objects.position(PACKET_HEADER_LEN);
+					frame.put(objects);
+					PacketProtocol.releasePacket(next.frame);
+					batch.add(next);
+				}
+			}
+			notFull.signalAll();
+			return batch;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Selects the class of the next frame: interactive first, then deficit
+	 * round robin over the other classes.
+	 */
+	private ClassQueue select() {
+		if (!queues[INTERACTIVE].frames.isEmpty())
+			return queues[INTERACTIVE];
+
+		while (true) {
+			ClassQueue q = queues[current];
+			Entry head = q.frames.peek();
+			if (head == null) {
+				q.deficit = 0;
+				advance();
+				continue;
+			}
+			if (!fresh) {
+				q.deficit += (long) q.weight * PacketProtocol.MAX_PACKET_LEN;
+				fresh = true;
+			}
+			if (q.deficit >= head.frame.position()) {
+				q.deficit -= head.frame.position();
+				return q;
+			}
+			advance();
+		}
+	}
+
+	private void advance() {
+		do {
+			current = (current + 1) % queues.length;
+		} while (current == INTERACTIVE);
+		fresh = false;
+	}
+
+	private void dequeued(ClassQueue q, Entry entry) {
+		queued--;
+		long delay = System.nanoTime() - entry.enqueued;
+		q.sent++;
+		q.delayNanos += delay;
+		if (delay > q.maxDelayNanos)
+			q.maxDelayNanos = delay;
+	}
+
+	private void drop(ClassQueue q, Entry entry) {
+		q.dropped++;
+		PacketProtocol.releasePacket(entry.frame);
+		entry.complete(null, null);
+	}
+
+	private static class ClassQueue {
+		final TrafficClass trafficClass;
+
+		final ArrayDeque<Entry> frames;
+
+		int weight;
+		int maxQueued;
+		DropPolicy policy;
+
+		long deficit;
+
+		long sent;
+		long dropped;
+		long delayNanos;
+		long maxDelayNanos;
+
+		ClassQueue(TrafficClass trafficClass) {
+			this.trafficClass = trafficClass;
+			this.frames = new ArrayDeque<Entry>();
+			this.weight = trafficClass.getDefaultWeight();
+			this.maxQueued = trafficClass.getDefaultMaxQueued();
+			this.policy = trafficClass.getDefaultDropPolicy();
+		}
+	}
+
+	private static class Entry {
+		final ByteBuffer frame;
+
+		final CountDownLatch done;
+
+		long enqueued;
+
+		volatile ManesFrameTooLargeException tooLarge;
+		volatile ManesNotRegisteredException notRegistered;
+
+		Entry(ByteBuffer frame, boolean waited) {
+			this.frame = frame;
+			this.done = waited ? new CountDownLatch(1) : null;
+		}
+
+		int objectLength() {
+			return frame.position() - PACKET_HEADER_LEN;
+		}
+
+		void complete(ManesFrameTooLargeException tooLarge,
+				ManesNotRegisteredException notRegistered) {
+			if (done != null) {
+				this.tooLarge = tooLarge;
+				this.notRegistered = notRegistered;
+				done.countDown();
+			}
+		}
+	}
+
+}
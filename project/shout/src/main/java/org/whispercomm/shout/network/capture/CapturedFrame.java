@@ -0,0 +1,63 @@
+package org.whispercomm.shout.network.capture;
+
+/**
+ * A frame read from a capture file.
+ * 
+ * @author David R. Bild
+ */
+public class CapturedFrame {
+
+	/**
+	 * Whether a frame was received from or sent to the link.
+	 */
+	public enum Direction {
+		Received(0x00), Sent(0x01);
+
+		private final int id;
+
+		private Direction(int id) {
+			this.id = id;
+		}
+
+		public int getId() {
+			return id;
+		}
+
+		public static Direction getDirection(int id) {
+			for (Direction direction : values()) {
+				if (direction.id == id)
+					return direction;
+			}
+			return null;
+		}
+	}
+
+	private final Direction direction;
+
+	private final long timeMicros;
+
+	private final byte[] data;
+
+	public CapturedFrame(Direction direction, long timeMicros, byte[] data) {
+		this.direction = direction;
+		this.timeMicros = timeMicros;
+		this.data = data;
+	}
+
+	public Direction getDirection() {
+		return direction;
+	}
+
+	/**
+	 * @return the time the frame was captured, in microseconds since the
+	 *         epoch
+	 */
+	public long getTimeMicros() {
+		return timeMicros;
+	}
+
+	public byte[] getData() {
+		return data;
+	}
+
+}
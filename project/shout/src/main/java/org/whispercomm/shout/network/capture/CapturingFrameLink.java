@@ -0,0 +1,78 @@
+package org.whispercomm.shout.network.capture;
+
+import java.io.IOException;
+
+import org.whispercomm.manes.client.maclib.ManesFrameTooLargeException;
+import org.whispercomm.manes.client.maclib.ManesNotRegisteredException;
+import org.whispercomm.shout.network.FrameLink;
+import org.whispercomm.shout.network.capture.CapturedFrame.Direction;
+
+import android.util.Log;
+
+/**
+ * A {@link FrameLink} that records every frame sent and received on another
+ * link with a {@link FrameCaptureWriter}, for replay with the capture replay
+ * benchmark.
+ * <p>
+ * Frames are recorded on the calling thread. If the capture cannot be
+ * written, capturing stops and the link keeps working.
+ * 
+ * @author David R. Bild
+ */
+public class CapturingFrameLink implements FrameLink {
+	private static final String TAG = CapturingFrameLink.class.getSimpleName();
+
+	private final FrameLink link;
+
+	private final FrameCaptureWriter writer;
+
+	private volatile boolean capturing;
+
+	public CapturingFrameLink(FrameLink link, FrameCaptureWriter writer) {
+		this.link = link;
+		this.writer = writer;
+		this.capturing = true;
+	}
+
+	@Override
+	public boolean send(byte[] frame) throws ManesNotRegisteredException,
+			ManesFrameTooLargeException {
+		boolean sent = link.send(frame);
+		if (sent)
+			capture(Direction.Sent, frame);
+		return sent;
+	}
+
+	@Override
+	public byte[] receive(long timeoutMs) {
+		byte[] frame = link.receive(timeoutMs);
+		if (frame != null)
+			capture(Direction.Received, frame);
+		return frame;
+	}
+
+	/**
+	 * Stops capturing and closes the capture.
+	 */
+	public void close() {
+		capturing = false;
+		try {
+			writer.close();
+		} catch (IOException e) {
+			Log.w(TAG, "Failed to close frame capture.", e);
+		}
+		Log.i(TAG, writer.toString());
+	}
+
+	private void capture(Direction direction, byte[] frame) {
+		if (!capturing)
+			return;
+		try {
+			writer.write(direction, frame);
+		} catch (IOException e) {
+			Log.w(TAG, "Failed to capture frame. Stopping capture.", e);
+			capturing = false;
+		}
+	}
+
+}
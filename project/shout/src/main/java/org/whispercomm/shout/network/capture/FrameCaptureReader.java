@@ -0,0 +1,112 @@
+package org.whispercomm.shout.network.capture;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.commons.io.input.CountingInputStream;
+
+import org.whispercomm.shout.errors.InvalidFormatException;
+import org.whispercomm.shout.network.UnsupportedVersionException;
+import org.whispercomm.shout.network.capture.CapturedFrame.Direction;
+
+/**
+ * Reads the frames of a capture file written by {@link FrameCaptureWriter}.
+ * 
+ * @author David R. Bild
+ */
+public class FrameCaptureReader {
+
+	private final CountingInputStream counter;
+
+	private final DataInputStream in;
+
+	/**
+	 * Time of the previous frame, in microseconds since the epoch
+	 */
+	private long timeMicros;
+
+	private boolean inSession;
+
+	public FrameCaptureReader(InputStream in) {
+		this.counter = new CountingInputStream(new BufferedInputStream(in));
+		this.in = new DataInputStream(counter);
+		this.inSession = false;
+	}
+
+	/**
+	 * Reads the next frame.
+	 * 
+	 * @return the frame or {@code null} at the end of the file
+	 * @throws IOException if the file cannot be read
+	 * @throws InvalidFormatException if the file is malformed or truncated
+	 * @throws UnsupportedVersionException if a session has an unknown version
+	 */
+	public CapturedFrame next() throws IOException, InvalidFormatException,
+			UnsupportedVersionException {
+		while (true) {
+			int type = in.read();
+			if (type < 0)
+				return null;
+			try {
+				if (type == FrameCaptureWriter.MAGIC[0]) {
+					readHeader();
+					continue;
+				}
+				if (!inSession)
+					throw new InvalidFormatException("Capture does not start with a header.");
+
+				Direction direction = Direction.getDirection(type);
+				if (direction == null)
+					throw new InvalidFormatException(String.format(
+							"Unknown frame direction: %02X", type));
+				timeMicros += readVarint();
+				byte[] data = new byte[in.readUnsignedShort()];
+				in.readFully(data);
+				return new CapturedFrame(direction, timeMicros, data);
+			} catch (EOFException e) {
+				throw new InvalidFormatException("Capture is truncated.");
+			}
+		}
+	}
+
+	public void close() throws IOException {
+		in.close();
+	}
+
+	/**
+	 * @return the number of bytes read, which is the offset of the end of the
+	 *         last frame returned by {@link #next()}
+	 */
+	long getPosition() {
+		return counter.getByteCount();
+	}
+
+	private void readHeader() throws IOException, InvalidFormatException,
+			UnsupportedVersionException {
+		for (int i = 1; i < FrameCaptureWriter.MAGIC.length; ++i) {
+			if (in.readByte() != FrameCaptureWriter.MAGIC[i])
+				throw new InvalidFormatException("Invalid capture session header.");
+		}
+		byte version = in.readByte();
+		if (version != FrameCaptureWriter.VERSION)
+			throw new UnsupportedVersionException(String.format(
+					"Unrecognized capture version: %02X", version));
+		timeMicros = 1000 * in.readLong();
+		inSession = true;
+	}
+
+	private long readVarint() throws IOException, InvalidFormatException {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			int b = in.readUnsignedByte();
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+				return value;
+		}
+		throw new InvalidFormatException("Varint is too long.");
+	}
+
+}
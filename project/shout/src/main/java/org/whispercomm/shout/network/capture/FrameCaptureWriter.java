@@ -0,0 +1,221 @@
+package org.whispercomm.shout.network.capture;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+
+import org.whispercomm.shout.errors.InvalidFormatException;
+import org.whispercomm.shout.network.UnsupportedVersionException;
+import org.whispercomm.shout.network.capture.CapturedFrame.Direction;
+
+import android.util.Log;
+
+/**
+ * Appends frames to a capture file.
+ * <p>
+ * A capture file is a sequence of sessions, so a file can be appended to by
+ * each run of the service. A session starts with a header: the magic bytes
+ * {@code SHCP}, a version byte, and the start time in milliseconds since the
+ * epoch (eight bytes). Each frame follows as a direction byte, the time since
+ * the previous frame (or the session start) in microseconds as an unsigned
+ * varint, the frame length (two bytes), and the frame.
+ * <p>
+ * Frames are buffered and flushed at least every {@link #FLUSH_INTERVAL_MS},
+ * since the service usually ends by its process being killed. The last
+ * record of a killed session may thus be partial, so {@link #open(File)}
+ * truncates the file after its last complete record before appending, which
+ * keeps the next session header readable. A file is limited to
+ * {@link #MAX_CAPTURE_BYTES}; once full, it is moved aside to a file with the
+ * suffix {@value #OLD_SUFFIX} at the next open, replacing any previous one.
+ * <p>
+ * This class is thread-safe.
+ * 
+ * @author David R. Bild
+ */
+public class FrameCaptureWriter {
+	private static final String TAG = FrameCaptureWriter.class.getSimpleName();
+
+	static final byte[] MAGIC = new byte[] { 'S', 'H', 'C', 'P' };
+
+	static final byte VERSION = 0x00;
+
+	/**
+	 * maximum number of bytes in a capture file, after which further frames
+	 * are dropped
+	 */
+	public static long MAX_CAPTURE_BYTES = 32 * 1024 * 1024;
+
+	/**
+	 * maximum time, in milliseconds, that a written frame stays buffered
+	 */
+	public static long FLUSH_INTERVAL_MS = 1000;
+
+	static final String OLD_SUFFIX = ".old";
+
+	/**
+	 * Maximum bytes of a frame record in addition to the frame: the direction,
+	 * the time varint and the length
+	 */
+	private static final int MAX_RECORD_OVERHEAD = 1 + 10 + 2;
+
+	private final DataOutputStream out;
+
+	private final long startNanos;
+
+	private long lastMicros;
+
+	private long lastFlushNanos;
+
+	private long bytes;
+
+	private long frames;
+
+	private long dropped;
+
+	/**
+	 * Opens a capture file for appending, creating it if needed. A partial
+	 * record at the end of the file is removed, and a full file is moved
+	 * aside.
+	 * 
+	 * @param file the capture file
+	 * @return the writer
+	 * @throws IOException if the file cannot be opened
+	 */
+	public static FrameCaptureWriter open(File file) throws IOException {
+		File dir = file.getParentFile();
+		if (dir != null && !dir.exists())
+			dir.mkdirs();
+
+		long length = 0;
+		if (file.length() >= MAX_CAPTURE_BYTES) {
+			File old = new File(file.getPath() + OLD_SUFFIX);
+			old.delete();
+			if (!file.renameTo(old))
+				throw new IOException("Unable to move aside full capture " + file);
+		} else if (file.exists()) {
+			length = truncatePartialRecord(file);
+		}
+		return new FrameCaptureWriter(new FileOutputStream(file, true), length);
+	}
+
+	/**
+	 * Truncates a capture file after its last complete record.
+	 * 
+	 * @return the new length of the file
+	 */
+	private static long truncatePartialRecord(File file) throws IOException {
+		long length = 0;
+		FrameCaptureReader reader = new FrameCaptureReader(new FileInputStream(file));
+		try {
+			while (reader.next() != null)
+				length = reader.getPosition();
+		} catch (InvalidFormatException e) {
+			// Partial record
+		} catch (UnsupportedVersionException e) {
+			// Nothing after it can be read
+		} finally {
+			reader.close();
+		}
+
+		if (length < file.length()) {
+			Log.w(TAG, "Truncating " + (file.length() - length) + " bytes of partial records from "
+					+ file);
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			try {
+				raf.setLength(length);
+			} finally {
+				raf.close();
+			}
+		}
+		return length;
+	}
+
+	/**
+	 * Starts a new session on the stream.
+	 * 
+	 * @param out the stream to which to write
+	 * @throws IOException if the header cannot be written
+	 */
+	public FrameCaptureWriter(OutputStream out) throws IOException {
+		this(out, 0);
+	}
+
+	/**
+	 * @param existing the number of bytes already in the capture
+	 */
+	private FrameCaptureWriter(OutputStream out, long existing) throws IOException {
+		this.out = new DataOutputStream(new BufferedOutputStream(out));
+		this.startNanos = System.nanoTime();
+		this.lastMicros = 0;
+		this.lastFlushNanos = startNanos;
+		this.out.write(MAGIC);
+		this.out.writeByte(VERSION);
+		this.out.writeLong(System.currentTimeMillis());
+		this.bytes = existing + MAGIC.length + 1 + 8;
+	}
+
+	/**
+	 * Appends a frame.
+	 * 
+	 * @param direction whether the frame was received or sent
+	 * @param frame the frame
+	 * @return {@code false} if the frame was dropped because the file is full
+	 * @throws IOException if the frame cannot be written
+	 */
+	public synchronized boolean write(Direction direction, byte[] frame) throws IOException {
+		if (bytes + MAX_RECORD_OVERHEAD + frame.length > MAX_CAPTURE_BYTES) {
+			dropped++;
+			return false;
+		}
+
+		long nanos = System.nanoTime();
+		long micros = (nanos - startNanos) / 1000;
+		out.writeByte(direction.getId());
+		bytes += 1 + writeVarint(micros - lastMicros);
+		out.writeShort(frame.length);
+		out.write(frame);
+		bytes += 2 + frame.length;
+		lastMicros = micros;
+		frames++;
+
+		if (nanos - lastFlushNanos >= FLUSH_INTERVAL_MS * 1000000) {
+			out.flush();
+			lastFlushNanos = nanos;
+		}
+		return true;
+	}
+
+	public synchronized void flush() throws IOException {
+		out.flush();
+	}
+
+	public synchronized void close() throws IOException {
+		out.close();
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format("FrameCaptureWriter[frames=%d, fileBytes=%d, dropped=%d]", frames,
+				bytes, dropped);
+	}
+
+	/**
+	 * @return the number of bytes written
+	 */
+	private int writeVarint(long value) throws IOException {
+		int len = 1;
+		while ((value & ~0x7FL) != 0) {
+			out.writeByte((int) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+			len++;
+		}
+		out.writeByte((int) value);
+		return len;
+	}
+
+}
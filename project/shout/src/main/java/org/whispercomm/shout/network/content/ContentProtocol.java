@@ -3,8 +3,9 @@ package org.whispercomm.shout.network.content;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import org.whispercomm.manes.client.maclib.ManesFrameTooLargeException;
 import org.whispercomm.manes.client.maclib.ManesNotRegisteredException;
@@ -13,6 +14,13 @@ import org.whispercomm.shout.content.ContentManager;
 import org.whispercomm.shout.content.descriptor.ContentDescriptor;
 import org.whispercomm.shout.content.descriptor.ContentDescriptorSerializer;
 import org.whispercomm.shout.content.descriptor.ContentDescriptorStore;
+import org.whispercomm.shout.content.fountain.FountainCode;
+import org.whispercomm.shout.content.fountain.FountainDecoder;
+import org.whispercomm.shout.content.fountain.FountainEncoder;
+import org.whispercomm.shout.content.fountain.FountainSymbol;
+import org.whispercomm.shout.content.fountain.FountainSymbolSerializer;
+import org.whispercomm.shout.content.merkle.InnerNode;
+import org.whispercomm.shout.content.merkle.MerkleBuilder;
 import org.whispercomm.shout.content.merkle.MerkleNode;
 import org.whispercomm.shout.content.merkle.MerkleNodeReference;
 import org.whispercomm.shout.content.merkle.MerkleSerializer;
@@ -25,14 +33,46 @@ import org.whispercomm.shout.errors.NotFoundException;
 import org.whispercomm.shout.network.ObjectProtocol;
 import org.whispercomm.shout.network.ObjectType;
 import org.whispercomm.shout.network.PacketProtocol;
+import org.whispercomm.shout.network.TrafficClass;
 import org.whispercomm.shout.network.UnsupportedVersionException;
 import org.whispercomm.shout.tracker.ShoutTracker;
 
+import android.support.v4.util.LruCache;
 import android.util.Log;
 
 public class ContentProtocol implements ObjectProtocol {
 	private static final String TAG = ContentProtocol.class.getSimpleName();
 
+	/**
+	 * minimum number of data blocks for an object to be sent as fountain
+	 * symbols. Smaller objects are sent as Merkle nodes.
+	 */
+	public static int FOUNTAIN_MIN_BLOCKS = 4;
+
+	/**
+	 * number of fountain symbols sent per response, as a percentage of the
+	 * number of data blocks
+	 */
+	public static int FOUNTAIN_BATCH_PERCENT = 125;
+
+	/**
+	 * number of fountain symbols sent per response within
+	 * {@link #FOUNTAIN_HOLDOFF_MS} of another batch for the same object, as a
+	 * percentage of the number of data blocks
+	 */
+	public static int FOUNTAIN_TOPUP_PERCENT = 20;
+
+	/**
+	 * time after fountain symbols for an object are sent or overheard during
+	 * which responses are reduced to top-ups, in milliseconds
+	 */
+	public static long FOUNTAIN_HOLDOFF_MS = 5 * 1000;
+
+	/**
+	 * maximum number of objects decoded from fountain symbols at once
+	 */
+	public static int MAX_DECODERS = 8;
+
 	private PacketProtocol packetProtocol;
 	private ObjectStorage objectStorage;
 	private ContentDescriptorStore descriptorStore;
@@ -40,11 +80,40 @@ public class ContentProtocol implements ObjectProtocol {
 
 	private ContentRequestHandler contentRequestHandler;
 
+	private volatile boolean fountainCoding;
+
+	/**
+	 * Objects being decoded from received fountain symbols, by root hash
+	 */
+	private final LruCache<Hash, FountainDecoder> decoders;
+
+	/**
+	 * Fountain symbols recently sent or overheard for each object, so
+	 * repeated responses are smaller and carry new symbols
+	 */
+	private final LruCache<Hash, SymbolHistory> symbolHistory;
+
 	public ContentProtocol(PacketProtocol packetProtocol, ContentManager contentManager) {
 		this.packetProtocol = packetProtocol;
 		this.objectStorage = contentManager.getObjectStorage();
 		this.descriptorStore = contentManager.getDescriptorStore();
 		this.merkleStore = contentManager.getMerkleStore();
+		this.decoders = new LruCache<Hash, FountainDecoder>(MAX_DECODERS);
+		this.symbolHistory = new LruCache<Hash, SymbolHistory>(4 * MAX_DECODERS);
+	}
+
+	/**
+	 * Sets whether complete objects are sent as fountain symbols instead of
+	 * Merkle nodes. Received symbols are always decoded.
+	 * <p>
+	 * Each symbol is useful to any receiver missing any part of the object,
+	 * so lost frames are made up by later symbols rather than by requesting
+	 * the specific missing nodes.
+	 * 
+	 * @param enabled {@code true} to send fountain symbols
+	 */
+	public void setFountainCoding(boolean enabled) {
+		this.fountainCoding = enabled;
 	}
 
 	public void setContentRequestHandler(ContentRequestHandler handler) {
@@ -74,8 +143,81 @@ public class ContentProtocol implements ObjectProtocol {
 		}
 	}
 
+	/**
+	 * Sends the objects answering a batched request, sharing packets between
+	 * them. Nodes in more than one requested subtree are sent once. Hashes
+	 * that are not stored are skipped.
+	 * <p>
+	 * If fountain coding is enabled and the request names the root of the
+	 * tree containing at least {@link #FOUNTAIN_MIN_BLOCKS} of the requested
+	 * nodes, the whole object is sent as fountain symbols instead.
+	 * 
+	 * @param hashes the requested hashes
+	 * @param root the root hint of the request, or {@code null}
+	 */
+	public void send(List<Hash> hashes, Hash root) throws IOException,
+			ManesFrameTooLargeException, ManesNotRegisteredException {
+		if (root != null && hashes.size() >= FOUNTAIN_MIN_BLOCKS && sendSymbols(root))
+			return;
+
+		MerkleNodePacketSender sender = new MerkleNodePacketSender(PacketProtocol.createPacket());
+		try {
+			for (Hash hash : hashes) {
+				append(hash, sender);
+			}
+			sender.finish();
+		} finally {
+			sender.release();
+		}
+	}
+
+	private void append(Hash hash, MerkleNodePacketSender sender) throws IOException,
+			ManesFrameTooLargeException, ManesNotRegisteredException {
+		byte[] data;
+		try {
+			data = objectStorage.retrieve(hash);
+		} catch (NotFoundException e) {
+			return;
+		}
+
+		MerkleNodeReference ref;
+		int id = 0xFF & data[0];
+		try {
+			if (id == ObjectType.ContentDescriptor.getId()) {
+				ContentDescriptor descriptor = ContentDescriptorSerializer.deserialize(data);
+				ShoutTracker.trackSendContentDescriptor(descriptor);
+				sender.append(descriptor);
+				if (sendSymbols(descriptor.getObjectRoot()))
+					return;
+				ref = new MerkleNodeReference(descriptor.getObjectRoot());
+			} else if (id == ObjectType.MerkleNode.getId()) {
+				MerkleNode node = MerkleSerializer.deserialize(data);
+				if (node instanceof InnerNode && sendSymbols(node.getHash()))
+					return;
+				ref = node.getRef();
+			} else {
+				Log.w(TAG, "Dropping send request for unknown object type: " + data[0]);
+				return;
+			}
+		} catch (InvalidFormatException e) {
+			Log.w(TAG, "Unable to decode content block from disk", e);
+			return;
+		} catch (UnsupportedVersionException e) {
+			Log.w(TAG, "Unable to decode content block from disk", e);
+			return;
+		}
+
+		merkleStore.growTree(ref);
+		if (ref.isAvailable())
+			ref.get().depthFirstTraversal(sender);
+	}
+
+	/*
+	 * Synchronized because packets are received on multiple threads and the
+	 * stores are not safe for concurrent writes.
+	 */
 	@Override
-	public void receive(ObjectType type, ByteBuffer data) {
+	public synchronized void receive(ObjectType type, ByteBuffer data) {
 		switch (type) {
 			case ContentDescriptor:
 				receiveContentDescriptor(data);
@@ -86,6 +228,9 @@ public class ContentProtocol implements ObjectProtocol {
 			case ContentRequest:
 				receiveContentRequest(data);
 				break;
+			case FountainSymbol:
+				receiveFountainSymbol(data);
+				break;
 			default:
 				break;
 		}
@@ -104,13 +249,14 @@ public class ContentProtocol implements ObjectProtocol {
 			return;
 		}
 
-		contentRequestHandler.receiveContentDescriptor(descriptor);
-
 		try {
 			descriptorStore.store(descriptor);
 		} catch (IOException e) {
 			Log.w(TAG, "Dropping content descriptor after failture to store it", e);
+			return;
 		}
+
+		contentRequestHandler.receiveContentDescriptor(descriptor);
 	}
 
 	private void receiveMerkleNode(ByteBuffer data) {
@@ -126,13 +272,66 @@ public class ContentProtocol implements ObjectProtocol {
 			return;
 		}
 
-		contentRequestHandler.receiveMerkleNode(node);
-
 		try {
 			merkleStore.putNode(node);
 		} catch (IOException e) {
 			Log.w(TAG, "Dropping merkle node after failure to store it", e);
+			return;
+		}
+
+		contentRequestHandler.receiveMerkleNode(node);
+	}
+
+	private void receiveFountainSymbol(ByteBuffer data) {
+		FountainSymbol symbol = null;
+		try {
+			symbol = FountainSymbolSerializer.deserialize(data);
+		} catch (UnsupportedVersionException e) {
+			Log.v(TAG, "Dropping fountain symbol with unsupported version", e);
+			return;
+		} catch (InvalidFormatException e) {
+			Log.v(TAG, "Dropping fountain symbol with invalid format", e);
+			return;
+		}
+
+		Hash root = symbol.getRoot();
+		recordSymbols(root, symbol.getSymbolId() + 1);
+		FountainDecoder decoder = decoders.get(root);
+		if (decoder == null) {
+			if (symbol.getLength() > MerkleBuilder.MAX_DATA_LEN || objectStorage.exists(root))
+				return;
+			decoder = new FountainDecoder(root, symbol.getLength());
+			decoders.put(root, decoder);
+		} else if (decoder.isComplete()) {
+			return;
 		}
+
+		try {
+			if (!decoder.add(symbol))
+				return;
+		} catch (IllegalArgumentException e) {
+			Log.v(TAG, "Dropping fountain symbol with conflicting object length", e);
+			return;
+		}
+
+		// Verify the decoded object against the root before storing it
+		byte[] object = decoder.getData();
+		decoder.release();
+		MerkleNode tree = MerkleBuilder.build(object, 0, object.length);
+		if (!root.equals(tree.getHash())) {
+			Log.w(TAG, "Dropping fountain-decoded object not matching its root hash");
+			decoders.remove(root);
+			return;
+		}
+
+		try {
+			merkleStore.putTree(tree.getRef());
+		} catch (IOException e) {
+			Log.w(TAG, "Dropping fountain-decoded object after failure to store it", e);
+			return;
+		}
+
+		contentRequestHandler.receiveMerkleNode(tree);
 	}
 
 	private void receiveContentRequest(ByteBuffer data) {
@@ -145,6 +344,7 @@ public class ContentProtocol implements ObjectProtocol {
 			return;
 		} catch (InvalidFormatException e) {
 			Log.v(TAG, "Dropping content request with invalid format", e);
+			return;
 		}
 
 		contentRequestHandler.receiveRequest(request);
@@ -155,9 +355,32 @@ public class ContentProtocol implements ObjectProtocol {
 		// Add the descriptor
 		ShoutTracker.trackSendContentDescriptor(descriptor);
 		ByteBuffer buffer = PacketProtocol.createPacket();
-		while (!ContentDescriptorSerializer.serialize(buffer, descriptor)) {
-			packetProtocol.send(buffer);
-			buffer = PacketProtocol.createPacket();
+		try {
+			while (!ContentDescriptorSerializer.serialize(buffer, descriptor)) {
+				packetProtocol.send(buffer, TrafficClass.ContentResponse);
+				PacketProtocol.releasePacket(buffer);
+				buffer = PacketProtocol.createPacket();
+			}
+		} catch (ManesFrameTooLargeException e) {
+			PacketProtocol.releasePacket(buffer);
+			throw e;
+		} catch (ManesNotRegisteredException e) {
+			PacketProtocol.releasePacket(buffer);
+			throw e;
+		}
+
+		try {
+			if (sendSymbols(descriptor.getObjectRoot())) {
+				packetProtocol.sendCoalesced(buffer, TrafficClass.ContentResponse);
+				PacketProtocol.releasePacket(buffer);
+				return;
+			}
+		} catch (ManesFrameTooLargeException e) {
+			PacketProtocol.releasePacket(buffer);
+			throw e;
+		} catch (ManesNotRegisteredException e) {
+			PacketProtocol.releasePacket(buffer);
+			throw e;
 		}
 
 		// Send the merkle nodes
@@ -166,54 +389,200 @@ public class ContentProtocol implements ObjectProtocol {
 
 	public void send(MerkleNode node) throws IOException, ManesFrameTooLargeException,
 			ManesNotRegisteredException {
+		if (node instanceof InnerNode && sendSymbols(node.getHash()))
+			return;
 		send(node.getRef(), PacketProtocol.createPacket());
 	}
 
+	/**
+	 * Sends the object rooted at the node as a batch of fountain symbols, if
+	 * fountain coding is enabled and the object is complete, large enough, and
+	 * rebuilt by {@link MerkleBuilder} with the same root. The last condition
+	 * excludes subtrees that are not themselves left-packed trees.
+	 * 
+	 * @return {@code true} if the symbols were sent
+	 */
+	private boolean sendSymbols(Hash root) throws IOException, ManesFrameTooLargeException,
+			ManesNotRegisteredException {
+		if (!fountainCoding)
+			return false;
+
+		byte[] object;
+		try {
+			object = merkleStore.getObject(root);
+		} catch (NotFoundException e) {
+			return false;
+		}
+		int numBlocks = FountainCode.numBlocks(object.length);
+		if (numBlocks < FOUNTAIN_MIN_BLOCKS)
+			return false;
+		if (!root.equals(MerkleBuilder.build(object, 0, object.length).getHash()))
+			return false;
+
+		long now = System.currentTimeMillis();
+		int count;
+		int first;
+		synchronized (symbolHistory) {
+			SymbolHistory history = symbolHistory.get(root);
+			if (history == null) {
+				history = new SymbolHistory();
+				symbolHistory.put(root, history);
+			}
+			// Receivers keep partially decoded objects, so after a recent
+			// batch a few new symbols usually complete them
+			int percent = (now - history.lastMs < FOUNTAIN_HOLDOFF_MS) ? FOUNTAIN_TOPUP_PERCENT
+					: FOUNTAIN_BATCH_PERCENT;
+			count = (numBlocks * percent + 99) / 100;
+			first = history.nextId;
+			history.nextId = first + count;
+			history.lastMs = now;
+		}
+
+		FountainEncoder encoder = new FountainEncoder(root, object);
+		for (int i = 0; i < count; ++i) {
+			// Each symbol nearly fills a frame, so send them uncoalesced
+			ByteBuffer buffer = PacketProtocol.createPacket();
+			try {
+				FountainSymbolSerializer.serialize(buffer, encoder.encode(first + i));
+				packetProtocol.send(buffer, TrafficClass.ContentResponse);
+			} finally {
+				PacketProtocol.releasePacket(buffer);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Sends the tree rooted at the node, appending to the partially-filled
+	 * packet. The packet buffer is released to the packet pool when done.
+	 */
 	public void send(MerkleNodeReference nodeRef, ByteBuffer buffer) throws IOException,
 			ManesFrameTooLargeException, ManesNotRegisteredException {
-		merkleStore.growTree(nodeRef);
-		// Serialize the merkle nodes into buffers
-		MerkleNodePacketBuilder builder = new MerkleNodePacketBuilder(buffer);
-		if (nodeRef.isAvailable())
-			nodeRef.get().depthFirstTraversal(builder);
+		MerkleNodePacketSender sender = new MerkleNodePacketSender(buffer);
+		try {
+			merkleStore.growTree(nodeRef);
+			// Serialize the merkle nodes, sending each packet as it fills
+			if (nodeRef.isAvailable())
+				nodeRef.get().depthFirstTraversal(sender);
+			sender.finish();
+		} finally {
+			sender.release();
+		}
+	}
 
-		// Send the buffers
-		for (ByteBuffer buf : builder.getBuffers()) {
-			packetProtocol.send(buf);
+	/**
+	 * Notes fountain symbols for an object sent by a neighbor, so later
+	 * responses start after them.
+	 */
+	private void recordSymbols(Hash root, int nextId) {
+		synchronized (symbolHistory) {
+			SymbolHistory history = symbolHistory.get(root);
+			if (history == null) {
+				history = new SymbolHistory();
+				symbolHistory.put(root, history);
+			}
+			history.nextId = Math.max(history.nextId, nextId);
+			history.lastMs = System.currentTimeMillis();
 		}
 	}
 
-	private static class MerkleNodePacketBuilder implements MerkleNode.Visitor {
+	private static class SymbolHistory {
+		int nextId;
+		long lastMs = Long.MIN_VALUE / 2;
+	}
+
+	/**
+	 * Serializes visited nodes into packets, sending each packet as soon as it
+	 * is full and reusing its buffer for the next one. Only one packet buffer
+	 * is held at a time.
+	 */
+	private class MerkleNodePacketSender implements MerkleNode.Visitor {
 
-		private List<ByteBuffer> buffers;
 		private ByteBuffer current;
 
-		public MerkleNodePacketBuilder(ByteBuffer buffer) {
+		/**
+		 * Hashes of the nodes already sent
+		 */
+		private final Set<Hash> sent;
+
+		private ManesFrameTooLargeException tooLarge;
+		private ManesNotRegisteredException notRegistered;
+
+		public MerkleNodePacketSender(ByteBuffer buffer) {
 			this.current = buffer;
-			this.buffers = new ArrayList<ByteBuffer>(10);
-			this.buffers.add(current);
+			this.sent = new HashSet<Hash>();
 		}
 
 		@Override
 		public void visit(MerkleNodeReference ref) {
-			if (!ref.isAvailable())
+			if (!ref.isAvailable() || failed())
+				return;
+			if (!sent.add(ref.getHash()))
 				return;
 
 			MerkleNode node = ref.get();
 			ShoutTracker.trackSendMerkleNode(node);
 			if (!node.serialize(current)) {
-				createBuffer();
+				flush();
+				if (failed())
+					return;
 				node.serialize(current);
 			}
 		}
 
-		private void createBuffer() {
-			current = PacketProtocol.createPacket();
-			buffers.add(current);
+		/**
+		 * Serializes a content descriptor into the packets.
+		 */
+		public void append(ContentDescriptor descriptor) {
+			if (failed())
+				return;
+			if (!ContentDescriptorSerializer.serialize(current, descriptor)) {
+				flush();
+				if (failed())
+					return;
+				ContentDescriptorSerializer.serialize(current, descriptor);
+			}
+		}
+
+		/**
+		 * Queues the last, partially-filled packet.
+		 * 
+		 * @throws ManesFrameTooLargeException if sending any packet failed
+		 * @throws ManesNotRegisteredException if sending any packet failed
+		 */
+		public void finish() throws ManesFrameTooLargeException, ManesNotRegisteredException {
+			// The last packet is usually partial, so let it share a frame
+			if (!failed())
+				packetProtocol.sendCoalesced(current, TrafficClass.ContentResponse);
+			if (tooLarge != null)
+				throw tooLarge;
+			if (notRegistered != null)
+				throw notRegistered;
+		}
+
+		public void release() {
+			if (current != null) {
+				PacketProtocol.releasePacket(current);
+				current = null;
+			}
+		}
+
+		private boolean failed() {
+			return tooLarge != null || notRegistered != null;
 		}
 
-		public List<ByteBuffer> getBuffers() {
-			return buffers;
+		private void flush() {
+			try {
+				packetProtocol.send(current, TrafficClass.ContentResponse);
+			} catch (ManesFrameTooLargeException e) {
+				tooLarge = e;
+				return;
+			} catch (ManesNotRegisteredException e) {
+				notRegistered = e;
+				return;
+			}
+			PacketProtocol.releasePacket(current);
+			current = PacketProtocol.createPacket();
 		}
 
 	}
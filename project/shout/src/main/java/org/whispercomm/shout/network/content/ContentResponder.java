@@ -0,0 +1,228 @@
+package org.whispercomm.shout.network.content;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.whispercomm.manes.client.maclib.ManesFrameTooLargeException;
+import org.whispercomm.manes.client.maclib.ManesNotRegisteredException;
+import org.whispercomm.shout.Hash;
+import org.whispercomm.shout.content.request.ContentRequest;
+import org.whispercomm.shout.content.storage.ObjectStorage;
+import org.whispercomm.shout.network.PacketProtocol;
+import org.whispercomm.shout.network.TrafficClass;
+
+import android.util.Log;
+
+/**
+ * Answers content requests so that, of the neighbors holding the content,
+ * usually only one responds.
+ * <p>
+ * The stored hashes of each request are answered after a random delay. A
+ * hash is dropped from the pending response if the object is overheard from
+ * another responder first (see {@link #overheard(Hash)}), and requests for
+ * hashes already pending are folded into the pending response. The delay is
+ * drawn from a window of {@link #RESPONSE_WINDOW_MS} that widens with the
+ * responses this node has pending or queued for sending, so idle neighbors
+ * tend to answer before busy ones.
+ * <p>
+ * This class is thread-safe.
+ *
+ * @author David R. Bild
+ */
+public class ContentResponder {
+	private static final String TAG = ContentResponder.class.getSimpleName();
+
+	/**
+	 * window from which the delay before responding is drawn when idle, in
+	 * milliseconds. It should cover the time to send the first packet of a
+	 * response, so neighbors overhear it before their own delays expire.
+	 */
+	public static long RESPONSE_WINDOW_MS = 100;
+
+	/**
+	 * maximum delay before responding, in milliseconds
+	 */
+	public static long MAX_RESPONSE_DELAY_MS = 1000;
+
+	private final ContentProtocol contentProtocol;
+
+	private final PacketProtocol packetProtocol;
+
+	private final ObjectStorage storage;
+
+	private final ScheduledExecutorService executor;
+
+	private final Random random;
+
+	/**
+	 * Pending responses, by requested hash
+	 */
+	private final Map<Hash, Response> pending;
+
+	private long requested;
+	private long responded;
+	private long suppressed;
+	private long folded;
+
+	/**
+	 * @param contentProtocol the protocol used to send responses
+	 * @param packetProtocol the protocol whose send queue measures load
+	 * @param storage the storage holding the content to send
+	 * @param executor the executor that sends responses
+	 */
+	public ContentResponder(ContentProtocol contentProtocol, PacketProtocol packetProtocol,
+			ObjectStorage storage, ScheduledExecutorService executor) {
+		this.contentProtocol = contentProtocol;
+		this.packetProtocol = packetProtocol;
+		this.storage = storage;
+		this.executor = executor;
+		this.random = new Random();
+		this.pending = new HashMap<Hash, Response>();
+	}
+
+	/**
+	 * Schedules a response to the stored hashes of the request.
+	 *
+	 * @param request the request
+	 */
+	public void request(ContentRequest request) {
+		List<Hash> stored = new ArrayList<Hash>(request.getHashes().size());
+		for (Hash hash : request.getHashes()) {
+			if (storage.exists(hash))
+				stored.add(hash);
+		}
+
+		synchronized (this) {
+			requested += request.getHashes().size();
+			Response response = new Response(request.getRoot());
+			for (Hash hash : stored) {
+				if (pending.containsKey(hash)) {
+					folded++;
+					continue;
+				}
+				pending.put(hash, response);
+				response.hashes.add(hash);
+			}
+			if (response.hashes.isEmpty())
+				return;
+
+			try {
+				executor.schedule(response, delayMs(), TimeUnit.MILLISECONDS);
+			} catch (RejectedExecutionException e) {
+				// Shut down
+				for (Hash hash : response.hashes)
+					pending.remove(hash);
+			}
+		}
+	}
+
+	/**
+	 * Notes that an object was received from another node, so a pending
+	 * response to it is no longer needed.
+	 *
+	 * @param hash the hash of the object
+	 */
+	public synchronized void overheard(Hash hash) {
+		Response response = pending.remove(hash);
+		if (response != null) {
+			response.hashes.remove(hash);
+			suppressed++;
+		}
+	}
+
+	/**
+	 * Drops all pending responses.
+	 */
+	public synchronized void clear() {
+		for (Response response : pending.values())
+			response.hashes.clear();
+		pending.clear();
+	}
+
+	/**
+	 * @return the number of hashes requested from this node
+	 */
+	public synchronized long getRequestedCount() {
+		return requested;
+	}
+
+	/**
+	 * @return the number of hashes answered by this node
+	 */
+	public synchronized long getRespondedCount() {
+		return responded;
+	}
+
+	/**
+	 * @return the number of pending answers dropped after overhearing them
+	 */
+	public synchronized long getSuppressedCount() {
+		return suppressed;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format(
+				"ContentResponder[pending=%d, requested=%d, responded=%d, suppressed=%d, folded=%d]",
+				pending.size(), requested, responded, suppressed, folded);
+	}
+
+	private long delayMs() {
+		int load = pending.size()
+				+ packetProtocol.getScheduler().getQueuedCount(TrafficClass.ContentResponse);
+		double window = RESPONSE_WINDOW_MS * (1 + load);
+		return (long) Math.min(MAX_RESPONSE_DELAY_MS, random.nextDouble() * window);
+	}
+
+	private void send(List<Hash> hashes, Hash root) {
+		try {
+			contentProtocol.send(hashes, root);
+		} catch (ManesFrameTooLargeException e) {
+			Log.w(TAG, "Unable to respond to content request", e);
+		} catch (IOException e) {
+			Log.w(TAG, "Unable to respond to content request", e);
+		} catch (ManesNotRegisteredException e) {
+			Log.w(TAG, "Unable to respond to content request", e);
+		}
+	}
+
+	private class Response implements Runnable {
+		final Hash root;
+
+		/**
+		 * Hashes still to answer, guarded by the responder
+		 */
+		final Set<Hash> hashes;
+
+		Response(Hash root) {
+			this.root = root;
+			this.hashes = new LinkedHashSet<Hash>();
+		}
+
+		@Override
+		public void run() {
+			List<Hash> remaining;
+			synchronized (ContentResponder.this) {
+				remaining = new ArrayList<Hash>(hashes);
+				for (Hash hash : remaining)
+					pending.remove(hash);
+				hashes.clear();
+				responded += remaining.size();
+			}
+			if (!remaining.isEmpty()) {
+				Log.v(TAG, "Sending content for " + remaining.size() + " hashes");
+				send(remaining, root);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,637 @@
+package org.whispercomm.shout.network.content;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.whispercomm.shout.Hash;
+import org.whispercomm.shout.content.ContentManager;
+import org.whispercomm.shout.content.descriptor.ContentDescriptorSerializer;
+import org.whispercomm.shout.content.merkle.MerkleNodeReference;
+import org.whispercomm.shout.content.merkle.MerkleStore;
+import org.whispercomm.shout.content.request.ContentRequest;
+import org.whispercomm.shout.content.request.ContentRequestSerializer;
+import org.whispercomm.shout.content.storage.ObjectStorage;
+import org.whispercomm.shout.errors.InvalidFormatException;
+import org.whispercomm.shout.errors.NotFoundException;
+import org.whispercomm.shout.network.ObjectType;
+import org.whispercomm.shout.network.PacketProtocol;
+import org.whispercomm.shout.network.TrafficClass;
+import org.whispercomm.shout.network.UnsupportedVersionException;
+import org.whispercomm.shout.tracker.ShoutTracker;
+
+import android.util.Log;
+
+/**
+ * Retrieves content by requesting only the parts that are missing.
+ * <p>
+ * For each retrieval, the partial Merkle tree is walked from the stored
+ * nodes, and the hashes of the missing nodes whose parents are stored (see
+ * {@link org.whispercomm.shout.content.merkle.MerkleNode#getMissing(List)})
+ * are queued for request. A responder answers a request for a node with the
+ * subtree it has below it, parent first, so the walk continues only once
+ * received content has paused for {@link #SETTLE_MS} after a requested node
+ * arrives, when the rest of the response has arrived too.
+ * <p>
+ * At most a window of requests is outstanding at once. Each request times out
+ * after a few round-trip times and is then queued again, up to
+ * {@link #MAX_ATTEMPTS} times. The window grows by one request per window of
+ * answered requests and halves when a request times out, so it follows the
+ * loss on the channel.
+ * <p>
+ * Requests made within {@link #BATCH_DELAY_MS} of each other share batched
+ * {@link ContentRequest} objects, which name the root of the tree when all
+ * their hashes are from one retrieval.
+ * <p>
+ * This class is thread-safe.
+ *
+ * @author David R. Bild
+ */
+public class ContentRetriever {
+	private static final String TAG = ContentRetriever.class.getSimpleName();
+
+	/**
+	 * number of requests initially allowed outstanding
+	 */
+	public static double INITIAL_WINDOW = 4;
+
+	/**
+	 * minimum number of requests allowed outstanding, so one request lost
+	 * repeatedly does not hold up the rest
+	 */
+	public static double MIN_WINDOW = 2;
+
+	/**
+	 * maximum number of requests allowed outstanding
+	 */
+	public static double MAX_WINDOW = 32;
+
+	/**
+	 * timeout of a request before any response time is measured, in
+	 * milliseconds
+	 */
+	public static long INITIAL_TIMEOUT_MS = 3 * 1000;
+
+	/**
+	 * minimum timeout of a request, in milliseconds
+	 */
+	public static long MIN_TIMEOUT_MS = 500;
+
+	/**
+	 * maximum timeout of a request, including backoff, in milliseconds
+	 */
+	public static long MAX_TIMEOUT_MS = 60 * 1000;
+
+	/**
+	 * maximum factor by which the timeout of a request is doubled for earlier
+	 * attempts. The window already backs off from congestion, so repeated
+	 * random losses should not also stall each hash.
+	 */
+	public static int MAX_BACKOFF = 8;
+
+	/**
+	 * number of times a hash is requested before it is abandoned
+	 */
+	public static int MAX_ATTEMPTS = 7;
+
+	/**
+	 * pause in received content, after a requested node arrives, before the
+	 * tree is walked again, so the rest of the response arrives first, in
+	 * milliseconds. The walk waits at most ten times as long.
+	 */
+	public static long SETTLE_MS = 500;
+
+	/**
+	 * time a request is held to share a batched request object with requests
+	 * made soon after it, in milliseconds
+	 */
+	public static long BATCH_DELAY_MS = 20;
+
+	private final PacketProtocol packetProtocol;
+
+	private final ContentManager contentManager;
+
+	private final ObjectStorage storage;
+
+	private final MerkleStore merkleStore;
+
+	private final ScheduledExecutorService executor;
+
+	/**
+	 * Active retrievals, by the requested hash
+	 */
+	private final Map<Hash, Retrieval> retrievals;
+
+	/**
+	 * Hashes queued or outstanding for any retrieval
+	 */
+	private final Map<Hash, Wanted> wanted;
+
+	/**
+	 * Hashes queued for request, in order
+	 */
+	private final LinkedList<Hash> queue;
+
+	/**
+	 * Hashes counted as outstanding but not yet sent, in order
+	 */
+	private final Set<Hash> unsent;
+
+	private boolean flushScheduled;
+
+	private int outstanding;
+
+	private double window;
+
+	/**
+	 * Smoothed response time and its mean deviation, in milliseconds, or
+	 * negative before the first response
+	 */
+	private double srttMs;
+	private double rttvarMs;
+
+	/**
+	 * Time the window was last halved
+	 */
+	private long lastDecreaseMs;
+
+	/**
+	 * Time any content object was last received
+	 */
+	private long lastReceivedMs;
+
+	private long requestsSent;
+	private long batchesSent;
+	private long responses;
+	private long timeouts;
+	private long abandoned;
+	private long completed;
+
+	/**
+	 * @param packetProtocol the protocol used to send requests
+	 * @param contentManager the stores holding the retrieved content
+	 * @param executor the executor that times out requests
+	 */
+	public ContentRetriever(PacketProtocol packetProtocol, ContentManager contentManager,
+			ScheduledExecutorService executor) {
+		this.packetProtocol = packetProtocol;
+		this.contentManager = contentManager;
+		this.storage = contentManager.getObjectStorage();
+		this.merkleStore = contentManager.getMerkleStore();
+		this.executor = executor;
+		this.retrievals = new HashMap<Hash, Retrieval>();
+		this.wanted = new HashMap<Hash, Wanted>();
+		this.queue = new LinkedList<Hash>();
+		this.unsent = new LinkedHashSet<Hash>();
+		this.outstanding = 0;
+		this.window = INITIAL_WINDOW;
+		this.srttMs = -1;
+		this.rttvarMs = 0;
+		this.lastDecreaseMs = Long.MIN_VALUE;
+	}
+
+	/**
+	 * Starts retrieving the content with the given hash, which may be a
+	 * content descriptor or any Merkle node, unless it is already being
+	 * retrieved as part of other content. If it is already being retrieved,
+	 * the tree is walked again, so abandoned hashes are requested again.
+	 *
+	 * @param hash the hash of the content
+	 */
+	public synchronized void fetch(Hash hash) {
+		Retrieval retrieval = retrievals.get(hash);
+		if (retrieval != null) {
+			refill(retrieval);
+			pump();
+			return;
+		}
+		if (wanted.containsKey(hash))
+			return;
+		retrieval = new Retrieval(hash);
+		retrievals.put(hash, retrieval);
+		refill(retrieval);
+		pump();
+	}
+
+	/**
+	 * Notes that an object was received and stored, answering any request for
+	 * it and continuing the walk of its retrieval.
+	 *
+	 * @param hash the hash of the object
+	 */
+	public synchronized void received(Hash hash) {
+		lastReceivedMs = System.currentTimeMillis();
+		Wanted w = wanted.get(hash);
+		if (w == null)
+			return;
+		if (w.timeout != null) {
+			long rtt = System.currentTimeMillis() - w.sentMs;
+			// Only unambiguous samples, as in Karn's algorithm
+			if (w.attempts == 1)
+				sample(rtt);
+			responses++;
+			window = Math.min(MAX_WINDOW, window + 1 / window);
+		}
+		unwant(hash);
+		w.retrieval.wanted.remove(hash);
+		scheduleRefill(w.retrieval);
+		pump();
+	}
+
+	/**
+	 * Abandons all retrievals.
+	 */
+	public synchronized void clear() {
+		for (Wanted w : wanted.values()) {
+			if (w.timeout != null)
+				w.timeout.cancel(false);
+		}
+		retrievals.clear();
+		wanted.clear();
+		queue.clear();
+		unsent.clear();
+		outstanding = 0;
+	}
+
+	/**
+	 * @return the number of requests currently allowed outstanding
+	 */
+	public synchronized double getWindow() {
+		return window;
+	}
+
+	/**
+	 * @return the number of hashes requested, counting each attempt
+	 */
+	public synchronized long getRequestCount() {
+		return requestsSent;
+	}
+
+	/**
+	 * @return the number of active retrievals
+	 */
+	public synchronized int size() {
+		return retrievals.size();
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String
+				.format("ContentRetriever[retrievals=%d, window=%.1f, srtt=%.0f ms, requestsSent=%d, batchesSent=%d, responses=%d, timeouts=%d, abandoned=%d, completed=%d]",
+						retrievals.size(), window, srttMs, requestsSent, batchesSent, responses, timeouts,
+						abandoned, completed);
+	}
+
+	/**
+	 * Walks the stored part of the retrieval and updates the wanted hashes to
+	 * its missing nodes.
+	 */
+	private void refill(Retrieval retrieval) {
+		List<Hash> missing;
+		try {
+			missing = retrieval.missing();
+		} catch (IOException e) {
+			Log.w(TAG, "Abandoning retrieval of " + retrieval.hash, e);
+			missing = null;
+		}
+
+		// Drop hashes that arrived, whether requested or not
+		Set<Hash> now = (missing == null) ? new HashSet<Hash>() : new HashSet<Hash>(missing);
+		for (Iterator<Hash> it = retrieval.wanted.iterator(); it.hasNext();) {
+			Hash hash = it.next();
+			if (!now.contains(hash)) {
+				it.remove();
+				unwant(hash);
+			}
+		}
+
+		if (missing == null || missing.isEmpty()) {
+			if (missing != null) {
+				completed++;
+				assemble(retrieval);
+			}
+			retrievals.remove(retrieval.hash);
+			return;
+		}
+
+		for (Hash hash : missing) {
+			if (wanted.containsKey(hash))
+				continue;
+			wanted.put(hash, new Wanted(retrieval));
+			retrieval.wanted.add(hash);
+			queue.add(hash);
+		}
+	}
+
+	/**
+	 * Reads newly complete content through the content manager, so its
+	 * assembled form is stored for later reads. The read runs on the executor,
+	 * without holding the lock.
+	 */
+	private void assemble(Retrieval retrieval) {
+		if (retrieval.root == null || retrieval.root.getHash().equals(retrieval.hash))
+			return;
+		final Hash hash = retrieval.hash;
+		schedule(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					contentManager.retrieve(hash);
+				} catch (NotFoundException e) {
+					Log.w(TAG, "Completed content " + hash + " is missing objects.", e);
+				} catch (IOException e) {
+					Log.w(TAG, "Failed to assemble completed content " + hash, e);
+				}
+			}
+		}, 0);
+	}
+
+	private void scheduleRefill(final Retrieval retrieval) {
+		if (retrieval.refillScheduled)
+			return;
+		retrieval.refillScheduled = true;
+		final long deadline = System.currentTimeMillis() + 10 * SETTLE_MS;
+		schedule(new Runnable() {
+			@Override
+			public void run() {
+				synchronized (ContentRetriever.this) {
+					if (retrievals.get(retrieval.hash) != retrieval) {
+						retrieval.refillScheduled = false;
+						return;
+					}
+					long now = System.currentTimeMillis();
+					long quiet = now - lastReceivedMs;
+					if (quiet < SETTLE_MS && now < deadline) {
+						schedule(this, Math.min(SETTLE_MS - quiet, deadline - now));
+						return;
+					}
+					retrieval.refillScheduled = false;
+					refill(retrieval);
+					pump();
+				}
+			}
+		}, SETTLE_MS);
+	}
+
+	private void schedule(Runnable task, long delayMs) {
+		try {
+			executor.schedule(task, delayMs, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			// Shut down
+		}
+	}
+
+	private void unwant(Hash hash) {
+		Wanted w = wanted.remove(hash);
+		if (w == null)
+			return;
+		if (w.timeout != null) {
+			w.timeout.cancel(false);
+			outstanding--;
+		} else {
+			queue.remove(hash);
+		}
+	}
+
+	/**
+	 * Moves queued requests to the next batch while the window allows.
+	 */
+	private void pump() {
+		while (outstanding < (int) window && !queue.isEmpty()) {
+			final Hash hash = queue.removeFirst();
+			final Wanted w = wanted.get(hash);
+			w.attempts++;
+			w.sentMs = System.currentTimeMillis();
+			try {
+				w.timeout = executor.schedule(new Runnable() {
+					@Override
+					public void run() {
+						timeout(hash, w);
+					}
+				}, timeoutMs(w.attempts), TimeUnit.MILLISECONDS);
+			} catch (RejectedExecutionException e) {
+				// Shut down
+				return;
+			}
+			outstanding++;
+			unsent.add(hash);
+			if (unsent.size() >= ContentRequest.MAX_HASHES)
+				flush();
+		}
+		scheduleFlush();
+	}
+
+	private void scheduleFlush() {
+		if (flushScheduled || unsent.isEmpty())
+			return;
+		flushScheduled = true;
+		schedule(new Runnable() {
+			@Override
+			public void run() {
+				synchronized (ContentRetriever.this) {
+					flushScheduled = false;
+					flush();
+				}
+			}
+		}, BATCH_DELAY_MS);
+	}
+
+	/**
+	 * Sends the unsent requests that are still outstanding, in batches of
+	 * consecutive hashes.
+	 */
+	private void flush() {
+		long now = System.currentTimeMillis();
+		List<Hash> batch = new ArrayList<Hash>();
+		Retrieval shared = null;
+		for (Hash hash : unsent) {
+			Wanted w = wanted.get(hash);
+			if (w == null || w.timeout == null)
+				continue;
+			w.sentMs = now;
+			if (batch.isEmpty())
+				shared = w.retrieval;
+			else if (shared != w.retrieval)
+				shared = null;
+			batch.add(hash);
+			if (batch.size() >= ContentRequest.MAX_HASHES) {
+				send(batch, shared);
+				batch.clear();
+			}
+		}
+		if (!batch.isEmpty())
+			send(batch, shared);
+		unsent.clear();
+	}
+
+	/**
+	 * Sends one request object for the hashes. A single hash is sent without
+	 * a root hint, in the format all versions understand.
+	 *
+	 * @param shared the retrieval of all the hashes, or {@code null}
+	 */
+	private void send(List<Hash> hashes, Retrieval shared) {
+		Hash root = null;
+		if (hashes.size() > 1 && shared != null && shared.root != null)
+			root = shared.root.getHash();
+		ContentRequest request = new ContentRequest(hashes, root);
+		ByteBuffer buffer = PacketProtocol.createPacket();
+		try {
+			ShoutTracker.trackSendContentRequest(request);
+			ContentRequestSerializer.serialize(buffer, request);
+			packetProtocol.sendCoalesced(buffer, TrafficClass.ContentRequest);
+		} finally {
+			PacketProtocol.releasePacket(buffer);
+		}
+		requestsSent += hashes.size();
+		batchesSent++;
+	}
+
+	private synchronized void timeout(Hash hash, Wanted w) {
+		if (wanted.get(hash) != w || w.timeout == null)
+			return;
+		w.timeout = null;
+		outstanding--;
+		timeouts++;
+
+		// Halve at most once per round of requests
+		if (w.sentMs >= lastDecreaseMs) {
+			window = Math.max(MIN_WINDOW, window / 2);
+			lastDecreaseMs = System.currentTimeMillis();
+		}
+
+		if (w.attempts >= MAX_ATTEMPTS) {
+			Log.v(TAG, "Abandoning request for " + hash);
+			abandoned++;
+			wanted.remove(hash);
+			w.retrieval.wanted.remove(hash);
+			if (w.retrieval.wanted.isEmpty() && !w.retrieval.refillScheduled)
+				retrievals.remove(w.retrieval.hash);
+		} else {
+			queue.addFirst(hash);
+		}
+		pump();
+	}
+
+	private void sample(long rttMs) {
+		if (srttMs < 0) {
+			srttMs = rttMs;
+			rttvarMs = rttMs / 2.0;
+		} else {
+			rttvarMs = 0.75 * rttvarMs + 0.25 * Math.abs(srttMs - rttMs);
+			srttMs = 0.875 * srttMs + 0.125 * rttMs;
+		}
+	}
+
+	/**
+	 * @return the timeout of the given attempt, doubled for each earlier
+	 *         attempt up to {@link #MAX_BACKOFF}
+	 */
+	private long timeoutMs(int attempt) {
+		double base = (srttMs < 0) ? INITIAL_TIMEOUT_MS : Math.max(MIN_TIMEOUT_MS, srttMs + 4
+				* rttvarMs);
+		long backoff = Math.min(MAX_BACKOFF, 1L << Math.min(attempt - 1, 20));
+		return (long) Math.min(MAX_TIMEOUT_MS, base * backoff);
+	}
+
+	private class Retrieval {
+		final Hash hash;
+
+		/**
+		 * Root of the Merkle tree, once the requested object is stored
+		 */
+		MerkleNodeReference root;
+
+		/**
+		 * Hashes wanted for this retrieval
+		 */
+		final Set<Hash> wanted;
+
+		boolean refillScheduled;
+
+		Retrieval(Hash hash) {
+			this.hash = hash;
+			this.wanted = new HashSet<Hash>();
+		}
+
+		/**
+		 * @return the missing nodes whose parents are stored
+		 */
+		List<Hash> missing() throws IOException {
+			List<Hash> missing = new ArrayList<Hash>();
+			if (root == null) {
+				if (!storage.exists(hash)) {
+					missing.add(hash);
+					return missing;
+				}
+				root = new MerkleNodeReference(rootOf(hash));
+			}
+			walk(root, missing);
+			return missing;
+		}
+
+		private Hash rootOf(Hash hash) throws IOException {
+			byte[] data;
+			try {
+				data = storage.retrieve(hash);
+			} catch (NotFoundException e) {
+				throw new IOException("Stored object disappeared.");
+			}
+			if ((0xFF & data[0]) != ObjectType.ContentDescriptor.getId())
+				return hash;
+			try {
+				return ContentDescriptorSerializer.deserialize(data).getObjectRoot();
+			} catch (InvalidFormatException e) {
+				throw new IOException("Unable to decode content descriptor.");
+			} catch (UnsupportedVersionException e) {
+				throw new IOException("Unable to decode content descriptor.");
+			}
+		}
+
+		/*
+		 * Checks existence before loading, because loading a missing node
+		 * from file storage broadcasts a request for it.
+		 */
+		private void walk(MerkleNodeReference ref, List<Hash> missing) throws IOException {
+			if (!ref.isAvailable()) {
+				if (!storage.exists(ref.getHash()) || !merkleStore.setReference(ref)) {
+					missing.add(ref.getHash());
+					return;
+				}
+			}
+			for (MerkleNodeReference child : ref.get().getChildren())
+				walk(child, missing);
+		}
+	}
+
+	private static class Wanted {
+		final Retrieval retrieval;
+
+		int attempts;
+
+		long sentMs;
+
+		/**
+		 * Pending timeout while the request is outstanding, or {@code null}
+		 * while it is queued
+		 */
+		ScheduledFuture<?> timeout;
+
+		Wanted(Retrieval retrieval) {
+			this.retrieval = retrieval;
+		}
+	}
+
+}
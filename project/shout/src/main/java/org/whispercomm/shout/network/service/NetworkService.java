@@ -1,8 +1,9 @@
 
 package org.whispercomm.shout.network.service;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.concurrent.CopyOnWriteArrayList;
-import java.util.concurrent.Executors;
 
 import org.whispercomm.manes.client.maclib.ManesInstallationListener;
 import org.whispercomm.manes.client.maclib.ManesInstallationReceiver;
@@ -13,28 +14,40 @@ import org.whispercomm.manes.client.maclib.ManesNotRegisteredException;
 import org.whispercomm.shout.Hash;
 import org.whispercomm.shout.Shout;
 import org.whispercomm.shout.content.ContentManager;
+import org.whispercomm.shout.crypto.VerificationCache;
+import org.whispercomm.shout.network.FrameLink;
+import org.whispercomm.shout.network.ManesFrameLink;
 import org.whispercomm.shout.network.NetworkReceiver;
 import org.whispercomm.shout.network.ObjectType;
 import org.whispercomm.shout.network.PacketProtocol;
+import org.whispercomm.shout.network.capture.CapturingFrameLink;
+import org.whispercomm.shout.network.capture.FrameCaptureWriter;
 import org.whispercomm.shout.network.content.ContentProtocol;
 import org.whispercomm.shout.network.content.SimpleContentRequestHandler;
+import org.whispercomm.shout.network.shout.DuplicateFilter;
 import org.whispercomm.shout.network.shout.NaiveNetworkProtocol;
 import org.whispercomm.shout.network.shout.NetworkProtocol;
+import org.whispercomm.shout.network.shout.PendingAncestorTable;
+import org.whispercomm.shout.network.shout.ProviderShoutIndex;
+import org.whispercomm.shout.network.shout.RelayNetworkProtocol;
 import org.whispercomm.shout.network.shout.ShoutChainTooLongException;
 import org.whispercomm.shout.network.shout.ShoutProtocol;
+import org.whispercomm.shout.network.shout.SummaryNetworkProtocol;
+import org.whispercomm.shout.network.shout.TrickleNetworkProtocol;
 import org.whispercomm.shout.notification.ShoutContentObserver;
 import org.whispercomm.shout.provider.ShoutProviderContract;
 import org.whispercomm.shout.provider.ShoutProviderContract.Shouts;
-import org.whispercomm.shout.util.AlarmExecutorService;
 
 import android.app.Service;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.content.SharedPreferences;
 import android.os.Handler;
 import android.os.IBinder;
 import android.os.RemoteException;
+import android.preference.PreferenceManager;
 import android.support.v4.content.LocalBroadcastManager;
 import android.util.Log;
 
@@ -46,8 +59,40 @@ public class NetworkService extends Service implements ManesConnection, ManesIns
 	public static final String ACTION_REQUEST_CONTENT = "org.whispercomm.shout.REQUEST_CONTENT";
 	public static final String EXTRA_HASH = "hash";
 
+	/**
+	 * Preference key selecting the network protocol. Read when the service is
+	 * initialized.
+	 */
+	public static final String NETWORK_PROTOCOL = "networkProtocol";
+	public static final String NETWORK_PROTOCOL_NAIVE = "naive";
+	public static final String NETWORK_PROTOCOL_TRICKLE = "trickle";
+	public static final String NETWORK_PROTOCOL_SUMMARY = "summary";
+
+	/**
+	 * Preference key enabling relaying of other users' shouts. Read when the
+	 * service is initialized.
+	 */
+	public static final String RELAY_SHOUTS = "relayShouts";
+
+	/**
+	 * Preference key enabling capture of all network frames to
+	 * {@link #CAPTURE_FILE} in the external files directory. Read when the
+	 * service is initialized.
+	 */
+	public static final String CAPTURE_FRAMES = "captureFrames";
+
+	public static final String CAPTURE_FILE = "captures/frames.cap";
+
+	/**
+	 * Preference key enabling sending of content as fountain symbols. Read
+	 * when the service is initialized.
+	 */
+	public static final String FOUNTAIN_CONTENT = "fountainContent";
+
 	private ManesInterface manes;
 
+	private CapturingFrameLink captureLink;
+
 	// Packets are passed from socket to NetworkReceiver to PacketReceiver to
 	// ShoutReceiver to NetworkProtocol.
 	private NetworkReceiver networkReceiver;
@@ -99,20 +144,28 @@ public class NetworkService extends Service implements ManesConnection, ManesIns
 			try {
 				manes = new ManesInterface(APP_ID, getApplicationContext(), this);
 
-				networkReceiver = new NetworkReceiver(this.manes);
+				FrameLink link = new ManesFrameLink(manes);
+				if (PreferenceManager.getDefaultSharedPreferences(getApplicationContext())
+						.getBoolean(CAPTURE_FRAMES, false))
+					link = createCapturingLink(link);
+
+				networkReceiver = new NetworkReceiver(link);
 
-				packetProtocol = new PacketProtocol(manes);
+				packetProtocol = new PacketProtocol(link);
+				packetProtocol.initialize();
 				networkReceiver.register(packetProtocol);
 
-				shoutProtocol = new ShoutProtocol(packetProtocol);
+				ProviderShoutIndex shoutIndex = new ProviderShoutIndex(getApplicationContext());
+				shoutProtocol = new ShoutProtocol(packetProtocol, new DuplicateFilter(shoutIndex),
+						new PendingAncestorTable(shoutIndex));
 				packetProtocol.register(ObjectType.Shout, shoutProtocol);
 
 				contentManager = (ContentManager) this.getApplicationContext()
 						.getSystemService(ContentManager.SHOUT_CONTENT_SERVICE);
 				contentProtocol = new ContentProtocol(packetProtocol, contentManager);
-				contentRequestHandler = new SimpleContentRequestHandler(new AlarmExecutorService(
-						this, Executors.newSingleThreadExecutor(), "SHOUT_CONTENT_PROTOCOL"),
-						packetProtocol,
+				contentProtocol.setFountainCoding(PreferenceManager.getDefaultSharedPreferences(
+						getApplicationContext()).getBoolean(FOUNTAIN_CONTENT, false));
+				contentRequestHandler = new SimpleContentRequestHandler(packetProtocol,
 						contentProtocol, contentManager.getObjectStorage(), contentManager);
 				contentProtocol.setContentRequestHandler(contentRequestHandler);
 
@@ -124,8 +177,9 @@ public class NetworkService extends Service implements ManesConnection, ManesIns
 				packetProtocol.register(ObjectType.ContentDescriptor, contentProtocol);
 				packetProtocol.register(ObjectType.MerkleNode, contentProtocol);
 				packetProtocol.register(ObjectType.ContentRequest, contentProtocol);
+				packetProtocol.register(ObjectType.FountainSymbol, contentProtocol);
 
-				networkProtocol = new NaiveNetworkProtocol(shoutProtocol, getApplicationContext());
+				networkProtocol = createNetworkProtocol(shoutIndex);
 				shoutProtocol.register(networkProtocol);
 				shoutProtocol.register(contentRequestHandler);
 
@@ -143,6 +197,50 @@ public class NetworkService extends Service implements ManesConnection, ManesIns
 		}
 	}
 
+	private FrameLink createCapturingLink(FrameLink link) {
+		File file = new File(getExternalFilesDir(null), CAPTURE_FILE);
+		try {
+			captureLink = new CapturingFrameLink(link, FrameCaptureWriter.open(file));
+			Log.i(TAG, "Capturing network frames to " + file);
+			return captureLink;
+		} catch (IOException e) {
+			Log.w(TAG, "Unable to open frame capture. Not capturing.", e);
+			return link;
+		}
+	}
+
+	private NetworkProtocol createNetworkProtocol(ProviderShoutIndex shoutIndex) {
+		SharedPreferences prefs = PreferenceManager
+				.getDefaultSharedPreferences(getApplicationContext());
+		String name = prefs.getString(NETWORK_PROTOCOL, NETWORK_PROTOCOL_NAIVE);
+		Log.i(TAG, "Using network protocol: " + name);
+		NetworkProtocol protocol;
+		if (NETWORK_PROTOCOL_TRICKLE.equals(name)) {
+			TrickleNetworkProtocol trickle = new TrickleNetworkProtocol(shoutProtocol,
+					getApplicationContext());
+			shoutProtocol.addDuplicateListener(trickle);
+			packetProtocol.register(ObjectType.HaveSummary, trickle);
+			protocol = trickle;
+		} else if (NETWORK_PROTOCOL_SUMMARY.equals(name)) {
+			SummaryNetworkProtocol summary = new SummaryNetworkProtocol(shoutProtocol,
+					packetProtocol, shoutIndex, getApplicationContext());
+			shoutProtocol.addDuplicateListener(summary);
+			packetProtocol.register(ObjectType.HaveSummary, summary);
+			protocol = summary;
+		} else {
+			protocol = new NaiveNetworkProtocol(shoutProtocol, getApplicationContext());
+		}
+
+		if (prefs.getBoolean(RELAY_SHOUTS, false)) {
+			Log.i(TAG, "Relaying received shouts.");
+			RelayNetworkProtocol relay = new RelayNetworkProtocol(protocol, shoutProtocol,
+					shoutIndex);
+			shoutProtocol.addDuplicateListener(relay);
+			protocol = relay;
+		}
+		return protocol;
+	}
+
 	private synchronized void uninitialize() {
 		if (manes != null) {
 			manes.disconnect();
@@ -150,12 +248,26 @@ public class NetworkService extends Service implements ManesConnection, ManesIns
 		if (contentRequestHandler != null) {
 			contentRequestHandler.cleanup();
 		}
+		// Stop receiving first, so no more shouts reach the protocol's writer
+		if (networkReceiver != null) {
+			networkReceiver.cleanup();
+		}
 		if (networkProtocol != null) {
 			networkProtocol.cleanup();
 		}
-		if (networkReceiver != null) {
-			networkReceiver.cleanup();
+		if (packetProtocol != null) {
+			packetProtocol.cleanup();
+			Log.i(TAG, packetProtocol.getScheduler().toString());
+		}
+		if (captureLink != null) {
+			captureLink.close();
+			captureLink = null;
+		}
+		if (shoutProtocol != null) {
+			Log.i(TAG, shoutProtocol.getDuplicateFilter().toString());
+			Log.i(TAG, shoutProtocol.getPendingAncestorTable().toString());
 		}
+		Log.i(TAG, VerificationCache.getStats());
 	}
 
 	@Override
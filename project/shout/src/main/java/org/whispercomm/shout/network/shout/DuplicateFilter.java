@@ -0,0 +1,171 @@
+package org.whispercomm.shout.network.shout;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.whispercomm.shout.Hash;
+import org.whispercomm.shout.util.HashBloomFilter;
+
+import android.support.v4.util.LruCache;
+
+/**
+ * Recently-seen set used to drop duplicate shouts before they are parsed and
+ * their signatures verified.
+ * <p>
+ * Lookups are answered in three tiers:
+ * <ol>
+ * <li>an exact LRU set of the most recently seen hashes,</li>
+ * <li>a rotating pair of Bloom filters covering a longer window, and</li>
+ * <li>the persistent {@link ShoutIndex}, consulted only to confirm Bloom
+ * filter hits.</li>
+ * </ol>
+ * A hash that misses the Bloom filters is reported as new without consulting
+ * the index. Such shouts are either new or old enough to have rotated out of
+ * the window; in both cases, the normal receive path handles them correctly.
+ * <p>
+ * This class is thread-safe.
+ *
+ * @author David R. Bild
+ */
+public class DuplicateFilter {
+
+	/**
+	 * Default number of hashes held in the exact LRU set.
+	 */
+	public static final int DEFAULT_RECENT_SIZE = 256;
+
+	/**
+	 * Default number of hashes added to each Bloom filter generation before
+	 * rotation.
+	 */
+	public static final int DEFAULT_GENERATION_SIZE = 4096;
+
+	/**
+	 * Target false positive rate of each Bloom filter generation.
+	 */
+	private static final double FALSE_POSITIVE_RATE = 0.01;
+
+	/**
+	 * Persistent index of shout hashes, e.g., the database of received shouts.
+	 */
+	public interface ShoutIndex {
+		/**
+		 * @param hash the hash of the shout
+		 * @return {@code true} if the shout is known, {@code false} otherwise
+		 */
+		public boolean contains(Hash hash);
+	}
+
+	private final ShoutIndex index;
+
+	private final LruCache<Hash, Boolean> recent;
+
+	private final int generationSize;
+
+	private HashBloomFilter current;
+
+	private HashBloomFilter previous;
+
+	private final AtomicLong lookups;
+	private final AtomicLong recentHits;
+	private final AtomicLong indexHits;
+	private final AtomicLong falsePositives;
+
+	public DuplicateFilter(ShoutIndex index) {
+		this(index, DEFAULT_RECENT_SIZE, DEFAULT_GENERATION_SIZE);
+	}
+
+	public DuplicateFilter(ShoutIndex index, int recentSize, int generationSize) {
+		this.index = index;
+		this.recent = new LruCache<Hash, Boolean>(recentSize);
+		this.generationSize = generationSize;
+		this.current = new HashBloomFilter(generationSize, FALSE_POSITIVE_RATE);
+		this.previous = new HashBloomFilter(generationSize, FALSE_POSITIVE_RATE);
+		this.lookups = new AtomicLong();
+		this.recentHits = new AtomicLong();
+		this.indexHits = new AtomicLong();
+		this.falsePositives = new AtomicLong();
+	}
+
+	/**
+	 * Checks if the shout with the specified hash has already been seen.
+	 *
+	 * @param hash the hash of the serialized shout object
+	 * @return {@code true} if the shout is known to have been seen or
+	 *         {@code false} if it may be new.
+	 */
+	public boolean isDuplicate(Hash hash) {
+		lookups.incrementAndGet();
+
+		if (recent.get(hash) != null) {
+			recentHits.incrementAndGet();
+			return true;
+		}
+
+		if (!mightContain(hash))
+			return false;
+
+		if (index.contains(hash)) {
+			indexHits.incrementAndGet();
+			recent.put(hash, Boolean.TRUE);
+			return true;
+		} else {
+			falsePositives.incrementAndGet();
+			return false;
+		}
+	}
+
+	/**
+	 * Records that the shout with the specified hash has been seen. This
+	 * should only be called once the shout has been accepted (i.e., verified
+	 * and handed off for storage).
+	 *
+	 * @param hash the hash of the serialized shout object
+	 */
+	public void add(Hash hash) {
+		recent.put(hash, Boolean.TRUE);
+		synchronized (this) {
+			if (current.count() >= generationSize) {
+				HashBloomFilter tmp = previous;
+				previous = current;
+				current = tmp;
+				current.clear();
+			}
+			current.add(hash);
+		}
+	}
+
+	private synchronized boolean mightContain(Hash hash) {
+		return current.mightContain(hash) || previous.mightContain(hash);
+	}
+
+	/**
+	 * @return the number of lookups performed
+	 */
+	public long getLookupCount() {
+		return lookups.get();
+	}
+
+	/**
+	 * @return the number of lookups that found a duplicate
+	 */
+	public long getHitCount() {
+		return recentHits.get() + indexHits.get();
+	}
+
+	/**
+	 * @return the fraction of lookups that found a duplicate
+	 */
+	public double getHitRate() {
+		long l = lookups.get();
+		return (l == 0) ? 0.0 : (double) getHitCount() / l;
+	}
+
+	@Override
+	public String toString() {
+		return String.format(
+				"DuplicateFilter[lookups=%d, recentHits=%d, indexHits=%d, bloomFalsePositives=%d, hitRate=%.1f%%]",
+				lookups.get(), recentHits.get(), indexHits.get(), falsePositives.get(),
+				100 * getHitRate());
+	}
+
+}
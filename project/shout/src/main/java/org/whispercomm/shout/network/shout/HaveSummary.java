@@ -0,0 +1,139 @@
+package org.whispercomm.shout.network.shout;
+
+import org.whispercomm.shout.Hash;
+
+/**
+ * A Bloom filter over shout hashes, summarizing the shouts a node has received
+ * recently. Neighbors exchange summaries to learn which shouts the others
+ * lack.
+ * <p>
+ * The bit positions of a shout are taken directly from its hash, which is
+ * already uniformly distributed, so no further hashing is needed.
+ * <p>
+ * This class is not thread-safe.
+ *
+ * @author David R. Bild
+ */
+public class HaveSummary {
+
+	/**
+	 * Maximum number of bit positions per hash. Each uses four bytes of the
+	 * hash.
+	 */
+	public static final int MAX_HASHES = Hash.LENGTH / 4;
+
+	private final byte[] bits;
+
+	private final int numHashes;
+
+	private int count;
+
+	/**
+	 * Creates an empty summary.
+	 *
+	 * @param numBytes the size of the filter, in bytes
+	 * @param numHashes the number of bit positions set per hash
+	 */
+	public HaveSummary(int numBytes, int numHashes) {
+		this(new byte[numBytes], numHashes, 0);
+	}
+
+	HaveSummary(byte[] bits, int numHashes, int count) {
+		if (bits.length == 0)
+			throw new IllegalArgumentException("Summary must have at least one byte.");
+		if (numHashes < 1 || numHashes > MAX_HASHES)
+			throw new IllegalArgumentException(String.format(
+					"Number of hashes must be in [1,%d].", MAX_HASHES));
+		this.bits = bits;
+		this.numHashes = numHashes;
+		this.count = count;
+	}
+
+	/**
+	 * Adds a hash to the summary.
+	 *
+	 * @param hash the hash to add
+	 */
+	public void add(Hash hash) {
+		byte[] h = hash.toByteArray();
+		int numBits = 8 * bits.length;
+		for (int i = 0; i < numHashes; ++i) {
+			int bit = position(h, i, numBits);
+			bits[bit >>> 3] |= (1 << (bit & 7));
+		}
+		count++;
+	}
+
+	/**
+	 * Checks if a hash may be in the summary. False positives are possible;
+	 * false negatives are not.
+	 *
+	 * @param hash the hash to check
+	 * @return {@code false} if the hash is definitely not in the summary
+	 */
+	public boolean mightContain(Hash hash) {
+		byte[] h = hash.toByteArray();
+		int numBits = 8 * bits.length;
+		for (int i = 0; i < numHashes; ++i) {
+			int bit = position(h, i, numBits);
+			if ((bits[bit >>> 3] & (1 << (bit & 7))) == 0)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Adds all hashes of another summary of the same size to this one.
+	 *
+	 * @param other the other summary
+	 */
+	public void addAll(HaveSummary other) {
+		if (other.bits.length != bits.length || other.numHashes != numHashes)
+			throw new IllegalArgumentException("Summaries must have the same shape.");
+		for (int i = 0; i < bits.length; ++i)
+			bits[i] |= other.bits[i];
+		count += other.count;
+	}
+
+	/**
+	 * Removes all hashes.
+	 */
+	public void clear() {
+		for (int i = 0; i < bits.length; ++i)
+			bits[i] = 0;
+		count = 0;
+	}
+
+	/**
+	 * @return a copy of this summary
+	 */
+	public HaveSummary copy() {
+		return new HaveSummary(bits.clone(), numHashes, count);
+	}
+
+	/**
+	 * @return the number of hashes added, counting duplicates
+	 */
+	public int getCount() {
+		return count;
+	}
+
+	public int getNumHashes() {
+		return numHashes;
+	}
+
+	/**
+	 * @return the filter bits. Must not be modified.
+	 */
+	byte[] getBits() {
+		return bits;
+	}
+
+	private static int position(byte[] hash, int i, int numBits) {
+		int j = 4 * i;
+		int value = ((hash[j] & 0xFF) << 24) | ((hash[j + 1] & 0xFF) << 16)
+				| ((hash[j + 2] & 0xFF) << 8) | (hash[j + 3] & 0xFF);
+		return (value & 0x7FFFFFFF) % numBits;
+	}
+
+}
@@ -0,0 +1,84 @@
+package org.whispercomm.shout.network.shout;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+import org.whispercomm.shout.errors.InvalidFormatException;
+import org.whispercomm.shout.network.ObjectType;
+import org.whispercomm.shout.network.PacketProtocol;
+import org.whispercomm.shout.network.UnsupportedVersionException;
+
+/**
+ * Serializes {@link HaveSummary} objects.
+ * <p>
+ * Format: the object header, then a version byte, the number of bit positions
+ * per hash (one byte), the number of hashes added (two bytes), and the filter
+ * bits.
+ *
+ * @author David R. Bild
+ */
+public class HaveSummarySerializer {
+
+	public static final ObjectType TYPE = ObjectType.HaveSummary;
+
+	static final byte VERSION = 0x00;
+
+	private static final int FIELDS_LEN = 1 + 1 + 2;
+
+	public static boolean serialize(ByteBuffer buffer, HaveSummary summary) {
+		byte[] bits = summary.getBits();
+		int contentLength = FIELDS_LEN + bits.length;
+		if (buffer.remaining() < PacketProtocol.OBJECT_HEADER_LEN + contentLength)
+			return false;
+
+		buffer.put(TYPE.getIdAsByte());
+		buffer.putShort((short) contentLength);
+		buffer.put(VERSION);
+		buffer.put((byte) summary.getNumHashes());
+		buffer.putShort((short) Math.min(summary.getCount(), 0xFFFF));
+		buffer.put(bits);
+		return true;
+	}
+
+	public static HaveSummary deserialize(ByteBuffer buffer)
+			throws UnsupportedVersionException, InvalidFormatException {
+		try {
+			int typeId = 0xFF & buffer.get();
+			if (typeId != TYPE.getId())
+				throw new InvalidFormatException(String.format(
+						"Incorrect object type for have summary.  Got %d. Expected %d.",
+						typeId, TYPE.getId()));
+
+			int contentLength = 0xFFFF & buffer.getShort();
+			if (contentLength <= FIELDS_LEN)
+				throw new InvalidFormatException(String.format(
+						"Invalid content length for have summary. Got %d.", contentLength));
+			int end = buffer.position() + contentLength;
+			if (end > buffer.limit())
+				throw new InvalidFormatException("Data too short.");
+
+			byte version = buffer.get();
+			if (version != VERSION) {
+				buffer.position(end);
+				throw new UnsupportedVersionException(String.format(
+						"Unrecognized have summary version: %02X", version));
+			}
+
+			int numHashes = 0xFF & buffer.get();
+			int count = 0xFFFF & buffer.getShort();
+			byte[] bits = new byte[contentLength - FIELDS_LEN];
+			buffer.get(bits);
+			try {
+				return new HaveSummary(bits, numHashes, count);
+			} catch (IllegalArgumentException e) {
+				throw new InvalidFormatException(e.getMessage());
+			}
+		} catch (BufferUnderflowException e) {
+			throw new InvalidFormatException("Data too short.");
+		}
+	}
+
+	private HaveSummarySerializer() {
+	}
+
+}
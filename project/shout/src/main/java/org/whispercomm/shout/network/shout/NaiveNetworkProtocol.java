@@ -1,13 +1,11 @@
 
 package org.whispercomm.shout.network.shout;
 
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.Executors;
 
-import org.joda.time.DateTime;
 import org.whispercomm.manes.client.maclib.ManesNotRegisteredException;
 import org.whispercomm.shout.Shout;
-import org.whispercomm.shout.provider.ShoutProviderContract;
+import org.whispercomm.shout.util.AlarmExecutorService;
 
 import android.content.Context;
 import android.util.Log;
@@ -17,10 +15,12 @@ import android.util.Log;
  * <p>
  * Received shouts that are valid (self-signatures check and
  * parents/grandparents exist) are stored in the content provider. Those with
- * invalid signatures are dropped.
+ * invalid signatures are dropped. Received shouts are stored in batches by a
+ * {@link ReceivedShoutWriter}.
  * <p>
  * Each outgoing shout is broadcast 20 times over a 10 hour at 30 minute
- * intervals.
+ * intervals. The schedule is kept in a {@link RebroadcastQueue}, so it survives
+ * restarts of the service.
  * 
  * @author Yue Liu
  * @author David R. Bild
@@ -39,28 +39,59 @@ public class NaiveNetworkProtocol implements NetworkProtocol {
 	public static int RESEND_NUM = 20;
 
 	/**
-	 * timer for scheduling periodic re-broadcast
+	 * durable schedule of periodic re-broadcasts
 	 */
-	private Timer sendScheduler;
-
-	private Context context;
+	private final RebroadcastQueue rebroadcasts;
 
 	private ShoutProtocol shoutProtocol;
 
+	/**
+	 * stores received shouts
+	 */
+	private final ReceivedShoutWriter writer;
+
 	public NaiveNetworkProtocol(ShoutProtocol shoutProtocol, Context context) {
-		this.context = context;
+		this(shoutProtocol, new ReceivedShoutWriter(context), new RebroadcastQueue(context,
+				shoutProtocol, new AlarmExecutorService(context,
+						Executors.newSingleThreadExecutor(), "SHOUT_REBROADCAST"), PERIOD));
+	}
+
+	/**
+	 * Creates the protocol with the specified storage for received shouts and
+	 * schedule of rebroadcasts, such as the in-memory ones of the network
+	 * simulator.
+	 *
+	 * @param shoutProtocol the protocol used to send shouts
+	 * @param writer stores received shouts
+	 * @param rebroadcasts the schedule of rebroadcasts, which must send
+	 *            through {@code shoutProtocol}
+	 */
+	public NaiveNetworkProtocol(ShoutProtocol shoutProtocol, ReceivedShoutWriter writer,
+			RebroadcastQueue rebroadcasts) {
 		this.shoutProtocol = shoutProtocol;
-		this.sendScheduler = new Timer();
+		this.writer = writer;
+		this.rebroadcasts = rebroadcasts;
+	}
+
+	/**
+	 * @return the schedule of rebroadcasts
+	 */
+	public RebroadcastQueue getRebroadcastQueue() {
+		return rebroadcasts;
 	}
 
 	@Override
 	public void initialize() {
-		// Nothing to do here.
+		writer.start();
+		rebroadcasts.initialize();
 	}
 
 	@Override
 	public void cleanup() {
-		sendScheduler.cancel();
+		rebroadcasts.cleanup();
+		writer.stop();
+		Log.i(TAG, rebroadcasts.toString());
+		Log.i(TAG, writer.toString());
 	}
 
 	@Override
@@ -70,10 +101,7 @@ public class NaiveNetworkProtocol implements NetworkProtocol {
 		send(shout);
 
 		// schedule periodic re-broadcast up to RESEND_NUM times.
-		DateTime now = DateTime.now();
-		for (int i = 1; i <= RESEND_NUM; ++i) {
-			sendScheduler.schedule(new SendShoutTask(shout), now.plusMillis(i * PERIOD).toDate());
-		}
+		rebroadcasts.add(shout, RESEND_NUM);
 	}
 
 	private void send(Shout shout) throws ManesNotRegisteredException {
@@ -82,25 +110,7 @@ public class NaiveNetworkProtocol implements NetworkProtocol {
 
 	@Override
 	public void receive(Shout shout) {
-		ShoutProviderContract.saveShout(context, shout);
-	}
-
-	private class SendShoutTask extends TimerTask {
-
-		private final Shout shout;
-
-		public SendShoutTask(Shout shout) {
-			this.shout = shout;
-		}
-
-		@Override
-		public void run() {
-			try {
-				send(shout);
-			} catch (ManesNotRegisteredException e) {
-				Log.w(TAG, "send() failed because not registered.", e);
-			}
-		}
+		writer.write(shout);
 	}
 
 }
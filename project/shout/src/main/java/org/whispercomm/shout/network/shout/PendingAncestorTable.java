@@ -0,0 +1,325 @@
+package org.whispercomm.shout.network.shout;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.whispercomm.shout.Hash;
+import org.whispercomm.shout.Shout;
+import org.whispercomm.shout.ShoutType;
+import org.whispercomm.shout.serialization.SerializeUtility.BuildableShout;
+
+import android.support.v4.util.LruCache;
+import android.util.Log;
+
+/**
+ * Reassembles shout chains from verified shouts received in any order and in
+ * any packet.
+ * <p>
+ * A shout whose parent is not yet known is held, keyed by its hash, until the
+ * parent arrives. Parents are looked up among the held shouts, the recently
+ * completed shouts, and finally the local store (see
+ * {@link AncestorResolver}). When a shout completes, the shouts waiting on it
+ * are completed in turn. Only the leaves of completed chains are returned, so
+ * each chain is delivered once, by its youngest member. A shout whose waiting
+ * children are all dropped (e.g., as invalid chains) is delivered on its own.
+ * <p>
+ * Held shouts expire after a time-to-live and the oldest are evicted when the
+ * table is full.
+ * <p>
+ * This class is thread-safe. The local store is queried without holding the
+ * table lock.
+ *
+ * @author David R. Bild
+ */
+public class PendingAncestorTable {
+	private static final String TAG = PendingAncestorTable.class.getSimpleName();
+
+	/**
+	 * Default maximum number of held shouts.
+	 */
+	public static final int DEFAULT_MAX_PENDING = 256;
+
+	/**
+	 * Default time, in milliseconds, that a shout is held waiting for its
+	 * ancestors.
+	 */
+	public static final long DEFAULT_TTL_MS = 10 * 60 * 1000;
+
+	/**
+	 * Maximum number of shouts in a chain (shout, parent, grandparent).
+	 */
+	public static final int MAX_CHAIN_LENGTH = 3;
+
+	/**
+	 * Number of recently completed shouts kept for resolving ancestors
+	 * without consulting the local store.
+	 */
+	private static final int RECENT_SIZE = 128;
+
+	/**
+	 * Source of complete shouts already stored locally, e.g., the database of
+	 * received shouts.
+	 */
+	public interface AncestorResolver {
+		/**
+		 * @param hash the hash of the shout
+		 * @return the shout, with its ancestors available through
+		 *         {@link Shout#getParent()}, or {@code null} if unknown
+		 */
+		public Shout resolve(Hash hash);
+	}
+
+	private final AncestorResolver resolver;
+
+	private final int maxPending;
+
+	private final long ttlMs;
+
+	/**
+	 * Held shouts, oldest first
+	 */
+	private final LinkedHashMap<Hash, Entry> pending;
+
+	/**
+	 * Held shouts by the hash of the parent they are waiting on
+	 */
+	private final Map<Hash, List<Entry>> waiting;
+
+	private final LruCache<Hash, Shout> recent;
+
+	private long held;
+	private long resolvedFromStore;
+	private long completedLater;
+	private long expired;
+	private long evicted;
+	private long dropped;
+
+	public PendingAncestorTable(AncestorResolver resolver) {
+		this(resolver, DEFAULT_MAX_PENDING, DEFAULT_TTL_MS);
+	}
+
+	/**
+	 * @param resolver the source of locally stored ancestors
+	 * @param maxPending the maximum number of held shouts
+	 * @param ttlMs the time, in milliseconds, that a shout is held
+	 */
+	public PendingAncestorTable(AncestorResolver resolver, int maxPending, long ttlMs) {
+		this.resolver = resolver;
+		this.maxPending = maxPending;
+		this.ttlMs = ttlMs;
+		this.pending = new LinkedHashMap<Hash, Entry>();
+		this.waiting = new HashMap<Hash, List<Entry>>();
+		this.recent = new LruCache<Hash, Shout>(RECENT_SIZE);
+	}
+
+	/**
+	 * Adds a verified shout.
+	 *
+	 * @param shout the shout
+	 * @return the leaves of the chains completed by the shout, possibly empty
+	 */
+	public List<Shout> add(BuildableShout shout) {
+		Hash parentHash = shout.parentHash;
+
+		synchronized (this) {
+			expire(System.currentTimeMillis());
+			if (pending.containsKey(shout.hash) || recent.get(shout.hash) != null)
+				return Collections.emptyList();
+			if (parentHash == null)
+				return complete(shout, null);
+			List<Shout> leaves = tryLocal(shout);
+			if (leaves != null)
+				return leaves;
+		}
+
+		// Consult the local store without holding the lock. Walking the chain
+		// loads any lazily-fetched ancestors.
+		Shout parent = resolver.resolve(parentHash);
+		if (parent != null)
+			chainLength(parent);
+
+		synchronized (this) {
+			if (pending.containsKey(shout.hash) || recent.get(shout.hash) != null)
+				return Collections.emptyList();
+			if (parent != null) {
+				resolvedFromStore++;
+				recent.put(parentHash, parent);
+				return complete(shout, parent);
+			}
+			List<Shout> leaves = tryLocal(shout);
+			if (leaves != null)
+				return leaves;
+			hold(shout);
+			return Collections.emptyList();
+		}
+	}
+
+	/**
+	 * @param hash the hash of a shout
+	 * @return {@code true} if a held shout is waiting on the shout
+	 */
+	public synchronized boolean isAwaited(Hash hash) {
+		return waiting.containsKey(hash);
+	}
+
+	/**
+	 * @return the number of held shouts
+	 */
+	public synchronized int size() {
+		return pending.size();
+	}
+
+	/**
+	 * Removes all held shouts.
+	 */
+	public synchronized void clear() {
+		pending.clear();
+		waiting.clear();
+		recent.evictAll();
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String
+				.format("PendingAncestorTable[pending=%d, held=%d, completedLater=%d, resolvedFromStore=%d, expired=%d, evicted=%d, dropped=%d]",
+						pending.size(), held, completedLater, resolvedFromStore, expired,
+						evicted, dropped);
+	}
+
+	/**
+	 * Resolves the parent from the held and recent shouts.
+	 *
+	 * @return the leaves of the completed chains, or {@code null} if the local
+	 *         store must be consulted
+	 */
+	private List<Shout> tryLocal(BuildableShout shout) {
+		Shout parent = recent.get(shout.parentHash);
+		if (parent != null)
+			return complete(shout, parent);
+		if (pending.containsKey(shout.parentHash)) {
+			hold(shout);
+			return Collections.emptyList();
+		}
+		return null;
+	}
+
+	private void hold(BuildableShout shout) {
+		while (pending.size() >= maxPending) {
+			Iterator<Entry> it = pending.values().iterator();
+			Entry oldest = it.next();
+			it.remove();
+			unwait(oldest);
+			evicted++;
+		}
+		Entry entry = new Entry(shout, System.currentTimeMillis());
+		pending.put(shout.hash, entry);
+		List<Entry> list = waiting.get(shout.parentHash);
+		if (list == null) {
+			list = new ArrayList<Entry>(1);
+			waiting.put(shout.parentHash, list);
+		}
+		list.add(entry);
+		held++;
+	}
+
+	private void unwait(Entry entry) {
+		List<Entry> list = waiting.get(entry.shout.parentHash);
+		if (list != null) {
+			list.remove(entry);
+			if (list.isEmpty())
+				waiting.remove(entry.shout.parentHash);
+		}
+	}
+
+	private void expire(long now) {
+		Iterator<Entry> it = pending.values().iterator();
+		while (it.hasNext()) {
+			Entry entry = it.next();
+			if (now - entry.arrived < ttlMs)
+				break;
+			it.remove();
+			unwait(entry);
+			expired++;
+		}
+	}
+
+	/**
+	 * Attaches the parent and completes the shouts waiting on this one.
+	 *
+	 * @return the leaves of the completed chains
+	 */
+	private List<Shout> complete(BuildableShout shout, Shout parent) {
+		shout.parent = parent;
+		List<Entry> children = waiting.remove(shout.hash);
+
+		int length = chainLength(shout);
+		if (length > MAX_CHAIN_LENGTH || (length == MAX_CHAIN_LENGTH && !isValidChain(shout))) {
+			// Children of a dropped shout would form even longer chains
+			dropped++;
+			if (children != null) {
+				for (Entry child : children) {
+					pending.remove(child.shout.hash);
+					dropped++;
+				}
+			}
+			return Collections.emptyList();
+		}
+
+		recent.put(shout.hash, shout);
+
+		List<Shout> leaves = new ArrayList<Shout>(1);
+		if (children != null) {
+			for (Entry child : children) {
+				pending.remove(child.shout.hash);
+				completedLater++;
+				leaves.addAll(complete(child.shout, shout));
+			}
+		}
+		if (leaves.isEmpty())
+			leaves.add(shout);
+		return leaves;
+	}
+
+	private static int chainLength(Shout shout) {
+		int length = 0;
+		for (Shout s = shout; s != null && length <= MAX_CHAIN_LENGTH; s = s.getParent())
+			length++;
+		return length;
+	}
+
+	/**
+	 * Checks a chain of {@link #MAX_CHAIN_LENGTH} shouts. The only valid one is
+	 * reshout -> comment -> shout.
+	 */
+	private static boolean isValidChain(Shout leaf) {
+		/* A reshout can only be root */
+		if (leaf.getParent().getType().equals(ShoutType.RESHOUT)) {
+			Log.i(TAG, "Dropping invalid reshout of a reshout.");
+			return false;
+		}
+
+		/* A comment cannot be root of a length-3 chain */
+		if (leaf.getType().equals(ShoutType.COMMENT)) {
+			Log.i(TAG, "Dropping invalid comment on a comment or reshout.");
+			return false;
+		}
+		return true;
+	}
+
+	private static class Entry {
+		final BuildableShout shout;
+
+		final long arrived;
+
+		Entry(BuildableShout shout, long arrived) {
+			this.shout = shout;
+			this.arrived = arrived;
+		}
+	}
+
+}
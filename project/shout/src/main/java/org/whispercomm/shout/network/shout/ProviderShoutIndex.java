@@ -0,0 +1,35 @@
+package org.whispercomm.shout.network.shout;
+
+import org.whispercomm.shout.Hash;
+import org.whispercomm.shout.Shout;
+import org.whispercomm.shout.provider.ShoutProviderContract;
+
+import android.content.Context;
+
+/**
+ * {@link DuplicateFilter.ShoutIndex} and
+ * {@link PendingAncestorTable.AncestorResolver} backed by the shout content
+ * provider.
+ *
+ * @author David R. Bild
+ */
+public class ProviderShoutIndex implements DuplicateFilter.ShoutIndex,
+		PendingAncestorTable.AncestorResolver {
+
+	private final Context context;
+
+	public ProviderShoutIndex(Context context) {
+		this.context = context;
+	}
+
+	@Override
+	public boolean contains(Hash hash) {
+		return ShoutProviderContract.containsShout(context, hash);
+	}
+
+	@Override
+	public Shout resolve(Hash hash) {
+		return ShoutProviderContract.retrieveShoutByHash(context, hash);
+	}
+
+}
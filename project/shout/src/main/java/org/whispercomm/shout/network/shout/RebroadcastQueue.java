@@ -0,0 +1,237 @@
+package org.whispercomm.shout.network.shout;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.whispercomm.shout.Hash;
+import org.whispercomm.shout.Shout;
+import org.whispercomm.shout.provider.ShoutProviderContract;
+import org.whispercomm.shout.util.AlarmExecutorService;
+import org.whispercomm.shout.util.TaskScheduler;
+
+import android.content.Context;
+import android.util.Log;
+
+/**
+ * Durable queue of rebroadcasts of outgoing shouts.
+ * <p>
+ * The schedule (the shout hash, the time of the next rebroadcast, and the
+ * number remaining) is stored in the shout database, so it survives restarts
+ * of the service and of the process. A single alarm is set for the earliest
+ * scheduled rebroadcast. When it fires, every rebroadcast due within
+ * {@link #BATCH_WINDOW_MS} is sent in the same wakeup, through the rebroadcast
+ * coalescer so the shouts share packets, and the alarm is set again.
+ * <p>
+ * All work runs on the single thread of the {@link TaskScheduler}, an
+ * {@link AlarmExecutorService} on the device. The schedule is kept in a
+ * {@link Store}, which the network simulator replaces with one in memory.
+ *
+ * @author David R. Bild
+ */
+public class RebroadcastQueue {
+	private static final String TAG = RebroadcastQueue.class.getSimpleName();
+
+	/**
+	 * Rebroadcasts due within this many milliseconds of a wakeup are sent in
+	 * that wakeup.
+	 */
+	public static long BATCH_WINDOW_MS = 60 * 1000;
+
+	/**
+	 * The schedule of rebroadcasts and the shouts it names.
+	 */
+	public interface Store {
+		/**
+		 * Schedules rebroadcasts of a shout, replacing any existing schedule.
+		 *
+		 * @param hash the hash of the shout
+		 * @param nextSend the time of the first rebroadcast, in milliseconds
+		 *            since the epoch
+		 * @param count the number of rebroadcasts
+		 */
+		public void scheduleRebroadcasts(Hash hash, long nextSend, int count);
+
+		/**
+		 * Claims the rebroadcasts due by the specified time, moving each
+		 * schedule on by one period or removing it once none remain.
+		 *
+		 * @param dueBy the time, in milliseconds since the epoch
+		 * @param period the time, in milliseconds, between rebroadcasts
+		 * @return the hashes of the shouts to rebroadcast now
+		 */
+		public List<Hash> claimDueRebroadcasts(long dueBy, long period);
+
+		/**
+		 * @return the time of the earliest scheduled rebroadcast, or
+		 *         {@code -1} if none is scheduled
+		 */
+		public long retrieveNextRebroadcastTime();
+
+		/**
+		 * @param hash the hash of the shout
+		 * @return the shout, or {@code null} if it is not stored
+		 */
+		public Shout retrieveShout(Hash hash);
+	}
+
+	private final Store store;
+
+	private final ShoutProtocol shoutProtocol;
+
+	private final TaskScheduler executor;
+
+	private final long periodMs;
+
+	/**
+	 * The alarm for the next drain. Accessed only from the executor thread.
+	 */
+	private TaskScheduler.Task alarm;
+
+	private volatile long drains;
+	private volatile long sent;
+	private volatile long missing;
+
+	private final Runnable drainTask = new Runnable() {
+		@Override
+		public void run() {
+			drain();
+		}
+	};
+
+	/**
+	 * @param context the context used to access the shout database
+	 * @param shoutProtocol the protocol used to rebroadcast shouts
+	 * @param executor the executor on which the queue is drained
+	 * @param periodMs the time, in milliseconds, between rebroadcasts of a
+	 *            shout
+	 */
+	public RebroadcastQueue(Context context, ShoutProtocol shoutProtocol,
+			AlarmExecutorService executor, long periodMs) {
+		this(new ProviderStore(context), shoutProtocol, executor, periodMs);
+	}
+
+	/**
+	 * @param store the schedule of rebroadcasts
+	 * @param shoutProtocol the protocol used to rebroadcast shouts
+	 * @param executor the single-threaded scheduler on which the queue is
+	 *            drained
+	 * @param periodMs the time, in milliseconds, between rebroadcasts of a
+	 *            shout
+	 */
+	public RebroadcastQueue(Store store, ShoutProtocol shoutProtocol, TaskScheduler executor,
+			long periodMs) {
+		this.store = store;
+		this.shoutProtocol = shoutProtocol;
+		this.executor = executor;
+		this.periodMs = periodMs;
+	}
+
+	/**
+	 * Reloads the stored schedule, sending any rebroadcasts that came due
+	 * while not running.
+	 */
+	public void initialize() {
+		executor.execute(drainTask);
+	}
+
+	public void cleanup() {
+		executor.shutdown();
+	}
+
+	/**
+	 * Schedules rebroadcasts of a shout, the first one period from now.
+	 *
+	 * @param shout the shout, which the store must hold
+	 * @param count the number of rebroadcasts
+	 */
+	public void add(Shout shout, final int count) {
+		final Hash hash = shout.getHash();
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				store.scheduleRebroadcasts(hash, System.currentTimeMillis() + periodMs, count);
+				reschedule();
+			}
+		});
+	}
+
+	/**
+	 * @return the number of rebroadcasts sent
+	 */
+	public long getSentCount() {
+		return sent;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("RebroadcastQueue[drains=%d, sent=%d, missing=%d]", drains, sent,
+				missing);
+	}
+
+	private void drain() {
+		drains++;
+		List<Hash> due = store.claimDueRebroadcasts(System.currentTimeMillis()
+				+ BATCH_WINDOW_MS, periodMs);
+		for (Hash hash : due) {
+			Shout shout = store.retrieveShout(hash);
+			if (shout == null) {
+				missing++;
+				continue;
+			}
+			try {
+				shoutProtocol.rebroadcast(shout);
+				sent++;
+			} catch (RuntimeException e) {
+				Log.w(TAG, "Failed to rebroadcast shout.", e);
+			}
+		}
+		reschedule();
+	}
+
+	/**
+	 * Sets the alarm for the earliest scheduled rebroadcast.
+	 */
+	private void reschedule() {
+		if (alarm != null) {
+			alarm.cancel();
+			alarm = null;
+		}
+		long next = store.retrieveNextRebroadcastTime();
+		if (next < 0)
+			return;
+		long delay = Math.max(0, next - System.currentTimeMillis());
+		alarm = executor.schedule(drainTask, delay, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Keeps the schedule in the shout database.
+	 */
+	private static class ProviderStore implements Store {
+		private final Context context;
+
+		ProviderStore(Context context) {
+			this.context = context;
+		}
+
+		@Override
+		public void scheduleRebroadcasts(Hash hash, long nextSend, int count) {
+			ShoutProviderContract.scheduleRebroadcasts(context, hash, nextSend, count);
+		}
+
+		@Override
+		public List<Hash> claimDueRebroadcasts(long dueBy, long period) {
+			return ShoutProviderContract.claimDueRebroadcasts(context, dueBy, period);
+		}
+
+		@Override
+		public long retrieveNextRebroadcastTime() {
+			return ShoutProviderContract.retrieveNextRebroadcastTime(context);
+		}
+
+		@Override
+		public Shout retrieveShout(Hash hash) {
+			return ShoutProviderContract.retrieveShoutByHash(context, hash);
+		}
+	}
+
+}
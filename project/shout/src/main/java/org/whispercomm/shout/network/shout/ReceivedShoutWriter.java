@@ -0,0 +1,90 @@
+package org.whispercomm.shout.network.shout;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.whispercomm.shout.Shout;
+import org.whispercomm.shout.network.PipelineStage;
+import org.whispercomm.shout.provider.ShoutProviderContract;
+
+import android.content.Context;
+import android.util.Log;
+
+/**
+ * Stores received shouts, by default in the content provider. Shouts are
+ * queued for a single writer thread, which stores them in batches. If a batch
+ * fails, its shouts are stored one at a time, so one bad shout does not lose
+ * the rest. Shouts still queued when the writer is stopped are stored before
+ * it stops, since the duplicate filter will not accept them again.
+ *
+ * @author David R. Bild
+ */
+public class ReceivedShoutWriter {
+	private static final String TAG = ReceivedShoutWriter.class.getSimpleName();
+
+	/**
+	 * maximum number of received shouts waiting to be stored
+	 */
+	public static int WRITE_QUEUE_DEPTH = 64;
+
+	/**
+	 * maximum number of received shouts stored in one batch
+	 */
+	public static int WRITE_BATCH_SIZE = 16;
+
+	private final PipelineStage<Shout> writer;
+
+	public ReceivedShoutWriter(final Context context) {
+		this(new PipelineStage.Handler<Shout>() {
+			@Override
+			public void process(List<Shout> shouts) {
+				if (ShoutProviderContract.saveShouts(context, shouts) || shouts.size() == 1)
+					return;
+				for (Shout shout : shouts) {
+					if (!ShoutProviderContract.saveShouts(context,
+							Collections.singletonList(shout)))
+						Log.e(TAG, "Dropping unsaved received shout " + shout.getHash());
+				}
+			}
+		});
+	}
+
+	/**
+	 * @param store the handler that stores each batch of shouts
+	 */
+	public ReceivedShoutWriter(PipelineStage.Handler<Shout> store) {
+		this.writer = new PipelineStage<Shout>("ShoutWriter", 1, WRITE_QUEUE_DEPTH,
+				WRITE_BATCH_SIZE, store);
+	}
+
+	public void start() {
+		writer.start();
+	}
+
+	/**
+	 * Stops the writer thread once the queued shouts are stored.
+	 */
+	public void stop() {
+		writer.drain();
+	}
+
+	/**
+	 * Queues a shout to be stored. Blocks while the queue is full.
+	 *
+	 * @param shout the shout to store
+	 */
+	public void write(Shout shout) {
+		try {
+			writer.put(shout);
+		} catch (InterruptedException e) {
+			Log.w(TAG, "Interrupted while queuing received shout. Dropping it.", e);
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return writer.toString();
+	}
+
+}
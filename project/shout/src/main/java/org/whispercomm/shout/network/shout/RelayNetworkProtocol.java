@@ -0,0 +1,329 @@
+package org.whispercomm.shout.network.shout;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.whispercomm.manes.client.maclib.ManesNotRegisteredException;
+import org.whispercomm.shout.Hash;
+import org.whispercomm.shout.LocalShout;
+import org.whispercomm.shout.Shout;
+import org.whispercomm.shout.network.shout.PendingAncestorTable.AncestorResolver;
+
+import android.content.Context;
+import android.util.Log;
+
+/**
+ * Network logic that adds store-carry-forward relaying of received shouts to
+ * another {@link NetworkProtocol}, which still sends the local user's shouts
+ * and stores received ones.
+ * <p>
+ * Received shouts younger than {@link #MAX_AGE_MS} become relay candidates.
+ * Ages are computed from the sender's clock, so shouts dated more than
+ * {@link #MAX_CLOCK_SKEW_MS} ahead of the local clock are not relayed and the
+ * age of the rest is taken as at least zero.
+ * Every {@link #ROUND_MS}, the candidates are ranked by the popularity of
+ * their thread (the comment and reshout counts of the root shout) discounted
+ * by their age, and the best are rebroadcast until the airtime budget of the
+ * round is spent. Each candidate is relayed at most {@link #FORWARD_QUOTA}
+ * times, and hearing a neighbor rebroadcast it uses up the quota as well.
+ * <p>
+ * The shout wire format carries no hop count, so the spread of a shout is
+ * bounded by its age and the per-node quota instead.
+ *
+ * @author David R. Bild
+ */
+public class RelayNetworkProtocol implements NetworkProtocol, ShoutProtocol.DuplicateListener {
+	public static final String TAG = RelayNetworkProtocol.class.getSimpleName();
+
+	/**
+	 * maximum age, in milliseconds, of a relayed shout
+	 */
+	public static long MAX_AGE_MS = 6 * 60 * 60 * 1000;
+
+	/**
+	 * maximum time, in milliseconds, that a relayed shout may be dated ahead
+	 * of the local clock
+	 */
+	public static long MAX_CLOCK_SKEW_MS = 5 * 60 * 1000;
+
+	/**
+	 * maximum number of times this node relays a shout
+	 */
+	public static int FORWARD_QUOTA = 4;
+
+	/**
+	 * time between relay rounds, in milliseconds
+	 */
+	public static long ROUND_MS = 30 * 1000;
+
+	/**
+	 * airtime budget for relaying, in bytes per second
+	 */
+	public static int AIRTIME_BYTES_PER_SECOND = 256;
+
+	/**
+	 * age, in milliseconds, at which the priority of a shout halves
+	 */
+	public static long AGE_HALF_LIFE_MS = 60 * 60 * 1000;
+
+	/**
+	 * maximum number of relay candidates
+	 */
+	public static int MAX_CANDIDATES = 256;
+
+	/**
+	 * Sends a relayed shout.
+	 */
+	interface Relay {
+		/**
+		 * @param shout the shout to relay
+		 * @return the number of bytes sent
+		 */
+		public int relay(Shout shout);
+	}
+
+	private final NetworkProtocol delegate;
+
+	private final AncestorResolver resolver;
+
+	private final Relay relay;
+
+	private final ScheduledExecutorService executor;
+
+	private final Map<Hash, Candidate> candidates;
+
+	private long relayed;
+	private long relayedBytes;
+	private long overheard;
+	private long future;
+	private long expired;
+	private long evicted;
+
+	/**
+	 * @param delegate the protocol that sends local shouts and stores received
+	 *            ones
+	 * @param shoutProtocol the protocol used to rebroadcast shouts
+	 * @param resolver the source of stored shouts, with their comment and
+	 *            reshout counts
+	 */
+	public RelayNetworkProtocol(NetworkProtocol delegate, final ShoutProtocol shoutProtocol,
+			AncestorResolver resolver) {
+		this(delegate, resolver, new Relay() {
+			@Override
+			public int relay(Shout shout) {
+				return shoutProtocol.rebroadcast(shout);
+			}
+		}, Executors.newSingleThreadScheduledExecutor());
+	}
+
+	RelayNetworkProtocol(NetworkProtocol delegate, AncestorResolver resolver, Relay relay,
+			ScheduledExecutorService executor) {
+		this.delegate = delegate;
+		this.resolver = resolver;
+		this.relay = relay;
+		this.executor = executor;
+		this.candidates = new HashMap<Hash, Candidate>();
+	}
+
+	/**
+	 * Convenience constructor that resolves stored shouts from the content
+	 * provider.
+	 */
+	public RelayNetworkProtocol(NetworkProtocol delegate, ShoutProtocol shoutProtocol,
+			Context context) {
+		this(delegate, shoutProtocol, new ProviderShoutIndex(context));
+	}
+
+	@Override
+	public void initialize() {
+		delegate.initialize();
+		executor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					relayRound(System.currentTimeMillis());
+				} catch (RuntimeException e) {
+					Log.w(TAG, "Error in relay round.", e);
+				}
+			}
+		}, ROUND_MS, ROUND_MS, TimeUnit.MILLISECONDS);
+	}
+
+	@Override
+	public void cleanup() {
+		executor.shutdownNow();
+		delegate.cleanup();
+		Log.i(TAG, this.toString());
+	}
+
+	@Override
+	public void sendShout(Shout shout) throws ShoutChainTooLongException,
+			ManesNotRegisteredException {
+		delegate.sendShout(shout);
+	}
+
+	@Override
+	public void receive(Shout shout) {
+		delegate.receive(shout);
+
+		long timestamp = shout.getTimestamp().getMillis();
+		long age = System.currentTimeMillis() - timestamp;
+		if (age >= MAX_AGE_MS)
+			return;
+		synchronized (this) {
+			if (age < -MAX_CLOCK_SKEW_MS) {
+				future++;
+				return;
+			}
+			Hash hash = shout.getHash();
+			if (candidates.containsKey(hash))
+				return;
+			if (candidates.size() >= MAX_CANDIDATES)
+				evictOldest();
+			candidates.put(hash, new Candidate(hash, timestamp));
+		}
+	}
+
+	@Override
+	public synchronized void heardAgain(Hash hash) {
+		Candidate candidate = candidates.get(hash);
+		if (candidate != null) {
+			overheard++;
+			if (--candidate.quota <= 0)
+				candidates.remove(hash);
+		}
+	}
+
+	/**
+	 * @return the number of relay candidates
+	 */
+	public synchronized int size() {
+		return candidates.size();
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String
+				.format("RelayNetworkProtocol[candidates=%d, relayed=%d, relayedBytes=%d, overheard=%d, future=%d, expired=%d, evicted=%d]",
+						candidates.size(), relayed, relayedBytes, overheard, future, expired,
+						evicted);
+	}
+
+	/**
+	 * Relays the highest priority candidates within the airtime budget of one
+	 * round. The stored shouts are looked up and sent without holding the
+	 * lock.
+	 *
+	 * @param now the current time, in milliseconds since the epoch
+	 */
+	void relayRound(long now) {
+		List<Candidate> round;
+		synchronized (this) {
+			Iterator<Candidate> it = candidates.values().iterator();
+			while (it.hasNext()) {
+				if (now - it.next().timestamp >= MAX_AGE_MS) {
+					it.remove();
+					expired++;
+				}
+			}
+			round = new ArrayList<Candidate>(candidates.values());
+		}
+
+		final Map<Candidate, Double> scores = new HashMap<Candidate, Double>();
+		final Map<Candidate, Shout> shouts = new HashMap<Candidate, Shout>();
+		for (Candidate candidate : round) {
+			Shout shout = resolver.resolve(candidate.hash);
+			if (shout == null)
+				continue; // Not stored yet
+			shouts.put(candidate, shout);
+			scores.put(candidate, score(shout, now - candidate.timestamp));
+		}
+		round = new ArrayList<Candidate>(shouts.keySet());
+		Collections.sort(round, new Comparator<Candidate>() {
+			@Override
+			public int compare(Candidate lhs, Candidate rhs) {
+				return scores.get(rhs).compareTo(scores.get(lhs));
+			}
+		});
+
+		long budget = AIRTIME_BYTES_PER_SECOND * ROUND_MS / 1000;
+		for (Candidate candidate : round) {
+			if (budget <= 0)
+				break;
+			synchronized (this) {
+				if (candidates.get(candidate.hash) != candidate)
+					continue; // Quota used up by neighbors
+				if (--candidate.quota <= 0)
+					candidates.remove(candidate.hash);
+			}
+			int len;
+			try {
+				len = relay.relay(shouts.get(candidate));
+			} catch (RuntimeException e) {
+				Log.w(TAG, "Failed to relay shout.", e);
+				continue;
+			}
+			budget -= len;
+			synchronized (this) {
+				relayed++;
+				relayedBytes += len;
+			}
+		}
+	}
+
+	/**
+	 * Computes the relay priority of a shout: one plus the comment and reshout
+	 * counts of its thread, halved for every {@link #AGE_HALF_LIFE_MS} of age.
+	 * A negative age, from a sender clock running ahead, counts as zero.
+	 */
+	static double score(Shout shout, long ageMs) {
+		Shout root = shout;
+		while (root.getParent() != null)
+			root = root.getParent();
+		int popularity = 1;
+		if (root instanceof LocalShout) {
+			LocalShout local = (LocalShout) root;
+			popularity += local.getCommentCount() + local.getReshoutCount();
+		}
+		return popularity * Math.pow(0.5, (double) Math.max(0, ageMs) / AGE_HALF_LIFE_MS);
+	}
+
+	private void evictOldest() {
+		Candidate oldest = null;
+		for (Candidate candidate : candidates.values()) {
+			if (oldest == null || candidate.timestamp < oldest.timestamp)
+				oldest = candidate;
+		}
+		candidates.remove(oldest.hash);
+		evicted++;
+	}
+
+	private static class Candidate {
+		final Hash hash;
+
+		/**
+		 * Sender's timestamp, in milliseconds since the epoch
+		 */
+		final long timestamp;
+
+		/**
+		 * Remaining relays. Guarded by the protocol lock.
+		 */
+		int quota;
+
+		Candidate(Hash hash, long timestamp) {
+			this.hash = hash;
+			this.timestamp = timestamp;
+			this.quota = FORWARD_QUOTA;
+		}
+	}
+
+}
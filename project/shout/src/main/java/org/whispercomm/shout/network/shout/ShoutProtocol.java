@@ -1,17 +1,24 @@
 
 package org.whispercomm.shout.network.shout;
 
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.CopyOnWriteArrayList;
 
 import org.whispercomm.manes.client.maclib.ManesFrameTooLargeException;
 import org.whispercomm.manes.client.maclib.ManesNotRegisteredException;
+import org.whispercomm.shout.Hash;
 import org.whispercomm.shout.Shout;
-import org.whispercomm.shout.ShoutType;
-import org.whispercomm.shout.network.ObjectProtocol;
+import org.whispercomm.shout.crypto.SignedBlob;
+import org.whispercomm.shout.crypto.VerificationCache;
+import org.whispercomm.shout.network.BatchObjectProtocol;
 import org.whispercomm.shout.network.ObjectType;
 import org.whispercomm.shout.network.PacketProtocol;
+import org.whispercomm.shout.network.TrafficClass;
 import org.whispercomm.shout.network.UnsupportedVersionException;
 import org.whispercomm.shout.serialization.SerializeUtility;
 import org.whispercomm.shout.serialization.SerializeUtility.BuildableShout;
@@ -24,22 +31,71 @@ import android.util.Log;
  * The protocol for shout objects. This class is responsible for deserializing
  * incoming shouts and serializing outing shouts. Deserialized shouts are passed
  * to registered {@link NetworkProtocol} instances for further handling.
+ * <p>
+ * Packets may be received concurrently on multiple threads. The shouts of the
+ * packet being received are kept per thread until they are verified at the end
+ * of the packet. Verified shouts are then reassembled into chains by a shared
+ * {@link PendingAncestorTable}, so a shout whose ancestors arrive later, in
+ * another packet or from another sender, is still delivered.
  * 
  * @author David R. Bild
  */
-public class ShoutProtocol implements ObjectProtocol {
+public class ShoutProtocol implements BatchObjectProtocol {
 	private static final String TAG = ShoutProtocol.class.getSimpleName();
 
+	/**
+	 * Listener notified when a shout that was already received is heard
+	 * again, e.g., rebroadcast by a neighbor.
+	 */
+	public interface DuplicateListener {
+		/**
+		 * @param hash the hash of the shout heard again
+		 */
+		public void heardAgain(Hash hash);
+	}
+
 	private final List<NetworkProtocol> protocols;
 
-	private final ShoutChainReconstructor reconstructor;
+	private final List<DuplicateListener> duplicateListeners;
 
 	private final PacketProtocol packetProtocol;
 
-	public ShoutProtocol(PacketProtocol packetProtocol) {
+	private final DuplicateFilter duplicateFilter;
+
+	private final PendingAncestorTable ancestors;
+
+	/**
+	 * State of the packet currently being received by each thread
+	 */
+	private final ThreadLocal<PacketState> packetState;
+
+	public ShoutProtocol(PacketProtocol packetProtocol, DuplicateFilter duplicateFilter,
+			PendingAncestorTable ancestors) {
 		this.packetProtocol = packetProtocol;
+		this.duplicateFilter = duplicateFilter;
+		this.ancestors = ancestors;
 		this.protocols = new CopyOnWriteArrayList<NetworkProtocol>();
-		this.reconstructor = new ShoutChainReconstructor();
+		this.duplicateListeners = new CopyOnWriteArrayList<DuplicateListener>();
+		this.packetState = new ThreadLocal<PacketState>() {
+			@Override
+			protected PacketState initialValue() {
+				return new PacketState();
+			}
+		};
+	}
+
+	/**
+	 * @return the filter used to drop already-seen shouts
+	 */
+	public DuplicateFilter getDuplicateFilter() {
+		return duplicateFilter;
+	}
+
+	/**
+	 * @return the table of shouts waiting on their ancestors
+	 */
+	public PendingAncestorTable getPendingAncestorTable() {
+		return ancestors;
 	}
 
 	/**
@@ -60,26 +116,86 @@ public class ShoutProtocol implements ObjectProtocol {
 		protocols.remove(protocol);
 	}
 
+	/**
+	 * Registers a listener to be notified of skipped duplicate shouts.
+	 * 
+	 * @param listener the listener to notify
+	 */
+	public void addDuplicateListener(DuplicateListener listener) {
+		duplicateListeners.add(listener);
+	}
+
+	/**
+	 * Unregisters a duplicate listener.
+	 * 
+	 * @param listener the listener to unregister
+	 */
+	public void removeDuplicateListener(DuplicateListener listener) {
+		duplicateListeners.remove(listener);
+	}
+
 	@Override
 	public void receive(ObjectType type, ByteBuffer data) {
-		Shout shout = null;
+		if (skipDuplicate(data))
+			return;
+
+		BuildableShout shout;
 		try {
-			shout = reconstructor.processShout(SerializeUtility.deserializeShout(data));
+			shout = SerializeUtility.deserializeUnverifiedShout(data);
 		} catch (UnsupportedVersionException e) {
 			Log.v(TAG, "Dropping shout with invalid version", e);
 			return;
 		} catch (ShoutPacketException e) {
 			Log.v(TAG, "Dropping shout with invalid packet", e);
 			return;
-		} catch (InvalidShoutSignatureException e) {
-			Log.v(TAG, "Dropping shout with invalid signature", e);
-			return;
-		} catch (ShoutChainTooLongException e) {
-			Log.v(TAG, "Dropping shout with too many ancestors", e);
+		}
+
+		// Defer verification until the end of the packet
+		PacketState state = packetState.get();
+		state.pending.add(shout);
+		if (shout.parentHash != null)
+			state.pendingParents.add(shout.parentHash);
+	}
+
+	/**
+	 * Verifies the signatures of the shouts received in the packet as a batch
+	 * and then passes the valid ones, in order, to the pending ancestor table.
+	 */
+	@Override
+	public void endPacket() {
+		PacketState state = packetState.get();
+		List<BuildableShout> pending = state.pending;
+		if (pending.isEmpty())
 			return;
+
+		try {
+			int len = pending.size();
+			List<Hash> hashes = new ArrayList<Hash>(len);
+			List<SignedBlob> blobs = new ArrayList<SignedBlob>(len);
+			for (BuildableShout shout : pending) {
+				hashes.add(shout.hash);
+				blobs.add(new SignedBlob(shout.signature, shout.signedData, shout.getSender()
+						.getPublicKey()));
+			}
+
+			boolean[] valid = VerificationCache.verifyAll(hashes, blobs);
+
+			for (int i = 0; i < len; ++i) {
+				BuildableShout shout = pending.get(i);
+				shout.signedData = null;
+				if (valid[i]) {
+					processShout(shout);
+				} else {
+					Log.v(TAG, "Dropping shout with invalid signature");
+				}
+			}
+		} finally {
+			state.reset();
 		}
+	}
 
-		if (shout != null) {
+	private void processShout(BuildableShout verified) {
+		for (Shout shout : ancestors.add(verified)) {
 			ShoutTracker.trackReceiveShout(shout);
 			deliverShout(shout);
 		}
@@ -95,16 +211,96 @@ public class ShoutProtocol implements ObjectProtocol {
 	 *             Manes.
 	 */
 	public void send(Shout shout) throws ManesFrameTooLargeException, ManesNotRegisteredException {
+		ByteBuffer buffer = serializeChain(shout);
+		try {
+			packetProtocol.send(buffer);
+		} finally {
+			PacketProtocol.releasePacket(buffer);
+		}
+	}
+
+	/**
+	 * Queues a shout (and its ancestors) to be rebroadcast. Rebroadcasts have
+	 * the lowest priority and share frames with other queued rebroadcasts.
+	 * 
+	 * @param shout the shout to send
+	 * @return the length in bytes of the serialized shout and ancestors
+	 * @throws ManesFrameTooLargeException if the shout and ancestors do not fit
+	 *             in a Manes frame.
+	 * @see TrafficClass#Rebroadcast
+	 */
+	public int rebroadcast(Shout shout) throws ManesFrameTooLargeException {
+		ByteBuffer buffer = serializeChain(shout);
+		try {
+			// Excludes the packet header, which is shared in a coalesced frame
+			int len = buffer.position() - 1;
+			packetProtocol.sendCoalesced(buffer, TrafficClass.Rebroadcast);
+			return len;
+		} finally {
+			PacketProtocol.releasePacket(buffer);
+		}
+	}
+
+	private ByteBuffer serializeChain(Shout shout) {
 		ByteBuffer buffer = PacketProtocol.createPacket();
 		while (shout != null) {
 			ShoutTracker.trackSendShout(shout);
 			SerializeUtility.serializeShout(buffer, shout);
 			shout = shout.getParent();
 		}
-		packetProtocol.send(buffer);
+		return buffer;
+	}
+
+	/**
+	 * Checks if the shout object at the current position of the buffer has
+	 * already been seen, by hashing the raw object bytes. Duplicates are
+	 * skipped (the position is advanced past the object) without being parsed
+	 * or verified, unless a shout pending in the current packet or held in the
+	 * pending ancestor table is waiting on them to complete its chain. Skipped
+	 * duplicates are reported to the registered {@link DuplicateListener}s.
+	 * 
+	 * @param data the buffer containing the serialized shout
+	 * @return {@code true} if the object was skipped, {@code false} otherwise
+	 */
+	private boolean skipDuplicate(ByteBuffer data) {
+		int start = data.position();
+		int end;
+		Hash hash;
+		try {
+			end = start + PacketProtocol.OBJECT_HEADER_LEN
+					+ (0xFFFF & data.getShort(start + 1));
+			ByteBuffer object = data.duplicate();
+			object.limit(end);
+			hash = Hash.hashData(object);
+		} catch (IndexOutOfBoundsException e) {
+			// Let the deserializer report the malformed object
+			return false;
+		} catch (IllegalArgumentException e) {
+			return false;
+		} catch (BufferUnderflowException e) {
+			return false;
+		}
+
+		if (packetState.get().pendingParents.contains(hash) || ancestors.isAwaited(hash)
+				|| !duplicateFilter.isDuplicate(hash))
+			return false;
+
+		data.position(end);
+		for (DuplicateListener listener : duplicateListeners) {
+			try {
+				listener.heardAgain(hash);
+			} catch (RuntimeException e) {
+				Log.w(TAG, "Error in duplicate listener: " + listener, e);
+			}
+		}
+		return true;
 	}
 
 	private void deliverShout(Shout shout) {
+		for (Shout s = shout; s != null; s = s.getParent()) {
+			duplicateFilter.add(s.getHash());
+		}
+
 		for (NetworkProtocol protocol : protocols) {
 			try {
 				protocol.receive(shout);
@@ -116,134 +312,23 @@ public class ShoutProtocol implements ObjectProtocol {
 	}
 
 	/**
-	 * Reconstructs a shout hierarchy from incoming shouts. This version assumes
-	 * that related shouts are delivered consecutively in
-	 * root-parent-grandparent order. If the expected ancestor is not received
-	 * next, the descendants are dropped and the unexpected shout is processed
-	 * as a new root.
-	 * 
-	 * @author David R. Bild
+	 * State of the packet being received by a thread.
 	 */
-	private static class ShoutChainReconstructor {
-
-		private enum State {
-			Empty, NeedParent, NeedGrandparent
-		}
-
-		private State state;
-		private BuildableShout root;
-
-		public ShoutChainReconstructor() {
-			this.state = State.Empty;
-			this.root = null;
-		}
-
+	private static class PacketState {
 		/**
-		 * @param shout
-		 * @return the root of the shout chain, if fully reconstructed or
-		 *         {@code null} if waiting on ancestors are needed
-		 * @throws ShoutChainTooLongException if the grandparent-level shout
-		 *             requires a parent
+		 * Shouts received in the packet, awaiting verification
 		 */
-		public Shout processShout(BuildableShout shout) throws ShoutChainTooLongException {
-			switch (state) {
-				case Empty:
-					return processEmpty(shout);
-				case NeedParent:
-					return processNeedParent(shout);
-				case NeedGrandparent:
-					return processNeedGrandparent(shout);
-				default:
-					throw new IllegalStateException();
-			}
-		}
-
-		private BuildableShout processEmpty(BuildableShout shout) {
-			if (shout.parentHash != null) {
-				root = shout;
-				state = State.NeedParent;
-				return null;
-			} else {
-				return shout;
-			}
-		}
-
-		private BuildableShout processNeedParent(BuildableShout shout) {
-			if (shout.hash.equals(root.parentHash)) {
-				// This is parent we need.
-				root.parent = shout;
-				if (shout.parentHash != null) {
-					state = State.NeedGrandparent;
-					return null;
-				} else {
-					state = State.Empty;
-					return root;
-				}
-			} else {
-				// This is not the parent we need; drop previous shout and
-				// process incoming as new child
-				state = State.Empty;
-				return processEmpty(shout);
-			}
-		}
-
-		private BuildableShout processNeedGrandparent(BuildableShout shout)
-				throws ShoutChainTooLongException {
-			if (shout.hash.equals(root.parent.parentHash)) {
-				// This is the grandparent we need.
-				root.parent.parent = shout;
-				if (shout.parentHash != null) {
-					state = State.Empty;
-					throw new ShoutChainTooLongException();
-				} else {
-					state = State.Empty;
-					pruneInvalidChain();
-					return root;
-				}
-			} else {
-				// This is not the grandparent we need; drop previous shout and
-				// process incoming as new child
-				state = State.Empty;
-				return processEmpty(shout);
-			}
-		}
+		final List<BuildableShout> pending = new ArrayList<BuildableShout>();
 
 		/**
-		 * Removes any invalid shouts from a length-3 chain of shouts.
-		 * <p>
-		 * The only valid length-3 chain is
-		 * <ul>
-		 * <li>reshout -> comment -> shout</li>
-		 * </ul>
-		 * The invalid chains are
-		 * <ul>
-		 * <li>reshout -> reshout -> shout</li>
-		 * <li>comment -> reshout -> shout</li>
-		 * <li>comment -> comment -> shout</li>
-		 * </ul>
-		 * This method prunes the invalid leaf from these chains, leaving a
-		 * valid length-2 chain
-		 * <ul>
-		 * <li>reshout -> shout</li>
-		 * <li>comment -> shout</li>
-		 * </ul>
+		 * Parent hashes of the pending shouts
 		 */
-		private void pruneInvalidChain() {
-			/* A reshout can only be root */
-			if (root.parent.getType().equals(ShoutType.RESHOUT)) {
-				Log.i(TAG, "Dropping invalid reshout of a reshout.");
-				root = root.parent;
-				return;
-			}
+		final Set<Hash> pendingParents = new HashSet<Hash>();
 
-			/* A comment cannot be root of a length-3 chain */
-			if (root.getType().equals(ShoutType.COMMENT)) {
-				Log.i(TAG, "Dropping invalid comment on a comment or reshout.");
-				root = root.parent;
-				return;
-			}
+		void reset() {
+			pending.clear();
+			pendingParents.clear();
 		}
-
 	}
 
 }
@@ -0,0 +1,272 @@
+package org.whispercomm.shout.network.shout;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.whispercomm.manes.client.maclib.ManesNotRegisteredException;
+import org.whispercomm.shout.Hash;
+import org.whispercomm.shout.Shout;
+import org.whispercomm.shout.errors.InvalidFormatException;
+import org.whispercomm.shout.network.ObjectProtocol;
+import org.whispercomm.shout.network.ObjectType;
+import org.whispercomm.shout.network.PacketProtocol;
+import org.whispercomm.shout.network.TrafficClass;
+import org.whispercomm.shout.network.UnsupportedVersionException;
+import org.whispercomm.shout.network.shout.PendingAncestorTable.AncestorResolver;
+
+import android.content.Context;
+import android.support.v4.util.LruCache;
+import android.util.Log;
+
+/**
+ * Network logic for Shout based on anti-entropy: instead of rebroadcasting
+ * shouts speculatively, neighbors exchange {@link HaveSummary} objects and
+ * push each other only the shouts they lack.
+ * <p>
+ * Each outgoing shout is sent once immediately. The hashes of sent and
+ * received shouts are kept in a {@link SummaryWindow}, whose summary is
+ * broadcast every {@link #SUMMARY_PERIOD_MS}. On receiving a neighbor's
+ * summary, the shouts in the window that are missing from it are rebroadcast,
+ * newest first and at most {@link #MAX_PUSH} per summary. A shout is not
+ * pushed again within {@link #PUSH_HOLDOFF_MS} of being pushed or of hearing a
+ * neighbor push it, so several neighbors answering the same summary do not
+ * all send the same shout.
+ * <p>
+ * Received shouts are stored as by {@link NaiveNetworkProtocol}.
+ *
+ * @author David R. Bild
+ */
+public class SummaryNetworkProtocol implements NetworkProtocol, ObjectProtocol,
+		ShoutProtocol.DuplicateListener {
+	public static final String TAG = SummaryNetworkProtocol.class.getSimpleName();
+
+	/**
+	 * time between summary broadcasts, in milliseconds
+	 */
+	public static long SUMMARY_PERIOD_MS = 60 * 1000;
+
+	/**
+	 * size of the summary, in bytes
+	 */
+	public static int SUMMARY_BYTES = 512;
+
+	/**
+	 * number of bit positions set per hash in the summary
+	 */
+	public static int SUMMARY_HASHES = 4;
+
+	/**
+	 * number of slots in the summary window
+	 */
+	public static int WINDOW_SLOTS = 6;
+
+	/**
+	 * length of each slot of the summary window, in milliseconds
+	 */
+	public static long WINDOW_SLOT_MS = 5 * 60 * 1000;
+
+	/**
+	 * maximum number of shouts pushed in response to one summary
+	 */
+	public static int MAX_PUSH = 8;
+
+	/**
+	 * time after a shout is pushed during which it is not pushed again, in
+	 * milliseconds
+	 */
+	public static long PUSH_HOLDOFF_MS = 30 * 1000;
+
+	private static final int PUSH_CACHE_SIZE = 256;
+
+	private final ShoutProtocol shoutProtocol;
+
+	private final PacketProtocol packetProtocol;
+
+	private final AncestorResolver resolver;
+
+	private final ReceivedShoutWriter writer;
+
+	private final SummaryWindow window;
+
+	private final ScheduledExecutorService executor;
+
+	/**
+	 * time each recently pushed shout was last pushed by any node
+	 */
+	private final LruCache<Hash, Long> pushed;
+
+	private long summariesSent;
+	private long summariesReceived;
+	private long pushes;
+	private long suppressedPushes;
+
+	public SummaryNetworkProtocol(ShoutProtocol shoutProtocol, PacketProtocol packetProtocol,
+			AncestorResolver resolver, Context context) {
+		this(shoutProtocol, packetProtocol, resolver, new ReceivedShoutWriter(context));
+	}
+
+	/**
+	 * @param shoutProtocol the protocol used to send shouts
+	 * @param packetProtocol the protocol used to send summaries
+	 * @param resolver resolves hashes to stored shouts for pushing
+	 * @param writer the writer that stores received shouts
+	 */
+	public SummaryNetworkProtocol(ShoutProtocol shoutProtocol, PacketProtocol packetProtocol,
+			AncestorResolver resolver, ReceivedShoutWriter writer) {
+		this.shoutProtocol = shoutProtocol;
+		this.packetProtocol = packetProtocol;
+		this.resolver = resolver;
+		this.writer = writer;
+		this.window = new SummaryWindow(SUMMARY_BYTES, SUMMARY_HASHES, WINDOW_SLOTS,
+				WINDOW_SLOT_MS);
+		this.executor = Executors.newSingleThreadScheduledExecutor();
+		this.pushed = new LruCache<Hash, Long>(PUSH_CACHE_SIZE);
+	}
+
+	@Override
+	public void initialize() {
+		writer.start();
+		// Desynchronize the summaries of neighbors started together
+		long delay = (long) (new Random().nextDouble() * SUMMARY_PERIOD_MS);
+		executor.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					sendSummary();
+				} catch (RuntimeException e) {
+					Log.w(TAG, "Failed to send summary.", e);
+				}
+			}
+		}, delay, SUMMARY_PERIOD_MS, TimeUnit.MILLISECONDS);
+	}
+
+	@Override
+	public void cleanup() {
+		executor.shutdownNow();
+		writer.stop();
+		Log.i(TAG, this.toString());
+		Log.i(TAG, writer.toString());
+	}
+
+	@Override
+	public void sendShout(Shout shout) throws ManesNotRegisteredException {
+		shoutProtocol.send(shout);
+		record(shout);
+	}
+
+	@Override
+	public void receive(Shout shout) {
+		writer.write(shout);
+		record(shout);
+	}
+
+	@Override
+	public void receive(ObjectType type, ByteBuffer data) {
+		final HaveSummary summary;
+		try {
+			summary = HaveSummarySerializer.deserialize(data);
+		} catch (UnsupportedVersionException e) {
+			Log.v(TAG, "Dropping have summary with unsupported version", e);
+			return;
+		} catch (InvalidFormatException e) {
+			Log.v(TAG, "Dropping have summary with invalid format", e);
+			return;
+		}
+
+		synchronized (this) {
+			summariesReceived++;
+		}
+		final List<Hash> missing = window.missingFrom(summary, System.currentTimeMillis());
+		if (missing.isEmpty())
+			return;
+		try {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					push(missing);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			Log.v(TAG, "Dropping have summary received after shutdown");
+		}
+	}
+
+	@Override
+	public void heardAgain(Hash hash) {
+		// A neighbor pushed it
+		synchronized (pushed) {
+			pushed.put(hash, System.currentTimeMillis());
+		}
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String
+				.format("SummaryNetworkProtocol[window=%d, summariesSent=%d, summariesReceived=%d, pushes=%d, suppressedPushes=%d]",
+						window.size(), summariesSent, summariesReceived, pushes,
+						suppressedPushes);
+	}
+
+	private void record(Shout shout) {
+		long now = System.currentTimeMillis();
+		for (Shout s = shout; s != null; s = s.getParent())
+			window.add(s.getHash(), now);
+	}
+
+	private void sendSummary() {
+		HaveSummary summary = window.getSummary(System.currentTimeMillis());
+		ByteBuffer buffer = PacketProtocol.createPacket();
+		try {
+			HaveSummarySerializer.serialize(buffer, summary);
+			packetProtocol.sendCoalesced(buffer, TrafficClass.Rebroadcast);
+		} finally {
+			PacketProtocol.releasePacket(buffer);
+		}
+		synchronized (this) {
+			summariesSent++;
+		}
+	}
+
+	private void push(List<Hash> missing) {
+		long now = System.currentTimeMillis();
+		List<Hash> selected = new ArrayList<Hash>(MAX_PUSH);
+		int suppressed = 0;
+		synchronized (pushed) {
+			for (Hash hash : missing) {
+				if (selected.size() >= MAX_PUSH)
+					break;
+				Long last = pushed.get(hash);
+				if (last != null && now - last < PUSH_HOLDOFF_MS) {
+					suppressed++;
+					continue;
+				}
+				pushed.put(hash, now);
+				selected.add(hash);
+			}
+		}
+
+		int sent = 0;
+		for (Hash hash : selected) {
+			Shout shout = resolver.resolve(hash);
+			if (shout == null)
+				continue;
+			try {
+				shoutProtocol.rebroadcast(shout);
+				sent++;
+			} catch (RuntimeException e) {
+				Log.w(TAG, "Failed to push shout.", e);
+			}
+		}
+		synchronized (this) {
+			pushes += sent;
+			suppressedPushes += suppressed;
+		}
+	}
+
+}
@@ -0,0 +1,155 @@
+package org.whispercomm.shout.network.shout;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.whispercomm.shout.Hash;
+
+/**
+ * The shout hashes seen in a sliding time window, with a {@link HaveSummary}
+ * of them maintained incrementally.
+ * <p>
+ * The window is divided into slots. Each hash is added to the slot of the
+ * current time and to the summary of the whole window. When the window slides
+ * past a slot, the slot is dropped and the summary is rebuilt from the
+ * remaining slot summaries, so the database is never scanned.
+ * <p>
+ * This class is thread-safe.
+ *
+ * @author David R. Bild
+ */
+public class SummaryWindow {
+
+	private final Slot[] slots;
+
+	private final long slotMs;
+
+	private final HaveSummary summary;
+
+	/**
+	 * All hashes in the window
+	 */
+	private final Set<Hash> hashes;
+
+	/**
+	 * Index (time divided by the slot length) of the newest slot
+	 */
+	private long current;
+
+	/**
+	 * @param numBytes the size of the summary, in bytes
+	 * @param numHashes the number of bit positions set per hash
+	 * @param numSlots the number of slots in the window
+	 * @param slotMs the length of each slot, in milliseconds
+	 */
+	public SummaryWindow(int numBytes, int numHashes, int numSlots, long slotMs) {
+		this.slots = new Slot[numSlots];
+		for (int i = 0; i < numSlots; ++i)
+			slots[i] = new Slot(new HaveSummary(numBytes, numHashes));
+		this.slotMs = slotMs;
+		this.summary = new HaveSummary(numBytes, numHashes);
+		this.hashes = new HashSet<Hash>();
+		this.current = -1;
+	}
+
+	/**
+	 * Adds a hash to the window, if not already present.
+	 *
+	 * @param hash the hash to add
+	 * @param now the current time, in milliseconds
+	 * @return {@code true} if the hash was added
+	 */
+	public synchronized boolean add(Hash hash, long now) {
+		slide(now);
+		if (!hashes.add(hash))
+			return false;
+		Slot slot = slots[(int) (current % slots.length)];
+		slot.hashes.add(hash);
+		slot.summary.add(hash);
+		summary.add(hash);
+		return true;
+	}
+
+	/**
+	 * @param now the current time, in milliseconds
+	 * @return a copy of the summary of the window
+	 */
+	public synchronized HaveSummary getSummary(long now) {
+		slide(now);
+		return summary.copy();
+	}
+
+	/**
+	 * Computes the hashes in the window that are missing from another
+	 * summary, newest first.
+	 *
+	 * @param other the summary of a neighbor
+	 * @param now the current time, in milliseconds
+	 * @return the missing hashes
+	 */
+	public synchronized List<Hash> missingFrom(HaveSummary other, long now) {
+		slide(now);
+		List<Hash> missing = new ArrayList<Hash>();
+		for (int i = 0; i < slots.length; ++i) {
+			Slot slot = slots[(int) ((current - i + slots.length) % slots.length)];
+			for (int j = slot.hashes.size() - 1; j >= 0; --j) {
+				Hash hash = slot.hashes.get(j);
+				if (!other.mightContain(hash))
+					missing.add(hash);
+			}
+		}
+		return missing;
+	}
+
+	/**
+	 * @return the number of hashes in the window
+	 */
+	public synchronized int size() {
+		return hashes.size();
+	}
+
+	private void slide(long now) {
+		long index = now / slotMs;
+		if (current < 0)
+			current = index;
+		if (index <= current)
+			return;
+
+		boolean dropped = false;
+		long steps = Math.min(index - current, slots.length);
+		for (long i = 1; i <= steps; ++i) {
+			Slot slot = slots[(int) ((current + i) % slots.length)];
+			if (!slot.hashes.isEmpty()) {
+				hashes.removeAll(slot.hashes);
+				slot.clear();
+				dropped = true;
+			}
+		}
+		current = index;
+
+		if (dropped) {
+			summary.clear();
+			for (Slot slot : slots)
+				summary.addAll(slot.summary);
+		}
+	}
+
+	private static class Slot {
+		final List<Hash> hashes;
+
+		final HaveSummary summary;
+
+		Slot(HaveSummary summary) {
+			this.hashes = new ArrayList<Hash>();
+			this.summary = summary;
+		}
+
+		void clear() {
+			hashes.clear();
+			summary.clear();
+		}
+	}
+
+}
@@ -0,0 +1,182 @@
+package org.whispercomm.shout.network.shout;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import org.whispercomm.manes.client.maclib.ManesNotRegisteredException;
+import org.whispercomm.shout.Hash;
+import org.whispercomm.shout.Shout;
+import org.whispercomm.shout.errors.InvalidFormatException;
+import org.whispercomm.shout.network.ObjectProtocol;
+import org.whispercomm.shout.network.ObjectType;
+import org.whispercomm.shout.network.UnsupportedVersionException;
+
+import android.content.Context;
+import android.util.Log;
+
+/**
+ * Network logic for Shout that rebroadcasts outgoing shouts using the Trickle
+ * algorithm (see {@link TrickleTimer}).
+ * <p>
+ * Each outgoing shout is sent once immediately and then rebroadcast at
+ * exponentially growing intervals. A rebroadcast is suppressed when enough
+ * neighbors were heard rebroadcasting the same shout in the current interval.
+ * <p>
+ * Detecting an inconsistency with a neighbor resets the intervals, so that
+ * neighbor receives the outgoing shouts quickly. Frames carry no sender, so a
+ * neighbor is only noticed through what it sends. There are two signs of
+ * inconsistency:
+ * <ul>
+ * <li>receiving a shout for the first time, other than one of our outgoing
+ * shouts, which shows that a neighbor holds shouts we lacked, as when another
+ * Trickle node comes into range and rebroadcasts its own shouts; and</li>
+ * <li>receiving a {@link HaveSummary} (register this protocol for
+ * {@link ObjectType#HaveSummary}) that lacks an outgoing shout added within
+ * the summary window of {@link SummaryNetworkProtocol}.</li>
+ * </ul>
+ * A neighbor that sends nothing is served within the maximum interval, which
+ * by default is shorter than the period of {@link NaiveNetworkProtocol}.
+ * <p>
+ * Received shouts are stored as by {@link NaiveNetworkProtocol}.
+ *
+ * @author David R. Bild
+ */
+public class TrickleNetworkProtocol implements NetworkProtocol, ObjectProtocol,
+		ShoutProtocol.DuplicateListener {
+	public static final String TAG = TrickleNetworkProtocol.class.getSimpleName();
+
+	/**
+	 * minimum rebroadcast interval, in milliseconds
+	 */
+	public static long IMIN_MS = TrickleTimer.DEFAULT_IMIN_MS;
+
+	/**
+	 * number of times the rebroadcast interval may double
+	 */
+	public static int DOUBLINGS = TrickleTimer.DEFAULT_DOUBLINGS;
+
+	/**
+	 * number of rebroadcasts heard in an interval that suppresses our own
+	 */
+	public static int REDUNDANCY = TrickleTimer.DEFAULT_REDUNDANCY;
+
+	private final ShoutProtocol shoutProtocol;
+
+	private final ScheduledExecutorService executor;
+
+	private final TrickleTimer<Shout> timer;
+
+	/**
+	 * stores received shouts
+	 */
+	private final ReceivedShoutWriter writer;
+
+	private long summariesReceived;
+
+	private long inconsistencies;
+
+	public TrickleNetworkProtocol(ShoutProtocol shoutProtocol, Context context) {
+		this(shoutProtocol, new ReceivedShoutWriter(context));
+	}
+
+	/**
+	 * @param shoutProtocol the protocol used to send shouts
+	 * @param writer the writer that stores received shouts
+	 */
+	public TrickleNetworkProtocol(ShoutProtocol shoutProtocol, ReceivedShoutWriter writer) {
+		this.shoutProtocol = shoutProtocol;
+		this.executor = Executors.newSingleThreadScheduledExecutor();
+		this.timer = new TrickleTimer<Shout>(new TrickleTimer.Transmitter<Shout>() {
+			@Override
+			public void transmit(Shout shout) {
+				TrickleNetworkProtocol.this.shoutProtocol.rebroadcast(shout);
+			}
+		}, executor, IMIN_MS, DOUBLINGS, REDUNDANCY, TrickleTimer.DEFAULT_LIFETIME_MS,
+				TrickleTimer.DEFAULT_MAX_ITEMS);
+		this.writer = writer;
+	}
+
+	@Override
+	public void initialize() {
+		writer.start();
+	}
+
+	@Override
+	public void cleanup() {
+		timer.clear();
+		executor.shutdownNow();
+		writer.stop();
+		Log.i(TAG, this.toString());
+		Log.i(TAG, writer.toString());
+	}
+
+	@Override
+	public void sendShout(Shout shout) throws ManesNotRegisteredException {
+		// Send once now, and then let the timer schedule the rebroadcasts
+		shoutProtocol.send(shout);
+		timer.add(shout.getHash(), shout);
+	}
+
+	@Override
+	public void receive(Shout shout) {
+		writer.write(shout);
+		// Our own shouts may return through relays
+		if (!timer.contains(shout.getHash()))
+			inconsistent();
+	}
+
+	@Override
+	public void receive(ObjectType type, ByteBuffer data) {
+		HaveSummary summary;
+		try {
+			summary = HaveSummarySerializer.deserialize(data);
+		} catch (UnsupportedVersionException e) {
+			Log.v(TAG, "Dropping have summary with unsupported version", e);
+			return;
+		} catch (InvalidFormatException e) {
+			Log.v(TAG, "Dropping have summary with invalid format", e);
+			return;
+		}
+
+		synchronized (this) {
+			summariesReceived++;
+		}
+		// Older shouts may have aged out of the window of the summary
+		long windowMs = SummaryNetworkProtocol.WINDOW_SLOTS
+				* SummaryNetworkProtocol.WINDOW_SLOT_MS;
+		for (Hash hash : timer.keysAddedSince(System.currentTimeMillis() - windowMs)) {
+			if (!summary.mightContain(hash)) {
+				inconsistent();
+				return;
+			}
+		}
+	}
+
+	@Override
+	public void heardAgain(Hash hash) {
+		timer.heard(hash);
+	}
+
+	/**
+	 * @return the number of times the intervals were reset
+	 */
+	public long getResetCount() {
+		return timer.getResetCount();
+	}
+
+	private void inconsistent() {
+		synchronized (this) {
+			inconsistencies++;
+		}
+		timer.resetAll();
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format(
+				"TrickleNetworkProtocol[summariesReceived=%d, inconsistencies=%d, %s]",
+				summariesReceived, inconsistencies, timer);
+	}
+
+}
@@ -0,0 +1,393 @@
+package org.whispercomm.shout.network.shout;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.whispercomm.shout.Hash;
+
+import android.util.Log;
+
+/**
+ * Schedules the rebroadcasts of a set of items using the Trickle algorithm
+ * (RFC 6206).
+ * <p>
+ * Each item has its own interval, which starts at a minimum length and doubles
+ * at the end of each interval up to a maximum. The item is transmitted once at
+ * a random time in the second half of each interval, unless at least
+ * {@code k} consistent transmissions of it (i.e., by neighbors that already
+ * have it) were heard earlier in the interval. Detecting an inconsistency
+ * (e.g., a new neighbor) resets the intervals to the minimum, so new
+ * neighbors are served quickly while a stable neighborhood sees
+ * transmissions grow exponentially rarer.
+ * <p>
+ * Items are dropped once their lifetime has passed, and the oldest item is
+ * dropped when the timer is full.
+ * <p>
+ * This class is thread-safe. Items are transmitted on the executor thread
+ * without holding the timer lock.
+ *
+ * @author David R. Bild
+ */
+public class TrickleTimer<T> {
+	private static final String TAG = TrickleTimer.class.getSimpleName();
+
+	/**
+	 * Default minimum interval length, in milliseconds.
+	 */
+	public static final long DEFAULT_IMIN_MS = 30 * 1000;
+
+	/**
+	 * Default number of times the minimum interval doubles to reach the
+	 * maximum interval (16 minutes, within the 30 minute period of
+	 * {@link NaiveNetworkProtocol}).
+	 */
+	public static final int DEFAULT_DOUBLINGS = 5;
+
+	/**
+	 * Default redundancy constant. Transmission is suppressed after hearing
+	 * this many consistent transmissions in an interval.
+	 */
+	public static final int DEFAULT_REDUNDANCY = 2;
+
+	/**
+	 * Default time, in milliseconds, that an item is rebroadcast.
+	 */
+	public static final long DEFAULT_LIFETIME_MS = 10 * 60 * 60 * 1000;
+
+	/**
+	 * Default maximum number of items.
+	 */
+	public static final int DEFAULT_MAX_ITEMS = 64;
+
+	/**
+	 * Sends an item whose transmission time has come.
+	 */
+	public interface Transmitter<T> {
+		/**
+		 * @param item the item to send
+		 */
+		public void transmit(T item);
+	}
+
+	private final Transmitter<T> transmitter;
+
+	private final ScheduledExecutorService executor;
+
+	private final long iminMs;
+
+	private final long imaxMs;
+
+	private final int k;
+
+	private final long lifetimeMs;
+
+	private final int maxItems;
+
+	private final Random random;
+
+	/**
+	 * Items, oldest first
+	 */
+	private final LinkedHashMap<Hash, Item> items;
+
+	private long transmitted;
+	private long suppressed;
+	private long consistent;
+	private long resets;
+	private long expired;
+	private long evicted;
+
+	/**
+	 * Creates a timer with the default parameters.
+	 *
+	 * @param transmitter the sender of items
+	 * @param executor the executor on which transmissions are scheduled
+	 */
+	public TrickleTimer(Transmitter<T> transmitter, ScheduledExecutorService executor) {
+		this(transmitter, executor, DEFAULT_IMIN_MS, DEFAULT_DOUBLINGS, DEFAULT_REDUNDANCY,
+				DEFAULT_LIFETIME_MS, DEFAULT_MAX_ITEMS);
+	}
+
+	/**
+	 * @param transmitter the sender of items
+	 * @param executor the executor on which transmissions are scheduled
+	 * @param iminMs the minimum interval length, in milliseconds
+	 * @param doublings the number of doublings from the minimum to the maximum
+	 *            interval length
+	 * @param k the redundancy constant
+	 * @param lifetimeMs the time, in milliseconds, that an item is rebroadcast
+	 * @param maxItems the maximum number of items
+	 */
+	public TrickleTimer(Transmitter<T> transmitter, ScheduledExecutorService executor,
+			long iminMs, int doublings, int k, long lifetimeMs, int maxItems) {
+		this.transmitter = transmitter;
+		this.executor = executor;
+		this.iminMs = iminMs;
+		this.imaxMs = iminMs << doublings;
+		this.k = k;
+		this.lifetimeMs = lifetimeMs;
+		this.maxItems = maxItems;
+		this.random = new Random();
+		this.items = new LinkedHashMap<Hash, Item>();
+	}
+
+	/**
+	 * Starts rebroadcasting an item, beginning with the minimum interval. Does
+	 * nothing if the item is already present.
+	 *
+	 * @param key the hash identifying the item
+	 * @param item the item
+	 */
+	public synchronized void add(Hash key, T item) {
+		if (items.containsKey(key))
+			return;
+		while (items.size() >= maxItems) {
+			Iterator<Item> it = items.values().iterator();
+			Item oldest = it.next();
+			it.remove();
+			oldest.cancel();
+			evicted++;
+		}
+		long now = currentTimeMillis();
+		Item entry = new Item(key, item, now, now + lifetimeMs);
+		items.put(key, entry);
+		entry.begin(iminMs);
+	}
+
+	/**
+	 * Records a consistent transmission of an item, i.e., one heard from a
+	 * neighbor that already has it.
+	 *
+	 * @param key the hash of the item
+	 */
+	public synchronized void heard(Hash key) {
+		Item entry = items.get(key);
+		if (entry != null) {
+			entry.counter++;
+			consistent++;
+		}
+	}
+
+	/**
+	 * Records an inconsistency, e.g., a new neighbor. Every item not already
+	 * in its minimum interval starts over with the minimum interval.
+	 */
+	public synchronized void resetAll() {
+		boolean reset = false;
+		for (Item entry : items.values()) {
+			if (entry.interval > iminMs) {
+				entry.cancel();
+				entry.begin(iminMs);
+				reset = true;
+			}
+		}
+		if (reset)
+			resets++;
+	}
+
+	/**
+	 * @param time the earliest time of interest, in milliseconds since the
+	 *            epoch
+	 * @return the keys of the items added at or after the specified time,
+	 *         oldest first
+	 */
+	public synchronized List<Hash> keysAddedSince(long time) {
+		List<Hash> keys = new ArrayList<Hash>();
+		for (Item entry : items.values()) {
+			if (entry.added >= time)
+				keys.add(entry.key);
+		}
+		return keys;
+	}
+
+	/**
+	 * Stops rebroadcasting an item.
+	 *
+	 * @param key the hash of the item
+	 */
+	public synchronized void remove(Hash key) {
+		Item entry = items.remove(key);
+		if (entry != null)
+			entry.cancel();
+	}
+
+	/**
+	 * Stops rebroadcasting all items.
+	 */
+	public synchronized void clear() {
+		for (Item entry : items.values())
+			entry.cancel();
+		items.clear();
+	}
+
+	/**
+	 * @return the number of items being rebroadcast
+	 */
+	public synchronized int size() {
+		return items.size();
+	}
+
+	/**
+	 * @return the number of transmissions
+	 */
+	public synchronized long getTransmittedCount() {
+		return transmitted;
+	}
+
+	/**
+	 * @return the number of transmissions suppressed by consistent
+	 *         transmissions from neighbors
+	 */
+	public synchronized long getSuppressedCount() {
+		return suppressed;
+	}
+
+	/**
+	 * @return the number of times the intervals were reset
+	 */
+	public synchronized long getResetCount() {
+		return resets;
+	}
+
+	/**
+	 * @param key the hash of an item
+	 * @return {@code true} if the item is being rebroadcast
+	 */
+	public synchronized boolean contains(Hash key) {
+		return items.containsKey(key);
+	}
+
+	/**
+	 * @param key the hash of an item
+	 * @return the length of the current interval of the item, in milliseconds,
+	 *         or {@code -1} if the item is not present
+	 */
+	synchronized long getIntervalMs(Hash key) {
+		Item entry = items.get(key);
+		return (entry == null) ? -1 : entry.interval;
+	}
+
+	/**
+	 * @return the current time, in milliseconds since the epoch. Overridden by
+	 *         tests to control time.
+	 */
+	long currentTimeMillis() {
+		return System.currentTimeMillis();
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String
+				.format("TrickleTimer[items=%d, transmitted=%d, suppressed=%d, consistent=%d, resets=%d, expired=%d, evicted=%d]",
+						items.size(), transmitted, suppressed, consistent, resets, expired,
+						evicted);
+	}
+
+	/**
+	 * Called at the transmission time of an item.
+	 */
+	private void fire(Item entry, long generation) {
+		synchronized (this) {
+			if (entry.generation != generation || items.get(entry.key) != entry)
+				return;
+			entry.future = schedule(entry, generation, entry.interval - entry.fireDelay, false);
+			if (entry.counter >= k) {
+				suppressed++;
+				return;
+			}
+			transmitted++;
+		}
+
+		try {
+			transmitter.transmit(entry.item);
+		} catch (RuntimeException e) {
+			Log.w(TAG, "Failed to transmit item.", e);
+		}
+	}
+
+	/**
+	 * Called at the end of the interval of an item.
+	 */
+	private synchronized void end(Item entry, long generation) {
+		if (entry.generation != generation || items.get(entry.key) != entry)
+			return;
+		if (currentTimeMillis() >= entry.expires) {
+			items.remove(entry.key);
+			expired++;
+			return;
+		}
+		entry.begin(Math.min(2 * entry.interval, imaxMs));
+	}
+
+	private ScheduledFuture<?> schedule(final Item entry, final long generation, long delay,
+			final boolean fire) {
+		return executor.schedule(new Runnable() {
+			@Override
+			public void run() {
+				if (fire)
+					fire(entry, generation);
+				else
+					end(entry, generation);
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+	}
+
+	private class Item {
+		final Hash key;
+
+		final T item;
+
+		final long added;
+
+		final long expires;
+
+		long interval;
+
+		int counter;
+
+		long fireDelay;
+
+		/**
+		 * Incremented for each interval, so tasks of cancelled intervals that
+		 * still run are ignored
+		 */
+		long generation;
+
+		ScheduledFuture<?> future;
+
+		Item(Hash key, T item, long added, long expires) {
+			this.key = key;
+			this.item = item;
+			this.added = added;
+			this.expires = expires;
+		}
+
+		/**
+		 * Starts a new interval. Must hold the timer lock.
+		 */
+		void begin(long interval) {
+			this.interval = interval;
+			this.counter = 0;
+			this.generation++;
+			long half = interval / 2;
+			this.fireDelay = half + (long) (random.nextDouble() * (interval - half));
+			this.future = schedule(this, generation, fireDelay, true);
+		}
+
+		/**
+		 * Cancels the current interval. Must hold the timer lock.
+		 */
+		void cancel() {
+			generation++;
+			if (future != null)
+				future.cancel(false);
+		}
+	}
+
+}
@@ -9,7 +9,7 @@ import org.whispercomm.shout.LocalUser;
 import org.whispercomm.shout.ShoutImage;
 import org.whispercomm.shout.SimpleHashReference;
 import org.whispercomm.shout.crypto.ECPublicKey;
-import org.whispercomm.shout.crypto.KeyGenerator;
+import org.whispercomm.shout.crypto.PublicKeyCache;
 import org.whispercomm.shout.errors.InvalidEncodingException;
 
 import android.util.Base64;
@@ -50,7 +50,7 @@ public class LocalUserImpl implements LocalUser {
 			return;
 
 		try {
-			publicKey = KeyGenerator.generatePublic(Base64.decode(encodedPublicKey,
+			publicKey = PublicKeyCache.fromEncoded(Base64.decode(encodedPublicKey,
 					Base64.DEFAULT));
 		} catch (InvalidKeySpecException e) {
 			// TODO: Figure out what to do about this
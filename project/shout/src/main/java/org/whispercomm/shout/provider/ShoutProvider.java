@@ -5,9 +5,12 @@ import java.util.ArrayList;
 import java.util.List;
 
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.SQLException;
@@ -32,6 +35,7 @@ public class ShoutProvider extends ContentProvider {
 	private static final String MIME_SHOUT_MANY = "vnd.android.cursor.dir/shout";
 	private static final String MIME_USER = "vnd.android.cursor.item/shout-user";
 	private static final String MIME_USER_MANY = "vnd.android.cursor.dir/shout-user";
+	private static final String MIME_OUTBOUND_MANY = "vnd.android.cursor.dir/shout-outbound";
 
 	private static final UriMatcher sUriMatcher = new UriMatcher(
 			UriMatcher.NO_MATCH);
@@ -43,6 +47,7 @@ public class ShoutProvider extends ContentProvider {
 
 	private static final int USERS = 10;
 	private static final int MESSAGES = 20;
+	private static final int OUTBOUND = 30;
 
 	private static final int SHOUT_ID = 100;
 	private static final int USER_ID = 110;
@@ -66,6 +71,8 @@ public class ShoutProvider extends ContentProvider {
 		sUriMatcher.addURI(AUTHORITY, "message", MESSAGES);
 		sUriMatcher.addURI(AUTHORITY, "message/#", MESSAGE_ID);
 		sUriMatcher.addURI(AUTHORITY, "message/shout/#", MESSAGES_SHOUT_ID);
+
+		sUriMatcher.addURI(AUTHORITY, "outbound", OUTBOUND);
 	}
 
 	private ShoutDatabaseHelper mOpenHelper;
@@ -96,6 +103,8 @@ public class ShoutProvider extends ContentProvider {
 				return MIME_USER_MANY;
 			case USER_ID:
 				return MIME_USER;
+			case OUTBOUND:
+				return MIME_OUTBOUND_MANY;
 			default:
 				throw new IllegalArgumentException("Unknown or invalid URI " + uri);
 		}
@@ -115,6 +124,15 @@ public class ShoutProvider extends ContentProvider {
 			case MESSAGES:
 				table = ShoutSearchContract.Messages.TABLE_NAME;
 				break;
+			case OUTBOUND:
+				/* At most one pending rebroadcast per shout */
+				mDB = mOpenHelper.getWritableDatabase();
+				long id = mDB.insertWithOnConflict(ShoutDatabaseHelper.OUTBOUND_TABLE, null,
+						values, SQLiteDatabase.CONFLICT_REPLACE);
+				if (id == -1)
+					throw new SQLException("Unable to insert into table "
+							+ ShoutDatabaseHelper.OUTBOUND_TABLE);
+				return ContentUris.withAppendedId(uri, id);
 			case ORIGINAL_SHOUTS:
 			case COMMENT_SHOUTS:
 			case RESHOUT_SHOUTS:
@@ -128,6 +146,24 @@ public class ShoutProvider extends ContentProvider {
 		return insertLocation;
 	}
 
+	/**
+	 * Applies the operations in a single transaction, so a batch of inserts
+	 * costs one commit instead of one per insert.
+	 */
+	@Override
+	public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+			throws OperationApplicationException {
+		SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+		db.beginTransaction();
+		try {
+			ContentProviderResult[] results = super.applyBatch(operations);
+			db.setTransactionSuccessful();
+			return results;
+		} finally {
+			db.endTransaction();
+		}
+	}
+
 	/**
 	 * Query to see if there is a row in the table at the specified URI that
 	 * will cause a conflict due to a unique constraint.
@@ -280,6 +316,9 @@ public class ShoutProvider extends ContentProvider {
 				qBuilder.appendWhere(ShoutSearchContract.Messages.SHOUT + " MATCH "
 						+ uri.getLastPathSegment());
 				break;
+			case OUTBOUND:
+				qBuilder.setTables(ShoutDatabaseHelper.OUTBOUND_TABLE);
+				break;
 			default:
 				throw new IllegalArgumentException("Unknown or invalid URI " + uri);
 		}
@@ -360,6 +399,11 @@ public class ShoutProvider extends ContentProvider {
 					whereArgs = selectionArgs;
 				}
 				break;
+			case OUTBOUND:
+				table = ShoutDatabaseHelper.OUTBOUND_TABLE;
+				whereClause = selection;
+				whereArgs = selectionArgs;
+				break;
 			default:
 				throw new IllegalArgumentException("Unknown or invalid URI " + uri);
 		}
@@ -422,6 +466,11 @@ public class ShoutProvider extends ContentProvider {
 					whereArgs = selectionArgs;
 				}
 				break;
+			case OUTBOUND:
+				table = ShoutDatabaseHelper.OUTBOUND_TABLE;
+				whereClause = selection;
+				whereArgs = selectionArgs;
+				break;
 			default:
 				throw new IllegalArgumentException("Invalid or unknown URI " + uri);
 		}
@@ -462,11 +511,12 @@ public class ShoutProvider extends ContentProvider {
 		private static final String TAG = ShoutDatabaseHelper.class
 				.getSimpleName();
 
-		public static final int VERSION = 3;
+		public static final int VERSION = 4;
 		public static final String DBNAME = "shout_base";
 
 		public static final String SHOUTS_TABLE = "shout";
 		public static final String USERS_TABLE = "user";
+		public static final String OUTBOUND_TABLE = "outbound";
 
 		public static final String DENORMED_SHOUT_VIEW = "denormed_shout";
 		public static final String DENORMED_ORIGINAL_VIEW = "denormed_original";
@@ -515,6 +565,23 @@ public class ShoutProvider extends ContentProvider {
 				+ " ("
 				+ ShoutProviderContract.Shouts.PARENT + ");";
 
+		private static final String SQL_CREATE_OUTBOUND = "CREATE TABLE "
+				+ OUTBOUND_TABLE + "("
+				+ ShoutProviderContract.Outbound._ID
+				+ " INTEGER PRIMARY KEY ASC AUTOINCREMENT, "
+				+ ShoutProviderContract.Outbound.HASH + " TEXT, "
+				+ ShoutProviderContract.Outbound.NEXT_SEND + " LONG, "
+				+ ShoutProviderContract.Outbound.REMAINING + " INTEGER, "
+				+ "UNIQUE (" + ShoutProviderContract.Outbound.HASH + "), "
+				+ "FOREIGN KEY(" + ShoutProviderContract.Outbound.HASH
+				+ ") REFERENCES " + SHOUTS_TABLE
+				+ "(" + ShoutProviderContract.Shouts.HASH + ") ON DELETE CASCADE" + ");";
+
+		private static final String SQL_CREATE_INDEX_OUTBOUND_NEXT_SEND = "CREATE INDEX idx_outbound_next_send ON "
+				+ OUTBOUND_TABLE
+				+ " ("
+				+ ShoutProviderContract.Outbound.NEXT_SEND + ");";
+
 		private static final String SQL_CREATE_VIRTUAL_MESSAGE = "CREATE VIRTUAL TABLE "
 				+ ShoutSearchContract.Messages.TABLE_NAME
 				+ " USING fts3("
@@ -640,6 +707,8 @@ public class ShoutProvider extends ContentProvider {
 			db.execSQL(SQL_CREATE_VIEW_DENORMED_COMMENT);
 			db.execSQL(SQL_CREATE_VIEW_DENORMED_RESHOUT);
 			db.execSQL(SQL_CREATE_TRIGGER_RESHOUTER);
+			db.execSQL(SQL_CREATE_OUTBOUND);
+			db.execSQL(SQL_CREATE_INDEX_OUTBOUND_NEXT_SEND);
 		}
 
 		@Override
@@ -655,6 +724,8 @@ public class ShoutProvider extends ContentProvider {
 					new Upgrade1to2(db).upgrade();
 				case 2:
 					new Upgrade2to3(db).upgrade();
+				case 3:
+					new Upgrade3to4(db).upgrade();
 					break;
 				default:
 					Log.e(TAG, String.format(
@@ -714,6 +785,20 @@ public class ShoutProvider extends ContentProvider {
 			}
 		}
 
+		private static class Upgrade3to4 {
+			SQLiteDatabase mDb;
+
+			public Upgrade3to4(SQLiteDatabase database) {
+				mDb = database;
+			}
+
+			public void upgrade() {
+				Log.i(TAG, "Upgrading database from version 3 to version 4");
+				mDb.execSQL(SQL_CREATE_OUTBOUND);
+				mDb.execSQL(SQL_CREATE_INDEX_OUTBOUND_NEXT_SEND);
+			}
+		}
+
 	}
 
 }
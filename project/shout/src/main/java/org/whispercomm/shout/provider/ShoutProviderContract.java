@@ -1,6 +1,9 @@
 
 package org.whispercomm.shout.provider;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import org.whispercomm.shout.Hash;
 import org.whispercomm.shout.LocalShout;
 import org.whispercomm.shout.LocalUser;
@@ -12,11 +15,14 @@ import org.whispercomm.shout.crypto.DsaSignature;
 import org.whispercomm.shout.crypto.ECPublicKey;
 import org.whispercomm.shout.crypto.KeyGenerator;
 
+import android.content.ContentProviderOperation;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.RemoteException;
 import android.provider.BaseColumns;
 import android.util.Base64;
 import android.util.Log;
@@ -197,6 +203,39 @@ public class ShoutProviderContract {
 		public static final String AVATAR = "Avatar";
 	}
 
+	/**
+	 * Helper class for the table of pending rebroadcasts of shouts sent by
+	 * this device.
+	 * 
+	 * @author David R. Bild
+	 */
+	static class Outbound implements BaseColumns {
+
+		/**
+		 * The base content URI for the Outbound table.
+		 */
+		public static final Uri CONTENT_URI = Uri.withAppendedPath(
+				CONTENT_URI_BASE, "outbound");
+
+		/**
+		 * The column name for the hash of the shout to rebroadcast. Stored as
+		 * a reference to a Shout hash, Base64 encoded.
+		 */
+		public static final String HASH = "Hash";
+
+		/**
+		 * The column name for the time of the next rebroadcast. Stored as a
+		 * long representing the number of milliseconds since the UNIX epoch.
+		 */
+		public static final String NEXT_SEND = "Next_Send";
+
+		/**
+		 * The column name for the number of rebroadcasts remaining. Stored as
+		 * an integer.
+		 */
+		public static final String REMAINING = "Remaining";
+	}
+
 	/**
 	 * Retrieve Shout with given database ID
 	 * 
@@ -243,6 +282,35 @@ public class ShoutProviderContract {
 		return shout;
 	}
 
+	/**
+	 * Checks if a shout with the given hash is stored in the database. This
+	 * lookup uses the unique index on the hash column and does not construct
+	 * a {@link LocalShout}.
+	 *
+	 * @param context The context of the content resolver
+	 * @param hash The hash of the Shout
+	 * @return {@code true} if the shout is stored, {@code false} otherwise
+	 */
+	public static boolean containsShout(Context context, Hash hash) {
+		String encodedHash = Base64.encodeToString(hash.toByteArray(), Base64.DEFAULT);
+		String[] projection = {
+				Shouts._ID
+		};
+		String selection = Shouts.HASH + " = ?";
+		String[] selectionArgs = {
+				encodedHash
+		};
+		Cursor cursor = context.getContentResolver().query(Shouts.CONTENT_URI, projection,
+				selection, selectionArgs, null);
+		if (cursor == null) {
+			Log.e(TAG, "Null cursor returned on Shout lookup by hash");
+			return false;
+		}
+		boolean exists = cursor.moveToFirst();
+		cursor.close();
+		return exists;
+	}
+
 	/**
 	 * When given a cursor at a position pointing to a Shout with all available
 	 * fields, construct a Shout object using the data in that row.
@@ -332,6 +400,154 @@ public class ShoutProviderContract {
 		return result;
 	}
 
+	/**
+	 * Stores the given shouts and their senders and ancestors, if not already
+	 * present in the database, in a single batch. This is cheaper than
+	 * calling {@link #saveShout(Context, Shout)} for each shout, because the
+	 * inserts share one transaction and the stored shouts are not read back.
+	 * 
+	 * @param context The context the content resolver is found in
+	 * @param shouts The shouts to be stored
+	 * @return {@code true} on success or {@code false} on failure.
+	 */
+	public static boolean saveShouts(Context context, List<? extends Shout> shouts) {
+		ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+		for (Shout shout : shouts) {
+			addSaveOperations(operations, shout);
+		}
+		try {
+			context.getContentResolver().applyBatch(AUTHORITY, operations);
+			return true;
+		} catch (RemoteException e) {
+			Log.e(TAG, "Unable to save batch of shouts", e);
+			return false;
+		} catch (OperationApplicationException e) {
+			Log.e(TAG, "Unable to save batch of shouts", e);
+			return false;
+		}
+	}
+
+	private static void addSaveOperations(ArrayList<ContentProviderOperation> operations,
+			Shout shout) {
+		if (shout.getParent() != null) {
+			addSaveOperations(operations, shout.getParent());
+		}
+		int userIndex = operations.size();
+		operations.add(ContentProviderOperation.newInsert(Users.CONTENT_URI)
+				.withValues(ContractHelper.buildContentValues(shout.getSender())).build());
+		operations.add(ContentProviderOperation.newInsert(Shouts.CONTENT_URI)
+				.withValues(ContractHelper.buildContentValues(shout, -1))
+				.withValueBackReference(Shouts.USER_PK, userIndex).build());
+	}
+
+	/**
+	 * Schedules rebroadcasts of a stored shout, replacing any already
+	 * scheduled for it.
+	 * 
+	 * @param context The context the content resolver is found in
+	 * @param hash The hash of the shout to rebroadcast
+	 * @param nextSend The time of the first rebroadcast, in milliseconds since
+	 *            the UNIX epoch
+	 * @param count The number of rebroadcasts
+	 */
+	public static void scheduleRebroadcasts(Context context, Hash hash, long nextSend, int count) {
+		ContentValues values = new ContentValues();
+		values.put(Outbound.HASH, Base64.encodeToString(hash.toByteArray(), Base64.DEFAULT));
+		values.put(Outbound.NEXT_SEND, nextSend);
+		values.put(Outbound.REMAINING, count);
+		context.getContentResolver().insert(Outbound.CONTENT_URI, values);
+	}
+
+	/**
+	 * Claims the rebroadcasts due by the given time. Each claimed rebroadcast
+	 * is counted as sent: the next one is scheduled one period later, or the
+	 * shout is removed from the table if none remain. The updates are applied
+	 * in a single batch.
+	 * 
+	 * @param context The context the content resolver is found in
+	 * @param dueBy The time, in milliseconds since the UNIX epoch, by which
+	 *            the claimed rebroadcasts are due
+	 * @param period The time, in milliseconds, between rebroadcasts of a
+	 *            shout
+	 * @return The hashes of the shouts to rebroadcast now
+	 */
+	public static List<Hash> claimDueRebroadcasts(Context context, long dueBy, long period) {
+		String[] projection = {
+				Outbound.HASH, Outbound.NEXT_SEND, Outbound.REMAINING
+		};
+		String selection = Outbound.NEXT_SEND + " <= ?";
+		String[] selectionArgs = {
+				Long.toString(dueBy)
+		};
+		Cursor cursor = context.getContentResolver().query(Outbound.CONTENT_URI, projection,
+				selection, selectionArgs, null);
+		if (cursor == null) {
+			Log.e(TAG, "Null cursor returned on due rebroadcast lookup");
+			return new ArrayList<Hash>();
+		}
+
+		List<Hash> hashes = new ArrayList<Hash>(cursor.getCount());
+		ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+		long now = System.currentTimeMillis();
+		while (cursor.moveToNext()) {
+			String encodedHash = cursor.getString(0);
+			long nextSend = cursor.getLong(1);
+			int remaining = cursor.getInt(2);
+			hashes.add(new Hash(Base64.decode(encodedHash, Base64.DEFAULT)));
+
+			String[] args = {
+					encodedHash
+			};
+			if (remaining <= 1) {
+				operations.add(ContentProviderOperation.newDelete(Outbound.CONTENT_URI)
+						.withSelection(Outbound.HASH + " = ?", args).build());
+			} else {
+				// Skip rebroadcasts missed while not running
+				nextSend = Math.max(nextSend + period, now + period / 2);
+				operations.add(ContentProviderOperation.newUpdate(Outbound.CONTENT_URI)
+						.withSelection(Outbound.HASH + " = ?", args)
+						.withValue(Outbound.NEXT_SEND, nextSend)
+						.withValue(Outbound.REMAINING, remaining - 1).build());
+			}
+		}
+		cursor.close();
+
+		if (operations.isEmpty())
+			return hashes;
+		try {
+			context.getContentResolver().applyBatch(AUTHORITY, operations);
+		} catch (RemoteException e) {
+			Log.e(TAG, "Unable to update rebroadcast schedule", e);
+		} catch (OperationApplicationException e) {
+			Log.e(TAG, "Unable to update rebroadcast schedule", e);
+		}
+		return hashes;
+	}
+
+	/**
+	 * Retrieves the time of the earliest scheduled rebroadcast.
+	 * 
+	 * @param context The context the content resolver is found in
+	 * @return The time, in milliseconds since the UNIX epoch, or {@code -1} if
+	 *         no rebroadcasts are scheduled
+	 */
+	public static long retrieveNextRebroadcastTime(Context context) {
+		String[] projection = {
+				"MIN(" + Outbound.NEXT_SEND + ")"
+		};
+		Cursor cursor = context.getContentResolver().query(Outbound.CONTENT_URI, projection,
+				null, null, null);
+		if (cursor == null) {
+			Log.e(TAG, "Null cursor returned on next rebroadcast lookup");
+			return -1;
+		}
+		long next = -1;
+		if (cursor.moveToFirst() && !cursor.isNull(0))
+			next = cursor.getLong(0);
+		cursor.close();
+		return next;
+	}
+
 	/**
 	 * Retrieve the User with the given database ID
 	 * 
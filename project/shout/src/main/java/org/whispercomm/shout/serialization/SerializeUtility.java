@@ -31,7 +31,8 @@ import org.whispercomm.shout.User;
 import org.whispercomm.shout.crypto.DsaSignature;
 import org.whispercomm.shout.crypto.ECPublicKey;
 import org.whispercomm.shout.crypto.EcdsaWithSha256;
-import org.whispercomm.shout.crypto.KeyGenerator;
+import org.whispercomm.shout.crypto.PublicKeyCache;
+import org.whispercomm.shout.crypto.VerificationCache;
 import org.whispercomm.shout.network.ObjectType;
 import org.whispercomm.shout.network.UnsupportedVersionException;
 import org.whispercomm.shout.network.shout.InvalidShoutSignatureException;
@@ -109,11 +110,6 @@ public class SerializeUtility {
 	 */
 	public static final int VERSION = 0;
 
-	/**
-	 * KeyGenerator used to recover keys from X and Y coordinates
-	 */
-	private static final KeyGenerator KEY_GENERATOR = new KeyGenerator();
-
 	/**
 	 * Extracts the version from the flags byte
 	 * 
@@ -291,6 +287,36 @@ public class SerializeUtility {
 	public static BuildableShout deserializeShout(ByteBuffer buffer)
 			throws UnsupportedVersionException,
 			ShoutPacketException, InvalidShoutSignatureException {
+		return deserializeShout(buffer, true);
+	}
+
+	/**
+	 * Deserializes a shout without verifying its signature. The caller must
+	 * verify the signature, e.g., in a batch with
+	 * {@link EcdsaWithSha256#verifyAll(java.util.List)}, before trusting the
+	 * shout. The portion of the buffer covered by the signature is available
+	 * in {@link BuildableShout#signedData}.
+	 * 
+	 * @param buffer the buffer holding the serialized shout.
+	 * @return the deserialized, but unverified, shout
+	 * @throws BadShoutVersionException if the serialized shout is an
+	 *             unsupported version
+	 * @throws ShoutPacketException if the serialized shout contains invalid
+	 *             data
+	 */
+	public static BuildableShout deserializeUnverifiedShout(ByteBuffer buffer)
+			throws UnsupportedVersionException, ShoutPacketException {
+		try {
+			return deserializeShout(buffer, false);
+		} catch (InvalidShoutSignatureException e) {
+			// Not thrown when verification is disabled
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static BuildableShout deserializeShout(ByteBuffer buffer, boolean verify)
+			throws UnsupportedVersionException,
+			ShoutPacketException, InvalidShoutSignatureException {
 		try {
 			int type = 0xFF & buffer.get(buffer.position());
 			if (type != TYPE.getIdAsByte())
@@ -300,7 +326,7 @@ public class SerializeUtility {
 			byte flags = buffer.get(buffer.position() + 3);
 			switch (VERSION(flags)) {
 				case 0:
-					return deserializeVersion0Shout(buffer);
+					return deserializeVersion0Shout(buffer, verify);
 				default:
 					throw new UnsupportedVersionException(
 							String.format(
@@ -316,13 +342,14 @@ public class SerializeUtility {
 	 * Deserialize a version 0 Shout.
 	 * 
 	 * @param buffer the buffer holding the serialized shout.
+	 * @param verify whether to verify the signature
 	 * @return the deserialized shout
 	 * @throws ShoutPacketException if the serialized shout contains invalid
 	 *             data
 	 * @throws InvalidShoutSignatureException if the included signature is
 	 *             invalid
 	 */
-	private static BuildableShout deserializeVersion0Shout(ByteBuffer buffer)
+	private static BuildableShout deserializeVersion0Shout(ByteBuffer buffer, boolean verify)
 			throws ShoutPacketException,
 			InvalidShoutSignatureException {
 
@@ -403,8 +430,21 @@ public class SerializeUtility {
 
 			// Signature
 			shout.signature = getDsaSignature(buffer);
-			if (!EcdsaWithSha256.verify(shout.signature, signedData, user.publicKey)) {
-				throw new InvalidShoutSignatureException();
+
+			/*
+			 * Compute hash before verifying, so previously verified shouts can
+			 * skip the signature check.
+			 */
+			ByteBuffer clone = flipToMark(buffer.asReadOnlyBuffer());
+			shout.hash = Hash.hashData(clone);
+
+			if (verify) {
+				if (!VerificationCache.verify(shout.hash, shout.signature, signedData,
+						user.publicKey)) {
+					throw new InvalidShoutSignatureException();
+				}
+			} else {
+				shout.signedData = signedData;
 			}
 
 			// Verify length
@@ -419,10 +459,6 @@ public class SerializeUtility {
 						"Invalid type.  Shout must have a message or reference a parent.");
 			}
 
-			// Compute hash
-			ByteBuffer clone = flipToMark(buffer.asReadOnlyBuffer());
-			shout.hash = Hash.hashData(clone);
-
 			return shout;
 		} catch (BufferUnderflowException e) {
 			throw new ShoutPacketException("Shout packet missing bytes", e);
@@ -446,15 +482,13 @@ public class SerializeUtility {
 
 	/**
 	 * Deserializes a public key from the provided buffer, assuming the default
-	 * named curve.
+	 * named curve. Repeated keys are returned as the same interned instance.
 	 * 
 	 * @param buffer the buffer from which to read the key
 	 * @return the deserialized public key
 	 */
 	public static ECPublicKey getPublicKey(ByteBuffer buffer) {
-		BigInteger x = getBigInteger(buffer, PUBLIC_KEY_AFFINE_SIZE, true);
-		BigInteger y = getBigInteger(buffer, PUBLIC_KEY_AFFINE_SIZE, true);
-		return KEY_GENERATOR.generatePublic(x, y);
+		return PublicKeyCache.fromPoint(getArray(buffer, PUBLIC_KEY_SIZE));
 	}
 
 	/**
@@ -544,12 +578,18 @@ public class SerializeUtility {
 		public String message = null;
 		public Location location = null;
 
-		public BuildableShout parent = null;
+		public Shout parent = null;
 		public Hash parentHash = null;
 
 		public DsaSignature signature = null;
 		public Hash hash = null;
 
+		/**
+		 * The signed portion of the serialized shout, if the signature has not
+		 * yet been verified. {@code null} otherwise.
+		 */
+		public ByteBuffer signedData = null;
+
 		@Override
 		public int getVersion() {
 			return version;
@@ -67,6 +67,16 @@ public class ShoutTracker {
 		tracker = EasyTracker.getTracker();
 	}
 
+	/**
+	 * Sends an event, unless the tracker is not initialized, as when the
+	 * network stack runs outside the application.
+	 */
+	private static void sendEvent(String category, String action, String label, Long value) {
+		Tracker t = tracker;
+		if (t != null)
+			t.sendEvent(category, action, label, value);
+	}
+
 	static String actionReceive(Shout shout) {
 		switch (shout.getType()) {
 			case SHOUT:
@@ -129,54 +139,54 @@ public class ShoutTracker {
 
 	// Content Tracking
 	public static void trackReceiveContentDescriptor(ContentDescriptor descriptor) {
-		tracker.sendEvent(CATEGORY_NETWORK_RECEIVE_EVENT, ACTION_RECEIVE_CONTENT_DESCRIPTOR,
+		sendEvent(CATEGORY_NETWORK_RECEIVE_EVENT, ACTION_RECEIVE_CONTENT_DESCRIPTOR,
 				descriptor.getHash().toString(), (long) 1);
 	}
 
 	public static void trackReceiveContentRequest(ContentRequest request) {
-		tracker.sendEvent(CATEGORY_NETWORK_RECEIVE_EVENT, ACTION_RECEIVE_CONTENT_REQUEST,
-				request.getObjectHash().toString(), (long) 1);
+		sendEvent(CATEGORY_NETWORK_RECEIVE_EVENT, ACTION_RECEIVE_CONTENT_REQUEST,
+				request.getObjectHash().toString(), (long) request.getHashes().size());
 	}
 
 	public static void trackReceiveMerkleNode(MerkleNode node) {
-		tracker.sendEvent(CATEGORY_NETWORK_RECEIVE_EVENT, ACTION_RECEIVE_MERKLE_NODE,
+		sendEvent(CATEGORY_NETWORK_RECEIVE_EVENT, ACTION_RECEIVE_MERKLE_NODE,
 				node.getHash().toString(), (long) 1);
 	}
 
 	public static void trackSendContentDescriptor(ContentDescriptor descriptor) {
-		tracker.sendEvent(CATEGORY_NETWORK_SEND_EVENT, ACTION_SEND_CONTENT_DESCRIPTOR,
+		sendEvent(CATEGORY_NETWORK_SEND_EVENT, ACTION_SEND_CONTENT_DESCRIPTOR,
 				descriptor.getHash().toString(), (long) 1);
 	}
 
 	public static void trackSendContentRequest(ContentRequest request) {
-		tracker.sendEvent(CATEGORY_NETWORK_SEND_EVENT, ACTION_SEND_CONTENT_REQUEST,
-				request.getObjectHash().toString(), (long) 1);
+		sendEvent(CATEGORY_NETWORK_SEND_EVENT, ACTION_SEND_CONTENT_REQUEST,
+				request.getObjectHash().toString(), (long) request.getHashes().size());
 	}
 
 	public static void trackSendMerkleNode(MerkleNode node) {
-		tracker.sendEvent(CATEGORY_NETWORK_SEND_EVENT, ACTION_SEND_MERKLE_NODE,
+		sendEvent(CATEGORY_NETWORK_SEND_EVENT, ACTION_SEND_MERKLE_NODE,
 				node.getHash().toString(), (long) 1);
 	}
 
 	// Shout Tracking
 	public static void trackReceiveShout(Shout shout) {
-		tracker.sendEvent(CATEGORY_NETWORK_RECEIVE_EVENT, actionReceive(shout),
+		sendEvent(CATEGORY_NETWORK_RECEIVE_EVENT, actionReceive(shout),
 				shout.getHash().toString(), (long) 1);
 	}
 
 	public static void trackCreateShout(Shout shout) {
-		tracker.sendEvent(CATEGORY_UI_EVENT, actionCreate(shout),
+		sendEvent(CATEGORY_UI_EVENT, actionCreate(shout),
 				shout.getHash().toString(), (long) 1);
 	}
 
 	public static void trackSendShout(Shout shout) {
-		tracker.sendEvent(CATEGORY_NETWORK_SEND_EVENT, actionSend(shout),
+		sendEvent(CATEGORY_NETWORK_SEND_EVENT, actionSend(shout),
 				shout.getHash().toString(), (long) 1);
 	}
 
 	// View Shout tracking
 	public static void trackViewDetails(Shout shout) {
-		tracker.sendEvent(CATEGORY_UI_EVENT, ACTION_DETAIL_VIEW,
+		sendEvent(CATEGORY_UI_EVENT, ACTION_DETAIL_VIEW,
 				shout.getHash().toString(), (long) 1);
 	}
 
@@ -29,7 +29,7 @@ import android.util.SparseArray;
  * 
  * @author David R. Bild
  */
-public class AlarmExecutorService {
+public class AlarmExecutorService implements TaskScheduler {
 	private static final String TAG = AlarmExecutorService.class.getSimpleName();
 
 	private static final String ALARM_INTENT_ACTION = "org.whispercomm.shout.util.AlarmManagerExecutorService";
@@ -50,8 +50,7 @@ public class AlarmExecutorService {
 
 	private volatile boolean running;
 
-	public interface Task {
-		public void cancel();
+	public interface Task extends TaskScheduler.Task {
 	}
 
 	public AlarmExecutorService(Context context, ExecutorService executor, String tag) {
@@ -66,6 +65,7 @@ public class AlarmExecutorService {
 		this.running = true;
 	}
 
+	@Override
 	public void shutdown() {
 		running = false;
 		cancelAllTasks();
@@ -78,6 +78,7 @@ public class AlarmExecutorService {
 	 * @param command the task to execute
 	 * @throws RejectedExecutionException if the executor has been shutdown
 	 */
+	@Override
 	public void execute(Runnable command) {
 		if (!running)
 			throw new RejectedExecutionException("Cannot schedule new command after shutdown.");
@@ -93,6 +94,7 @@ public class AlarmExecutorService {
 	 * @return a handle to the task to allow cancellation
 	 * @throws RejectedExecutionException if the executor has been shutdown
 	 */
+	@Override
 	public Task schedule(Runnable command, long delay, TimeUnit unit) {
 		return schedule(command, TimeUnit.MILLISECONDS.convert(delay, unit));
 	}
@@ -0,0 +1,145 @@
+package org.whispercomm.shout.util;
+
+import org.whispercomm.shout.Hash;
+
+/**
+ * A Bloom filter specialized for {@link Hash} keys.
+ * <p>
+ * The keys are SHA-256 digests and thus already uniformly distributed, so the
+ * bit indices are derived directly from the key bytes (using the
+ * Kirsch-Mitzenmacher double hashing construction) instead of re-hashing each
+ * key.
+ * <p>
+ * This class is not thread-safe.
+ *
+ * @author David R. Bild
+ */
+public class HashBloomFilter {
+
+	private final long[] bits;
+
+	private final int numBits;
+
+	private final int numHashes;
+
+	private int count;
+
+	/**
+	 * Creates a filter sized to hold the specified number of keys with the
+	 * specified false positive probability.
+	 *
+	 * @param expectedKeys the number of keys expected to be added
+	 * @param falsePositiveRate the desired false positive probability, in
+	 *            (0,1)
+	 */
+	public HashBloomFilter(int expectedKeys, double falsePositiveRate) {
+		this(optimalNumBits(expectedKeys, falsePositiveRate), optimalNumHashes(expectedKeys,
+				falsePositiveRate));
+	}
+
+	/**
+	 * Creates a filter with the specified number of bits and hash functions.
+	 *
+	 * @param numBits the number of bits in the filter, rounded up to a multiple
+	 *            of 64
+	 * @param numHashes the number of bit indices set for each key
+	 */
+	public HashBloomFilter(int numBits, int numHashes) {
+		if (numBits <= 0)
+			throw new IllegalArgumentException("numBits must be positive.");
+		if (numHashes <= 0)
+			throw new IllegalArgumentException("numHashes must be positive.");
+		this.bits = new long[(numBits + 63) / 64];
+		this.numBits = bits.length * 64;
+		this.numHashes = numHashes;
+		this.count = 0;
+	}
+
+	/**
+	 * Adds a key to the filter.
+	 *
+	 * @param hash the key to add
+	 */
+	public void add(Hash hash) {
+		byte[] key = hash.toByteArray();
+		int h1 = getInt(key, 0);
+		int h2 = getInt(key, 4);
+		for (int i = 0; i < numHashes; ++i) {
+			int idx = index(h1 + i * h2);
+			bits[idx >>> 6] |= (1L << idx);
+		}
+		count++;
+	}
+
+	/**
+	 * Checks if the key might have been added to the filter.
+	 *
+	 * @param hash the key to check
+	 * @return {@code false} if the key was definitely not added or {@code true}
+	 *         if it may have been.
+	 */
+	public boolean mightContain(Hash hash) {
+		byte[] key = hash.toByteArray();
+		int h1 = getInt(key, 0);
+		int h2 = getInt(key, 4);
+		for (int i = 0; i < numHashes; ++i) {
+			int idx = index(h1 + i * h2);
+			if ((bits[idx >>> 6] & (1L << idx)) == 0)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Removes all keys from the filter.
+	 */
+	public void clear() {
+		Arrays.fill(bits, 0L);
+		count = 0;
+	}
+
+	/**
+	 * @return the number of keys added since creation or the last call to
+	 *         {@link #clear()}
+	 */
+	public int count() {
+		return count;
+	}
+
+	/**
+	 * @return the number of bits in the filter
+	 */
+	public int numBits() {
+		return numBits;
+	}
+
+	/**
+	 * @return the number of bit indices set for each key
+	 */
+	public int numHashes() {
+		return numHashes;
+	}
+
+	private int index(int combined) {
+		return (combined & Integer.MAX_VALUE) % numBits;
+	}
+
+	private static int getInt(byte[] data, int offset) {
+		return ((data[offset] & 0xFF) << 24) | ((data[offset + 1] & 0xFF) << 16)
+				| ((data[offset + 2] & 0xFF) << 8) | (data[offset + 3] & 0xFF);
+	}
+
+	private static int optimalNumBits(int n, double p) {
+		if (n <= 0)
+			throw new IllegalArgumentException("expectedKeys must be positive.");
+		if (!(0 < p && p < 1))
+			throw new IllegalArgumentException("falsePositiveRate must be in (0,1).");
+		return (int) Math.ceil(-n * Math.log(p) / (Math.log(2) * Math.log(2)));
+	}
+
+	private static int optimalNumHashes(int n, double p) {
+		int m = optimalNumBits(n, p);
+		return Math.max(1, (int) Math.round((double) m / n * Math.log(2)));
+	}
+
+}
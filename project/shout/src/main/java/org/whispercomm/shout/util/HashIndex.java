@@ -0,0 +1,287 @@
+package org.whispercomm.shout.util;
+
+import org.whispercomm.shout.Hash;
+
+/**
+ * An open-addressing hash map from {@link Hash} keys to {@code long} values.
+ * <p>
+ * The 32-byte keys are stored inline in a {@code long[]} slab, four longs per
+ * slot, with the values in a parallel {@code long[]} and slot occupancy in a
+ * bitmap, so there are no per-entry objects. Collisions are resolved by
+ * linear probing and removals by shifting later entries of the probe run
+ * back, so no tombstones accumulate. The table doubles when three quarters
+ * full.
+ * <p>
+ * The keys are SHA-256 digests and thus already uniformly distributed, so the
+ * home slot is derived directly from the key bytes.
+ * <p>
+ * This class is not thread-safe.
+ *
+ * @author David R. Bild
+ */
+public class HashIndex {
+
+	private static final int LONGS_PER_KEY = Hash.LENGTH / 8;
+
+	private static final int MIN_CAPACITY = 16;
+
+	private long[] keys;
+
+	private long[] values;
+
+	private long[] occupied;
+
+	private int mask;
+
+	private int size;
+
+	private int threshold;
+
+	/**
+	 * Creates an empty index.
+	 */
+	public HashIndex() {
+		this(MIN_CAPACITY);
+	}
+
+	/**
+	 * Creates an empty index sized to hold the specified number of keys
+	 * without growing.
+	 *
+	 * @param expectedKeys the number of keys expected to be added
+	 */
+	public HashIndex(int expectedKeys) {
+		if (expectedKeys < 0)
+			throw new IllegalArgumentException("expectedKeys must not be negative.");
+		int capacity = MIN_CAPACITY;
+		while (capacity / 4 * 3 < expectedKeys)
+			capacity <<= 1;
+		allocate(capacity);
+	}
+
+	/**
+	 * @param hash the key to check
+	 * @return {@code true} if the index contains the key
+	 */
+	public boolean contains(Hash hash) {
+		return find(hash.toByteArray()) >= 0;
+	}
+
+	/**
+	 * Returns the value of the key.
+	 *
+	 * @param hash the key to look up
+	 * @param missing the value returned if the index does not contain the key
+	 * @return the value of the key or {@code missing}
+	 */
+	public long get(Hash hash, long missing) {
+		int slot = find(hash.toByteArray());
+		return (slot < 0) ? missing : values[slot];
+	}
+
+	/**
+	 * Sets the value of the key, adding the key if not present.
+	 *
+	 * @param hash the key
+	 * @param value the value
+	 * @return {@code true} if the key was added or {@code false} if it was
+	 *         already present
+	 */
+	public boolean put(Hash hash, long value) {
+		byte[] key = hash.toByteArray();
+		int slot = find(key);
+		if (slot >= 0) {
+			values[slot] = value;
+			return false;
+		}
+
+		if (size >= threshold)
+			allocate(2 * (mask + 1));
+		insert(getLong(key, 0), getLong(key, 8), getLong(key, 16), getLong(key, 24), value);
+		return true;
+	}
+
+	/**
+	 * Adds the key with a value of zero, if not present.
+	 *
+	 * @param hash the key to add
+	 * @return {@code true} if the key was added or {@code false} if it was
+	 *         already present
+	 */
+	public boolean add(Hash hash) {
+		if (contains(hash))
+			return false;
+		return put(hash, 0);
+	}
+
+	/**
+	 * Removes the key.
+	 *
+	 * @param hash the key to remove
+	 * @return {@code true} if the key was present
+	 */
+	public boolean remove(Hash hash) {
+		int slot = find(hash.toByteArray());
+		if (slot < 0)
+			return false;
+
+		// Shift back later entries whose home slot is not in (slot, next]
+		int next = slot;
+		while (true) {
+			next = (next + 1) & mask;
+			if (!isOccupied(next))
+				break;
+			int home = home(keys[next * LONGS_PER_KEY]);
+			if (((next - home) & mask) >= ((next - slot) & mask)) {
+				copySlot(next, slot);
+				slot = next;
+			}
+		}
+		occupied[slot >>> 6] &= ~(1L << slot);
+		size--;
+		return true;
+	}
+
+	/**
+	 * Removes all keys, keeping the current capacity.
+	 */
+	public void clear() {
+		for (int i = 0; i < occupied.length; ++i)
+			occupied[i] = 0;
+		size = 0;
+	}
+
+	/**
+	 * @return the number of keys in the index
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Returns the number of slots. Together with {@link #isOccupied(int)},
+	 * {@link #keyAt(int)} and {@link #valueAt(int)}, this supports iterating
+	 * over the entries without allocating an iterator. The index must not be
+	 * modified while iterating.
+	 *
+	 * @return the number of slots
+	 */
+	public int capacity() {
+		return mask + 1;
+	}
+
+	/**
+	 * @param slot the slot, in [0, {@link #capacity()})
+	 * @return {@code true} if the slot holds an entry
+	 */
+	public boolean isOccupied(int slot) {
+		return (occupied[slot >>> 6] & (1L << slot)) != 0;
+	}
+
+	/**
+	 * @param slot an occupied slot
+	 * @return the key in the slot
+	 */
+	public Hash keyAt(int slot) {
+		byte[] key = new byte[Hash.LENGTH];
+		for (int i = 0; i < LONGS_PER_KEY; ++i)
+			putLong(key, 8 * i, keys[slot * LONGS_PER_KEY + i]);
+		return new Hash(key);
+	}
+
+	/**
+	 * @param slot an occupied slot
+	 * @return the value in the slot
+	 */
+	public long valueAt(int slot) {
+		return values[slot];
+	}
+
+	/**
+	 * @return the approximate size of the arrays backing the index, in bytes
+	 */
+	public long memoryBytes() {
+		return 8L * (keys.length + values.length + occupied.length);
+	}
+
+	private int find(byte[] key) {
+		long k0 = getLong(key, 0);
+		long k1 = getLong(key, 8);
+		long k2 = getLong(key, 16);
+		long k3 = getLong(key, 24);
+		for (int slot = home(k0);; slot = (slot + 1) & mask) {
+			if (!isOccupied(slot))
+				return -1;
+			int base = slot * LONGS_PER_KEY;
+			if (keys[base] == k0 && keys[base + 1] == k1 && keys[base + 2] == k2
+					&& keys[base + 3] == k3)
+				return slot;
+		}
+	}
+
+	private void insert(long k0, long k1, long k2, long k3, long value) {
+		int slot = home(k0);
+		while (isOccupied(slot))
+			slot = (slot + 1) & mask;
+		int base = slot * LONGS_PER_KEY;
+		keys[base] = k0;
+		keys[base + 1] = k1;
+		keys[base + 2] = k2;
+		keys[base + 3] = k3;
+		values[slot] = value;
+		occupied[slot >>> 6] |= (1L << slot);
+		size++;
+	}
+
+	private void copySlot(int from, int to) {
+		System.arraycopy(keys, from * LONGS_PER_KEY, keys, to * LONGS_PER_KEY, LONGS_PER_KEY);
+		values[to] = values[from];
+	}
+
+	/**
+	 * Allocates the table with the specified capacity, a power of two,
+	 * re-inserting any existing entries.
+	 */
+	private void allocate(int capacity) {
+		long[] oldKeys = keys;
+		long[] oldValues = values;
+		long[] oldOccupied = occupied;
+
+		keys = new long[capacity * LONGS_PER_KEY];
+		values = new long[capacity];
+		occupied = new long[(capacity + 63) / 64];
+		mask = capacity - 1;
+		threshold = capacity / 4 * 3;
+		size = 0;
+
+		if (oldKeys == null)
+			return;
+		for (int slot = 0; slot < oldValues.length; ++slot) {
+			if ((oldOccupied[slot >>> 6] & (1L << slot)) == 0)
+				continue;
+			int base = slot * LONGS_PER_KEY;
+			insert(oldKeys[base], oldKeys[base + 1], oldKeys[base + 2], oldKeys[base + 3],
+					oldValues[slot]);
+		}
+	}
+
+	private int home(long k0) {
+		// Fibonacci hashing guards against keys that are not digests
+		return (int) ((k0 * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+	}
+
+	private static long getLong(byte[] b, int off) {
+		return ((b[off] & 0xFFL) << 56) | ((b[off + 1] & 0xFFL) << 48)
+				| ((b[off + 2] & 0xFFL) << 40) | ((b[off + 3] & 0xFFL) << 32)
+				| ((b[off + 4] & 0xFFL) << 24) | ((b[off + 5] & 0xFFL) << 16)
+				| ((b[off + 6] & 0xFFL) << 8) | (b[off + 7] & 0xFFL);
+	}
+
+	private static void putLong(byte[] b, int off, long v) {
+		for (int i = 7; i >= 0; --i) {
+			b[off + i] = (byte) v;
+			v >>>= 8;
+		}
+	}
+
+}
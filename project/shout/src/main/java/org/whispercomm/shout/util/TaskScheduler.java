@@ -0,0 +1,47 @@
+package org.whispercomm.shout.util;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs tasks now or after a delay. On the device this is an
+ * {@link AlarmExecutorService}, which wakes the phone for delayed tasks;
+ * elsewhere, such as in the network simulator, it may be backed by a plain
+ * {@link java.util.concurrent.ScheduledExecutorService}.
+ *
+ * @author David R. Bild
+ */
+public interface TaskScheduler {
+
+	/**
+	 * A handle to a scheduled task.
+	 */
+	public interface Task {
+		public void cancel();
+	}
+
+	/**
+	 * Executes the task as soon as possible.
+	 *
+	 * @param command the task to execute
+	 * @throws RejectedExecutionException if the scheduler has been shutdown
+	 */
+	public void execute(Runnable command);
+
+	/**
+	 * Schedules a one-shot task to run after the given delay.
+	 *
+	 * @param command the task to execute
+	 * @param delay the time from now until the task is enabled
+	 * @param unit the time unit of the delay argument
+	 * @return a handle to the task to allow cancellation
+	 * @throws RejectedExecutionException if the scheduler has been shutdown
+	 */
+	public Task schedule(Runnable command, long delay, TimeUnit unit);
+
+	/**
+	 * Cancels all scheduled tasks and rejects new ones.
+	 */
+	public void shutdown();
+
+}